@@ -0,0 +1,92 @@
+package org.openbase.bco.app.benchmark.influxdb;
+
+/*-
+ * #%L
+ * BCO App Benchmark
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.write.Point;
+import org.openbase.bco.app.influxdbconnector.ServiceStateWriter.PointWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory stand-in of the influx db write api, used as destination of the connector's {@link org.openbase.bco.app.influxdbconnector.ServiceStateWriter}.
+ * <p>
+ * Points are converted into line protocol and collected into batches the same way the write api does before sending them,
+ * but the batches are discarded instead of being transmitted. This keeps network and database latencies out of the measurements.
+ */
+public class InMemoryPointWriter implements PointWriter {
+
+    private final int batchSize;
+    private final List<String> batch;
+    private long writtenBytes;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param batchSize the number of points collected before a batch is flushed.
+     */
+    public InMemoryPointWriter(final int batchSize) {
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * Writes the given point into the current batch. Bucket and spill flag are ignored since the batches are discarded anyway.
+     *
+     * @param bucket the bucket to write to.
+     * @param point  the point to write.
+     * @param spill  if true the point should be spooled.
+     *
+     * @return true if the point was added to the batch.
+     */
+    @Override
+    public boolean writePoint(final String bucket, final Point point, final boolean spill) {
+        final String lineProtocol = point.toLineProtocol();
+        if (lineProtocol == null || lineProtocol.isEmpty()) {
+            return false;
+        }
+        batch.add(lineProtocol);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Joins the current batch into a request body and discards it.
+     */
+    public void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        writtenBytes += String.join("\n", batch).length();
+        batch.clear();
+    }
+
+    /**
+     * @return the number of characters of all flushed batches.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+}
@@ -0,0 +1,181 @@
+package org.openbase.bco.app.benchmark.influxdb;
+
+/*-
+ * #%L
+ * BCO App Benchmark
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.protobuf.Message;
+import org.openbase.bco.app.influxdbconnector.ConnectorMetrics;
+import org.openbase.bco.app.influxdbconnector.SeriesFilter;
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder;
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder.StateValues;
+import org.openbase.bco.app.influxdbconnector.ServiceStateWriter;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.LocationConfigProvider;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.extension.type.processing.TimestampProcessor;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.ColorStateType.ColorState;
+import org.openbase.type.domotic.state.PowerConsumptionStateType.PowerConsumptionState;
+import org.openbase.type.domotic.state.PowerStateType.PowerState;
+import org.openbase.type.domotic.state.TemperatureStateType.TemperatureState;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+import org.openbase.type.language.LabelType.Label;
+import org.openbase.type.language.LabelType.Label.MapFieldEntry;
+import org.openbase.type.vision.ColorType.Color;
+import org.openbase.type.vision.HSBColorType.HSBColor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the path a service state takes through the influx db connector until it is handed over to the write api.
+ * <p>
+ * Run via {@code java -jar benchmark/target/benchmarks.jar ServiceStateEncodingBenchmark -prof gc} or by launching {@link #main(String[])},
+ * which registers the gc profiler to report the allocation rate per service type.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceStateEncodingBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final long KEEP_ALIVE_INTERVAL = 3600000;
+
+    @Param({"POWER_CONSUMPTION_STATE_SERVICE", "COLOR_STATE_SERVICE", "TEMPERATURE_STATE_SERVICE", "POWER_STATE_SERVICE"})
+    private ServiceType serviceType;
+
+    /**
+     * Enables the series filter. The benchmark alternates between two different states, so all states pass the filter either way.
+     */
+    @Param({"true", "false"})
+    private boolean filter;
+
+    private Message[] serviceStates;
+    private int stateIndex;
+    private UnitConfig unitConfig;
+    private LocationConfigProvider locationConfigProvider;
+    private UnitTagCache unitTagCache;
+    private ServiceStateWriter serviceStateWriter;
+    private InMemoryPointWriter writer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final long timestamp = System.currentTimeMillis();
+        serviceStates = new Message[]{
+                TimestampProcessor.updateTimestamp(timestamp, createServiceState(serviceType, false), TimeUnit.MILLISECONDS),
+                TimestampProcessor.updateTimestamp(timestamp + 1, createServiceState(serviceType, true), TimeUnit.MILLISECONDS)
+        };
+
+        final UnitConfig locationConfig = UnitConfig.newBuilder()
+                .setId("b1f6a4b0-7c2e-4c3f-9a5e-6f3f2d1c0a01")
+                .addAlias("Location-3")
+                .setUnitType(UnitType.LOCATION)
+                .setLabel(createLabel("Living Room"))
+                .build();
+        unitConfig = UnitConfig.newBuilder()
+                .setId("4e3d2c1b-0a9f-4e8d-b7c6-5a4b3c2d1e0f")
+                .addAlias("ColorableLight-12")
+                .setUnitType(UnitType.COLORABLE_LIGHT)
+                .setLabel(createLabel("Ceiling Light"))
+                .build();
+        locationConfigProvider = () -> locationConfig;
+        unitTagCache = new UnitTagCache();
+        writer = new InMemoryPointWriter(BATCH_SIZE);
+        serviceStateWriter = new ServiceStateWriter("bco-persistence", new SeriesFilter(filter, 0, Collections.emptyMap(), KEEP_ALIVE_INTERVAL), null, new ConnectorMetrics(), writer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writer.flush();
+    }
+
+    /**
+     * Extraction of the state values only.
+     */
+    @Benchmark
+    public StateValues read() {
+        final Message serviceState = serviceStates[0];
+        return ServiceStateEncoder.getEncoder(serviceType, serviceState.getDescriptorForType()).read(serviceState);
+    }
+
+    /**
+     * Full path of a service state through the connector as taken by the app:
+     * unit tag lookup, encoding, series filtering, tagging, line protocol conversion and batching.
+     */
+    @Benchmark
+    public long encodeAndWrite() throws CouldNotPerformException {
+        final Message serviceState = serviceStates[stateIndex ^= 1];
+        serviceStateWriter.write(unitTagCache.getTags(unitConfig, locationConfigProvider), serviceType, serviceState, null, true, false);
+        return writer.getWrittenBytes();
+    }
+
+    private static Message createServiceState(final ServiceType serviceType, final boolean changed) {
+        switch (serviceType) {
+            case POWER_CONSUMPTION_STATE_SERVICE:
+                return PowerConsumptionState.newBuilder().setConsumption(changed ? 43.1 : 42.7).setVoltage(230.1).setCurrent(changed ? 0.187 : 0.186).build();
+            case COLOR_STATE_SERVICE:
+                return ColorState.newBuilder().setColor(Color.newBuilder()
+                        .setType(Color.Type.HSB)
+                        .setHsbColor(HSBColor.newBuilder().setHue(changed ? 213.5 : 212.5).setSaturation(0.8).setBrightness(0.65))).build();
+            case TEMPERATURE_STATE_SERVICE:
+                return TemperatureState.newBuilder().setTemperature(changed ? 21.5 : 21.4).build();
+            case POWER_STATE_SERVICE:
+                return PowerState.newBuilder().setValue(changed ? PowerState.State.OFF : PowerState.State.ON).build();
+            default:
+                throw new IllegalArgumentException("ServiceType[" + serviceType.name() + "] not supported by this benchmark!");
+        }
+    }
+
+    private static Label createLabel(final String label) {
+        return Label.newBuilder().addEntry(MapFieldEntry.newBuilder().setKey("en").addValue(label)).build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(ServiceStateEncodingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
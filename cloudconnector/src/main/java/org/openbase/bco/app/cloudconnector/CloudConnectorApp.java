@@ -24,6 +24,7 @@ package org.openbase.bco.app.cloudconnector;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import org.openbase.bco.app.cloudconnector.mapping.service.ServiceStateTraitMapperFactory;
 import org.openbase.bco.authentication.lib.AuthenticatedServiceProcessor;
 import org.openbase.bco.authentication.lib.AuthenticationBaseData;
 import org.openbase.bco.authentication.lib.SessionManager;
@@ -148,6 +149,15 @@ public class CloudConnectorApp extends AbstractAppController implements CloudCon
             createAuthenticationToken();
         }
 
+        // make sure that every trait exported to Google can be mapped
+        Registries.getTemplateRegistry(true);
+        ServiceStateTraitMapperFactory.getInstance().init();
+
+        // the sync model is shared by all sockets, so registry changes are only processed once
+        SyncDeviceModel.getInstance().activate();
+        DeviceStateCache.getInstance().activate();
+        IntentScheduler.getInstance().activate();
+
         // start socket connection for all users which are already registered
         for (final Entry<String, String> entry : tokenStore.getCloudEntries().entrySet()) {
             final String userId = entry.getKey();
@@ -169,6 +179,9 @@ public class CloudConnectorApp extends AbstractAppController implements CloudCon
         for (SocketWrapper socketWrapper : userIdSocketMap.values()) {
             socketWrapper.deactivate();
         }
+        IntentScheduler.getInstance().deactivate();
+        DeviceStateCache.getInstance().deactivate();
+        SyncDeviceModel.getInstance().deactivate();
         super.stop(activationState);
     }
 
@@ -0,0 +1,315 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.openbase.bco.app.cloudconnector.mapping.unit.UnitDataMapper;
+import org.openbase.bco.dal.lib.layer.unit.UnitRemote;
+import org.openbase.bco.dal.remote.layer.unit.Units;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.pattern.Observer;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.DEBUG_CODE_KEY;
+
+/**
+ * Cache of the QUERY states of all devices exported to Google.
+ * <p>
+ * The cache observes the units of all devices provided by the {@link SyncDeviceModel} and maps their states into the trait
+ * representation whenever they change. Therefore, a QUERY can be answered by reading the cache instead of waiting for unit data.
+ * Devices containing units which did not provide data yet are reported as offline.
+ * <p>
+ * Additionally, state listeners are informed about the ids of all devices whose state changed, which allows reporting states proactively.
+ */
+public class DeviceStateCache {
+
+    public static final String ONLINE_KEY = "online";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceStateCache.class);
+
+    private static DeviceStateCache instance;
+
+    public static synchronized DeviceStateCache getInstance() {
+        if (instance == null) {
+            instance = new DeviceStateCache();
+        }
+        return instance;
+    }
+
+    private final Runnable syncModelListener;
+    private final Map<String, TrackedUnit> trackedUnitMap;
+    private final Map<String, JsonObject> unitStateMap;
+    private final List<Consumer<String>> stateListenerList;
+    private volatile Map<String, List<String>> deviceUnitIdMap;
+    private volatile Map<String, Set<String>> unitDeviceIdMap;
+    private boolean active;
+
+    DeviceStateCache() {
+        this.syncModelListener = this::updateTrackedUnits;
+        this.trackedUnitMap = new ConcurrentHashMap<>();
+        this.unitStateMap = new ConcurrentHashMap<>();
+        this.stateListenerList = new CopyOnWriteArrayList<>();
+        this.deviceUnitIdMap = Collections.emptyMap();
+        this.unitDeviceIdMap = Collections.emptyMap();
+        this.active = false;
+    }
+
+    /**
+     * Start tracking the states of all exported devices.
+     */
+    public synchronized void activate() {
+        if (active) {
+            return;
+        }
+        active = true;
+        SyncDeviceModel.getInstance().addChangeListener(syncModelListener);
+        updateTrackedUnits();
+    }
+
+    public synchronized void deactivate() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        SyncDeviceModel.getInstance().removeChangeListener(syncModelListener);
+        for (final TrackedUnit trackedUnit : trackedUnitMap.values()) {
+            trackedUnit.untrack();
+        }
+        trackedUnitMap.clear();
+        unitStateMap.clear();
+        deviceUnitIdMap = Collections.emptyMap();
+        unitDeviceIdMap = Collections.emptyMap();
+    }
+
+    /**
+     * Add a listener informed with the id of a device each time its state changes.
+     * Listeners are called on the thread delivering the unit update, so they should return quickly.
+     *
+     * @param stateListener the listener to add.
+     */
+    public void addStateListener(final Consumer<String> stateListener) {
+        stateListenerList.add(stateListener);
+    }
+
+    public void removeStateListener(final Consumer<String> stateListener) {
+        stateListenerList.remove(stateListener);
+    }
+
+    private void notifyStateChange(final String deviceId) {
+        for (final Consumer<String> stateListener : stateListenerList) {
+            try {
+                stateListener.accept(deviceId);
+            } catch (RuntimeException ex) {
+                ExceptionPrinter.printHistory("Could not inform listener about state change of device[" + deviceId + "]", ex, LOGGER);
+            }
+        }
+    }
+
+    private void notifyUnitStateChange(final String unitId) {
+        for (final String deviceId : unitDeviceIdMap.getOrDefault(unitId, Collections.emptySet())) {
+            notifyStateChange(deviceId);
+        }
+    }
+
+    /**
+     * Synchronize the observed units with the devices currently exported by the sync model.
+     */
+    private synchronized void updateTrackedUnits() {
+        if (!active) {
+            return;
+        }
+
+        final Map<String, List<UnitConfig>> exportedUnitConfigMap;
+        try {
+            exportedUnitConfigMap = SyncDeviceModel.getInstance().getExportedUnitConfigs();
+        } catch (CouldNotPerformException ex) {
+            ExceptionPrinter.printHistory("Could not update units tracked for queries", ex, LOGGER);
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        final Map<String, List<String>> newDeviceUnitIdMap = new HashMap<>();
+        for (final Entry<String, List<UnitConfig>> entry : exportedUnitConfigMap.entrySet()) {
+            final List<String> unitIdList = new ArrayList<>();
+            for (final UnitConfig unitConfig : entry.getValue()) {
+                unitIdList.add(unitConfig.getId());
+                if (trackedUnitMap.containsKey(unitConfig.getId())) {
+                    continue;
+                }
+                try {
+                    trackedUnitMap.put(unitConfig.getId(), new TrackedUnit(unitConfig.getId(), Units.getUnit(unitConfig, false)));
+                } catch (CouldNotPerformException ex) {
+                    ExceptionPrinter.printHistory("Could not track state of unit[" + unitConfig.getId() + "]", ex, LOGGER);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            newDeviceUnitIdMap.put(entry.getKey(), unitIdList);
+        }
+        updateDeviceUnits(newDeviceUnitIdMap);
+    }
+
+    /**
+     * Replace the units composing each device and inform the state listeners about all devices composed of different units.
+     * Units not contained in any device are not tracked anymore.
+     *
+     * @param newDeviceUnitIdMap the ids of the units composing each device by the device id.
+     */
+    synchronized void updateDeviceUnits(final Map<String, List<String>> newDeviceUnitIdMap) {
+        final Map<String, Set<String>> newUnitDeviceIdMap = new HashMap<>();
+        for (final Entry<String, List<String>> entry : newDeviceUnitIdMap.entrySet()) {
+            for (final String unitId : entry.getValue()) {
+                newUnitDeviceIdMap.computeIfAbsent(unitId, id -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+
+        // stop tracking units which are not exported anymore
+        for (final Iterator<Entry<String, TrackedUnit>> iterator = trackedUnitMap.entrySet().iterator(); iterator.hasNext(); ) {
+            final Entry<String, TrackedUnit> entry = iterator.next();
+            if (!newUnitDeviceIdMap.containsKey(entry.getKey())) {
+                entry.getValue().untrack();
+                iterator.remove();
+            }
+        }
+        unitStateMap.keySet().retainAll(newUnitDeviceIdMap.keySet());
+
+        final Map<String, List<String>> oldDeviceUnitIdMap = deviceUnitIdMap;
+        deviceUnitIdMap = newDeviceUnitIdMap;
+        unitDeviceIdMap = newUnitDeviceIdMap;
+
+        // the state of devices changes if they are composed of different units now
+        for (final Entry<String, List<String>> entry : newDeviceUnitIdMap.entrySet()) {
+            if (!entry.getValue().equals(oldDeviceUnitIdMap.get(entry.getKey()))) {
+                notifyStateChange(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the ids of all devices whose state is tracked.
+     */
+    public Set<String> getDeviceIds() {
+        return new HashSet<>(deviceUnitIdMap.keySet());
+    }
+
+    /**
+     * Get the current state of a device as expected by a QUERY response.
+     *
+     * @param deviceId the id of the exported device.
+     *
+     * @return a new json object containing the state of the device or null if the device is not tracked.
+     */
+    public JsonObject getDeviceState(final String deviceId) {
+        final List<String> unitIdList = deviceUnitIdMap.get(deviceId);
+        if (unitIdList == null) {
+            return null;
+        }
+
+        final JsonObject deviceState = new JsonObject();
+        final List<String> staleUnitIdList = new ArrayList<>();
+        for (final String unitId : unitIdList) {
+            final JsonObject unitState = unitStateMap.get(unitId);
+            if (unitState == null) {
+                staleUnitIdList.add(unitId);
+                continue;
+            }
+            for (final Entry<String, JsonElement> entry : unitState.entrySet()) {
+                deviceState.add(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (staleUnitIdList.isEmpty()) {
+            deviceState.addProperty(ONLINE_KEY, true);
+        } else {
+            // mark the device as offline as done when waiting for unit data times out
+            deviceState.addProperty(ONLINE_KEY, false);
+            deviceState.addProperty(DEBUG_CODE_KEY, "No data available for units" + staleUnitIdList);
+        }
+        return deviceState;
+    }
+
+    /**
+     * Store the latest mapped state of a unit and inform the state listeners about all devices containing the unit
+     * if the state changed.
+     *
+     * @param unitId   the id of the unit.
+     * @param newState the state of the unit mapped into the trait representation.
+     */
+    void updateUnitState(final String unitId, final JsonObject newState) {
+        if (newState.equals(unitStateMap.put(unitId, newState))) {
+            return;
+        }
+        notifyUnitStateChange(unitId);
+    }
+
+    /**
+     * Unit observed by the cache mapping its state on each update.
+     */
+    private class TrackedUnit {
+
+        private final String unitId;
+        private final UnitRemote<?> unitRemote;
+        private final Observer observer;
+
+        @SuppressWarnings("unchecked")
+        private TrackedUnit(final String unitId, final UnitRemote<?> unitRemote) {
+            this.unitId = unitId;
+            this.unitRemote = unitRemote;
+            this.observer = (source, data) -> updateState();
+            this.unitRemote.addDataObserver(observer);
+            if (unitRemote.isDataAvailable()) {
+                updateState();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void updateState() {
+            final JsonObject newState = new JsonObject();
+            try {
+                UnitDataMapper.getByType(unitRemote.getUnitType()).map(unitRemote, newState);
+            } catch (CouldNotPerformException ex) {
+                ExceptionPrinter.printHistory("Could not map state of unit[" + unitRemote + "]", ex, LOGGER);
+                return;
+            }
+            updateUnitState(unitId, newState);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void untrack() {
+            unitRemote.removeDataObserver(observer);
+        }
+    }
+}
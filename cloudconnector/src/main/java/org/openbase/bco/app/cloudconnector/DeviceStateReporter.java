@@ -0,0 +1,266 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.schedule.GlobalScheduledExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.DEBUG_CODE_KEY;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.DEVICES_KEY;
+
+/**
+ * Proactively reports state changes of exported devices as provided by the {@link DeviceStateCache}.
+ * <p>
+ * Changes are collected for {@link #BATCH_WINDOW} milliseconds and then reported together, containing only the
+ * values which changed since the last report of a device. Each device is reported at most once every
+ * {@link #MIN_REPORT_INTERVAL} milliseconds, while changes in between are coalesced into the next report.
+ * If a report fails, its devices are reported again with their complete state. The retry is delayed by an exponential
+ * backoff starting at {@link #MIN_REPORT_INTERVAL} and limited to {@link #MAX_RETRY_DELAY} milliseconds.
+ */
+public class DeviceStateReporter {
+
+    public static final String STATES_KEY = "states";
+
+    /**
+     * Time in milliseconds for which state changes are collected before being reported.
+     */
+    public static final long BATCH_WINDOW = 500;
+    /**
+     * Minimal time in milliseconds between two reports of the same device.
+     */
+    public static final long MIN_REPORT_INTERVAL = 2000;
+    /**
+     * Maximal time in milliseconds before a failed report is retried.
+     */
+    public static final long MAX_RETRY_DELAY = 60000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceStateReporter.class);
+
+    private final Function<JsonObject, CompletableFuture<Void>> reportSender;
+    private final DeviceStateCache stateCache;
+    private final long batchWindow;
+    private final long minReportInterval;
+    private final long maxRetryDelay;
+    private final Consumer<String> stateListener;
+    private final Set<String> dirtyDeviceIdSet;
+    private final Map<String, JsonObject> reportedStateMap;
+    private final Map<String, Long> nextReportTimeMap;
+    private final AtomicInteger failedReportCount;
+
+    private ScheduledFuture<?> flushFuture;
+    private boolean active;
+
+    /**
+     * Create a new reporter.
+     *
+     * @param reportSender function sending a report payload to the cloud. The returned future should fail if the report was not accepted.
+     */
+    public DeviceStateReporter(final Function<JsonObject, CompletableFuture<Void>> reportSender) {
+        this(reportSender, DeviceStateCache.getInstance(), BATCH_WINDOW, MIN_REPORT_INTERVAL, MAX_RETRY_DELAY);
+    }
+
+    DeviceStateReporter(final Function<JsonObject, CompletableFuture<Void>> reportSender, final DeviceStateCache stateCache, final long batchWindow, final long minReportInterval, final long maxRetryDelay) {
+        this.reportSender = reportSender;
+        this.stateCache = stateCache;
+        this.batchWindow = batchWindow;
+        this.minReportInterval = minReportInterval;
+        this.maxRetryDelay = maxRetryDelay;
+        this.stateListener = this::deviceStateChanged;
+        this.dirtyDeviceIdSet = ConcurrentHashMap.newKeySet();
+        this.reportedStateMap = new ConcurrentHashMap<>();
+        this.nextReportTimeMap = new ConcurrentHashMap<>();
+        this.failedReportCount = new AtomicInteger();
+        this.active = false;
+    }
+
+    /**
+     * Start reporting. Since the cloud may have missed changes while the reporter was inactive,
+     * the complete state of all devices is reported once.
+     */
+    public synchronized void activate() {
+        if (active) {
+            return;
+        }
+        active = true;
+        reportedStateMap.clear();
+        nextReportTimeMap.clear();
+        failedReportCount.set(0);
+        stateCache.addStateListener(stateListener);
+        dirtyDeviceIdSet.addAll(stateCache.getDeviceIds());
+        scheduleFlush(batchWindow);
+    }
+
+    public synchronized void deactivate() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        stateCache.removeStateListener(stateListener);
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        dirtyDeviceIdSet.clear();
+    }
+
+    private void deviceStateChanged(final String deviceId) {
+        dirtyDeviceIdSet.add(deviceId);
+        scheduleFlush(batchWindow);
+    }
+
+    private synchronized void scheduleFlush(final long delay) {
+        if (!active || (flushFuture != null && !flushFuture.isDone())) {
+            return;
+        }
+
+        try {
+            flushFuture = GlobalScheduledExecutorService.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        } catch (NotAvailableException ex) {
+            ExceptionPrinter.printHistory("Could not schedule state report", ex, LOGGER);
+        }
+    }
+
+    private void flush() {
+        synchronized (this) {
+            if (!active) {
+                return;
+            }
+            flushFuture = null;
+        }
+
+        final long currentTime = System.currentTimeMillis();
+        long nextReportTime = Long.MAX_VALUE;
+        final Map<String, JsonObject> newStateMap = new HashMap<>();
+        final JsonObject states = new JsonObject();
+        for (final String deviceId : new ArrayList<>(dirtyDeviceIdSet)) {
+            // keep changes of devices reported too recently or waiting for a retry for the next report
+            final long deviceReportTime = nextReportTimeMap.getOrDefault(deviceId, 0L);
+            if (currentTime < deviceReportTime) {
+                nextReportTime = Math.min(nextReportTime, deviceReportTime);
+                continue;
+            }
+            dirtyDeviceIdSet.remove(deviceId);
+
+            final JsonObject deviceState = stateCache.getDeviceState(deviceId);
+            if (deviceState == null) {
+                // device is not exported anymore
+                reportedStateMap.remove(deviceId);
+                nextReportTimeMap.remove(deviceId);
+                continue;
+            }
+            deviceState.remove(DEBUG_CODE_KEY);
+
+            final JsonObject delta = computeDelta(reportedStateMap.get(deviceId), deviceState);
+            if (delta.entrySet().isEmpty()) {
+                continue;
+            }
+            states.add(deviceId, delta);
+            newStateMap.put(deviceId, deviceState);
+            nextReportTimeMap.put(deviceId, currentTime + minReportInterval);
+        }
+
+        if (!newStateMap.isEmpty()) {
+            report(states, newStateMap);
+        }
+
+        if (nextReportTime != Long.MAX_VALUE) {
+            scheduleFlush(Math.max(0, nextReportTime - currentTime));
+        }
+    }
+
+    private void report(final JsonObject states, final Map<String, JsonObject> newStateMap) {
+        final JsonObject devices = new JsonObject();
+        devices.add(STATES_KEY, states);
+        final JsonObject payload = new JsonObject();
+        payload.add(DEVICES_KEY, devices);
+
+        // assume that the report is accepted so that following deltas are computed against it
+        reportedStateMap.putAll(newStateMap);
+        reportSender.apply(payload).whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                failedReportCount.set(0);
+                return;
+            }
+
+            // report the complete state of these devices again after a backoff
+            final long retryDelay = computeRetryDelay(failedReportCount.incrementAndGet());
+            LOGGER.debug("Report of states {} failed, retry in {}ms: {}", newStateMap.keySet(), retryDelay, throwable.getMessage());
+            final long retryTime = System.currentTimeMillis() + retryDelay;
+            for (final Entry<String, JsonObject> entry : newStateMap.entrySet()) {
+                reportedStateMap.remove(entry.getKey(), entry.getValue());
+                nextReportTimeMap.merge(entry.getKey(), retryTime, Math::max);
+            }
+            dirtyDeviceIdSet.addAll(newStateMap.keySet());
+            scheduleFlush(retryDelay);
+        });
+    }
+
+    /**
+     * Compute the delay of a retry, which doubles with each consecutive failure.
+     *
+     * @param failureCount the number of consecutive failed reports.
+     *
+     * @return the delay in milliseconds.
+     */
+    private long computeRetryDelay(final int failureCount) {
+        final int doublings = Math.min(failureCount - 1, Long.numberOfLeadingZeros(minReportInterval) - 1);
+        return Math.min(maxRetryDelay, minReportInterval << doublings);
+    }
+
+    /**
+     * Compute the values of a device state which differ from the last reported state.
+     *
+     * @param reportedState the last reported state or null if the device was not reported yet.
+     * @param deviceState   the current state of the device.
+     *
+     * @return a json object containing all changed values.
+     */
+    private static JsonObject computeDelta(final JsonObject reportedState, final JsonObject deviceState) {
+        if (reportedState == null) {
+            return deviceState;
+        }
+
+        final JsonObject delta = new JsonObject();
+        for (final Entry<String, JsonElement> entry : deviceState.entrySet()) {
+            if (!entry.getValue().equals(reportedState.get(entry.getKey()))) {
+                delta.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return delta;
+    }
+}
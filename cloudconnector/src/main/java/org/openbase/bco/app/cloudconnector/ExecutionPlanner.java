@@ -0,0 +1,377 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonObject;
+import org.openbase.bco.app.cloudconnector.mapping.lib.Command;
+import org.openbase.bco.app.cloudconnector.mapping.lib.Trait;
+import org.openbase.bco.app.cloudconnector.mapping.unit.UnitTypeMapping;
+import org.openbase.bco.registry.remote.Registries;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.exception.printer.LogLevel;
+import org.openbase.type.domotic.service.ServiceConfigType.ServiceConfig;
+import org.openbase.type.domotic.service.ServiceDescriptionType.ServiceDescription;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServicePattern;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.EnablingStateType.EnablingState.State;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.COMMAND_KEY;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.PARAMS_KEY;
+
+/**
+ * Plans the actions needed to perform an execute intent.
+ * <p>
+ * Each commanded unit results in its own execution step by default. However, units receiving the same single command
+ * are combined into one action on a location or unit group if this action affects exactly the commanded units.
+ * Therefore, e.g. turning off all lights of a room results in a single location action instead of one action per light.
+ * Since the user may be permitted to control each unit but not the aggregate, aggregated steps provide the per unit
+ * steps they replace as a fallback.
+ */
+public class ExecutionPlanner {
+
+    /**
+     * Minimal number of units combined into an aggregated action.
+     */
+    public static final int MIN_AGGREGATION_SIZE = 2;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionPlanner.class);
+
+    private final List<Target> targetList;
+    private final Map<String, UnitConfig> unitConfigMap;
+    private final UnitConfigSource unitConfigSource;
+
+    public ExecutionPlanner() {
+        this(new UnitConfigSource() {
+            @Override
+            public UnitConfig getUnitConfigById(final String unitId) throws CouldNotPerformException {
+                return Registries.getUnitRegistry().getUnitConfigById(unitId);
+            }
+
+            @Override
+            public List<UnitConfig> getUnitConfigsByUnitType(final UnitType unitType) throws CouldNotPerformException {
+                return Registries.getUnitRegistry().getUnitConfigsByUnitType(unitType);
+            }
+        });
+    }
+
+    ExecutionPlanner(final UnitConfigSource unitConfigSource) {
+        this.targetList = new ArrayList<>();
+        this.unitConfigMap = new HashMap<>();
+        this.unitConfigSource = unitConfigSource;
+    }
+
+    /**
+     * Add a unit which should perform the given executions.
+     *
+     * @param deviceId      the id of the device as known by Google which contains the unit.
+     * @param unitConfig    the config of the unit.
+     * @param executionList the executions to perform.
+     */
+    public void add(final String deviceId, final UnitConfig unitConfig, final List<JsonObject> executionList) {
+        targetList.add(new Target(deviceId, unitConfig, executionList));
+    }
+
+    /**
+     * Create the execution steps for all added units.
+     *
+     * @return a list of steps which together perform all executions.
+     */
+    public List<ExecutionStep> plan() {
+        final List<ExecutionStep> stepList = new ArrayList<>();
+
+        // collect units with a single execution by command and service type since they are candidates for aggregation
+        final Map<JsonObject, Map<ServiceType, Map<String, Target>>> candidateMap = new HashMap<>();
+        for (final Target target : targetList) {
+            final ServiceType serviceType = resolveAggregatableServiceType(target);
+            if (serviceType == null) {
+                stepList.add(new ExecutionStep(target));
+                continue;
+            }
+
+            final Map<String, Target> unitTargetMap = candidateMap
+                    .computeIfAbsent(target.executionList.get(0), execution -> new EnumMap<>(ServiceType.class))
+                    .computeIfAbsent(serviceType, type -> new HashMap<>());
+            if (unitTargetMap.containsKey(target.unitConfig.getId())) {
+                // unit is addressed via multiple devices
+                stepList.add(new ExecutionStep(target));
+                continue;
+            }
+            unitTargetMap.put(target.unitConfig.getId(), target);
+        }
+
+        for (final Entry<JsonObject, Map<ServiceType, Map<String, Target>>> executionEntry : candidateMap.entrySet()) {
+            for (final Entry<ServiceType, Map<String, Target>> serviceTypeEntry : executionEntry.getValue().entrySet()) {
+                stepList.addAll(aggregate(executionEntry.getKey(), serviceTypeEntry.getKey(), serviceTypeEntry.getValue()));
+            }
+        }
+        return stepList;
+    }
+
+    private ServiceType resolveAggregatableServiceType(final Target target) {
+        if (target.executionList.size() != 1) {
+            return null;
+        }
+
+        switch (target.unitConfig.getUnitType()) {
+            case LOCATION:
+            case UNIT_GROUP:
+            case DEVICE:
+                return null;
+        }
+
+        final JsonObject execution = target.executionList.get(0);
+        try {
+            final Command command = Command.getByRepresentation(execution.get(COMMAND_KEY).getAsString());
+            final Trait trait = Trait.getByCommand(command, execution.getAsJsonObject(PARAMS_KEY));
+            return UnitTypeMapping.getByUnitType(target.unitConfig.getUnitType()).getServiceType(trait);
+        } catch (CouldNotPerformException ex) {
+            // the failure is reported when executing the step for this unit
+            return null;
+        }
+    }
+
+    private List<ExecutionStep> aggregate(final JsonObject execution, final ServiceType serviceType, final Map<String, Target> unitTargetMap) {
+        final List<ExecutionStep> stepList = new ArrayList<>();
+        if (unitTargetMap.size() >= MIN_AGGREGATION_SIZE) {
+            try {
+                final List<Entry<UnitConfig, Set<String>>> aggregateList = new ArrayList<>(resolveAggregates(serviceType, unitTargetMap.keySet()).entrySet());
+                // prefer the aggregates affecting the most units
+                aggregateList.sort((first, second) -> Integer.compare(second.getValue().size(), first.getValue().size()));
+                for (final Entry<UnitConfig, Set<String>> aggregate : aggregateList) {
+                    if (!unitTargetMap.keySet().containsAll(aggregate.getValue())) {
+                        continue;
+                    }
+
+                    final Set<String> deviceIdSet = new HashSet<>();
+                    final List<ExecutionStep> fallbackStepList = new ArrayList<>();
+                    for (final String unitId : aggregate.getValue()) {
+                        final Target target = unitTargetMap.remove(unitId);
+                        deviceIdSet.add(target.deviceId);
+                        fallbackStepList.add(new ExecutionStep(target));
+                    }
+                    stepList.add(new ExecutionStep(deviceIdSet, aggregate.getKey(), Collections.singletonList(execution), serviceType, fallbackStepList));
+                }
+            } catch (CouldNotPerformException ex) {
+                ExceptionPrinter.printHistory("Could not aggregate executions for service[" + serviceType.name() + "]", ex, LOGGER, LogLevel.DEBUG);
+            }
+        }
+
+        for (final Target target : unitTargetMap.values()) {
+            stepList.add(new ExecutionStep(target));
+        }
+        return stepList;
+    }
+
+    /**
+     * Resolve all locations and unit groups which contain at least one of the given units and could perform an action of the given service type.
+     *
+     * @param serviceType the service type of the action.
+     * @param unitIdSet   the ids of the units.
+     *
+     * @return a map containing the config of each aggregate and the ids of all units affected by an action on it.
+     *
+     * @throws CouldNotPerformException if the unit registry is not available.
+     */
+    private Map<UnitConfig, Set<String>> resolveAggregates(final ServiceType serviceType, final Set<String> unitIdSet) throws CouldNotPerformException {
+        final Map<String, UnitConfig> aggregateConfigMap = new HashMap<>();
+
+        // all locations containing a unit
+        for (final String unitId : unitIdSet) {
+            String locationId = getUnitConfig(unitId).getPlacementConfig().getLocationId();
+            while (!locationId.isEmpty() && !aggregateConfigMap.containsKey(locationId)) {
+                final UnitConfig locationConfig = getUnitConfig(locationId);
+                aggregateConfigMap.put(locationId, locationConfig);
+                if (locationConfig.getLocationConfig().getRoot()) {
+                    break;
+                }
+                locationId = locationConfig.getPlacementConfig().getLocationId();
+            }
+        }
+
+        // all unit groups containing a unit
+        for (final UnitConfig unitGroupConfig : unitConfigSource.getUnitConfigsByUnitType(UnitType.UNIT_GROUP)) {
+            if (!Collections.disjoint(unitGroupConfig.getUnitGroupConfig().getMemberIdList(), unitIdSet)) {
+                aggregateConfigMap.put(unitGroupConfig.getId(), unitGroupConfig);
+            }
+        }
+
+        final Map<UnitConfig, Set<String>> aggregateMap = new HashMap<>();
+        for (final UnitConfig aggregateConfig : aggregateConfigMap.values()) {
+            if (!isEnabled(aggregateConfig) || !isOperationProvided(aggregateConfig, serviceType)) {
+                continue;
+            }
+
+            final Set<String> memberIdSet = new HashSet<>();
+            if (aggregateConfig.getUnitType() == UnitType.LOCATION) {
+                collectLocationUnitIds(aggregateConfig, memberIdSet);
+            } else {
+                memberIdSet.addAll(aggregateConfig.getUnitGroupConfig().getMemberIdList());
+            }
+
+            // the action affects all enabled members providing the service
+            final Set<String> affectedIdSet = new HashSet<>();
+            for (final String memberId : memberIdSet) {
+                final UnitConfig memberConfig = getUnitConfig(memberId);
+                if (isEnabled(memberConfig) && isOperationProvided(memberConfig, serviceType)) {
+                    affectedIdSet.add(memberId);
+                }
+            }
+
+            if (affectedIdSet.size() >= MIN_AGGREGATION_SIZE) {
+                aggregateMap.put(aggregateConfig, affectedIdSet);
+            }
+        }
+        return aggregateMap;
+    }
+
+    private void collectLocationUnitIds(final UnitConfig locationConfig, final Set<String> unitIdSet) throws CouldNotPerformException {
+        unitIdSet.addAll(locationConfig.getLocationConfig().getUnitIdList());
+        for (final String childId : locationConfig.getLocationConfig().getChildIdList()) {
+            collectLocationUnitIds(getUnitConfig(childId), unitIdSet);
+        }
+    }
+
+    private UnitConfig getUnitConfig(final String unitId) throws CouldNotPerformException {
+        UnitConfig unitConfig = unitConfigMap.get(unitId);
+        if (unitConfig == null) {
+            unitConfig = unitConfigSource.getUnitConfigById(unitId);
+            unitConfigMap.put(unitId, unitConfig);
+        }
+        return unitConfig;
+    }
+
+    private static boolean isEnabled(final UnitConfig unitConfig) {
+        return unitConfig.getEnablingState().getValue() == State.ENABLED;
+    }
+
+    private static boolean isOperationProvided(final UnitConfig unitConfig, final ServiceType serviceType) {
+        if (unitConfig.getUnitType() == UnitType.UNIT_GROUP) {
+            for (final ServiceDescription serviceDescription : unitConfig.getUnitGroupConfig().getServiceDescriptionList()) {
+                if (serviceDescription.getServiceType() == serviceType && serviceDescription.getPattern() == ServicePattern.OPERATION) {
+                    return true;
+                }
+            }
+        }
+
+        for (final ServiceConfig serviceConfig : unitConfig.getServiceConfigList()) {
+            final ServiceDescription serviceDescription = serviceConfig.getServiceDescription();
+            if (serviceDescription.getServiceType() == serviceType && serviceDescription.getPattern() == ServicePattern.OPERATION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Access to the unit configs needed to resolve aggregates.
+     */
+    interface UnitConfigSource {
+
+        UnitConfig getUnitConfigById(final String unitId) throws CouldNotPerformException;
+
+        List<UnitConfig> getUnitConfigsByUnitType(final UnitType unitType) throws CouldNotPerformException;
+    }
+
+    private static class Target {
+
+        private final String deviceId;
+        private final UnitConfig unitConfig;
+        private final List<JsonObject> executionList;
+
+        private Target(final String deviceId, final UnitConfig unitConfig, final List<JsonObject> executionList) {
+            this.deviceId = deviceId;
+            this.unitConfig = unitConfig;
+            this.executionList = executionList;
+        }
+    }
+
+    /**
+     * Executions performed by a single unit on behalf of one or more devices.
+     */
+    public static class ExecutionStep {
+
+        private final Set<String> deviceIdSet;
+        private final UnitConfig unitConfig;
+        private final List<JsonObject> executionList;
+        private final ServiceType serviceType;
+        private final List<ExecutionStep> fallbackStepList;
+
+        private ExecutionStep(final Target target) {
+            this(Collections.singleton(target.deviceId), target.unitConfig, target.executionList, null, Collections.emptyList());
+        }
+
+        private ExecutionStep(final Set<String> deviceIdSet, final UnitConfig unitConfig, final List<JsonObject> executionList, final ServiceType serviceType, final List<ExecutionStep> fallbackStepList) {
+            this.deviceIdSet = deviceIdSet;
+            this.unitConfig = unitConfig;
+            this.executionList = executionList;
+            this.serviceType = serviceType;
+            this.fallbackStepList = fallbackStepList;
+        }
+
+        /**
+         * @return the ids of all devices whose commands are performed by this step.
+         */
+        public Set<String> getDeviceIdSet() {
+            return deviceIdSet;
+        }
+
+        /**
+         * @return the config of the unit performing the executions.
+         */
+        public UnitConfig getUnitConfig() {
+            return unitConfig;
+        }
+
+        public List<JsonObject> getExecutionList() {
+            return executionList;
+        }
+
+        /**
+         * @return the service type used for the executions if the unit aggregates the commanded units, otherwise null
+         * and the service type has to be resolved by the type of the unit.
+         */
+        public ServiceType getServiceType() {
+            return serviceType;
+        }
+
+        public boolean isAggregated() {
+            return serviceType != null;
+        }
+
+        /**
+         * @return the per unit steps replaced by this aggregated step, which are performed instead if the action on
+         * the aggregate is not permitted. The list is empty for steps which are not aggregated.
+         */
+        public List<ExecutionStep> getFallbackStepList() {
+            return fallbackStepList;
+        }
+    }
+}
@@ -22,10 +22,13 @@ package org.openbase.bco.app.cloudconnector;
  * #L%
  */
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.Message;
+import org.openbase.bco.app.cloudconnector.ExecutionPlanner.ExecutionStep;
 import org.openbase.bco.app.cloudconnector.mapping.lib.Command;
 import org.openbase.bco.app.cloudconnector.mapping.lib.ErrorCode;
 import org.openbase.bco.app.cloudconnector.mapping.lib.Trait;
@@ -40,14 +43,8 @@ import org.openbase.bco.dal.lib.layer.unit.UnitRemote;
 import org.openbase.bco.dal.remote.layer.unit.Units;
 import org.openbase.bco.registry.lib.util.UnitConfigProcessor;
 import org.openbase.bco.registry.remote.Registries;
-import org.openbase.bco.registry.unit.lib.UnitRegistry;
-import org.openbase.bco.registry.unit.remote.UnitRegistryRemote;
 import org.openbase.jul.exception.*;
-import org.openbase.jul.exception.MultiException.ExceptionStack;
 import org.openbase.jul.exception.printer.ExceptionPrinter;
-import org.openbase.jul.extension.type.processing.LabelProcessor;
-import org.openbase.jul.processing.StringProcessor;
-import org.openbase.jul.schedule.FutureProcessor;
 import org.openbase.jul.schedule.GlobalCachedExecutorService;
 import org.openbase.jul.schedule.SyncObject;
 import org.openbase.type.domotic.action.ActionDescriptionType.ActionDescription;
@@ -55,18 +52,18 @@ import org.openbase.type.domotic.action.ActionPriorityType.ActionPriority.Priori
 import org.openbase.type.domotic.authentication.AuthTokenType.AuthToken;
 import org.openbase.type.domotic.authentication.AuthenticatedValueType.AuthenticatedValue;
 import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
-import org.openbase.type.domotic.state.EnablingStateType.EnablingState.State;
 import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
 import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
-import org.openbase.type.domotic.unit.location.LocationConfigType.LocationConfig.LocationType;
-import org.openbase.type.language.LabelType.Label;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.StringWriter;
 import java.util.*;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 /**
  * Class parsing JSON requests send by Google and fulfilling them.
@@ -114,6 +111,28 @@ public class FulfillmentHandler {
     public static final Long REGISTRY_TIMEOUT = 5L;
     public static final Long UNIT_DATA_TIMEOUT = 2L;
     public static final Long UNIT_TASK_TIMEOUT = 1L;
+    /**
+     * Time in seconds after which an execute intent is answered. Executions not finished by then are reported as pending.
+     */
+    public static final Long EXECUTE_TIMEOUT = 3L;
+
+    /**
+     * Execute results ordered by severity. A device is reported with the most severe status of all its executions.
+     */
+    private static final List<String> EXECUTE_STATUS_ORDER = Arrays.asList(EXECUTE_SUCCESS, EXECUTE_PENDING, EXECUTE_OFFLINE, EXECUTE_ERROR);
+
+    /**
+     * Initial capacity of the buffer responses are written into.
+     */
+    private static final int RESPONSE_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Maximal capacity of a response buffer kept for reuse, so that a single huge response does not stay in memory.
+     */
+    private static final int MAX_RETAINED_RESPONSE_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<StringWriter> RESPONSE_BUFFER = ThreadLocal.withInitial(() -> new StringWriter(RESPONSE_BUFFER_SIZE));
+
+    private static final Gson GSON = new Gson();
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FulfillmentHandler.class);
 
@@ -185,224 +204,27 @@ public class FulfillmentHandler {
     /**
      * Handle a sync intent from the Google Assistant.
      * This method will fill the payload object according to this intents specification
-     * and the content of the unit registry of BCO.
+     * and the content of the unit registry of BCO. The devices are taken from the shared {@link SyncDeviceModel}.
      *
      * @param payload the payload of the response send to Google.
      */
     public static void handleSync(final JsonObject payload, final String userId) {
-        final JsonArray devices = new JsonArray();
         try {
-            final UnitRegistryRemote unitRegistryRemote = Registries.getUnitRegistry();
-            try {
-                unitRegistryRemote.waitForData(REGISTRY_TIMEOUT, TimeUnit.SECONDS);
-                Registries.getTemplateRegistry().waitForData(REGISTRY_TIMEOUT, TimeUnit.SECONDS);
-            } catch (CouldNotPerformException ex) {
-                setError(payload, ex, ErrorCode.TIMEOUT);
-                return;
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                setError(payload, ex, ErrorCode.DEVICE_OFFLINE);
-                return;
-            }
-            payload.addProperty(AGENT_USER_ID_KEY, userId + "@" + Registries.getUnitRegistry().getUnitConfigByAlias(UnitRegistry.BCO_USER_ALIAS).getId());
-
-            final Set<String> handledUnitConfigs = new HashSet<>();
-
-            // if a unit config is bound to and hosted by a device and this device hosts more than one unit
-            // with the same label which are all bound to it, register them as one
-            for (final UnitConfig deviceUnitConfig : unitRegistryRemote.getUnitConfigsByUnitType(UnitType.DEVICE)) {
-                // ignore disabled devices
-                if (deviceUnitConfig.getEnablingState().getValue() == State.DISABLED) {
-                    continue;
-                }
-
-                if (deviceUnitConfig.getDeviceConfig().getUnitIdCount() < 2) {
-                    continue;
-                }
-
-                final Map<UnitConfig, UnitTypeMapping> unitConfigTypeMapping = new HashMap<>();
-                for (final UnitConfig hostedUnit : getUnitConfigsHandledByDevice(deviceUnitConfig)) {
-                    try {
-                        final UnitTypeMapping unitTypeMapping = UnitTypeMapping.getByUnitType(hostedUnit.getUnitType());
-                        unitConfigTypeMapping.put(hostedUnit, unitTypeMapping);
-                    } catch (NotAvailableException ex) {
-                        // print warning
-                        LOGGER.warn("Skip unit[" + hostedUnit.getAlias(0) + "]: " + ex.getMessage());
-                        // unit does not need to be handled later because no type mapping exists
-                        handledUnitConfigs.add(hostedUnit.getId());
-                    }
-                }
-
-                // test if there are at least to units hosted by this devices which are bound and have the same label
-                if (unitConfigTypeMapping.size() > 1) {
-                    try {
-                        // create google device for this device with all its internal units
-                        devices.add(createJsonDevice(deviceUnitConfig, unitConfigTypeMapping, userId));
-                        // add all units already handled by this routine
-                        for (final UnitConfig unitConfig : unitConfigTypeMapping.keySet()) {
-                            handledUnitConfigs.add(unitConfig.getId());
-                        }
-                    } catch (NotAvailableException ex) {
-                        LOGGER.warn("Skip device[" + deviceUnitConfig.getAlias(0) + "]: " + ex.getMessage());
-                    }
-                }
-            }
-
-            // register unit groups separately because they depend on the unit type of their group configuration
-            for (final UnitConfig unitGroup : Registries.getUnitRegistry().getUnitConfigsByUnitType(UnitType.UNIT_GROUP)) {
-                // ignore disabled groups
-                if (unitGroup.getEnablingState().getValue() == State.DISABLED) {
-                    continue;
-                }
-
-                final UnitType unitType = unitGroup.getUnitGroupConfig().getUnitType();
-                if (unitType == UnitType.UNKNOWN) {
-                    //TODO: this could possibly be handled by a mapping of services to traits and choosing a random device
-                    LOGGER.warn("Skip unit group[" + unitGroup.getAlias(0) + "] because unit type is unknown");
-                } else {
-                    try {
-                        final UnitTypeMapping unitTypeMapping = UnitTypeMapping.getByUnitType(unitGroup.getUnitGroupConfig().getUnitType());
-                        devices.add(createJsonDevice(unitGroup, unitTypeMapping, userId));
-                    } catch (NotAvailableException ex) {
-                        LOGGER.warn("Skip unit group[" + unitGroup.getAlias(0) + "]: " + ex.getMessage());
-                    }
-                }
-            }
-
-            for (final UnitConfig unitConfig : unitRegistryRemote.getUnitConfigs()) {
-                // ignore disabled units
-                if (unitConfig.getEnablingState().getValue() == State.DISABLED) {
-                    continue;
-                }
-
-                switch (unitConfig.getUnitType()) {
-                    case LOCATION:
-                    case DEVICE:
-                    case GATEWAY:
-                    case USER:
-                    case AUTHORIZATION_GROUP:
-                    case OBJECT:
-                    case UNIT_GROUP:
-                        // skip locations, devices, user ...
-                        // skip unit groups because they are handled above
-                        continue;
-                }
-
-                if (handledUnitConfigs.contains(unitConfig.getId())) {
-                    // unit already handled by device routine above
-                    continue;
-                }
-
-                try {
-                    final UnitTypeMapping unitTypeMapping = UnitTypeMapping.getByUnitType(unitConfig.getUnitType());
-                    devices.add(createJsonDevice(unitConfig, unitTypeMapping, userId));
-                } catch (NotAvailableException ex) {
-                    LOGGER.warn("Skip unit[" + UnitConfigProcessor.getDefaultAlias(unitConfig, "?") + "]: " + ex.getMessage());
-                }
-            }
-            payload.add(DEVICES_KEY, devices);
+            final SyncDeviceModel syncDeviceModel = SyncDeviceModel.getInstance();
+            payload.addProperty(AGENT_USER_ID_KEY, syncDeviceModel.getProjection(userId).getAgentUserId());
+            payload.add(DEVICES_KEY, syncDeviceModel.getDevices(userId));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            setError(payload, ex, ErrorCode.DEVICE_OFFLINE);
         } catch (CouldNotPerformException ex) {
-            setError(payload, ex, ErrorCode.UNKNOWN_ERROR);
+            setError(payload, ex, ErrorCode.TIMEOUT);
         }
     }
 
-    private static JsonObject createJsonDevice(final UnitConfig unitConfig, final UnitTypeMapping unitTypeMapping, final String userId) throws CouldNotPerformException {
-        final Map<UnitConfig, UnitTypeMapping> unitConfigTypeMapping = new HashMap<>();
-        unitConfigTypeMapping.put(unitConfig, unitTypeMapping);
-        return createJsonDevice(unitConfig, unitConfigTypeMapping, userId);
-    }
-
-    private static JsonObject createJsonDevice(final UnitConfig host, final Map<UnitConfig, UnitTypeMapping> mappings, final String userId) throws CouldNotPerformException {
-        final JsonObject device = new JsonObject();
-
-        // resolve locale of user to use preferred label
-        final Locale userLocale = new Locale(Registries.getUnitRegistry().getUnitConfigById(userId).getUserConfig().getLanguage());
-
-        device.addProperty(ID_KEY, host.getId());
-        device.addProperty("willReportState", false); // This could be activated in the future
-
-        // always register units at a tile so that they will respond to that when queried like this by google
-        UnitConfig location = Registries.getUnitRegistry().getUnitConfigById(host.getPlacementConfig().getLocationId());
-        while (location.getLocationConfig().getLocationType() == LocationType.REGION) {
-            location = Registries.getUnitRegistry().getUnitConfigById(location.getPlacementConfig().getLocationId());
-        }
-        device.addProperty("roomHint", LabelProcessor.getBestMatch(userLocale, location.getLabel()));
-
-        final JsonObject name = new JsonObject();
-        final String mainName = StringProcessor.insertSpaceBetweenPascalCase(LabelProcessor.getBestMatch(userLocale, host.getLabel()));
-        name.addProperty("name", mainName);
-        final JsonArray defaultNames = new JsonArray();
-        for (final String alias : host.getAliasList()) {
-            defaultNames.add(StringProcessor.insertSpaceBetweenPascalCase(alias.replace("-", " ")));
-        }
-        name.add("defaultNames", defaultNames);
-
-        //TODO: remove this if case
-        if (!mainName.equalsIgnoreCase("leselampe")) {
-            final JsonArray nickNames = new JsonArray();
-            for (final Label.MapFieldEntry mapFieldEntry : host.getLabel().getEntryList()) {
-                for (final String label : mapFieldEntry.getValueList()) {
-                    final String nickName = StringProcessor.insertSpaceBetweenPascalCase(label);
-                    if (nickName.equals(mainName)) {
-                        continue;
-                    }
-
-                    nickNames.add(StringProcessor.insertSpaceBetweenPascalCase(label));
-                }
-            }
-            if (nickNames.size() != 0) {
-                name.add("nicknames", nickNames);
-            }
-        }
-        device.add(NAME_KEY, name);
-
-        if (mappings.isEmpty()) {
-            throw new NotAvailableException("UnitTypeMappings for host[" + host.getAliasList().get(0) + "]");
-        }
-        //TODO: can this be solved differently
-        // use the first unit type mapping to resolve the device type
-        device.addProperty(TYPE_KEY, mappings.values().iterator().next().getDeviceType().getRepresentation());
-
-        final JsonObject attributes = new JsonObject();
-        final JsonArray traits = new JsonArray();
-        for (final Entry<UnitConfig, UnitTypeMapping> entry : mappings.entrySet()) {
-            for (final Trait trait : entry.getValue().getTraitSet()) {
-                switch (trait) {
-                    case MODES:
-                    case TOGGLES:
-                        // skip modes and toggles trait because they are currently not really supported by google
-                        continue;
-                }
-                final ServiceType serviceType = entry.getValue().getServiceType(trait);
-                traits.add(trait.getRepresentation());
-                try {
-                    ServiceStateTraitMapperFactory.getInstance().getServiceStateMapper(serviceType, trait).addAttributes(entry.getKey(), attributes);
-                } catch (CouldNotPerformException ex) {
-                    LOGGER.warn("Skip trait[" + trait.name() + "] serviceType[" + serviceType.name() + "]: " + ex.getMessage());
-                }
-            }
-        }
-
-
-        if (traits.size() == 0) {
-            // skip because no traits have been added
-            throw new NotAvailableException("Traits for unit[" + host.getAlias(0) + "]");
-        }
-        device.add(TRAITS_KEY, traits);
-        device.add("attributes", attributes);
-
-        final JsonObject deviceInfo = new JsonObject();
-//                deviceInfo.addProperty("manufacturer", Registries.getClassRegistry(true).getDeviceClassById(Registries.getUnitRegistry().getUnitConfigById(unitConfig.getUnitHostId()).getDeviceConfig().getDeviceClassId()).getCompany());
-        //TODO: missing: model, hwVersion, swVersion
-        device.add("deviceInfo", deviceInfo);
-
-        //TODO: custom data missing
-        return device;
-    }
-
     /**
      * Handle a query intent for the Google Assistant.
      * This method fills the payload object according to the given input.
+     * States of devices tracked by the {@link DeviceStateCache} are read from the cache, only for all others it is waited for unit data.
      *
      * @param payload the payload of the response
      * @param input   the input object as send by Google
@@ -421,6 +243,13 @@ public class FulfillmentHandler {
         // iterate over all requested devices and add their states to the response
         final Map<String, Future> idFutureMap = new HashMap<>();
         for (final String id : deviceIdList) {
+            // use cached state if available
+            final JsonObject cachedDeviceState = DeviceStateCache.getInstance().getDeviceState(id);
+            if (cachedDeviceState != null) {
+                devices.add(id, cachedDeviceState);
+                continue;
+            }
+
             // add a deviceState for the device
             final JsonObject deviceState = new JsonObject();
             devices.add(id, deviceState);
@@ -568,76 +397,49 @@ public class FulfillmentHandler {
         final JsonArray commands = new JsonArray();
         payload.add(COMMANDS_KEY, commands);
 
+        // the whole intent shares one deadline after which unfinished executions are reported as pending
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(EXECUTE_TIMEOUT);
+
         // if there is more than one command ignore infrastructure units
         final boolean filterInfrastructureUnits = idCommandMap.size() > 1;
 
-        final Map<String, Future<Void>> idFutureMap = new HashMap<>();
-        // iterate over all entries, start according tasks to execute the given commands and save futures of these tasks
+        // the status of each device, devices are updated to a worse status if one of their steps fails
+        final Map<String, String> idStatusMap = new HashMap<>();
+
+        // resolve the units executing the commands
+        final ExecutionPlanner executionPlanner = new ExecutionPlanner();
         for (final Entry<String, List<JsonObject>> idCommand : idCommandMap.entrySet()) {
             try {
                 final UnitConfig unitConfig = Registries.getUnitRegistry().getUnitConfigById(idCommand.getKey());
-                final Future<Void> future;
+
+                // filter infrastructure units, this will make google respond with a success message
+                if (filterInfrastructureUnits && Units.getUnit(unitConfig, false).isInfrastructure()) {
+                    idStatusMap.put(idCommand.getKey(), EXECUTE_SUCCESS);
+                    continue;
+                }
 
                 if (unitConfig.getUnitType() == UnitType.DEVICE) {
-                    // device was used to group some dal units together so create a task which will handle all internal
-                    // dal unit tasks
-                    future = GlobalCachedExecutorService.submit((Callable<Void>) () -> {
-                        final Set<Future<Void>> internalFutureSet = new HashSet<>();
-                        try {
-                            // create tasks for all grouped dal units
-                            for (final UnitConfig hostedUnitConfig : getUnitConfigsHandledByDevice(unitConfig)) {
-                                // filter infrastructure units
-                                if (filterInfrastructureUnits && Units.getUnit(unitConfig, false).isInfrastructure()) {
-                                    // add a completed future, this will make google respond with a success message
-                                    internalFutureSet.add(FutureProcessor.completedFuture(null));
-                                } else {
-                                    internalFutureSet.add(createExecutionTask(Units.getUnit(hostedUnitConfig, false), idCommand.getValue(), authenticationToken, authorizationToken));
-                                }
-                            }
-
-                            // wait for all tasks and gather exceptions
-                            ExceptionStack exceptionStack = null;
-                            for (final Future<Void> internalFuture : internalFutureSet) {
-                                try {
-                                    // timeout is not needed because the created tasks are implemented in a way that
-                                    // they will no block forever
-                                    internalFuture.get();
-                                } catch (ExecutionException ex) {
-                                    // gather throws exception on stack
-                                    exceptionStack = MultiException.push(internalFuture, ex, exceptionStack);
-                                    /* Note: It could be differentiated by exception cause as done below to allow the
-                                     * code below to handle the failure of this future correctly. However, it is not
-                                     * clear how this should be done. What if one dal unit fails because it is offline
-                                     * and another could not execute the given action. Therefore it is not differentiated
-                                     * and this task fails if one internal task fails.
-                                     */
-                                }
-                            }
-                            // throw exception if at least one internal task has failed
-                            MultiException.checkAndThrow(() -> "Could not execute one command for internal units of device[" + UnitConfigProcessor.getDefaultAlias(unitConfig, "?") + "]", exceptionStack);
-                        } catch (InterruptedException ex) {
-                            // interrupted, so cancel all internal tasks and finish normally
-                            for (final Future<Void> internalFuture : internalFutureSet) {
-                                if (!internalFuture.isDone()) {
-                                    internalFuture.cancel(true);
-                                }
-                            }
-                        }
-                        return null;
-                    });
-                } else {
-                    // filter infrastructure units
-                    if (filterInfrastructureUnits && Units.getUnit(unitConfig, false).isInfrastructure()) {
-                        // add a completed future, this will make google respond with a success message
-                        future = FutureProcessor.completedFuture(null);
-                    } else {
-                        // dal unit so create a normal execution task
-                        future = createExecutionTask(Units.getUnit(unitConfig, false), idCommand.getValue(), authenticationToken, authorizationToken);
+                    // device was used to group some dal units together so execute the commands on all of them
+                    for (final UnitConfig hostedUnitConfig : getUnitConfigsHandledByDevice(unitConfig)) {
+                        executionPlanner.add(idCommand.getKey(), hostedUnitConfig, idCommand.getValue());
                     }
+                } else {
+                    executionPlanner.add(idCommand.getKey(), unitConfig, idCommand.getValue());
                 }
+                idStatusMap.put(idCommand.getKey(), EXECUTE_SUCCESS);
+            } catch (CouldNotPerformException ex) {
+                // thrown if the unit remote is not available so propagate deviceNotFound error
+                setError(payload, ex, ErrorCode.DEVICE_NOT_FOUND);
+            } catch (InterruptedException ex) {
+                // interrupted so propagate a timeout error
+                setError(payload, ex, ErrorCode.TIMEOUT);
+            }
+        }
 
-                // add future to a map
-                idFutureMap.put(idCommand.getKey(), future);
+        // start the tasks of all steps at once so that they are executed in parallel
+        awaitExecutionSteps(executionPlanner.plan(), executionStep -> {
+            try {
+                return createExecutionTask(Units.getUnit(executionStep.getUnitConfig(), false), executionStep, authenticationToken, authorizationToken);
             } catch (CouldNotPerformException ex) {
                 // thrown if the unit remote is not available so propagate deviceNotFound error
                 setError(payload, ex, ErrorCode.DEVICE_NOT_FOUND);
@@ -645,68 +447,113 @@ public class FulfillmentHandler {
                 // interrupted so propagate a timeout error
                 setError(payload, ex, ErrorCode.TIMEOUT);
             }
+            updateExecuteStatus(idStatusMap, executionStep, EXECUTE_ERROR);
+            return null;
+        }, deadline, idStatusMap);
+
+        // create sets of ids for different finishing states: success, pending, offline, error
+        final Map<String, Set<String>> statusIdMap = new HashMap<>();
+        for (final Entry<String, String> entry : idStatusMap.entrySet()) {
+            statusIdMap.computeIfAbsent(entry.getValue(), status -> new HashSet<>()).add(entry.getKey());
         }
 
-        // create sets of ids for different finishing states: success, offline, error
-        Set<String> success = new HashSet<>();
-        Set<String> pending = new HashSet<>();
-        Set<String> offline = new HashSet<>();
-        Set<String> error = new HashSet<>();
+        // add results to response
+        for (final String status : EXECUTE_STATUS_ORDER) {
+            addExecuteResults(commands, statusIdMap.getOrDefault(status, Collections.emptySet()), status);
+        }
+    }
+
+    /**
+     * Start the tasks of all execution steps and wait for them until the deadline shared by the whole intent.
+     * If an aggregated step is not permitted, its per unit fallback steps are started instead and awaited within the
+     * same deadline.
+     *
+     * @param stepList      the steps to perform.
+     * @param stepSubmitter function starting the task of a step, it returns null if the task could not be started
+     *                      after updating the status of the step accordingly.
+     * @param deadline      the time in milliseconds after which unfinished steps are reported as pending.
+     * @param idStatusMap   map containing the current status of each device.
+     */
+    static void awaitExecutionSteps(final List<ExecutionStep> stepList, final Function<ExecutionStep, Future<String>> stepSubmitter, final long deadline, final Map<String, String> idStatusMap) {
+        // fallback steps are appended while waiting, so the steps are awaited in order of submission
+        final List<Entry<ExecutionStep, Future<String>>> stepFutureList = new ArrayList<>();
+        submitExecutionSteps(stepList, stepSubmitter, stepFutureList);
+
         try {
-            // iterate and wait for every task to validate its execution
-            for (Entry<String, Future<Void>> entry : idFutureMap.entrySet()) {
+            // wait for every task until the deadline to validate its execution
+            for (int i = 0; i < stepFutureList.size(); i++) {
+                final Entry<ExecutionStep, Future<String>> entry = stepFutureList.get(i);
+                final String unitLabel = UnitConfigProcessor.getDefaultAlias(entry.getKey().getUnitConfig(), entry.getKey().getUnitConfig().getId());
                 try {
-                    // wait without timeout because internal tasks should only be able to run for a limited amount of time
-                    entry.getValue().get();
-                    // task was executed successfully so add the id of the unit to the successes
-                    success.add(entry.getKey());
+                    final long timeout = Math.max(0, deadline - System.currentTimeMillis());
+                    updateExecuteStatus(idStatusMap, entry.getKey(), entry.getValue().get(timeout, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException ex) {
+                    // the task is still running so report the execution as pending instead of blocking the response
+                    updateExecuteStatus(idStatusMap, entry.getKey(), EXECUTE_PENDING);
                 } catch (ExecutionException ex) {
-                    // task execution failed
-                    if (ex.getCause() instanceof TimeoutException) {
+                    if (entry.getKey().isAggregated() && ExceptionProcessor.getInitialCause(ex) instanceof PermissionDeniedException) {
+                        // the user may be permitted to control the units but not the aggregate, so perform the units individually
+                        LOGGER.debug("Action on aggregate[" + unitLabel + "] not permitted, performing it per unit!");
+                        submitExecutionSteps(entry.getKey().getFallbackStepList(), stepSubmitter, stepFutureList);
+                    } else if (ex.getCause() instanceof TimeoutException) {
                         // cause was a timeout meaning waiting for data failed, so assume that the unit is offline
-                        offline.add(entry.getKey());
-                        ExceptionPrinter.printHistory("Could not perform execute commands for unit[" + entry.getKey() + "]", ex, LOGGER);
-                    } else if (ex.getCause() instanceof java.util.concurrent.TimeoutException) {
-                        // cause was a timeout on waiting for operation service return so still pending
-                        pending.add(entry.getKey());
-                        ExceptionPrinter.printHistory("Could not perform execute commands for unit[" + entry.getKey() + "]", ex, LOGGER);
+                        updateExecuteStatus(idStatusMap, entry.getKey(), EXECUTE_OFFLINE);
+                        ExceptionPrinter.printHistory("Could not perform execute commands for unit[" + unitLabel + "]", ex, LOGGER);
                     } else {
                         // something failed so add as error
-                        error.add(entry.getKey());
+                        updateExecuteStatus(idStatusMap, entry.getKey(), EXECUTE_ERROR);
                         // print failure reason
-                        ExceptionPrinter.printHistory(new CouldNotPerformException("Could not perform execute commands for unit[" + entry.getKey() + "]", ex), LOGGER);
+                        ExceptionPrinter.printHistory(new CouldNotPerformException("Could not perform execute commands for unit[" + unitLabel + "]", ex), LOGGER);
                     }
                 }
             }
         } catch (InterruptedException ex) {
             // interrupted so cancel all futures, then they will add an according error
-            idFutureMap.values().forEach(future -> {
-                if (!future.isDone()) {
-                    future.cancel(true);
+            stepFutureList.forEach(entry -> {
+                if (!entry.getValue().isDone()) {
+                    entry.getValue().cancel(true);
                 }
             });
             // restore interrupt
             Thread.currentThread().interrupt();
         }
+    }
 
-        // add results to response
-        addExecuteResults(commands, success, EXECUTE_SUCCESS);
-        addExecuteResults(commands, pending, EXECUTE_PENDING);
-        addExecuteResults(commands, offline, EXECUTE_OFFLINE);
-        addExecuteResults(commands, error, EXECUTE_ERROR);
+    private static void submitExecutionSteps(final List<ExecutionStep> stepList, final Function<ExecutionStep, Future<String>> stepSubmitter, final List<Entry<ExecutionStep, Future<String>>> stepFutureList) {
+        for (final ExecutionStep executionStep : stepList) {
+            final Future<String> future = stepSubmitter.apply(executionStep);
+            if (future != null) {
+                stepFutureList.add(new SimpleEntry<>(executionStep, future));
+            }
+        }
     }
 
     /**
-     * Create a task and returns its future that will try to execute some actions for a unit remote.
+     * Update the status of all devices handled by an execution step.
+     * The status of a device is only changed if the new one is worse according to {@link #EXECUTE_STATUS_ORDER}.
+     *
+     * @param idStatusMap   map containing the current status of each device.
+     * @param executionStep the step whose devices are updated.
+     * @param status        the status of the execution step.
+     */
+    private static void updateExecuteStatus(final Map<String, String> idStatusMap, final ExecutionStep executionStep, final String status) {
+        for (final String deviceId : executionStep.getDeviceIdSet()) {
+            idStatusMap.merge(deviceId, status, (current, update) -> EXECUTE_STATUS_ORDER.indexOf(update) > EXECUTE_STATUS_ORDER.indexOf(current) ? update : current);
+        }
+    }
+
+    /**
+     * Create a task and returns its future that will try to execute the actions of an execution step.
      * This task will not block forever because on all internal tasks is waited with a timeout.
      *
      * @param unitRemote    the unit remote on which the actions will be executed
-     * @param executionList a list of json objects defining the actions to be executed
+     * @param executionStep the step defining the actions to be executed
      *
-     * @return a future of the task created that will execute all actions for the given unit remote
+     * @return a future of the task created resolving to {@link #EXECUTE_SUCCESS} or to {@link #EXECUTE_PENDING} if
+     * not all actions were confirmed in time.
      */
-    private static Future<Void> createExecutionTask(final UnitRemote<?> unitRemote, final List<JsonObject> executionList, final String authenticationToken, final String authorizationToken) {
-        return GlobalCachedExecutorService.submit((Callable<Void>) () -> {
+    private static Future<String> createExecutionTask(final UnitRemote<?> unitRemote, final ExecutionStep executionStep, final String authenticationToken, final String authorizationToken) {
+        return GlobalCachedExecutorService.submit((Callable<String>) () -> {
             try {
                 // wait for data
                 unitRemote.waitForData(UNIT_DATA_TIMEOUT, TimeUnit.SECONDS);
@@ -715,11 +562,12 @@ public class FulfillmentHandler {
                 throw new TimeoutException();
             } catch (InterruptedException ex) {
                 // interrupted so just return to finish this task
-                return null;
+                return EXECUTE_ERROR;
             }
 
+            String status = EXECUTE_SUCCESS;
             // iterate over all executions
-            for (final JsonObject execution : executionList) {
+            for (final JsonObject execution : executionStep.getExecutionList()) {
                 // extract command name and param object
                 final String commandName = execution.get(COMMAND_KEY).getAsString();
                 final JsonObject params = execution.getAsJsonObject(PARAMS_KEY);
@@ -728,15 +576,20 @@ public class FulfillmentHandler {
                 final Command commandType = Command.getByRepresentation(commandName);
                 // find trait by command type and params
                 final Trait trait = Trait.getByCommand(commandType, params);
-                // resolve unit type mapping for remote
-                final UnitTypeMapping unitTypeMapping;
-                if (unitRemote.getUnitType() == UnitType.UNIT_GROUP) {
-                    unitTypeMapping = UnitTypeMapping.getByUnitType(unitRemote.getConfig().getUnitGroupConfig().getUnitType());
+                // get service type for trait, aggregated steps already resolved it for the units they contain
+                final ServiceType serviceType;
+                if (executionStep.isAggregated()) {
+                    serviceType = executionStep.getServiceType();
                 } else {
-                    unitTypeMapping = UnitTypeMapping.getByUnitType(unitRemote.getUnitType());
+                    // resolve unit type mapping for remote
+                    final UnitTypeMapping unitTypeMapping;
+                    if (unitRemote.getUnitType() == UnitType.UNIT_GROUP) {
+                        unitTypeMapping = UnitTypeMapping.getByUnitType(unitRemote.getConfig().getUnitGroupConfig().getUnitType());
+                    } else {
+                        unitTypeMapping = UnitTypeMapping.getByUnitType(unitRemote.getUnitType());
+                    }
+                    serviceType = unitTypeMapping.getServiceType(trait);
                 }
-                // get service type for trait
-                final ServiceType serviceType = unitTypeMapping.getServiceType(trait);
                 // service type is null if the given command is not supported by this unit
                 if (serviceType == null) {
                     continue;
@@ -756,9 +609,13 @@ public class FulfillmentHandler {
                 // wait for result
                 try {
                     ActionDescriptionAuthenticatedValueFuture.get(UNIT_TASK_TIMEOUT, TimeUnit.SECONDS);
+                } catch (TimeoutException ex) {
+                    // the action is still in progress so continue with the next one
+                    status = EXECUTE_PENDING;
                 } catch (InterruptedException ex) {
                     // cancel internal task and finish normally
                     ActionDescriptionAuthenticatedValueFuture.cancel(true);
+                    return EXECUTE_ERROR;
                 } catch (ExecutionException ex) {
                     // throw exception to inform task waiting for this one
                     throw new CouldNotPerformException("Invoking service[" + serviceType.name() + "] " +
@@ -766,7 +623,7 @@ public class FulfillmentHandler {
                 }
             }
 
-            return null;
+            return status;
         });
     }
 
@@ -796,6 +653,27 @@ public class FulfillmentHandler {
         commands.add(command);
     }
 
+    /**
+     * Serialize a response compactly by streaming it through a json writer into a buffer reused by the calling thread.
+     * Unlike {@link Gson#toJson(JsonElement)} this does not grow a new buffer for every response, which matters for
+     * large sync responses.
+     *
+     * @param response the response to serialize.
+     *
+     * @return the serialized response.
+     */
+    public static String toJson(final JsonElement response) {
+        final StringWriter buffer = RESPONSE_BUFFER.get();
+        buffer.getBuffer().setLength(0);
+        GSON.toJson(response, new JsonWriter(buffer));
+        final String json = buffer.toString();
+
+        if (buffer.getBuffer().capacity() > MAX_RETAINED_RESPONSE_BUFFER_SIZE) {
+            RESPONSE_BUFFER.remove();
+        }
+        return json;
+    }
+
     public static void setError(final JsonObject jsonObject, final Exception exception, final ErrorCode errorCode) {
         setError(jsonObject, exception.toString(), errorCode);
         if (!ExceptionProcessor.isCausedBySystemShutdown(exception) && !ExceptionProcessor.isCausedByInterruption(exception)) {
@@ -0,0 +1,399 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.schedule.GlobalCachedExecutorService;
+import org.openbase.jul.schedule.GlobalScheduledExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduler for intents received via the sockets of all users.
+ * <p>
+ * Intents often block while waiting for units or the registry, so they are executed off the socket event thread.
+ * At most {@link #MAX_RUNNING_INTENTS} intents run at once and at most {@link #MAX_RUNNING_INTENTS_PER_USER} of them belong
+ * to the same user. Further intents are queued per user, and free slots are handed to the users in turn, so a user
+ * sending many intents cannot starve the others. Each intent has a deadline: if it is reached while the intent is
+ * still queued, the intent is rejected, and if it is reached while the intent runs, the intent is interrupted.
+ * <p>
+ * Intents are executed by a dedicated pool which never has more threads than intents are allowed to run at once.
+ * While activated, the scheduler periodically logs its queue depth and counters.
+ */
+public class IntentScheduler {
+
+    /**
+     * Maximal number of intents executed at the same time.
+     */
+    public static final int MAX_RUNNING_INTENTS = 8;
+    /**
+     * Maximal number of intents of a single user executed at the same time.
+     */
+    public static final int MAX_RUNNING_INTENTS_PER_USER = 2;
+    /**
+     * Maximal number of intents of a single user waiting for execution.
+     */
+    public static final int MAX_QUEUED_INTENTS_PER_USER = 32;
+
+    /**
+     * Time in milliseconds after which idle threads of the intent pool are stopped.
+     */
+    private static final long THREAD_KEEP_ALIVE_TIME = 60000;
+    /**
+     * Period in milliseconds in which the status of the scheduler is logged.
+     */
+    private static final long STATUS_REPORT_PERIOD = 60000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IntentScheduler.class);
+
+    private static IntentScheduler instance;
+
+    public static synchronized IntentScheduler getInstance() {
+        if (instance == null) {
+            instance = new IntentScheduler(MAX_RUNNING_INTENTS, MAX_RUNNING_INTENTS_PER_USER, MAX_QUEUED_INTENTS_PER_USER);
+        }
+        return instance;
+    }
+
+    private final int maxRunningIntents;
+    private final int maxRunningIntentsPerUser;
+    private final int maxQueuedIntentsPerUser;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, UserQueue> userQueueMap;
+    private final Deque<UserQueue> readyUserQueue;
+    private int runningIntents;
+    private int queuedIntents;
+    private Future<?> statusReportTask;
+
+    private final AtomicLong executedCounter = new AtomicLong();
+    private final AtomicLong rejectedCounter = new AtomicLong();
+    private final AtomicLong expiredCounter = new AtomicLong();
+
+    /**
+     * Create a new scheduler. Use {@link #getInstance()} to access the scheduler shared by all sockets.
+     *
+     * @param maxRunningIntents        the maximal number of intents executed at the same time.
+     * @param maxRunningIntentsPerUser the maximal number of intents of a single user executed at the same time.
+     * @param maxQueuedIntentsPerUser  the maximal number of intents of a single user waiting for execution.
+     */
+    IntentScheduler(final int maxRunningIntents, final int maxRunningIntentsPerUser, final int maxQueuedIntentsPerUser) {
+        this.maxRunningIntents = maxRunningIntents;
+        this.maxRunningIntentsPerUser = maxRunningIntentsPerUser;
+        this.maxQueuedIntentsPerUser = maxQueuedIntentsPerUser;
+        this.userQueueMap = new HashMap<>();
+        this.readyUserQueue = new ArrayDeque<>();
+        this.runningIntents = 0;
+        this.queuedIntents = 0;
+
+        // intents are only submitted if a slot is free, so the queue of the pool only holds intents whose cancelled predecessors did not terminate yet
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxRunningIntents, maxRunningIntents, THREAD_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "IntentScheduler-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start logging the status of the scheduler periodically.
+     */
+    public synchronized void activate() {
+        if (statusReportTask != null) {
+            return;
+        }
+        try {
+            statusReportTask = GlobalScheduledExecutorService.scheduleAtFixedRate(new StatusReporter(), STATUS_REPORT_PERIOD, STATUS_REPORT_PERIOD, TimeUnit.MILLISECONDS);
+        } catch (NotAvailableException ex) {
+            ExceptionPrinter.printHistory("Could not schedule status report of intent scheduler", ex, LOGGER);
+        }
+    }
+
+    public synchronized void deactivate() {
+        if (statusReportTask != null) {
+            statusReportTask.cancel(false);
+            statusReportTask = null;
+        }
+    }
+
+    /**
+     * Schedule an intent of a user.
+     *
+     * @param userId          the id of the user who sent the intent.
+     * @param timeout         the time in milliseconds after which the intent is rejected or interrupted.
+     * @param intent          the task performing the intent.
+     * @param rejectionAction the task informing the user if the intent is rejected because its queue is full or its deadline was reached before it started.
+     */
+    public void schedule(final String userId, final long timeout, final Runnable intent, final Runnable rejectionAction) {
+        final Intent newIntent = new Intent(userId, System.currentTimeMillis() + timeout, intent, rejectionAction);
+        synchronized (this) {
+            final UserQueue userQueue = userQueueMap.computeIfAbsent(userId, UserQueue::new);
+            if (userQueue.intentQueue.size() >= maxQueuedIntentsPerUser) {
+                rejectedCounter.incrementAndGet();
+                LOGGER.warn("Reject intent of user[{}] because {} intents are already queued", userId, userQueue.intentQueue.size());
+            } else {
+                userQueue.intentQueue.add(newIntent);
+                queuedIntents++;
+                LOGGER.debug("Queued intent of user[{}], {} intents queued and {} running", userId, queuedIntents, runningIntents);
+                if (userQueue.isReady() && !readyUserQueue.contains(userQueue)) {
+                    readyUserQueue.add(userQueue);
+                }
+                dispatch();
+                return;
+            }
+        }
+        reject(newIntent);
+    }
+
+    /**
+     * Start queued intents while slots are available, taking one intent per user in turn.
+     */
+    private synchronized void dispatch() {
+        while (runningIntents < maxRunningIntents && !readyUserQueue.isEmpty()) {
+            final UserQueue userQueue = readyUserQueue.poll();
+            final Intent intent = userQueue.intentQueue.poll();
+            queuedIntents--;
+            if (userQueue.isReady()) {
+                // move user to the end so that other users are served first
+                readyUserQueue.add(userQueue);
+            }
+
+            if (intent.deadline <= System.currentTimeMillis()) {
+                expiredCounter.incrementAndGet();
+                LOGGER.warn("Reject intent of user[{}] because it expired while waiting in the queue", intent.userId);
+                GlobalCachedExecutorService.execute(() -> reject(intent));
+                continue;
+            }
+
+            runningIntents++;
+            userQueue.runningIntents++;
+            // the ready state changes if the user reached the limit of running intents
+            if (!userQueue.isReady()) {
+                readyUserQueue.remove(userQueue);
+            }
+            start(intent);
+        }
+
+        // forget users without any intents
+        userQueueMap.values().removeIf(UserQueue::isIdle);
+    }
+
+    private void start(final Intent intent) {
+        final IntentTask future = new IntentTask(intent);
+        executor.execute(future);
+
+        // interrupt the intent when reaching its deadline
+        try {
+            intent.timeoutFuture = GlobalScheduledExecutorService.schedule(() -> {
+                if (!future.isDone()) {
+                    expiredCounter.incrementAndGet();
+                    LOGGER.warn("Interrupt intent of user[{}] because it reached its deadline", intent.userId);
+                    future.cancel(true);
+                }
+            }, Math.max(0, intent.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (NotAvailableException ex) {
+            ExceptionPrinter.printHistory("Could not observe deadline of intent of user[" + intent.userId + "]", ex, LOGGER);
+        }
+    }
+
+    /**
+     * Release the slots of an intent which either terminated or was cancelled before it started.
+     */
+    private synchronized void finished(final Intent intent) {
+        if (intent.timeoutFuture != null) {
+            intent.timeoutFuture.cancel(false);
+        }
+        executedCounter.incrementAndGet();
+        runningIntents--;
+
+        final UserQueue userQueue = userQueueMap.computeIfAbsent(intent.userId, UserQueue::new);
+        userQueue.runningIntents--;
+        if (userQueue.isReady() && !readyUserQueue.contains(userQueue)) {
+            readyUserQueue.add(userQueue);
+        }
+        dispatch();
+    }
+
+    private void reject(final Intent intent) {
+        try {
+            intent.rejectionAction.run();
+        } catch (RuntimeException ex) {
+            ExceptionPrinter.printHistory("Could not reject intent of user[" + intent.userId + "]", ex, LOGGER);
+        }
+    }
+
+    /**
+     * @return the number of intents of all users waiting for execution.
+     */
+    public synchronized int getQueueDepth() {
+        return queuedIntents;
+    }
+
+    /**
+     * @param userId the id of the user.
+     *
+     * @return the number of intents of the user waiting for execution.
+     */
+    public synchronized int getQueueDepth(final String userId) {
+        final UserQueue userQueue = userQueueMap.get(userId);
+        return userQueue == null ? 0 : userQueue.intentQueue.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return runningIntents;
+    }
+
+    public long getExecutedCount() {
+        return executedCounter.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCounter.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCounter.get();
+    }
+
+    private class UserQueue {
+
+        private final String userId;
+        private final Queue<Intent> intentQueue;
+        private int runningIntents;
+
+        private UserQueue(final String userId) {
+            this.userId = userId;
+            this.intentQueue = new ArrayDeque<>();
+            this.runningIntents = 0;
+        }
+
+        private boolean isReady() {
+            return !intentQueue.isEmpty() && runningIntents < maxRunningIntentsPerUser;
+        }
+
+        private boolean isIdle() {
+            return intentQueue.isEmpty() && runningIntents == 0;
+        }
+    }
+
+    /**
+     * Task executing an intent which releases its slots exactly once: when the intent terminated, or when the task
+     * was cancelled before the intent started. An intent cancelled while running keeps its slots until it terminated.
+     */
+    private class IntentTask extends FutureTask<Void> {
+
+        private final Intent intent;
+        private final AtomicBoolean released;
+        private volatile boolean started;
+
+        private IntentTask(final Intent intent) {
+            super(() -> {
+                try {
+                    intent.task.run();
+                } catch (RuntimeException ex) {
+                    ExceptionPrinter.printHistory("Could not perform intent of user[" + intent.userId + "]", ex, LOGGER);
+                }
+            }, null);
+            this.intent = intent;
+            this.released = new AtomicBoolean(false);
+            this.started = false;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            try {
+                super.run();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (!started) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                finished(intent);
+            }
+        }
+    }
+
+    /**
+     * Logs the counters of the scheduler if anything happened since the last report.
+     */
+    private class StatusReporter implements Runnable {
+
+        private long lastExecuted, lastRejected, lastExpired;
+
+        @Override
+        public void run() {
+            final long executed = getExecutedCount();
+            final long rejected = getRejectedCount();
+            final long expired = getExpiredCount();
+            final int queueDepth = getQueueDepth();
+            final int running = getRunningCount();
+            if (executed == lastExecuted && rejected == lastRejected && expired == lastExpired && queueDepth == 0 && running == 0) {
+                return;
+            }
+
+            LOGGER.info("Intent scheduler: {} running, {} queued, {} executed, {} rejected and {} expired since last report",
+                    running, queueDepth, executed - lastExecuted, rejected - lastRejected, expired - lastExpired);
+            lastExecuted = executed;
+            lastRejected = rejected;
+            lastExpired = expired;
+        }
+    }
+
+    private static class Intent {
+
+        private final String userId;
+        private final long deadline;
+        private final Runnable task;
+        private final Runnable rejectionAction;
+        private volatile ScheduledFuture<?> timeoutFuture;
+
+        private Intent(final String userId, final long deadline, final Runnable task, final Runnable rejectionAction) {
+            this.userId = userId;
+            this.deadline = deadline;
+            this.task = task;
+            this.rejectionAction = rejectionAction;
+        }
+    }
+}
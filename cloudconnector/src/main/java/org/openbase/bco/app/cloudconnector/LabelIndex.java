@@ -0,0 +1,330 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.language.LabelType.Label.MapFieldEntry;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Index resolving units by their labels and aliases as spoken by a user.
+ * <p>
+ * Labels are normalized by removing diacritics, case and punctuation, so e.g. "Küche" is found by "kuche" or "KÜCHE".
+ * Units are resolved by an exact match of the normalized label first, then by prefix and at last by a fuzzy match
+ * tolerating small differences as caused by speech recognition. Matches with a label in the language of the user are
+ * preferred over matches in other languages. The index is updated incrementally with the unit configs which changed.
+ * <p>
+ * The fuzzy match does not compare the given label with all known labels. Labels are additionally indexed by their
+ * bigrams and only labels sharing enough bigrams to be within the tolerated edit distance are compared.
+ */
+public class LabelIndex {
+
+    /**
+     * Language key of aliases, which are matched independent of the language of the user.
+     */
+    private static final String ALIAS_LANGUAGE = "";
+
+    /**
+     * Minimal length of a label before a prefix or fuzzy match is attempted.
+     */
+    private static final int MIN_INEXACT_MATCH_LENGTH = 3;
+
+    /**
+     * Number of characters per tolerated edit of a fuzzy match.
+     */
+    private static final int CHARACTERS_PER_EDIT = 4;
+
+    /**
+     * Length of the character sequences by which labels are indexed for a fuzzy match.
+     */
+    private static final int GRAM_LENGTH = 2;
+
+    /**
+     * Character padding labels before they are split into grams, so that first and last characters are part of as many
+     * grams as all others.
+     */
+    private static final char GRAM_PADDING = ' ';
+
+    private static final Pattern DIACRITICS_PATTERN = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final ReadWriteLock lock;
+    private final NavigableMap<String, Map<String, Set<String>>> labelUnitMap;
+    private final Map<String, Set<String>> unitLabelMap;
+    private final Map<String, UnitConfig> unitConfigMap;
+    private final Map<String, Set<String>> gramLabelMap;
+
+    public LabelIndex() {
+        this.lock = new ReentrantReadWriteLock();
+        this.labelUnitMap = new TreeMap<>();
+        this.gramLabelMap = new HashMap<>();
+        this.unitLabelMap = new HashMap<>();
+        this.unitConfigMap = new HashMap<>();
+    }
+
+    /**
+     * Normalize a label so that it can be matched independent of case, diacritics and punctuation.
+     *
+     * @param label the label to normalize.
+     *
+     * @return the normalized label.
+     */
+    public static String normalize(final String label) {
+        String normalized = Normalizer.normalize(label, Normalizer.Form.NFD);
+        normalized = DIACRITICS_PATTERN.matcher(normalized).replaceAll("");
+        normalized = normalized.toLowerCase(Locale.ROOT).replace("ß", "ss");
+        return SEPARATOR_PATTERN.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    /**
+     * Update the index with the unit configs which changed since the last update.
+     *
+     * @param unitConfigMap all unit configs of the current registry revision by their ids.
+     * @param changedIdSet  the ids of all unit configs which were added, modified or removed.
+     */
+    public void update(final Map<String, UnitConfig> unitConfigMap, final Set<String> changedIdSet) {
+        lock.writeLock().lock();
+        try {
+            for (final String unitId : changedIdSet) {
+                remove(unitId);
+                final UnitConfig unitConfig = unitConfigMap.get(unitId);
+                if (unitConfig != null) {
+                    add(unitConfig);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(final UnitConfig unitConfig) {
+        final Set<String> labelSet = new HashSet<>();
+        for (final MapFieldEntry entry : unitConfig.getLabel().getEntryList()) {
+            for (final String label : entry.getValueList()) {
+                addLabel(unitConfig.getId(), normalize(label), entry.getKey(), labelSet);
+            }
+        }
+        for (final String alias : unitConfig.getAliasList()) {
+            addLabel(unitConfig.getId(), normalize(alias), ALIAS_LANGUAGE, labelSet);
+        }
+        unitConfigMap.put(unitConfig.getId(), unitConfig);
+        unitLabelMap.put(unitConfig.getId(), labelSet);
+    }
+
+    private void addLabel(final String unitId, final String label, final String language, final Set<String> labelSet) {
+        if (label.isEmpty()) {
+            return;
+        }
+        labelUnitMap.computeIfAbsent(label, key -> {
+            for (final String gram : grams(key)) {
+                gramLabelMap.computeIfAbsent(gram, gramKey -> new HashSet<>()).add(key);
+            }
+            return new HashMap<>();
+        }).computeIfAbsent(unitId, key -> new HashSet<>()).add(language);
+        labelSet.add(label);
+    }
+
+    private void remove(final String unitId) {
+        unitConfigMap.remove(unitId);
+        final Set<String> labelSet = unitLabelMap.remove(unitId);
+        if (labelSet == null) {
+            return;
+        }
+        for (final String label : labelSet) {
+            final Map<String, Set<String>> unitLanguageMap = labelUnitMap.get(label);
+            unitLanguageMap.remove(unitId);
+            if (unitLanguageMap.isEmpty()) {
+                labelUnitMap.remove(label);
+                for (final String gram : grams(label)) {
+                    final Set<String> gramLabelSet = gramLabelMap.get(gram);
+                    gramLabelSet.remove(label);
+                    if (gramLabelSet.isEmpty()) {
+                        gramLabelMap.remove(gram);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolve the units which have exactly the given label after normalization.
+     *
+     * @param label  the label of the units.
+     * @param locale the language of the user. Units with a matching label in this language are preferred.
+     * @param filter filter which has to be matched by the resolved units.
+     *
+     * @return a list of matching units which is empty if none matches.
+     */
+    public List<UnitConfig> getExactMatches(final String label, final Locale locale, final Predicate<UnitConfig> filter) {
+        lock.readLock().lock();
+        try {
+            final Map<String, Set<String>> unitLanguageMap = labelUnitMap.getOrDefault(normalize(label), Collections.emptyMap());
+            return toUnitConfigs(unitLanguageMap, locale, filter);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Resolve the units best matching the given label. If no label matches exactly, the units with a label starting with
+     * the given one are returned and if there are none either, the units with the most similar labels are returned.
+     *
+     * @param label  the label of the units.
+     * @param locale the language of the user. Units with a matching label in this language are preferred.
+     * @param filter filter which has to be matched by the resolved units.
+     *
+     * @return a list of matching units which is empty if none matches.
+     */
+    public List<UnitConfig> getMatches(final String label, final Locale locale, final Predicate<UnitConfig> filter) {
+        final String normalized = normalize(label);
+        lock.readLock().lock();
+        try {
+            List<UnitConfig> matchList = toUnitConfigs(labelUnitMap.getOrDefault(normalized, Collections.emptyMap()), locale, filter);
+            if (!matchList.isEmpty() || normalized.length() < MIN_INEXACT_MATCH_LENGTH) {
+                return matchList;
+            }
+
+            // match by prefix
+            final Map<String, Set<String>> prefixMatchMap = new LinkedHashMap<>();
+            for (final Map<String, Set<String>> unitLanguageMap : labelUnitMap.subMap(normalized, true, normalized + Character.MAX_VALUE, false).values()) {
+                merge(prefixMatchMap, unitLanguageMap);
+            }
+            matchList = toUnitConfigs(prefixMatchMap, locale, filter);
+            if (!matchList.isEmpty()) {
+                return matchList;
+            }
+
+            // match by the smallest edit distance, each edit changes at most GRAM_LENGTH grams so that only labels
+            // sharing enough grams with the given one have to be compared
+            final int maxDistance = Math.max(1, normalized.length() / CHARACTERS_PER_EDIT);
+            final Set<String> gramSet = grams(normalized);
+            final int minSharedGrams = gramSet.size() - maxDistance * GRAM_LENGTH;
+            final Map<String, Integer> sharedGramMap = new TreeMap<>();
+            for (final String gram : gramSet) {
+                for (final String candidate : gramLabelMap.getOrDefault(gram, Collections.emptySet())) {
+                    sharedGramMap.merge(candidate, 1, Integer::sum);
+                }
+            }
+
+            int bestDistance = maxDistance + 1;
+            final Map<String, Set<String>> fuzzyMatchMap = new LinkedHashMap<>();
+            for (final Entry<String, Integer> sharedGramEntry : sharedGramMap.entrySet()) {
+                if (sharedGramEntry.getValue() < minSharedGrams) {
+                    continue;
+                }
+                final int distance = distance(normalized, sharedGramEntry.getKey(), Math.min(maxDistance, bestDistance));
+                if (distance > maxDistance || distance > bestDistance) {
+                    continue;
+                }
+                final Map<String, Set<String>> unitLanguageMap = labelUnitMap.get(sharedGramEntry.getKey());
+                final List<UnitConfig> candidateList = toUnitConfigs(unitLanguageMap, locale, filter);
+                if (candidateList.isEmpty()) {
+                    continue;
+                }
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    fuzzyMatchMap.clear();
+                }
+                merge(fuzzyMatchMap, unitLanguageMap);
+            }
+            return toUnitConfigs(fuzzyMatchMap, locale, filter);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split a normalized label into the distinct character sequences of length {@link #GRAM_LENGTH} it contains.
+     */
+    private static Set<String> grams(final String label) {
+        final String padded = GRAM_PADDING + label + GRAM_PADDING;
+        final Set<String> gramSet = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= padded.length(); i++) {
+            gramSet.add(padded.substring(i, i + GRAM_LENGTH));
+        }
+        return gramSet;
+    }
+
+    private static void merge(final Map<String, Set<String>> target, final Map<String, Set<String>> unitLanguageMap) {
+        for (final Entry<String, Set<String>> entry : unitLanguageMap.entrySet()) {
+            target.computeIfAbsent(entry.getKey(), key -> new HashSet<>()).addAll(entry.getValue());
+        }
+    }
+
+    private List<UnitConfig> toUnitConfigs(final Map<String, Set<String>> unitLanguageMap, final Locale locale, final Predicate<UnitConfig> filter) {
+        final List<UnitConfig> preferredList = new ArrayList<>();
+        final List<UnitConfig> otherList = new ArrayList<>();
+        for (final Entry<String, Set<String>> entry : unitLanguageMap.entrySet()) {
+            final UnitConfig unitConfig = unitConfigMap.get(entry.getKey());
+            if (unitConfig == null || !filter.test(unitConfig)) {
+                continue;
+            }
+            if (entry.getValue().contains(locale.getLanguage()) || entry.getValue().contains(ALIAS_LANGUAGE)) {
+                preferredList.add(unitConfig);
+            } else {
+                otherList.add(unitConfig);
+            }
+        }
+        return preferredList.isEmpty() ? otherList : preferredList;
+    }
+
+    /**
+     * Compute the edit distance between two strings, aborting as soon as it exceeds the given limit.
+     *
+     * @return the edit distance or a value greater than the limit if the distance exceeds it.
+     */
+    private static int distance(final String first, final String second, final int limit) {
+        if (Math.abs(first.length() - second.length()) > limit) {
+            return limit + 1;
+        }
+
+        int[] previous = new int[second.length() + 1];
+        int[] current = new int[second.length() + 1];
+        for (int j = 0; j <= second.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= first.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= second.length(); j++) {
+                final int cost = first.charAt(i - 1) == second.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > limit) {
+                return limit + 1;
+            }
+            final int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[second.length()];
+    }
+}
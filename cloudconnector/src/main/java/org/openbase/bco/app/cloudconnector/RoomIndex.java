@@ -0,0 +1,129 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.extension.type.processing.LabelProcessor;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+import org.openbase.type.domotic.unit.location.LocationConfigType.LocationConfig.LocationType;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index resolving the room of units for one revision of the location configs of the unit registry.
+ * <p>
+ * The room of a unit is the first location in its placement chain which is not a region. It is the room reported to
+ * Google as room hint. All lookups are flat map accesses, so the placement chain does not need to be walked per unit.
+ * Only location configs are referenced, so the index stays valid as long as no location changes.
+ */
+public class RoomIndex {
+
+    private final Map<String, UnitConfig> locationConfigMap;
+    private final Map<String, String> locationRoomIdMap;
+    private final Map<String, Set<String>> locationChainMap;
+    private final Map<String, Map<String, String>> languageRoomNameMap;
+
+    /**
+     * Create a new index.
+     *
+     * @param unitConfigMap all unit configs of the registry revision by their ids.
+     */
+    public RoomIndex(final Map<String, UnitConfig> unitConfigMap) {
+        this.locationConfigMap = new HashMap<>();
+        this.locationRoomIdMap = new HashMap<>();
+        this.locationChainMap = new HashMap<>();
+        this.languageRoomNameMap = new ConcurrentHashMap<>();
+
+        for (final UnitConfig unitConfig : unitConfigMap.values()) {
+            if (unitConfig.getUnitType() != UnitType.LOCATION) {
+                continue;
+            }
+            locationConfigMap.put(unitConfig.getId(), unitConfig);
+
+            // resolve room by following the placement of regions
+            final Set<String> chain = new LinkedHashSet<>();
+            UnitConfig location = unitConfig;
+            while (location != null && chain.add(location.getId())) {
+                if (location.getLocationConfig().getLocationType() != LocationType.REGION) {
+                    locationRoomIdMap.put(unitConfig.getId(), location.getId());
+                    break;
+                }
+                location = unitConfigMap.get(location.getPlacementConfig().getLocationId());
+            }
+            locationChainMap.put(unitConfig.getId(), Collections.unmodifiableSet(chain));
+        }
+    }
+
+    /**
+     * Get the room of a unit.
+     *
+     * @param unitConfig the config of the unit.
+     *
+     * @return the config of the room the unit is placed in.
+     *
+     * @throws NotAvailableException if the placement of the unit cannot be resolved to a room.
+     */
+    public UnitConfig getRoom(final UnitConfig unitConfig) throws NotAvailableException {
+        final String roomId = locationRoomIdMap.get(unitConfig.getPlacementConfig().getLocationId());
+        if (roomId == null) {
+            throw new NotAvailableException("Room of unit[" + unitConfig.getId() + "]");
+        }
+        return locationConfigMap.get(roomId);
+    }
+
+    /**
+     * Get the name of the room of a unit in the given language. The name is only resolved once per language and room.
+     *
+     * @param unitConfig the config of the unit.
+     * @param locale     the language of the name.
+     *
+     * @return the best matching label of the room.
+     *
+     * @throws CouldNotPerformException if the room or its label are not available.
+     */
+    public String getRoomName(final UnitConfig unitConfig, final Locale locale) throws CouldNotPerformException {
+        final UnitConfig room = getRoom(unitConfig);
+        final Map<String, String> roomNameMap = languageRoomNameMap.computeIfAbsent(locale.getLanguage(), key -> new ConcurrentHashMap<>());
+        String roomName = roomNameMap.get(room.getId());
+        if (roomName == null) {
+            roomName = LabelProcessor.getBestMatch(locale, room.getLabel());
+            roomNameMap.put(room.getId(), roomName);
+        }
+        return roomName;
+    }
+
+    /**
+     * Get the ids of all locations visited when resolving the room of a unit.
+     * If one of them changes, the room of the unit may have changed.
+     *
+     * @param unitConfig the config of the unit.
+     *
+     * @return the ids of the locations from the placement of the unit up to its room.
+     */
+    public Set<String> getRoomDependencies(final UnitConfig unitConfig) {
+        return locationChainMap.getOrDefault(unitConfig.getPlacementConfig().getLocationId(), Collections.emptySet());
+    }
+}
@@ -47,15 +47,11 @@ import org.openbase.jul.exception.printer.ExceptionPrinter;
 import org.openbase.jul.extension.type.processing.LabelProcessor;
 import org.openbase.jul.iface.Launchable;
 import org.openbase.jul.iface.VoidInitializable;
-import org.openbase.jul.pattern.Observer;
-import org.openbase.jul.pattern.provider.DataProvider;
-import org.openbase.jul.schedule.GlobalCachedExecutorService;
 import org.openbase.type.domotic.action.ActionDescriptionType.ActionDescription;
 import org.openbase.type.domotic.action.ActionPriorityType.ActionPriority.Priority;
 import org.openbase.type.domotic.activity.ActivityConfigType.ActivityConfig;
 import org.openbase.type.domotic.authentication.AuthTokenType.AuthToken;
 import org.openbase.type.domotic.authentication.AuthenticatedValueType.AuthenticatedValue;
-import org.openbase.type.domotic.registry.UnitRegistryDataType.UnitRegistryData;
 import org.openbase.type.domotic.service.ServiceStateDescriptionType.ServiceStateDescription;
 import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
 import org.openbase.type.domotic.state.ActivityMultiStateType.ActivityMultiState;
@@ -66,7 +62,6 @@ import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
 import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
 import org.openbase.type.domotic.unit.scene.SceneConfigType.SceneConfig;
 import org.openbase.type.language.LabelType.Label;
-import org.openbase.type.language.LabelType.Label.MapFieldEntry;
 import org.openbase.type.language.LabelType.LabelOrBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,6 +69,8 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /**
  * @author <a href="mailto:pleminoq@openbase.org">Tamino Huxohl</a>
@@ -84,6 +81,7 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
     private static final String REGISTER_EVENT = "register";
     private static final String REMOVE_EVENT = "remove";
     private static final String REQUEST_SYNC_EVENT = "requestSync";
+    private static final String REPORT_STATE_EVENT = "reportState";
 
     private static final String INTENT_REGISTER_SCENE = "register_scene";
     private static final String INTENT_RENAMING = "rename";
@@ -97,6 +95,15 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
     private static final String SUCCESS_KEY = "success";
     private static final String ERROR_KEY = "error";
 
+    /**
+     * Time in milliseconds after which the handling of an intent is aborted.
+     */
+    private static final long INTENT_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+    /**
+     * Time in milliseconds after which a login is aborted. It includes the registration of new users.
+     */
+    private static final long LOGIN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
     private static final String RESPONSE_GENERIC_ERROR = "Entschuldige, es ist ein Fehler aufgetreten.";
 //    private static final String
 
@@ -109,9 +116,12 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
     private Socket socket;
     private boolean active, loggedIn;
 
-    private final UnitRegistryObserver unitRegistryObserver;
+    private final Runnable syncModelListener;
+    private SyncDeviceModel.UserProjection lastProjection;
+    private final DeviceStateReporter stateReporter;
 
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final Gson gson = new Gson();
+    private final Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
     private final JsonParser jsonParser = new JsonParser();
     private CompletableFuture<Void> loginFuture;
 
@@ -123,7 +133,8 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         this.userId = userId;
         this.tokenStore = tokenStore;
         this.loginData = loginData;
-        this.unitRegistryObserver = new UnitRegistryObserver();
+        this.syncModelListener = this::handleSyncModelChange;
+        this.stateReporter = new DeviceStateReporter(this::reportState);
         this.active = false;
     }
 
@@ -172,22 +183,27 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
                 login();
             }).on(Socket.EVENT_MESSAGE, objects -> {
                 // handle request
-                handleRequest(objects[0], (Ack) objects[objects.length - 1]);
+                final Ack ack = (Ack) objects[objects.length - 1];
+                IntentScheduler.getInstance().schedule(userId, INTENT_TIMEOUT, () -> handleRequest(objects[0], ack), () -> {
+                    respondWithError(ack, new CouldNotPerformException("Request of user[" + userId + "] rejected by intent scheduler"), ErrorCode.TIMEOUT);
+                });
             }).on(Socket.EVENT_DISCONNECT, objects -> {
                 // reconnection is automatically done by the socket API, just print that disconnected
                 LOGGER.info("Socket of user[" + userId + "] disconnected");
+                loggedIn = false;
+                stateReporter.deactivate();
             }).on(INTENT_USER_TRANSIT, objects -> {
-                handleUserTransitUpdate(objects[0], (Ack) objects[objects.length - 1]);
+                scheduleIntent(objects, this::handleUserTransitUpdate);
             }).on(INTENT_USER_ACTIVITY, objects -> {
-                handleActivity(objects[0], (Ack) objects[objects.length - 1]);
+                scheduleIntent(objects, this::handleActivity);
             }).on(INTENT_REGISTER_SCENE, objects -> {
-                handleSceneRegistration(objects[0], (Ack) objects[objects.length - 1]);
+                scheduleIntent(objects, this::handleSceneRegistration);
             }).on(INTENT_USER_ACTIVITY_CANCELLATION, objects -> {
-                handleActivityCancellation(objects[0], (Ack) objects[objects.length - 1]);
+                scheduleIntent(objects, this::handleActivityCancellation);
             }).on(INTENT_RELOCATE, objects -> {
-                handleRelocating(objects[0], (Ack) objects[objects.length - 1]);
+                scheduleIntent(objects, this::handleRelocating);
             }).on(INTENT_RENAMING, objects -> {
-                handleRenaming(objects[0], (Ack) objects[objects.length - 1]);
+                scheduleIntent(objects, this::handleRenaming);
             }).on(Socket.EVENT_RECONNECT_ATTEMPT, objects -> {
                 LOGGER.debug("Attempt to reconnect socket of user {}", userId);
             }).on(Socket.EVENT_RECONNECT_ERROR, objects -> {
@@ -200,8 +216,8 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
                 LOGGER.info("Socket of user {} reconnected!", userId);
             });
 
-            // add observer to registry that triggers sync requests on changes
-            Registries.getUnitRegistry().addDataObserver(unitRegistryObserver);
+            // add listener to the sync model that triggers sync requests on changes
+            SyncDeviceModel.getInstance().addChangeListener(syncModelListener);
         } catch (JPNotAvailableException | CouldNotPerformException ex) {
             throw new InitializationException(this, ex);
         }
@@ -211,24 +227,44 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         try {
             // parse as json
             final JsonElement parse = jsonParser.parse((String) request);
-            LOGGER.trace("Request: {}", gson.toJson(parse));
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Request: {}", prettyGson.toJson(parse));
+            }
 
             // handle request and create response
             final JsonObject jsonObject = FulfillmentHandler.handleRequest(parse.getAsJsonObject(), userId, tokenStore.getCloudConnectorToken(), tokenStore.getBCOToken(userId));
-            final String response = gson.toJson(jsonObject);
-            LOGGER.trace("Handler produced response: {}", response);
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Handler produced response: {}", prettyGson.toJson(jsonObject));
+            }
+            final String response = FulfillmentHandler.toJson(jsonObject);
             // send back response
             acknowledgement.call(response);
         } catch (Exception ex) {
             // send back an error response
-            final JsonObject response = new JsonObject();
-            final JsonObject payload = new JsonObject();
-            response.add(FulfillmentHandler.PAYLOAD_KEY, payload);
-            FulfillmentHandler.setError(payload, ex, ErrorCode.UNKNOWN_ERROR);
-            acknowledgement.call(gson.toJson(response));
+            respondWithError(acknowledgement, ex, ErrorCode.UNKNOWN_ERROR);
         }
     }
 
+    private void respondWithError(final Ack acknowledgement, final Exception exception, final ErrorCode errorCode) {
+        final JsonObject response = new JsonObject();
+        final JsonObject payload = new JsonObject();
+        response.add(FulfillmentHandler.PAYLOAD_KEY, payload);
+        FulfillmentHandler.setError(payload, exception, errorCode);
+        acknowledgement.call(FulfillmentHandler.toJson(response));
+    }
+
+    /**
+     * Schedule the handling of an intent so that the socket event thread is not blocked.
+     * If the intent is rejected by the scheduler, a generic error is sent back.
+     *
+     * @param objects the arguments of the socket event with the acknowledgement as the last one.
+     * @param handler the handler of the intent.
+     */
+    private void scheduleIntent(final Object[] objects, final BiConsumer<Object, Ack> handler) {
+        final Ack ack = (Ack) objects[objects.length - 1];
+        IntentScheduler.getInstance().schedule(userId, INTENT_TIMEOUT, () -> handler.accept(objects[0], ack), () -> respond(ack, RESPONSE_GENERIC_ERROR, true));
+    }
+
     private Future<Void> register() {
         final CompletableFuture<Void> registrationFuture = new CompletableFuture<>();
         socket.emit(REGISTER_EVENT, gson.toJson(loginData), (Ack) objects -> {
@@ -256,7 +292,7 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
     private void login() {
         // this has to be done on another thread because the socket library uses a single event thread
         // so without this it is not possible to wait for the registration to finish
-        GlobalCachedExecutorService.submit(() -> {
+        IntentScheduler.getInstance().schedule(userId, LOGIN_TIMEOUT, () -> {
             if (loginData != null) {
                 // register user
                 try {
@@ -281,7 +317,9 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
                 return;
             }
 
-            LOGGER.trace("Send login info [" + gson.toJson(loginInfo) + "]");
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Send login info [{}]", prettyGson.toJson(loginInfo));
+            }
             socket.emit(LOGIN_EVENT, gson.toJson(loginInfo), (Ack) objects -> {
                 try {
                     final JsonObject response = jsonParser.parse(objects[0].toString()).getAsJsonObject();
@@ -291,6 +329,8 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
                         loginFuture.complete(null);
                         // trigger initial database sync
                         requestSync();
+                        // report states of all devices and start reporting changes
+                        stateReporter.activate();
                     } else {
                         LOGGER.warn("Could not login user[" + userId + "] at BCO Cloud: " + response.get(ERROR_KEY));
                         loginFuture.completeExceptionally(new CouldNotPerformException("Could not login user[" + userId + "] at BCO Cloud: " + response.get(ERROR_KEY)));
@@ -300,6 +340,11 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
                     loginFuture.completeExceptionally(new CouldNotPerformException("Could not login user[" + userId + "] at BCO Cloud", ex));
                 }
             });
+        }, () -> {
+            final CompletableFuture<Void> future = loginFuture;
+            if (future != null) {
+                future.completeExceptionally(new CouldNotPerformException("Login of user[" + userId + "] rejected by intent scheduler"));
+            }
         });
     }
 
@@ -329,7 +374,9 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
     private void handleRelocating(final Object object, final Ack ack) {
         final JsonObject data = jsonParser.parse(object.toString()).getAsJsonObject();
-        LOGGER.trace("Received relocation request:\n {}", gson.toJson(data));
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Received relocation request:\n {}", prettyGson.toJson(data));
+        }
 
         if (!data.has(CURRENT_LABEL_KEY)) {
             respond(ack, "Welches Gerät soll verschoben werden? Sage zum Beispiel: Der Deckenfluter steht im Wohnzimmer.", true);
@@ -345,31 +392,18 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
         String response;
         try {
-            UnitConfig.Builder currentUnit;
-            if (data.has(CURRENT_LOCATION_KEY)) {
-                final String currentLocationLabel = data.get(CURRENT_LOCATION_KEY).getAsString().trim();
-                try {
-                    currentUnit = getUnitByLabelAndLocation(currentLabel, currentLocationLabel).toBuilder();
-                } catch (NotAvailableException ex) {
-                    respond(ack, "Ich kann das Gerät " + currentLabel + " in dem Ort " + currentLocationLabel + " nicht finden.", true);
-                    return;
-                }
-            } else {
-                try {
-                    currentUnit = getUnitByLabel(currentLabel).toBuilder();
-                } catch (NotAvailableException ex) {
-                    respond(ack, "Ich kann das Gerät " + currentLabel + " nicht finden.", true);
-                    return;
-                }
+            final UnitConfig targetUnit = resolveTargetUnit(data, currentLabel, ack);
+            if (targetUnit == null) {
+                return;
             }
-            final List<UnitConfig> locations = Registries.getUnitRegistry().getUnitConfigsByLabelAndUnitType(newLocationLabel, UnitType.LOCATION);
-            if (locations.isEmpty()) {
-                respond(ack, "Ich kann den Ort " + newLocationLabel + " nicht finden.", true);
+            final UnitConfig newLocation = resolveTargetLocation(newLocationLabel, ack);
+            if (newLocation == null) {
                 return;
             }
 
+            final UnitConfig.Builder currentUnit = targetUnit.toBuilder();
             response = currentLabel + " wurde in den Ort " + newLocationLabel + " verschoben.";
-            currentUnit.getPlacementConfigBuilder().setLocationId(locations.get(0).getId());
+            currentUnit.getPlacementConfigBuilder().setLocationId(newLocation.getId());
             currentUnit.getEnablingStateBuilder().setValue(State.DISABLED);
             try {
                 //TODO: validate that this is really necessary
@@ -407,7 +441,7 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
     private void enableAgain(final Future<UnitConfig> unitConfigFuture, final int currentRequestNumber) {
         LOGGER.trace("Trigger enable task");
-        GlobalCachedExecutorService.submit(() -> {
+        IntentScheduler.getInstance().schedule(userId, INTENT_TIMEOUT, () -> {
             try {
                 final UnitConfig.Builder currentUnit = unitConfigFuture.get().toBuilder();
                 LOGGER.debug("Disabled and relocated unit. Now enable again");
@@ -422,29 +456,84 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
             } catch (Exception ex) {
                 ExceptionPrinter.printHistory("Could not enable unit again", ex, LOGGER);
             }
-            return null;
-        });
+        }, () -> LOGGER.warn("Could not enable unit again because the task was rejected by the intent scheduler"));
     }
 
-    private UnitConfig getUnitByLabel(final String label) throws CouldNotPerformException {
-        return fromList(Registries.getUnitRegistry().getUnitConfigsByLabel(label));
+    /**
+     * Resolve the unit modified by an intent. In contrast to queries the label has to match exactly and has to identify
+     * a single unit, so that a misunderstood or ambiguous label never modifies another unit than the intended one.
+     * If the intent contains the current location of the unit, only units in this location are considered.
+     * If the unit cannot be resolved the user is told why.
+     *
+     * @return the resolved unit or null if it could not be resolved.
+     */
+    private UnitConfig resolveTargetUnit(final JsonObject data, final String label, final Ack ack) throws CouldNotPerformException, InterruptedException {
+        if (!data.has(CURRENT_LOCATION_KEY)) {
+            final List<UnitConfig> unitConfigList = getTargetUnits(label, unitConfig -> true);
+            if (unitConfigList.isEmpty()) {
+                respond(ack, "Ich kann das Gerät " + label + " nicht finden.", true);
+                return null;
+            }
+            if (unitConfigList.size() > 1) {
+                respond(ack, "Ich kenne mehrere Geräte mit dem Namen " + label + ". In welchem Ort befindet sich das Gerät? Sage zum Beispiel: " + label + " im Wohnzimmer.", true);
+                return null;
+            }
+            return unitConfigList.get(0);
+        }
+
+        final String locationLabel = data.get(CURRENT_LOCATION_KEY).getAsString().trim();
+        final UnitConfig location = resolveTargetLocation(locationLabel, ack);
+        if (location == null) {
+            return null;
+        }
+        final Set<String> locationUnitIdSet = new HashSet<>(location.getLocationConfig().getUnitIdList());
+        final List<UnitConfig> unitConfigList = getTargetUnits(label, unitConfig -> locationUnitIdSet.contains(unitConfig.getId()));
+        if (unitConfigList.isEmpty()) {
+            respond(ack, "Ich kann das Gerät " + label + " in dem Ort " + locationLabel + " nicht finden.", true);
+            return null;
+        }
+        if (unitConfigList.size() > 1) {
+            respond(ack, "Ich kenne mehrere Geräte mit dem Namen " + label + " in dem Ort " + locationLabel + ". Bitte gib ihnen eindeutige Namen.", true);
+            return null;
+        }
+        return unitConfigList.get(0);
     }
 
-    private UnitConfig getUnitByLabelAndLocation(final String label, final String locationLabel) throws CouldNotPerformException {
-        final List<UnitConfig> locationList = Registries.getUnitRegistry().getUnitConfigsByLabelAndUnitType(locationLabel, UnitType.LOCATION);
+    /**
+     * Resolve a location referenced by an intent modifying a unit. The label has to match exactly a single location.
+     * If the location cannot be resolved the user is told why.
+     *
+     * @return the resolved location or null if it could not be resolved.
+     */
+    private UnitConfig resolveTargetLocation(final String label, final Ack ack) throws CouldNotPerformException, InterruptedException {
+        final SyncDeviceModel syncDeviceModel = SyncDeviceModel.getInstance();
+        final List<UnitConfig> locationList = syncDeviceModel.getLabelIndex().getExactMatches(label, syncDeviceModel.getLocale(userId), unitConfig -> unitConfig.getUnitType() == UnitType.LOCATION);
         if (locationList.isEmpty()) {
-            return getUnitByLabel(label);
+            respond(ack, "Ich kann den Ort " + label + " nicht finden.", true);
+            return null;
+        }
+        if (locationList.size() > 1) {
+            respond(ack, "Ich kenne mehrere Orte mit dem Namen " + label + ". Bitte gib ihnen eindeutige Namen.", true);
+            return null;
         }
-        return fromList(Registries.getUnitRegistry().getUnitConfigsByLocationIdAndUnitLabel(locationList.get(0).getId(), label));
+        return locationList.get(0);
     }
 
-
-    private UnitConfig fromList(final List<UnitConfig> unitConfigList) throws CouldNotPerformException {
-        if (unitConfigList.isEmpty()) {
-            throw new NotAvailableException("unit");
+    /**
+     * Resolve the units which exactly match a label. Units bound to a device with the same label are resolved to this
+     * device, so that the device and its units are only contained once.
+     */
+    private List<UnitConfig> getTargetUnits(final String label, final Predicate<UnitConfig> filter) throws CouldNotPerformException, InterruptedException {
+        final SyncDeviceModel syncDeviceModel = SyncDeviceModel.getInstance();
+        final Map<String, UnitConfig> targetUnitMap = new LinkedHashMap<>();
+        for (final UnitConfig unitConfig : syncDeviceModel.getLabelIndex().getExactMatches(label, syncDeviceModel.getLocale(userId), filter)) {
+            final UnitConfig targetUnit = toHostDevice(unitConfig);
+            targetUnitMap.putIfAbsent(targetUnit.getId(), targetUnit);
         }
+        return new ArrayList<>(targetUnitMap.values());
+    }
 
-        final UnitConfig unitConfig = unitConfigList.get(0);
+    private UnitConfig toHostDevice(final UnitConfig unitConfig) throws CouldNotPerformException {
         if (!UnitConfigProcessor.isHostUnitAvailable(unitConfig) || !unitConfig.getBoundToUnitHost()) {
             return unitConfig;
         }
@@ -460,7 +549,9 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
     private void handleRenaming(final Object object, final Ack ack) {
         final JsonObject data = jsonParser.parse(object.toString()).getAsJsonObject();
-        LOGGER.trace("Received renaming request:\n {}", gson.toJson(data));
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Received renaming request:\n {}", prettyGson.toJson(data));
+        }
 
         if (!data.has(CURRENT_LABEL_KEY)) {
             respond(ack, "Welches Gerät soll ich umbenennen? Sage zum Beispiel die Deckenlampe soll jetzt Deckenlicht heißen.", true);
@@ -483,23 +574,11 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
         String response = "";
         try {
-            UnitConfig.Builder currentUnit;
-            if (data.has(CURRENT_LOCATION_KEY)) {
-                final String currentLocationLabel = data.get(CURRENT_LOCATION_KEY).getAsString();
-                try {
-                    currentUnit = getUnitByLabelAndLocation(currentLabel, currentLocationLabel).toBuilder();
-                } catch (NotAvailableException ex) {
-                    respond(ack, "Ich kann das Gerät " + currentLabel + " in dem Ort " + currentLocationLabel + " nicht finden", true);
-                    return;
-                }
-            } else {
-                try {
-                    currentUnit = getUnitByLabel(currentLabel).toBuilder();
-                } catch (NotAvailableException ex) {
-                    respond(ack, "Ich kann das Gerät " + currentLabel + " nicht finden.", true);
-                    return;
-                }
+            final UnitConfig targetUnit = resolveTargetUnit(data, currentLabel, ack);
+            if (targetUnit == null) {
+                return;
             }
+            final UnitConfig.Builder currentUnit = targetUnit.toBuilder();
 
             LabelProcessor.replace(currentUnit.getLabelBuilder(), currentLabel, newLabel);
             response = currentLabel + " wurde zu " + newLabel + " umbenannt.";
@@ -530,7 +609,9 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
     private void handleUserTransitUpdate(final Object object, final Ack acknowledgement) {
         final JsonObject data = jsonParser.parse(object.toString()).getAsJsonObject();
-        LOGGER.trace("User [{}] received user transit request: {}", userId, gson.toJson(data));
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("User [{}] received user transit request: {}", userId, prettyGson.toJson(data));
+        }
         try {
             if (!data.has("userTransit")) {
                 throw new NotAvailableException("UserTransitState");
@@ -569,30 +650,21 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 
     private void handleActivity(final Object object, final Ack acknowledgement) {
         final JsonObject params = jsonParser.parse(object.toString()).getAsJsonObject();
-        LOGGER.trace("User [{}] received set activities request: {}", userId, gson.toJson(params));
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("User [{}] received set activities request: {}", userId, prettyGson.toJson(params));
+        }
         try {
             LocalPositionState localPositionState = null;
             String errorResponse = "";
             final UserRemote userRemote = Units.getUnit(userId, false, UserRemote.class);
             if (params.has("location")) {
                 final String locationLabel = params.get("location").getAsString();
-                UnitConfig location = null;
+                final List<UnitConfig> locations = getLocationsByLabel(locationLabel);
 
-                for (UnitConfig unitConfig : Registries.getUnitRegistry().getUnitConfigsByUnitType(UnitType.LOCATION)) {
-                    for (MapFieldEntry entry : unitConfig.getLabel().getEntryList()) {
-                        for (String label : entry.getValueList()) {
-                            if (locationLabel.equalsIgnoreCase(label)) {
-                                location = unitConfig;
-                            }
-                        }
-                    }
-                }
-
-                if (location == null) {
+                if (locations.isEmpty()) {
                     errorResponse += "Der Ort " + locationLabel + " ist nicht verfügbar.";
                 } else {
-                    localPositionState = LocalPositionState.newBuilder().addLocationId(location.getId()).build();
-
+                    localPositionState = LocalPositionState.newBuilder().addLocationId(locations.get(locations.size() - 1).getId()).build();
                 }
             }
 
@@ -703,14 +775,31 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         }
     }
 
-    private String getLabelForUser(final LabelOrBuilder labelOrBuilder) throws CouldNotPerformException {
-        final String language = Registries.getUnitRegistry().getUnitConfigById(userId).getUserConfig().getLanguage();
-        return LabelProcessor.getBestMatch(new Locale(language), labelOrBuilder);
+    private String getLabelForUser(final LabelOrBuilder labelOrBuilder) throws CouldNotPerformException, InterruptedException {
+        return LabelProcessor.getBestMatch(SyncDeviceModel.getInstance().getLocale(userId), labelOrBuilder);
+    }
+
+    /**
+     * Resolve locations by label using the label index of the sync model instead of querying the registry.
+     */
+    private List<UnitConfig> getLocationsByLabel(final String label) throws CouldNotPerformException, InterruptedException {
+        return getUnitsByLabel(label, unitConfig -> unitConfig.getUnitType() == UnitType.LOCATION);
+    }
+
+    /**
+     * Resolve units by a label spoken by the user. The label does not have to match exactly, so that it is tolerant
+     * against variations caused by speech recognition.
+     */
+    private List<UnitConfig> getUnitsByLabel(final String label, final Predicate<UnitConfig> filter) throws CouldNotPerformException, InterruptedException {
+        final SyncDeviceModel syncDeviceModel = SyncDeviceModel.getInstance();
+        return syncDeviceModel.getLabelIndex().getMatches(label, syncDeviceModel.getLocale(userId), filter);
     }
 
     private void handleActivityCancellation(final Object object, final Ack acknowledgement) {
         final JsonObject params = jsonParser.parse(object.toString()).getAsJsonObject();
-        LOGGER.trace("User [{}] received cancel activities request: {}", userId, gson.toJson(params));
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("User [{}] received cancel activities request: {}", userId, prettyGson.toJson(params));
+        }
         try {
             final JsonArray activities = params.get("activity").getAsJsonArray();
 
@@ -835,7 +924,9 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
 //        long startingTime = System.currentTimeMillis();
 
         final JsonObject data = jsonParser.parse(object.toString()).getAsJsonObject();
-        LOGGER.trace("User [{}] received scene registration request: {}", userId, gson.toJson(data));
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("User [{}] received scene registration request: {}", userId, prettyGson.toJson(data));
+        }
         final UnitConfig.Builder sceneUnitConfig = UnitConfig.newBuilder().setUnitType(UnitType.SCENE);
 
         UnitConfig location;
@@ -844,7 +935,7 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
             location = Registries.getUnitRegistry().getRootLocationConfig();
             if (data.has("location")) {
                 final String locationLabel = data.get("location").getAsString();
-                List<UnitConfig> locations = Registries.getUnitRegistry().getUnitConfigsByLabelAndUnitType(locationLabel, UnitType.LOCATION);
+                List<UnitConfig> locations = getLocationsByLabel(locationLabel);
                 if (locations.size() == 0) {
                     respond(acknowledgement, "Ich kann den Ort " + locationLabel + " nicht finden", true);
                 } else {
@@ -859,7 +950,8 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
                 entry.addValue(label);
 
                 // make sure label is available for this location
-                for (UnitConfig unitConfig : Registries.getUnitRegistry().getUnitConfigsByLocationIdAndUnitLabel(location.getId(), label)) {
+                final Set<String> locationUnitIdSet = new HashSet<>(location.getLocationConfig().getUnitIdList());
+                for (UnitConfig unitConfig : SyncDeviceModel.getInstance().getLabelIndex().getExactMatches(label, Locale.GERMAN, unit -> locationUnitIdSet.contains(unit.getId()))) {
                     if (unitConfig.getUnitType() == UnitType.SCENE) {
                         respond(acknowledgement, "Es existiert bereits eine Szene mit dem Name " + label + " in dem Ort " + LabelProcessor.getBestMatch(Locale.GERMAN, location.getLabel()), true);
                     }
@@ -934,6 +1026,7 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         if (socket == null) {
             throw new CouldNotPerformException("Cannot deactivate before initialization");
         }
+        stateReporter.deactivate();
         socket.disconnect();
         active = false;
         loginFuture = null;
@@ -948,26 +1041,28 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         return loggedIn;
     }
 
-    private class UnitRegistryObserver implements Observer<DataProvider<UnitRegistryData>, UnitRegistryData> {
-        private JsonObject lastSyncResponse = null;
-
-        @Override
-        public void update(final DataProvider<UnitRegistryData> source, final UnitRegistryData data) throws Exception {
+    private void handleSyncModelChange() {
+        final SyncDeviceModel.UserProjection projection;
+        try {
+            projection = SyncDeviceModel.getInstance().getProjection(userId);
+        } catch (CouldNotPerformException ex) {
+            ExceptionPrinter.printHistory("Could not resolve sync projection of user[" + userId + "]", ex, LOGGER);
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-            // build a response for a sync request
-            final JsonObject syncResponse = new JsonObject();
-            FulfillmentHandler.handleSync(syncResponse, userId);
-            // return if the response to a sync has not changed since the last time
-            if (lastSyncResponse != null && lastSyncResponse.hashCode() == syncResponse.hashCode()) {
-                return;
-            }
-            lastSyncResponse = syncResponse;
+        // return if the devices synchronized for this user have not changed since the last time
+        if (projection.equals(lastProjection)) {
+            return;
+        }
+        lastProjection = projection;
 
-            // trigger sync if socket is connected and logged in
-            // if the user is not logged the login process will trigger an update anyway
-            if (isLoggedIn()) {
-                requestSync();
-            }
+        // trigger sync if socket is connected and logged in
+        // if the user is not logged the login process will trigger an update anyway
+        if (isLoggedIn()) {
+            requestSync();
         }
     }
 
@@ -988,6 +1083,45 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         });
     }
 
+    private CompletableFuture<Void> reportState(final JsonObject payload) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!isLoggedIn()) {
+            future.completeExceptionally(new InvalidStateException("User[" + userId + "] is not logged in"));
+            return future;
+        }
+
+        final JsonObject request = new JsonObject();
+        try {
+            request.addProperty(FulfillmentHandler.REQUEST_ID_KEY, UUID.randomUUID().toString());
+            request.addProperty(FulfillmentHandler.AGENT_USER_ID_KEY, SyncDeviceModel.getInstance().getProjection(userId).getAgentUserId());
+            request.add(FulfillmentHandler.PAYLOAD_KEY, payload);
+        } catch (CouldNotPerformException ex) {
+            future.completeExceptionally(ex);
+            return future;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(ex);
+            return future;
+        }
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Report state [{}]", prettyGson.toJson(request));
+        }
+        socket.emit(REPORT_STATE_EVENT, FulfillmentHandler.toJson(request), (Ack) objects -> {
+            try {
+                final JsonObject response = jsonParser.parse(objects[0].toString()).getAsJsonObject();
+                if (response.get(SUCCESS_KEY).getAsBoolean()) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(new CouldNotPerformException("Could not report state for user[" + userId + "]: " + response.get(ERROR_KEY)));
+                }
+            } catch (ArrayIndexOutOfBoundsException | ClassCastException | NullPointerException ex) {
+                future.completeExceptionally(new CouldNotPerformException("Unexpected response for report state request", ex));
+            }
+        });
+        return future;
+    }
+
     private void respond(final Ack acknowledgement, final String text) {
         respond(acknowledgement, text, false);
     }
@@ -996,7 +1130,7 @@ public class SocketWrapper implements Launchable<Void>, VoidInitializable {
         final JsonObject response = new JsonObject();
         response.addProperty("text", text);
         response.addProperty("error", error);
-        acknowledgement.call(gson.toJson(response));
+        acknowledgement.call(FulfillmentHandler.toJson(response));
     }
 
     public Future<Void> getLoginFuture() {
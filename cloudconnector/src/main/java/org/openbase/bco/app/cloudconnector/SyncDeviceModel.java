@@ -0,0 +1,784 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.openbase.bco.app.cloudconnector.mapping.lib.Trait;
+import org.openbase.bco.app.cloudconnector.mapping.service.ServiceStateTraitMapperFactory;
+import org.openbase.bco.app.cloudconnector.mapping.unit.UnitTypeMapping;
+import org.openbase.bco.registry.lib.util.UnitConfigProcessor;
+import org.openbase.bco.registry.remote.Registries;
+import org.openbase.bco.registry.unit.lib.UnitRegistry;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.extension.type.processing.LabelProcessor;
+import org.openbase.jul.pattern.Observer;
+import org.openbase.jul.pattern.provider.DataProvider;
+import org.openbase.jul.processing.StringProcessor;
+import org.openbase.type.domotic.registry.UnitRegistryDataType.UnitRegistryData;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.EnablingStateType.EnablingState.State;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+import org.openbase.type.language.LabelType.Label;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.*;
+
+/**
+ * Device model of the SYNC intent which is shared by all users of the cloud connector.
+ * <p>
+ * The model decides which units are exported as devices to Google and maintains their json representation per language.
+ * On registry updates only the devices depending on changed unit configs are resolved and serialized again, while all others are reused.
+ * Users are served by a {@link UserProjection} consisting of their language, their agent user id and the revision of the
+ * device list in their language, so a user only needs to be synchronized if the projection changed.
+ */
+public class SyncDeviceModel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncDeviceModel.class);
+
+    private static SyncDeviceModel instance;
+
+    public static synchronized SyncDeviceModel getInstance() {
+        if (instance == null) {
+            instance = new SyncDeviceModel();
+        }
+        return instance;
+    }
+
+    private final Observer<DataProvider<UnitRegistryData>, UnitRegistryData> unitRegistryObserver;
+    private final List<Runnable> changeListenerList;
+
+    private final Map<String, LanguageProjection> languageProjectionMap;
+    private Map<String, UnitConfig> unitConfigMap;
+    private final Map<String, ExportedDevice> exportedDeviceMap;
+    private final Map<String, String> exportIdMap;
+    private final Map<String, Set<String>> dependentExportMap;
+    private RoomIndex roomIndex;
+    private final LabelIndex labelIndex;
+    private String bcoUserId;
+    private boolean initialized, active;
+
+    private SyncDeviceModel() {
+        this.unitRegistryObserver = (source, data) -> {
+            update();
+            notifyChange();
+        };
+        this.changeListenerList = new CopyOnWriteArrayList<>();
+        this.languageProjectionMap = new HashMap<>();
+        this.unitConfigMap = new HashMap<>();
+        this.exportedDeviceMap = new LinkedHashMap<>();
+        this.exportIdMap = new HashMap<>();
+        this.dependentExportMap = new HashMap<>();
+        this.roomIndex = new RoomIndex(unitConfigMap);
+        this.labelIndex = new LabelIndex();
+        this.initialized = false;
+        this.active = false;
+    }
+
+    /**
+     * Start observing the unit registry to keep the model up to date.
+     * The model is activated once by the cloud connector app, so registry updates are processed once for all connected users.
+     *
+     * @throws CouldNotPerformException if the unit registry is not available.
+     */
+    public synchronized void activate() throws CouldNotPerformException {
+        if (active) {
+            return;
+        }
+        Registries.getUnitRegistry().addDataObserver(unitRegistryObserver);
+        active = true;
+    }
+
+    public synchronized void deactivate() throws CouldNotPerformException {
+        if (!active) {
+            return;
+        }
+        Registries.getUnitRegistry().removeDataObserver(unitRegistryObserver);
+        active = false;
+    }
+
+    /**
+     * Register a listener informed after the model has been updated. The listener is called for every registry update,
+     * so listeners should compare the {@link UserProjection} of their user to decide if something changed.
+     *
+     * @param listener the listener to add.
+     */
+    public void addChangeListener(final Runnable listener) {
+        changeListenerList.add(listener);
+    }
+
+    public void removeChangeListener(final Runnable listener) {
+        changeListenerList.remove(listener);
+    }
+
+    private void notifyChange() {
+        for (final Runnable listener : changeListenerList) {
+            try {
+                listener.run();
+            } catch (RuntimeException ex) {
+                ExceptionPrinter.printHistory("Could not inform listener about sync model change", ex, LOGGER);
+            }
+        }
+    }
+
+    /**
+     * Get the projection of the model for a user.
+     *
+     * @param userId the id of the user.
+     *
+     * @return the current projection for the user.
+     *
+     * @throws CouldNotPerformException if the model could not be initialized or the user is not available.
+     * @throws InterruptedException     if interrupted while waiting for the registries.
+     */
+    public synchronized UserProjection getProjection(final String userId) throws CouldNotPerformException, InterruptedException {
+        initialize();
+        final String language = getLanguage(userId);
+        return new UserProjection(language, userId + "@" + bcoUserId, getLanguageProjection(language).revision);
+    }
+
+    /**
+     * Get the devices exported for a user.
+     * The returned array is shared by all users with the same language until the next revision, so it must not be modified.
+     * User specific fields such as the agent user id have to be added to the surrounding payload.
+     *
+     * @param userId the id of the user.
+     *
+     * @return a json array containing all devices in the language of the user.
+     *
+     * @throws CouldNotPerformException if the model could not be initialized or the user is not available.
+     * @throws InterruptedException     if interrupted while waiting for the registries.
+     */
+    public synchronized JsonArray getDevices(final String userId) throws CouldNotPerformException, InterruptedException {
+        initialize();
+        return getLanguageProjection(getLanguage(userId)).getDevices();
+    }
+
+    /**
+     * Get the units exported to Google grouped by the device they are exported as.
+     *
+     * @return a map from the ids of the exported devices to the configs of the units they consist of.
+     *
+     * @throws CouldNotPerformException if the model could not be initialized.
+     * @throws InterruptedException     if interrupted while waiting for the registries.
+     */
+    public synchronized Map<String, List<UnitConfig>> getExportedUnitConfigs() throws CouldNotPerformException, InterruptedException {
+        initialize();
+        final Map<String, List<UnitConfig>> exportedUnitConfigMap = new LinkedHashMap<>();
+        for (final ExportedDevice exportedDevice : exportedDeviceMap.values()) {
+            exportedUnitConfigMap.put(exportedDevice.getId(), new ArrayList<>(exportedDevice.mappings.keySet()));
+        }
+        return exportedUnitConfigMap;
+    }
+
+    /**
+     * Get the room index of the current registry revision.
+     *
+     * @return the room index which is rebuilt whenever a location changes.
+     *
+     * @throws CouldNotPerformException if the model could not be initialized.
+     * @throws InterruptedException     if interrupted while waiting for the registries.
+     */
+    public synchronized RoomIndex getRoomIndex() throws CouldNotPerformException, InterruptedException {
+        initialize();
+        return roomIndex;
+    }
+
+    /**
+     * Get the label index of all units.
+     *
+     * @return the label index which is updated incrementally on every registry change.
+     *
+     * @throws CouldNotPerformException if the model could not be initialized.
+     * @throws InterruptedException     if interrupted while waiting for the registries.
+     */
+    public synchronized LabelIndex getLabelIndex() throws CouldNotPerformException, InterruptedException {
+        initialize();
+        return labelIndex;
+    }
+
+    /**
+     * Get the language of a user.
+     *
+     * @param userId the id of the user.
+     *
+     * @return the language of the user.
+     *
+     * @throws CouldNotPerformException if the model could not be initialized or the user is not available.
+     * @throws InterruptedException     if interrupted while waiting for the registries.
+     */
+    public synchronized Locale getLocale(final String userId) throws CouldNotPerformException, InterruptedException {
+        initialize();
+        return new Locale(getLanguage(userId));
+    }
+
+    private String getLanguage(final String userId) throws NotAvailableException {
+        final UnitConfig userUnitConfig = unitConfigMap.get(userId);
+        if (userUnitConfig == null) {
+            throw new NotAvailableException("User[" + userId + "]");
+        }
+        return userUnitConfig.getUserConfig().getLanguage();
+    }
+
+    private void initialize() throws CouldNotPerformException, InterruptedException {
+        if (initialized) {
+            return;
+        }
+        update();
+    }
+
+    /**
+     * Apply the current state of the unit registry to the model.
+     * <p>
+     * The registry only publishes complete snapshots, so all unit configs are compared to detect the changed ones.
+     * Everything else is driven by the changed configs: only the affected devices are resolved and serialized again,
+     * the label index is updated for the changed units and the room index is only rebuilt if a location changed.
+     */
+    private synchronized void update() throws CouldNotPerformException, InterruptedException {
+        Registries.getUnitRegistry().waitForData(REGISTRY_TIMEOUT, TimeUnit.SECONDS);
+        Registries.getTemplateRegistry().waitForData(REGISTRY_TIMEOUT, TimeUnit.SECONDS);
+
+        // detect changed unit configs
+        final Map<String, UnitConfig> newUnitConfigMap = new LinkedHashMap<>();
+        for (final UnitConfig unitConfig : Registries.getUnitRegistry().getUnitConfigs()) {
+            newUnitConfigMap.put(unitConfig.getId(), unitConfig);
+        }
+        final Set<String> changedIdSet = new LinkedHashSet<>();
+        for (final UnitConfig unitConfig : newUnitConfigMap.values()) {
+            if (!unitConfig.equals(unitConfigMap.get(unitConfig.getId()))) {
+                changedIdSet.add(unitConfig.getId());
+            }
+        }
+        for (final String unitId : unitConfigMap.keySet()) {
+            if (!newUnitConfigMap.containsKey(unitId)) {
+                changedIdSet.add(unitId);
+            }
+        }
+
+        bcoUserId = Registries.getUnitRegistry().getUnitConfigByAlias(UnitRegistry.BCO_USER_ALIAS).getId();
+        if (initialized && changedIdSet.isEmpty()) {
+            return;
+        }
+
+        final Map<String, UnitConfig> previousUnitConfigMap = unitConfigMap;
+        unitConfigMap = newUnitConfigMap;
+        if (!initialized || containsLocation(changedIdSet, previousUnitConfigMap)) {
+            roomIndex = new RoomIndex(unitConfigMap);
+        }
+        labelIndex.update(unitConfigMap, changedIdSet);
+
+        final Set<String> removedDeviceIdSet = new HashSet<>();
+        final Set<String> dirtyDeviceIdSet = updateExportedDevices(previousUnitConfigMap, changedIdSet, removedDeviceIdSet);
+        for (final LanguageProjection languageProjection : languageProjectionMap.values()) {
+            languageProjection.update(dirtyDeviceIdSet, removedDeviceIdSet);
+        }
+        initialized = true;
+    }
+
+    private boolean containsLocation(final Set<String> changedIdSet, final Map<String, UnitConfig> previousUnitConfigMap) {
+        for (final String unitId : changedIdSet) {
+            if (isLocation(previousUnitConfigMap.get(unitId)) || isLocation(unitConfigMap.get(unitId))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLocation(final UnitConfig unitConfig) {
+        return unitConfig != null && unitConfig.getUnitType() == UnitType.LOCATION;
+    }
+
+    private LanguageProjection getLanguageProjection(final String language) {
+        return languageProjectionMap.computeIfAbsent(language, key -> {
+            final LanguageProjection languageProjection = new LanguageProjection(new Locale(key));
+            languageProjection.update(exportedDeviceMap.keySet(), Collections.emptySet());
+            return languageProjection;
+        });
+    }
+
+    /**
+     * Resolve the exported devices again which may be affected by the changed unit configs.
+     * <p>
+     * Affected are the changed units themselves, the devices hosting them including all other units hosted by these devices,
+     * and all exported devices depending on a changed unit, e.g. by using it as room hint.
+     * The exports of all affected units are removed and their units are resolved again, while all other exports are kept.
+     *
+     * @param previousUnitConfigMap the unit configs of the previous update.
+     * @param changedIdSet          the ids of all unit configs which were added, modified or removed.
+     * @param removedDeviceIdSet    set to which the ids of devices which are not exported anymore are added.
+     *
+     * @return the ids of all devices which were resolved again and therefore have to be serialized again.
+     */
+    private Set<String> updateExportedDevices(final Map<String, UnitConfig> previousUnitConfigMap, final Set<String> changedIdSet, final Set<String> removedDeviceIdSet) {
+        final Set<String> affectedIdSet = new LinkedHashSet<>();
+        for (final String unitId : changedIdSet) {
+            affectedIdSet.add(unitId);
+            addHostDependencies(previousUnitConfigMap.get(unitId), previousUnitConfigMap, affectedIdSet);
+            addHostDependencies(unitConfigMap.get(unitId), unitConfigMap, affectedIdSet);
+            affectedIdSet.addAll(dependentExportMap.getOrDefault(unitId, Collections.emptySet()));
+        }
+
+        // remove the exports of all affected units and resolve their units again
+        final Set<String> previousExportIdSet = new HashSet<>();
+        final Set<String> candidateIdSet = new LinkedHashSet<>(affectedIdSet);
+        for (final String unitId : affectedIdSet) {
+            final String exportId = exportIdMap.get(unitId);
+            if (exportId == null || !previousExportIdSet.add(exportId)) {
+                continue;
+            }
+            final ExportedDevice exportedDevice = exportedDeviceMap.get(exportId);
+            unregister(exportedDevice);
+            candidateIdSet.add(exportedDevice.getId());
+            for (final UnitConfig unitConfig : exportedDevice.mappings.keySet()) {
+                candidateIdSet.add(unitConfig.getId());
+            }
+        }
+
+        final List<UnitConfig> candidateList = new ArrayList<>();
+        for (final String unitId : candidateIdSet) {
+            final UnitConfig unitConfig = unitConfigMap.get(unitId);
+            if (unitConfig != null) {
+                candidateList.add(unitConfig);
+            }
+        }
+        final Map<String, ExportedDevice> resolvedDeviceMap = resolveExportedDevices(candidateList, changedIdSet);
+
+        // replace the removed exports, devices exported before keep their position
+        for (final String exportId : previousExportIdSet) {
+            if (!resolvedDeviceMap.containsKey(exportId)) {
+                exportedDeviceMap.remove(exportId);
+                removedDeviceIdSet.add(exportId);
+            }
+        }
+        for (final ExportedDevice exportedDevice : resolvedDeviceMap.values()) {
+            exportedDeviceMap.put(exportedDevice.getId(), exportedDevice);
+            register(exportedDevice);
+        }
+        return resolvedDeviceMap.keySet();
+    }
+
+    /**
+     * Add the ids of all units whose export depends on the host relation of the given unit.
+     */
+    private static void addHostDependencies(final UnitConfig unitConfig, final Map<String, UnitConfig> unitConfigMap, final Set<String> affectedIdSet) {
+        if (unitConfig == null) {
+            return;
+        }
+
+        if (unitConfig.getUnitType() == UnitType.DEVICE) {
+            affectedIdSet.addAll(unitConfig.getDeviceConfig().getUnitIdList());
+        }
+
+        if (!unitConfig.getUnitHostId().isEmpty()) {
+            affectedIdSet.add(unitConfig.getUnitHostId());
+            final UnitConfig hostUnitConfig = unitConfigMap.get(unitConfig.getUnitHostId());
+            if (hostUnitConfig != null && hostUnitConfig.getUnitType() == UnitType.DEVICE) {
+                affectedIdSet.addAll(hostUnitConfig.getDeviceConfig().getUnitIdList());
+            }
+        }
+    }
+
+    private void register(final ExportedDevice exportedDevice) {
+        exportIdMap.put(exportedDevice.getId(), exportedDevice.getId());
+        for (final UnitConfig unitConfig : exportedDevice.mappings.keySet()) {
+            exportIdMap.put(unitConfig.getId(), exportedDevice.getId());
+        }
+        for (final String dependencyId : exportedDevice.dependencyIdSet) {
+            dependentExportMap.computeIfAbsent(dependencyId, key -> new HashSet<>()).add(exportedDevice.getId());
+        }
+    }
+
+    private void unregister(final ExportedDevice exportedDevice) {
+        exportIdMap.remove(exportedDevice.getId(), exportedDevice.getId());
+        for (final UnitConfig unitConfig : exportedDevice.mappings.keySet()) {
+            exportIdMap.remove(unitConfig.getId(), exportedDevice.getId());
+        }
+        for (final String dependencyId : exportedDevice.dependencyIdSet) {
+            final Set<String> dependentExportIdSet = dependentExportMap.get(dependencyId);
+            if (dependentExportIdSet != null) {
+                dependentExportIdSet.remove(exportedDevice.getId());
+                if (dependentExportIdSet.isEmpty()) {
+                    dependentExportMap.remove(dependencyId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decide which of the given units are exported as Google devices.
+     * <p>
+     * If a unit config is bound to and hosted by a device and this device hosts more than one unit with the same label
+     * which are all bound to it, they are exported as one device. Unit groups are exported based on the unit type of their
+     * group configuration and all other units are exported on their own.
+     * Units which are still part of a device exported before are skipped, so the hosting device of a unit has to be
+     * part of the candidates whenever the unit could be exported differently.
+     *
+     * @param candidateList the units to resolve.
+     * @param changedIdSet  ids of unit configs changed since the last update used to only print warnings once.
+     *
+     * @return the exported devices by their ids.
+     */
+    private Map<String, ExportedDevice> resolveExportedDevices(final List<UnitConfig> candidateList, final Set<String> changedIdSet) {
+        final Map<String, ExportedDevice> exportedDeviceMap = new LinkedHashMap<>();
+        final Set<String> handledUnitIdSet = new HashSet<>();
+
+        for (final UnitConfig deviceUnitConfig : candidateList) {
+            // ignore disabled devices and devices hosting only one unit
+            if (deviceUnitConfig.getUnitType() != UnitType.DEVICE
+                    || deviceUnitConfig.getEnablingState().getValue() == State.DISABLED
+                    || deviceUnitConfig.getDeviceConfig().getUnitIdCount() < 2) {
+                continue;
+            }
+
+            final Map<UnitConfig, UnitTypeMapping> unitConfigTypeMapping = new LinkedHashMap<>();
+            for (final String hostedUnitId : deviceUnitConfig.getDeviceConfig().getUnitIdList()) {
+                final UnitConfig hostedUnit = unitConfigMap.get(hostedUnitId);
+                if (hostedUnit == null || !hostedUnit.getBoundToUnitHost() || !hostedUnit.getLabel().equals(deviceUnitConfig.getLabel())) {
+                    continue;
+                }
+
+                try {
+                    unitConfigTypeMapping.put(hostedUnit, UnitTypeMapping.getByUnitType(hostedUnit.getUnitType()));
+                } catch (NotAvailableException ex) {
+                    warn(changedIdSet, hostedUnit, "Skip unit[" + hostedUnit.getAlias(0) + "]: " + ex.getMessage());
+                    // unit does not need to be handled later because no type mapping exists
+                    handledUnitIdSet.add(hostedUnit.getId());
+                }
+            }
+
+            // test if there are at least to units hosted by this devices which are bound and have the same label
+            if (unitConfigTypeMapping.size() > 1) {
+                if (!hasTraits(unitConfigTypeMapping)) {
+                    warn(changedIdSet, deviceUnitConfig, "Skip device[" + deviceUnitConfig.getAlias(0) + "]: Traits not available");
+                    continue;
+                }
+                exportedDeviceMap.put(deviceUnitConfig.getId(), new ExportedDevice(deviceUnitConfig, unitConfigTypeMapping));
+                for (final UnitConfig unitConfig : unitConfigTypeMapping.keySet()) {
+                    handledUnitIdSet.add(unitConfig.getId());
+                }
+            }
+        }
+
+        // register unit groups separately because they depend on the unit type of their group configuration
+        for (final UnitConfig unitGroup : candidateList) {
+            // ignore disabled groups
+            if (unitGroup.getUnitType() != UnitType.UNIT_GROUP || unitGroup.getEnablingState().getValue() == State.DISABLED) {
+                continue;
+            }
+
+            final UnitType unitType = unitGroup.getUnitGroupConfig().getUnitType();
+            if (unitType == UnitType.UNKNOWN) {
+                //TODO: this could possibly be handled by a mapping of services to traits and choosing a random device
+                warn(changedIdSet, unitGroup, "Skip unit group[" + unitGroup.getAlias(0) + "] because unit type is unknown");
+                continue;
+            }
+
+            try {
+                exportUnit(exportedDeviceMap, unitGroup, UnitTypeMapping.getByUnitType(unitType), changedIdSet);
+            } catch (NotAvailableException ex) {
+                warn(changedIdSet, unitGroup, "Skip unit group[" + unitGroup.getAlias(0) + "]: " + ex.getMessage());
+            }
+        }
+
+        for (final UnitConfig unitConfig : candidateList) {
+            // ignore disabled units
+            if (unitConfig.getEnablingState().getValue() == State.DISABLED) {
+                continue;
+            }
+
+            switch (unitConfig.getUnitType()) {
+                case LOCATION:
+                case DEVICE:
+                case GATEWAY:
+                case USER:
+                case AUTHORIZATION_GROUP:
+                case OBJECT:
+                case UNIT_GROUP:
+                    // skip locations, devices, user ...
+                    // skip unit groups because they are handled above
+                    continue;
+            }
+
+            if (handledUnitIdSet.contains(unitConfig.getId()) || exportIdMap.containsKey(unitConfig.getId())) {
+                // unit already handled by device routine above or still part of a device exported before
+                continue;
+            }
+
+            try {
+                exportUnit(exportedDeviceMap, unitConfig, UnitTypeMapping.getByUnitType(unitConfig.getUnitType()), changedIdSet);
+            } catch (NotAvailableException ex) {
+                warn(changedIdSet, unitConfig, "Skip unit[" + UnitConfigProcessor.getDefaultAlias(unitConfig, "?") + "]: " + ex.getMessage());
+            }
+        }
+        return exportedDeviceMap;
+    }
+
+    private void exportUnit(final Map<String, ExportedDevice> exportedDeviceMap, final UnitConfig unitConfig, final UnitTypeMapping unitTypeMapping, final Set<String> changedIdSet) {
+        final Map<UnitConfig, UnitTypeMapping> unitConfigTypeMapping = new LinkedHashMap<>();
+        unitConfigTypeMapping.put(unitConfig, unitTypeMapping);
+        if (!hasTraits(unitConfigTypeMapping)) {
+            warn(changedIdSet, unitConfig, "Skip unit[" + UnitConfigProcessor.getDefaultAlias(unitConfig, "?") + "]: Traits not available");
+            return;
+        }
+        exportedDeviceMap.put(unitConfig.getId(), new ExportedDevice(unitConfig, unitConfigTypeMapping));
+    }
+
+    /**
+     * Print a warning only if the concerned unit changed to prevent printing the same warning on every registry update.
+     */
+    private void warn(final Set<String> changedIdSet, final UnitConfig unitConfig, final String message) {
+        if (changedIdSet.contains(unitConfig.getId())) {
+            LOGGER.warn(message);
+        } else {
+            LOGGER.debug(message);
+        }
+    }
+
+    private static boolean hasTraits(final Map<UnitConfig, UnitTypeMapping> mappings) {
+        for (final UnitTypeMapping unitTypeMapping : mappings.values()) {
+            for (final Trait trait : unitTypeMapping.getTraitSet()) {
+                switch (trait) {
+                    case MODES:
+                    case TOGGLES:
+                        continue;
+                    default:
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unit or group of units exported as a single Google device.
+     */
+    private class ExportedDevice {
+
+        private final UnitConfig host;
+        private final Map<UnitConfig, UnitTypeMapping> mappings;
+        private final Set<String> dependencyIdSet;
+
+        private ExportedDevice(final UnitConfig host, final Map<UnitConfig, UnitTypeMapping> mappings) {
+            this.host = host;
+            this.mappings = mappings;
+
+            // the serialized device depends on the host, all mapped units and the location used as room hint
+            this.dependencyIdSet = new HashSet<>();
+            dependencyIdSet.add(host.getId());
+            for (final UnitConfig unitConfig : mappings.keySet()) {
+                dependencyIdSet.add(unitConfig.getId());
+            }
+            dependencyIdSet.addAll(roomIndex.getRoomDependencies(host));
+        }
+
+        private String getId() {
+            return host.getId();
+        }
+
+        private JsonObject serialize(final Locale locale) throws CouldNotPerformException {
+            final JsonObject device = new JsonObject();
+
+            device.addProperty(ID_KEY, host.getId());
+            device.addProperty("willReportState", true); // states are reported by the DeviceStateReporter
+
+            // always register units at a tile so that they will respond to that when queried like this by google
+            device.addProperty("roomHint", roomIndex.getRoomName(host, locale));
+
+            final JsonObject name = new JsonObject();
+            final String mainName = StringProcessor.insertSpaceBetweenPascalCase(LabelProcessor.getBestMatch(locale, host.getLabel()));
+            name.addProperty("name", mainName);
+            final JsonArray defaultNames = new JsonArray();
+            for (final String alias : host.getAliasList()) {
+                defaultNames.add(StringProcessor.insertSpaceBetweenPascalCase(alias.replace("-", " ")));
+            }
+            name.add("defaultNames", defaultNames);
+
+            //TODO: remove this if case
+            if (!mainName.equalsIgnoreCase("leselampe")) {
+                final JsonArray nickNames = new JsonArray();
+                for (final Label.MapFieldEntry mapFieldEntry : host.getLabel().getEntryList()) {
+                    for (final String label : mapFieldEntry.getValueList()) {
+                        final String nickName = StringProcessor.insertSpaceBetweenPascalCase(label);
+                        if (nickName.equals(mainName)) {
+                            continue;
+                        }
+
+                        nickNames.add(StringProcessor.insertSpaceBetweenPascalCase(label));
+                    }
+                }
+                if (nickNames.size() != 0) {
+                    name.add("nicknames", nickNames);
+                }
+            }
+            device.add(NAME_KEY, name);
+
+            //TODO: can this be solved differently
+            // use the first unit type mapping to resolve the device type
+            device.addProperty(TYPE_KEY, mappings.values().iterator().next().getDeviceType().getRepresentation());
+
+            final JsonObject attributes = new JsonObject();
+            final JsonArray traits = new JsonArray();
+            for (final Entry<UnitConfig, UnitTypeMapping> entry : mappings.entrySet()) {
+                for (final Trait trait : entry.getValue().getTraitSet()) {
+                    switch (trait) {
+                        case MODES:
+                        case TOGGLES:
+                            // skip modes and toggles trait because they are currently not really supported by google
+                            continue;
+                    }
+                    final ServiceType serviceType = entry.getValue().getServiceType(trait);
+                    traits.add(trait.getRepresentation());
+                    try {
+                        ServiceStateTraitMapperFactory.getInstance().getServiceStateMapper(serviceType, trait).addAttributes(entry.getKey(), attributes);
+                    } catch (CouldNotPerformException ex) {
+                        LOGGER.warn("Skip trait[" + trait.name() + "] serviceType[" + serviceType.name() + "]: " + ex.getMessage());
+                    }
+                }
+            }
+            device.add(TRAITS_KEY, traits);
+            device.add("attributes", attributes);
+
+            final JsonObject deviceInfo = new JsonObject();
+            //TODO: missing: model, hwVersion, swVersion
+            device.add("deviceInfo", deviceInfo);
+
+            //TODO: custom data missing
+            return device;
+        }
+    }
+
+    /**
+     * Serialized devices in one language.
+     */
+    private class LanguageProjection {
+
+        private final Locale locale;
+        private final Map<String, JsonObject> deviceMap;
+        private JsonArray devices;
+        private long revision;
+
+        private LanguageProjection(final Locale locale) {
+            this.locale = locale;
+            this.deviceMap = new LinkedHashMap<>();
+            this.revision = 0;
+        }
+
+        /**
+         * Serialize the given devices again and reuse the previous serialization of all others.
+         * The revision is only increased if the resulting device list differs.
+         *
+         * @param dirtyDeviceIdSet   the ids of the devices to serialize again.
+         * @param removedDeviceIdSet the ids of the devices which are not exported anymore.
+         */
+        private void update(final Set<String> dirtyDeviceIdSet, final Set<String> removedDeviceIdSet) {
+            boolean changed = false;
+            for (final String deviceId : removedDeviceIdSet) {
+                changed |= deviceMap.remove(deviceId) != null;
+            }
+            for (final String deviceId : dirtyDeviceIdSet) {
+                final ExportedDevice exportedDevice = exportedDeviceMap.get(deviceId);
+                final JsonObject device;
+                try {
+                    device = exportedDevice.serialize(locale);
+                } catch (CouldNotPerformException ex) {
+                    LOGGER.warn("Skip device[" + exportedDevice.host.getAlias(0) + "]: " + ex.getMessage());
+                    changed |= deviceMap.remove(deviceId) != null;
+                    continue;
+                }
+                changed |= !device.equals(deviceMap.put(deviceId, device));
+            }
+
+            if (changed) {
+                revision++;
+                devices = null;
+            }
+        }
+
+        /**
+         * @return the device list of the current revision which is only assembled once per revision.
+         */
+        private JsonArray getDevices() {
+            if (devices == null) {
+                devices = new JsonArray();
+                for (final JsonObject device : deviceMap.values()) {
+                    devices.add(device);
+                }
+            }
+            return devices;
+        }
+    }
+
+    /**
+     * View of the model for a single user. Two projections are equal if the user would receive the same sync response.
+     */
+    public static class UserProjection {
+
+        private final String language;
+        private final String agentUserId;
+        private final long revision;
+
+        private UserProjection(final String language, final String agentUserId, final long revision) {
+            this.language = language;
+            this.agentUserId = agentUserId;
+            this.revision = revision;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        public String getAgentUserId() {
+            return agentUserId;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof UserProjection)) {
+                return false;
+            }
+            final UserProjection that = (UserProjection) object;
+            return revision == that.revision && language.equals(that.language) && agentUserId.equals(that.agentUserId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(language, agentUserId, revision);
+        }
+    }
+}
@@ -23,58 +23,108 @@ package org.openbase.bco.app.cloudconnector.mapping.service;
  */
 
 import org.openbase.bco.app.cloudconnector.mapping.lib.Trait;
+import org.openbase.bco.app.cloudconnector.mapping.unit.UnitTypeMapping;
 import org.openbase.bco.registry.remote.Registries;
 import org.openbase.jul.exception.CouldNotPerformException;
-import org.openbase.jul.processing.StringProcessor;
+import org.openbase.jul.exception.MultiException;
+import org.openbase.jul.exception.MultiException.ExceptionStack;
+import org.openbase.jul.exception.NotAvailableException;
 import org.openbase.type.domotic.service.ServiceCommunicationTypeType.ServiceCommunicationType.CommunicationType;
 import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
+import java.util.Map.Entry;
 
 /**
+ * Registry of all service state trait mappers.
+ * <p>
+ * Mappers are registered per combination of communication type and trait. Because the communication type of a service
+ * type is defined by the template registry, the mapper of a combination of service type and trait is resolved once and
+ * cached afterwards. Reading cached mappers is lock-free. Call {@link #init()} on startup to resolve and validate the
+ * mappers of all combinations defined by the {@link UnitTypeMapping}.
+ *
  * @author <a href="mailto:pleminoq@openbase.org">Tamino Huxohl</a>
  */
 public class ServiceStateTraitMapperFactory {
 
-    private static final String MAPPER_CLASS_NAME_ENDING = "Mapper";
+    private static final ServiceStateTraitMapperFactory INSTANCE = new ServiceStateTraitMapperFactory();
 
-    private static ServiceStateTraitMapperFactory instance;
-
-    public static synchronized ServiceStateTraitMapperFactory getInstance() {
-        if (instance == null) {
-            instance = new ServiceStateTraitMapperFactory();
-        }
-        return instance;
+    public static ServiceStateTraitMapperFactory getInstance() {
+        return INSTANCE;
     }
 
-    private final Map<String, ServiceStateTraitMapper> mapperMap;
+    private final Map<CommunicationType, Map<Trait, ServiceStateTraitMapper>> communicationTypeMapperMap;
+    private volatile Map<ServiceType, Map<Trait, ServiceStateTraitMapper>> serviceTypeMapperMap;
 
     private ServiceStateTraitMapperFactory() {
-        this.mapperMap = new HashMap<>();
+        this.communicationTypeMapperMap = new EnumMap<>(CommunicationType.class);
+        this.serviceTypeMapperMap = new EnumMap<>(ServiceType.class);
+
+        register(CommunicationType.ACTIVATION_STATE, Trait.SCENE, new ActivationStateSceneMapper());
+        register(CommunicationType.BATTERY_STATE, Trait.MODES, new BatteryStateModesMapper());
+        register(CommunicationType.BLIND_STATE, Trait.MODES, new BlindStateModesMapper());
+        register(CommunicationType.BRIGHTNESS_STATE, Trait.BRIGHTNESS, new BrightnessStateBrightnessMapper());
+        register(CommunicationType.BUTTON_STATE, Trait.MODES, new ButtonStateModesMapper());
+        register(CommunicationType.COLOR_STATE, Trait.COLOR_SETTING, new ColorStateColorSettingMapper());
+        register(CommunicationType.COLOR_STATE, Trait.COLOR_SPECTRUM, new ColorStateColorSpectrumMapper());
+        register(CommunicationType.COLOR_STATE, Trait.COLOR_TEMPERATURE, new ColorStateColorTemperatureMapper());
+        register(CommunicationType.EMPHASIS_STATE, Trait.MODES, new EmphasisStateModesMapper());
+        register(CommunicationType.MOTION_STATE, Trait.TOGGLES, new MotionStateTogglesMapper());
+        register(CommunicationType.POWER_CONSUMPTION_STATE, Trait.MODES, new PowerConsumptionStateModesMapper());
+        register(CommunicationType.POWER_STATE, Trait.ON_OFF, new PowerStateOnOffMapper());
+        register(CommunicationType.STANDBY_STATE, Trait.TOGGLES, new StandbyStateTogglesMapper());
+        register(CommunicationType.TEMPERATURE_STATE, Trait.TEMPERATURE_SETTING, new TemperatureStateTemperatureSettingMapper());
     }
 
-    public ServiceStateTraitMapper getServiceStateMapper(final ServiceType serviceType, final Trait trait) throws CouldNotPerformException {
-        final CommunicationType communicationType = Registries.getTemplateRegistry().getServiceTemplateByType(serviceType).getCommunicationType();
-        final String key = StringProcessor.transformUpperCaseToPascalCase(communicationType.name() + "_" + trait.name());
-        if (!mapperMap.containsKey(key)) {
-            mapperMap.put(key, loadMapper(communicationType, trait));
+    private void register(final CommunicationType communicationType, final Trait trait, final ServiceStateTraitMapper mapper) {
+        communicationTypeMapperMap.computeIfAbsent(communicationType, type -> new EnumMap<>(Trait.class)).put(trait, mapper);
+    }
+
+    /**
+     * Resolve the mappers of all combinations of service types and traits defined by the {@link UnitTypeMapping}.
+     *
+     * @throws CouldNotPerformException if the mapper of at least one combination is not available.
+     */
+    public void init() throws CouldNotPerformException {
+        ExceptionStack exceptionStack = null;
+        for (final UnitTypeMapping unitTypeMapping : UnitTypeMapping.values()) {
+            for (final Trait trait : unitTypeMapping.getTraitSet()) {
+                try {
+                    getServiceStateMapper(unitTypeMapping.getServiceType(trait), trait);
+                } catch (CouldNotPerformException ex) {
+                    exceptionStack = MultiException.push(this, ex, exceptionStack);
+                }
+            }
         }
+        MultiException.checkAndThrow(() -> "Could not resolve a mapper for every combination of service type and trait", exceptionStack);
+    }
 
-        return mapperMap.get(key);
+    public ServiceStateTraitMapper getServiceStateMapper(final ServiceType serviceType, final Trait trait) throws CouldNotPerformException {
+        final Map<Trait, ServiceStateTraitMapper> traitMapperMap = serviceTypeMapperMap.get(serviceType);
+        if (traitMapperMap != null) {
+            final ServiceStateTraitMapper mapper = traitMapperMap.get(trait);
+            if (mapper != null) {
+                return mapper;
+            }
+        }
+        return resolveMapper(serviceType, trait);
     }
 
-    private ServiceStateTraitMapper loadMapper(final CommunicationType communicationType, final Trait trait) throws CouldNotPerformException {
-        final String serviceTypeComponent = StringProcessor.transformUpperCaseToPascalCase(communicationType.name());
-        final String traitComponent = StringProcessor.transformUpperCaseToPascalCase(trait.name());
-        final String className = serviceTypeComponent + traitComponent + MAPPER_CLASS_NAME_ENDING;
-        final String fullClassName = getClass().getPackage().getName() + "." + className;
+    private synchronized ServiceStateTraitMapper resolveMapper(final ServiceType serviceType, final Trait trait) throws CouldNotPerformException {
+        final CommunicationType communicationType = Registries.getTemplateRegistry().getServiceTemplateByType(serviceType).getCommunicationType();
+        final ServiceStateTraitMapper mapper = communicationTypeMapperMap.getOrDefault(communicationType, new EnumMap<>(Trait.class)).get(trait);
+        if (mapper == null) {
+            throw new NotAvailableException("Mapper for combination of serviceType[" + serviceType.name() + "] with communicationType[" + communicationType.name() + "] and trait[" + trait.name() + "]");
+        }
 
-        try {
-            return (ServiceStateTraitMapper) getClass().getClassLoader().loadClass(fullClassName).getConstructor().newInstance();
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException | ClassNotFoundException | ClassCastException ex) {
-            throw new CouldNotPerformException("Could not load class[" + className + "] for combination of serviceType[" + communicationType.name() + "] and trait[" + trait.name() + "]");
+        // publish a copy so that readers never see a partially updated map
+        final Map<ServiceType, Map<Trait, ServiceStateTraitMapper>> newServiceTypeMapperMap = new EnumMap<>(ServiceType.class);
+        for (final Entry<ServiceType, Map<Trait, ServiceStateTraitMapper>> entry : serviceTypeMapperMap.entrySet()) {
+            newServiceTypeMapperMap.put(entry.getKey(), new EnumMap<>(entry.getValue()));
         }
+        newServiceTypeMapperMap.computeIfAbsent(serviceType, type -> new EnumMap<>(Trait.class)).put(trait, mapper);
+        serviceTypeMapperMap = newServiceTypeMapperMap;
+        return mapper;
     }
 }
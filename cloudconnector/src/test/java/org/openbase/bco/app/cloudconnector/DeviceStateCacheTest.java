@@ -0,0 +1,119 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.DEBUG_CODE_KEY;
+
+public class DeviceStateCacheTest {
+
+    private DeviceStateCache stateCache;
+    private List<String> changedDeviceIdList;
+
+    @Before
+    public void setUp() {
+        stateCache = new DeviceStateCache();
+        changedDeviceIdList = new ArrayList<>();
+        stateCache.addStateListener(changedDeviceIdList::add);
+
+        final Map<String, List<String>> deviceUnitIdMap = new HashMap<>();
+        deviceUnitIdMap.put("lamp", Arrays.asList("light", "plug"));
+        deviceUnitIdMap.put("sensor", Collections.singletonList("motion"));
+        stateCache.updateDeviceUnits(deviceUnitIdMap);
+        changedDeviceIdList.clear();
+    }
+
+    static JsonObject state(final String key, final boolean value) {
+        final JsonObject state = new JsonObject();
+        state.addProperty(key, value);
+        return state;
+    }
+
+    @Test
+    public void testDeviceStateMergesUnitStates() {
+        stateCache.updateUnitState("light", state("on", true));
+        stateCache.updateUnitState("plug", state("plugged", true));
+
+        final JsonObject deviceState = stateCache.getDeviceState("lamp");
+        assertTrue(deviceState.get("on").getAsBoolean());
+        assertTrue(deviceState.get("plugged").getAsBoolean());
+        assertTrue(deviceState.get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+        assertFalse(deviceState.has(DEBUG_CODE_KEY));
+        assertNull(stateCache.getDeviceState("unknown"));
+    }
+
+    @Test
+    public void testDeviceWithoutUnitStateIsOffline() {
+        stateCache.updateUnitState("light", state("on", true));
+
+        final JsonObject deviceState = stateCache.getDeviceState("lamp");
+        assertFalse(deviceState.get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+        assertTrue(deviceState.get(DEBUG_CODE_KEY).getAsString().contains("plug"));
+    }
+
+    @Test
+    public void testListenersAreInformedAboutChangesOnly() {
+        stateCache.updateUnitState("light", state("on", true));
+        stateCache.updateUnitState("light", state("on", true));
+        assertEquals(Collections.singletonList("lamp"), changedDeviceIdList);
+
+        stateCache.updateUnitState("light", state("on", false));
+        assertEquals(Arrays.asList("lamp", "lamp"), changedDeviceIdList);
+    }
+
+    @Test
+    public void testUpdateDeviceUnits() {
+        stateCache.updateUnitState("light", state("on", true));
+        stateCache.updateUnitState("motion", state("motion", true));
+        changedDeviceIdList.clear();
+
+        // only devices composed of different units change, units not exported anymore are dropped
+        final Map<String, List<String>> deviceUnitIdMap = new HashMap<>();
+        deviceUnitIdMap.put("lamp", Collections.singletonList("light"));
+        deviceUnitIdMap.put("sensor", Collections.singletonList("motion"));
+        stateCache.updateDeviceUnits(deviceUnitIdMap);
+        assertEquals(Collections.singletonList("lamp"), changedDeviceIdList);
+        assertTrue(stateCache.getDeviceState("lamp").get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+
+        stateCache.updateDeviceUnits(Collections.singletonMap("lamp", Collections.singletonList("light")));
+        assertNull(stateCache.getDeviceState("sensor"));
+
+        // the state of a unit exported again has to be provided again
+        stateCache.updateDeviceUnits(deviceUnitIdMap);
+        assertFalse(stateCache.getDeviceState("sensor").get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+    }
+}
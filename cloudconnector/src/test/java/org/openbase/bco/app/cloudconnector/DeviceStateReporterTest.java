@@ -0,0 +1,193 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.openbase.bco.app.cloudconnector.DeviceStateCacheTest.state;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.DEBUG_CODE_KEY;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.DEVICES_KEY;
+
+public class DeviceStateReporterTest {
+
+    private static final long BATCH_WINDOW = 50;
+    private static final long MIN_REPORT_INTERVAL = 400;
+    private static final long MAX_RETRY_DELAY = 800;
+    private static final long TIMEOUT = 5000;
+
+    private DeviceStateCache stateCache;
+    private DeviceStateReporter reporter;
+    private BlockingQueue<Long> reportTimeQueue;
+    private BlockingQueue<JsonObject> reportQueue;
+    private BlockingQueue<Boolean> acceptQueue;
+
+    @Before
+    public void setUp() {
+        stateCache = new DeviceStateCache();
+        final Map<String, List<String>> deviceUnitIdMap = new HashMap<>();
+        deviceUnitIdMap.put("lamp", Collections.singletonList("light"));
+        deviceUnitIdMap.put("sensor", Arrays.asList("motion", "battery"));
+        stateCache.updateDeviceUnits(deviceUnitIdMap);
+        stateCache.updateUnitState("light", state("on", true));
+        stateCache.updateUnitState("motion", state("occupied", false));
+
+        reportTimeQueue = new LinkedBlockingQueue<>();
+        reportQueue = new LinkedBlockingQueue<>();
+        acceptQueue = new LinkedBlockingQueue<>();
+        reporter = new DeviceStateReporter(this::sendReport, stateCache, BATCH_WINDOW, MIN_REPORT_INTERVAL, MAX_RETRY_DELAY);
+    }
+
+    @After
+    public void tearDown() {
+        reporter.deactivate();
+    }
+
+    /**
+     * Records the report and accepts it unless a rejection was queued.
+     */
+    private CompletableFuture<Void> sendReport(final JsonObject payload) {
+        reportTimeQueue.add(System.currentTimeMillis());
+        reportQueue.add(payload);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (Boolean.FALSE.equals(acceptQueue.poll())) {
+            future.completeExceptionally(new IOException("Report rejected"));
+        } else {
+            future.complete(null);
+        }
+        return future;
+    }
+
+    private JsonObject nextReportedStates() throws InterruptedException {
+        final JsonObject payload = reportQueue.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("No state reported", payload);
+        return payload.getAsJsonObject(DEVICES_KEY).getAsJsonObject(DeviceStateReporter.STATES_KEY);
+    }
+
+    private long nextReportTime() throws InterruptedException {
+        final Long reportTime = reportTimeQueue.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("No state reported", reportTime);
+        return reportTime;
+    }
+
+    @Test(timeout = 10000)
+    public void testInitialReport() throws Exception {
+        reporter.activate();
+
+        // all devices are reported with their complete state in one report
+        final JsonObject states = nextReportedStates();
+        assertEquals(2, states.entrySet().size());
+        assertTrue(states.getAsJsonObject("lamp").get("on").getAsBoolean());
+        assertTrue(states.getAsJsonObject("lamp").get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+        assertFalse(states.getAsJsonObject("sensor").get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+        assertFalse(states.getAsJsonObject("sensor").has(DEBUG_CODE_KEY));
+    }
+
+    @Test(timeout = 10000)
+    public void testDeltaBatching() throws Exception {
+        reporter.activate();
+        nextReportedStates();
+        Thread.sleep(MIN_REPORT_INTERVAL);
+
+        // changes within the batch window are reported together and only contain the changed values
+        stateCache.updateUnitState("light", state("on", false));
+        stateCache.updateUnitState("battery", state("low", true));
+        final JsonObject states = nextReportedStates();
+        assertEquals(2, states.entrySet().size());
+        assertEquals(state("on", false), states.getAsJsonObject("lamp"));
+        assertTrue(states.getAsJsonObject("sensor").get("low").getAsBoolean());
+        assertTrue(states.getAsJsonObject("sensor").get(DeviceStateCache.ONLINE_KEY).getAsBoolean());
+        assertFalse(states.getAsJsonObject("sensor").has("occupied"));
+    }
+
+    @Test(timeout = 10000)
+    public void testRateLimit() throws Exception {
+        reporter.activate();
+        nextReportedStates();
+        final long firstReportTime = nextReportTime();
+
+        // changes of a device reported too recently are coalesced into the next report
+        stateCache.updateUnitState("light", state("on", false));
+        Thread.sleep(BATCH_WINDOW * 2);
+        stateCache.updateUnitState("light", state("on", true));
+        Thread.sleep(BATCH_WINDOW * 2);
+        stateCache.updateUnitState("light", state("on", false));
+
+        assertEquals(state("on", false), nextReportedStates().getAsJsonObject("lamp"));
+        assertTrue(nextReportTime() - firstReportTime >= MIN_REPORT_INTERVAL);
+        assertNull(reportQueue.poll(MIN_REPORT_INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedReportIsRetried() throws Exception {
+        acceptQueue.add(false);
+        reporter.activate();
+        nextReportedStates();
+        final long failedReportTime = nextReportTime();
+
+        // the devices of a failed report are reported again with their complete state without any further change
+        final JsonObject states = nextReportedStates();
+        assertEquals(2, states.entrySet().size());
+        assertTrue(states.getAsJsonObject("lamp").get("on").getAsBoolean());
+        assertTrue(nextReportTime() - failedReportTime >= MIN_REPORT_INTERVAL);
+
+        // the retry was accepted, so further reports only contain changes
+        Thread.sleep(MIN_REPORT_INTERVAL);
+        stateCache.updateUnitState("light", state("on", false));
+        assertEquals(state("on", false), nextReportedStates().getAsJsonObject("lamp"));
+    }
+
+    @Test(timeout = 10000)
+    public void testRetryBackoff() throws Exception {
+        acceptQueue.addAll(Arrays.asList(false, false, false));
+        reporter.activate();
+        nextReportedStates();
+        long previousReportTime = nextReportTime();
+
+        // each consecutive failure doubles the delay up to the maximal retry delay
+        for (final long expectedDelay : new long[]{MIN_REPORT_INTERVAL, 2 * MIN_REPORT_INTERVAL, MAX_RETRY_DELAY}) {
+            nextReportedStates();
+            final long reportTime = nextReportTime();
+            assertTrue(reportTime - previousReportTime >= expectedDelay);
+            previousReportTime = reportTime;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbase.bco.app.cloudconnector.ExecutionPlanner.ExecutionStep;
+import org.openbase.bco.app.cloudconnector.ExecutionPlanner.UnitConfigSource;
+import org.openbase.bco.app.cloudconnector.mapping.lib.Command;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServicePattern;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.EnablingStateType.EnablingState.State;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.COMMAND_KEY;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.PARAMS_KEY;
+
+public class ExecutionPlannerTest {
+
+    static final String ROOT_ID = "root";
+    static final String ROOM_ID = "room";
+    static final String GROUP_ID = "group";
+
+    private Map<String, UnitConfig> unitConfigMap;
+
+    /**
+     * Create an execution turning units on or off.
+     *
+     * @param on the requested power state.
+     *
+     * @return the execution as sent by Google.
+     */
+    static JsonObject onOff(final boolean on) {
+        final JsonObject params = new JsonObject();
+        params.addProperty("on", on);
+        final JsonObject execution = new JsonObject();
+        execution.addProperty(COMMAND_KEY, Command.ON_OFF.getRepresentation());
+        execution.add(PARAMS_KEY, params);
+        return execution;
+    }
+
+    /**
+     * Create a registry containing a root location with a room containing the lights l1, l2 and l3
+     * and a unit group containing l1 and l2.
+     *
+     * @return the configs of all units by their id.
+     */
+    static Map<String, UnitConfig> createUnitConfigMap() {
+        final Map<String, UnitConfig> unitConfigMap = new HashMap<>();
+
+        final UnitConfig.Builder root = createUnitConfig(ROOT_ID, UnitType.LOCATION, "");
+        root.getLocationConfigBuilder().setRoot(true).addChildId(ROOM_ID);
+        unitConfigMap.put(ROOT_ID, root.build());
+
+        final UnitConfig.Builder room = createUnitConfig(ROOM_ID, UnitType.LOCATION, ROOT_ID);
+        room.getLocationConfigBuilder().addAllUnitId(Arrays.asList("l1", "l2", "l3"));
+        addPowerOperation(room);
+        unitConfigMap.put(ROOM_ID, room.build());
+
+        for (final String lightId : Arrays.asList("l1", "l2", "l3")) {
+            final UnitConfig.Builder light = createUnitConfig(lightId, UnitType.LIGHT, ROOM_ID);
+            addPowerOperation(light);
+            unitConfigMap.put(lightId, light.build());
+        }
+
+        final UnitConfig.Builder group = createUnitConfig(GROUP_ID, UnitType.UNIT_GROUP, ROOM_ID);
+        group.getUnitGroupConfigBuilder().addAllMemberId(Arrays.asList("l1", "l2")).addServiceDescriptionBuilder()
+                .setServiceType(ServiceType.POWER_STATE_SERVICE).setPattern(ServicePattern.OPERATION);
+        unitConfigMap.put(GROUP_ID, group.build());
+        return unitConfigMap;
+    }
+
+    static ExecutionPlanner createPlanner(final Map<String, UnitConfig> unitConfigMap) {
+        return new ExecutionPlanner(new UnitConfigSource() {
+            @Override
+            public UnitConfig getUnitConfigById(final String unitId) throws CouldNotPerformException {
+                if (!unitConfigMap.containsKey(unitId)) {
+                    throw new NotAvailableException("UnitConfig[" + unitId + "]");
+                }
+                return unitConfigMap.get(unitId);
+            }
+
+            @Override
+            public List<UnitConfig> getUnitConfigsByUnitType(final UnitType unitType) {
+                final List<UnitConfig> unitConfigList = new ArrayList<>();
+                for (final UnitConfig unitConfig : unitConfigMap.values()) {
+                    if (unitConfig.getUnitType() == unitType) {
+                        unitConfigList.add(unitConfig);
+                    }
+                }
+                return unitConfigList;
+            }
+        });
+    }
+
+    private static UnitConfig.Builder createUnitConfig(final String id, final UnitType unitType, final String locationId) {
+        final UnitConfig.Builder unitConfig = UnitConfig.newBuilder().setId(id).setUnitType(unitType).addAlias(id);
+        unitConfig.getEnablingStateBuilder().setValue(State.ENABLED);
+        unitConfig.getPlacementConfigBuilder().setLocationId(locationId);
+        return unitConfig;
+    }
+
+    private static void addPowerOperation(final UnitConfig.Builder unitConfig) {
+        unitConfig.addServiceConfigBuilder().getServiceDescriptionBuilder()
+                .setServiceType(ServiceType.POWER_STATE_SERVICE).setPattern(ServicePattern.OPERATION);
+    }
+
+    @Before
+    public void setUp() {
+        unitConfigMap = createUnitConfigMap();
+    }
+
+    private List<ExecutionStep> plan(final JsonObject execution, final String... unitIds) {
+        final ExecutionPlanner planner = createPlanner(unitConfigMap);
+        for (final String unitId : unitIds) {
+            planner.add("device-" + unitId, unitConfigMap.get(unitId), Collections.singletonList(execution));
+        }
+        return planner.plan();
+    }
+
+    @Test
+    public void testAggregateByLocation() {
+        final List<ExecutionStep> stepList = plan(onOff(true), "l1", "l2", "l3");
+
+        // the room affects all lights and is preferred over the group affecting only two of them
+        assertEquals(1, stepList.size());
+        final ExecutionStep step = stepList.get(0);
+        assertTrue(step.isAggregated());
+        assertEquals(ROOM_ID, step.getUnitConfig().getId());
+        assertEquals(ServiceType.POWER_STATE_SERVICE, step.getServiceType());
+        assertEquals(new HashSet<>(Arrays.asList("device-l1", "device-l2", "device-l3")), step.getDeviceIdSet());
+        assertEquals(3, step.getFallbackStepList().size());
+        for (final ExecutionStep fallbackStep : step.getFallbackStepList()) {
+            assertFalse(fallbackStep.isAggregated());
+        }
+    }
+
+    @Test
+    public void testAggregateOnlyContainedUnits() {
+        final List<ExecutionStep> stepList = plan(onOff(true), "l1", "l2");
+
+        // the room would also switch l3, so only the group containing exactly the commanded lights is used
+        assertEquals(1, stepList.size());
+        assertTrue(stepList.get(0).isAggregated());
+        assertEquals(GROUP_ID, stepList.get(0).getUnitConfig().getId());
+        assertEquals(new HashSet<>(Arrays.asList("device-l1", "device-l2")), stepList.get(0).getDeviceIdSet());
+    }
+
+    @Test
+    public void testMinAggregationSize() {
+        final List<ExecutionStep> stepList = plan(onOff(true), "l3");
+
+        assertEquals(1, stepList.size());
+        assertFalse(stepList.get(0).isAggregated());
+        assertEquals("l3", stepList.get(0).getUnitConfig().getId());
+        assertTrue(stepList.get(0).getFallbackStepList().isEmpty());
+    }
+
+    @Test
+    public void testDifferentExecutionsNotAggregated() {
+        final ExecutionPlanner planner = createPlanner(unitConfigMap);
+        planner.add("device-l1", unitConfigMap.get("l1"), Collections.singletonList(onOff(true)));
+        planner.add("device-l2", unitConfigMap.get("l2"), Collections.singletonList(onOff(false)));
+        // multiple executions for a unit are never aggregated
+        planner.add("device-l3", unitConfigMap.get("l3"), Arrays.asList(onOff(true), onOff(false)));
+
+        final List<ExecutionStep> stepList = planner.plan();
+        assertEquals(3, stepList.size());
+        for (final ExecutionStep step : stepList) {
+            assertFalse(step.isAggregated());
+        }
+    }
+
+    @Test
+    public void testDisabledMemberNotAffected() {
+        // a disabled light is not affected by the room, so the remaining lights are switched by the room
+        unitConfigMap.put("l3", unitConfigMap.get("l3").toBuilder().setEnablingState(unitConfigMap.get("l3").getEnablingState().toBuilder().setValue(State.DISABLED)).build());
+
+        final List<ExecutionStep> stepList = plan(onOff(true), "l1", "l2");
+        assertEquals(1, stepList.size());
+        assertTrue(stepList.get(0).isAggregated());
+        assertEquals(new HashSet<>(Arrays.asList("device-l1", "device-l2")), stepList.get(0).getDeviceIdSet());
+    }
+}
@@ -0,0 +1,197 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbase.bco.app.cloudconnector.ExecutionPlanner.ExecutionStep;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.PermissionDeniedException;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openbase.bco.app.cloudconnector.FulfillmentHandler.*;
+
+public class FulfillmentHandlerTest {
+
+    private static final long DEADLINE = 300;
+
+    private Map<String, UnitConfig> unitConfigMap;
+    private Map<String, String> idStatusMap;
+    private List<ExecutionStep> submittedStepList;
+
+    @Before
+    public void setUp() {
+        unitConfigMap = ExecutionPlannerTest.createUnitConfigMap();
+        idStatusMap = new HashMap<>();
+        submittedStepList = new ArrayList<>();
+    }
+
+    private List<ExecutionStep> plan(final String... unitIds) {
+        final ExecutionPlanner planner = ExecutionPlannerTest.createPlanner(unitConfigMap);
+        for (final String unitId : unitIds) {
+            // use two executions per unit so that every unit is performed by its own step
+            planner.add("device-" + unitId, unitConfigMap.get(unitId), Arrays.asList(ExecutionPlannerTest.onOff(true), ExecutionPlannerTest.onOff(false)));
+            idStatusMap.put("device-" + unitId, EXECUTE_SUCCESS);
+        }
+        return planner.plan();
+    }
+
+    private List<ExecutionStep> planAggregated(final String... unitIds) {
+        final ExecutionPlanner planner = ExecutionPlannerTest.createPlanner(unitConfigMap);
+        for (final String unitId : unitIds) {
+            planner.add("device-" + unitId, unitConfigMap.get(unitId), Collections.singletonList(ExecutionPlannerTest.onOff(true)));
+            idStatusMap.put("device-" + unitId, EXECUTE_SUCCESS);
+        }
+        return planner.plan();
+    }
+
+    private Future<String> submit(final ExecutionStep step, final Future<String> future) {
+        submittedStepList.add(step);
+        return future;
+    }
+
+    private static Future<String> failed(final Exception exception) {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        future.completeExceptionally(exception);
+        return future;
+    }
+
+    @Test(timeout = 5000)
+    public void testPendingAfterDeadline() {
+        final List<ExecutionStep> stepList = plan("l1", "l2");
+
+        final long startTime = System.currentTimeMillis();
+        awaitExecutionSteps(stepList, step -> {
+            if (step.getUnitConfig().getId().equals("l1")) {
+                return submit(step, CompletableFuture.completedFuture(EXECUTE_SUCCESS));
+            }
+            // never completes
+            return submit(step, new CompletableFuture<>());
+        }, startTime + DEADLINE, idStatusMap);
+
+        assertTrue(System.currentTimeMillis() - startTime >= DEADLINE / 2);
+        assertEquals(EXECUTE_SUCCESS, idStatusMap.get("device-l1"));
+        assertEquals(EXECUTE_PENDING, idStatusMap.get("device-l2"));
+    }
+
+    @Test(timeout = 5000)
+    public void testSharedDeadline() {
+        final List<ExecutionStep> stepList = plan("l1", "l2", "l3");
+        assertEquals(3, stepList.size());
+
+        final long startTime = System.currentTimeMillis();
+        awaitExecutionSteps(stepList, step -> submit(step, new CompletableFuture<>()), startTime + DEADLINE, idStatusMap);
+
+        // all steps are awaited within one deadline instead of one timeout per step
+        final long duration = System.currentTimeMillis() - startTime;
+        assertTrue("Waited " + duration + "ms", duration < 2 * DEADLINE);
+        for (final String status : idStatusMap.values()) {
+            assertEquals(EXECUTE_PENDING, status);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testFailedSubmission() {
+        final List<ExecutionStep> stepList = plan("l1", "l2");
+
+        awaitExecutionSteps(stepList, step -> {
+            if (step.getUnitConfig().getId().equals("l1")) {
+                // the submitter reports the failure itself
+                idStatusMap.put("device-l1", EXECUTE_ERROR);
+                return null;
+            }
+            return submit(step, CompletableFuture.completedFuture(EXECUTE_SUCCESS));
+        }, System.currentTimeMillis() + DEADLINE, idStatusMap);
+
+        assertEquals(EXECUTE_ERROR, idStatusMap.get("device-l1"));
+        assertEquals(EXECUTE_SUCCESS, idStatusMap.get("device-l2"));
+    }
+
+    @Test(timeout = 5000)
+    public void testFallbackIfAggregateNotPermitted() {
+        final List<ExecutionStep> stepList = planAggregated("l1", "l2", "l3");
+        assertEquals(1, stepList.size());
+        assertTrue(stepList.get(0).isAggregated());
+
+        awaitExecutionSteps(stepList, step -> {
+            if (step.isAggregated()) {
+                return submit(step, failed(new CouldNotPerformException("Could not apply action", new PermissionDeniedException("User not permitted"))));
+            }
+            return submit(step, CompletableFuture.completedFuture(step.getUnitConfig().getId().equals("l3") ? EXECUTE_PENDING : EXECUTE_SUCCESS));
+        }, System.currentTimeMillis() + DEADLINE, idStatusMap);
+
+        // the aggregate is followed by each unit
+        assertEquals(4, submittedStepList.size());
+        assertTrue(submittedStepList.get(0).isAggregated());
+        for (final ExecutionStep step : submittedStepList.subList(1, submittedStepList.size())) {
+            assertFalse(step.isAggregated());
+        }
+        assertEquals(EXECUTE_SUCCESS, idStatusMap.get("device-l1"));
+        assertEquals(EXECUTE_SUCCESS, idStatusMap.get("device-l2"));
+        assertEquals(EXECUTE_PENDING, idStatusMap.get("device-l3"));
+    }
+
+    @Test(timeout = 5000)
+    public void testNoFallbackIfAggregateFails() {
+        final List<ExecutionStep> stepList = planAggregated("l1", "l2");
+
+        awaitExecutionSteps(stepList, step -> submit(step, failed(new CouldNotPerformException("Could not apply action"))), System.currentTimeMillis() + DEADLINE, idStatusMap);
+
+        assertEquals(1, submittedStepList.size());
+        assertEquals(EXECUTE_ERROR, idStatusMap.get("device-l1"));
+        assertEquals(EXECUTE_ERROR, idStatusMap.get("device-l2"));
+    }
+
+    @Test
+    public void testToJson() {
+        final JsonObject response = new JsonObject();
+        final JsonObject payload = new JsonObject();
+        final JsonArray devices = new JsonArray();
+        devices.add("l1");
+        payload.add(DEVICES_KEY, devices);
+        response.add(PAYLOAD_KEY, payload);
+        response.addProperty(REQUEST_ID_KEY, "1");
+
+        // output is compact
+        assertEquals("{\"payload\":{\"devices\":[\"l1\"]},\"requestId\":\"1\"}", FulfillmentHandler.toJson(response));
+
+        // the reused buffer does not leak previous responses
+        final JsonObject smaller = new JsonObject();
+        smaller.addProperty(REQUEST_ID_KEY, "2");
+        assertEquals("{\"requestId\":\"2\"}", FulfillmentHandler.toJson(smaller));
+    }
+}
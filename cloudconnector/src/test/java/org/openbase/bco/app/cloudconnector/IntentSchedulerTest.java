@@ -0,0 +1,205 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IntentSchedulerTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private static void awaitCondition(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition not reached in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return () -> {
+            try {
+                latch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    @Test(timeout = 20000)
+    public void testLimits() throws Exception {
+        final IntentScheduler scheduler = new IntentScheduler(2, 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger maxRunningOfUser = new AtomicInteger();
+        final AtomicInteger runningOfUser = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch executed = new CountDownLatch(5);
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.schedule("user", TIMEOUT, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                maxRunningOfUser.accumulateAndGet(runningOfUser.incrementAndGet(), Math::max);
+                await(release).run();
+                runningOfUser.decrementAndGet();
+                running.decrementAndGet();
+                executed.countDown();
+            }, rejected::incrementAndGet);
+        }
+        for (int i = 0; i < 2; i++) {
+            scheduler.schedule("other", TIMEOUT, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                await(release).run();
+                running.decrementAndGet();
+                executed.countDown();
+            }, rejected::incrementAndGet);
+        }
+
+        // one intent of each user runs, the remaining queue of the first user is full
+        awaitCondition(() -> scheduler.getRunningCount() == 2);
+        assertEquals(1, rejected.get());
+        assertEquals(1, scheduler.getRejectedCount());
+        assertEquals(2, scheduler.getQueueDepth("user"));
+        assertEquals(1, scheduler.getQueueDepth("other"));
+        assertEquals(3, scheduler.getQueueDepth());
+
+        release.countDown();
+        assertTrue(executed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        awaitCondition(() -> scheduler.getRunningCount() == 0);
+        assertEquals(2, maxRunning.get());
+        assertEquals(1, maxRunningOfUser.get());
+        assertEquals(5, scheduler.getExecutedCount());
+    }
+
+    @Test(timeout = 20000)
+    public void testFairness() throws Exception {
+        final IntentScheduler scheduler = new IntentScheduler(1, 1, 32);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch executed = new CountDownLatch(5);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.schedule("a", TIMEOUT, () -> {
+            order.add("a1");
+            await(release).run();
+            executed.countDown();
+        }, () -> {
+        });
+        awaitCondition(() -> scheduler.getRunningCount() == 1);
+
+        // the intent of the second user is queued after all intents of the first user but still served next
+        for (final String intent : new String[]{"a2", "a3", "a4"}) {
+            scheduler.schedule("a", TIMEOUT, () -> {
+                order.add(intent);
+                executed.countDown();
+            }, () -> {
+            });
+        }
+        scheduler.schedule("b", TIMEOUT, () -> {
+            order.add("b1");
+            executed.countDown();
+        }, () -> {
+        });
+
+        release.countDown();
+        assertTrue(executed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("a1", "b1", "a2", "a3", "a4"), order);
+    }
+
+    @Test(timeout = 20000)
+    public void testDeadlineInterruptsRunningIntent() throws Exception {
+        final IntentScheduler scheduler = new IntentScheduler(1, 1, 32);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch executed = new CountDownLatch(1);
+
+        scheduler.schedule("user", 100, () -> {
+            try {
+                Thread.sleep(TIMEOUT);
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+            }
+        }, () -> {
+        });
+        assertTrue(interrupted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        awaitCondition(() -> scheduler.getRunningCount() == 0);
+        assertEquals(1, scheduler.getExpiredCount());
+
+        // the slot is free again
+        scheduler.schedule("user", TIMEOUT, executed::countDown, () -> {
+        });
+        assertTrue(executed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 20000)
+    public void testDeadlineRejectsQueuedIntent() throws Exception {
+        final IntentScheduler scheduler = new IntentScheduler(1, 1, 32);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+
+        scheduler.schedule("user", TIMEOUT, await(release), () -> {
+        });
+        scheduler.schedule("user", 50, executed::incrementAndGet, rejected::countDown);
+        Thread.sleep(100);
+        release.countDown();
+
+        assertTrue(rejected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, executed.get());
+        assertEquals(1, scheduler.getExpiredCount());
+    }
+
+    @Test(timeout = 20000)
+    public void testSlotsAreReleasedOnDeadline() throws Exception {
+        final IntentScheduler scheduler = new IntentScheduler(2, 1, 64);
+        final CountDownLatch executed = new CountDownLatch(1);
+
+        // deadlines may be reached before, while or after the intents start, but no slot may leak
+        for (int i = 0; i < 200; i++) {
+            scheduler.schedule("user" + (i % 4), 1, () -> {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }, () -> {
+            });
+        }
+        awaitCondition(() -> scheduler.getRunningCount() == 0 && scheduler.getQueueDepth() == 0);
+
+        scheduler.schedule("user0", TIMEOUT, executed::countDown, () -> {
+        });
+        assertTrue(executed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+}
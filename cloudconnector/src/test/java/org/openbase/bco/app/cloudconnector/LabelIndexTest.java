@@ -0,0 +1,108 @@
+package org.openbase.bco.app.cloudconnector;
+
+/*-
+ * #%L
+ * BCO Cloud Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LabelIndexTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LabelIndexTest.class);
+
+    private Map<String, UnitConfig> unitConfigMap;
+    private LabelIndex labelIndex;
+
+    @Before
+    public void setUp() {
+        unitConfigMap = new HashMap<>();
+        put(createUnitConfig("kitchen", UnitType.LOCATION, "Küche", "Kitchen"));
+        put(createUnitConfig("living", UnitType.LOCATION, "Wohnzimmer", "Living Room"));
+        put(createUnitConfig("lamp", UnitType.COLORABLE_LIGHT, "Stehlampe", "Floor Lamp"));
+        labelIndex = new LabelIndex();
+        labelIndex.update(unitConfigMap, new HashSet<>(unitConfigMap.keySet()));
+    }
+
+    private void put(final UnitConfig unitConfig) {
+        unitConfigMap.put(unitConfig.getId(), unitConfig);
+    }
+
+    private static UnitConfig createUnitConfig(final String id, final UnitType unitType, final String germanLabel, final String englishLabel) {
+        final UnitConfig.Builder unitConfig = UnitConfig.newBuilder().setId(id).setUnitType(unitType).addAlias(id.toUpperCase() + "-1");
+        unitConfig.getLabelBuilder().addEntryBuilder().setKey(Locale.GERMAN.getLanguage()).addValue(germanLabel);
+        unitConfig.getLabelBuilder().addEntryBuilder().setKey(Locale.ENGLISH.getLanguage()).addValue(englishLabel);
+        return unitConfig.build();
+    }
+
+    private List<String> match(final String label) {
+        final List<String> idList = new ArrayList<>();
+        for (final UnitConfig unitConfig : labelIndex.getMatches(label, Locale.GERMAN, unit -> true)) {
+            idList.add(unitConfig.getId());
+        }
+        return idList;
+    }
+
+    @Test
+    public void testNormalize() {
+        LOGGER.info("testNormalize");
+        assertEquals("kuche", LabelIndex.normalize("  KÜCHE "));
+        assertEquals("living room", LabelIndex.normalize("Living-Room!"));
+        assertEquals("strasse", LabelIndex.normalize("Straße"));
+    }
+
+    @Test
+    public void testMatches() {
+        LOGGER.info("testMatches");
+        // exact match ignoring case and diacritics
+        assertEquals(Collections.singletonList("kitchen"), match("kuche"));
+        // matches in other languages and by alias
+        assertEquals(Collections.singletonList("living"), match("living room"));
+        assertEquals(Collections.singletonList("lamp"), match("lamp-1"));
+        // prefix match
+        assertEquals(Collections.singletonList("living"), match("wohnz"));
+        // fuzzy match
+        assertEquals(Collections.singletonList("lamp"), match("stehlampen"));
+        assertTrue(match("garage").isEmpty());
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        LOGGER.info("testIncrementalUpdate");
+        put(createUnitConfig("kitchen", UnitType.LOCATION, "Kochnische", "Kitchenette"));
+        unitConfigMap.remove("lamp");
+        labelIndex.update(unitConfigMap, new HashSet<>(Arrays.asList("kitchen", "lamp")));
+
+        assertTrue(labelIndex.getExactMatches("Küche", Locale.GERMAN, unit -> true).isEmpty());
+        assertEquals(Collections.singletonList("kitchen"), match("kochnische"));
+        assertEquals(Collections.singletonList("kitchen"), match("kochnsiche"));
+        assertTrue(match("stehlampe").isEmpty());
+    }
+}
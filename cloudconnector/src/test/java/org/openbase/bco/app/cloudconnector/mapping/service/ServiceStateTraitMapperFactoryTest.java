@@ -39,6 +39,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertSame;
 
 /**
  * @author <a href="mailto:pleminoq@openbase.org">Tamino Huxohl</a>
@@ -88,4 +89,22 @@ public class ServiceStateTraitMapperFactoryTest {
         assertEquals("Could not create every needed mapping", 0, mapperExceptionMap.size());
     }
 
+    /**
+     * Test if the startup validation succeeds and resolves the same mappers as a lookup.
+     */
+    @Test
+    public void testInit() throws Exception {
+        LOGGER.info("testInit");
+
+        final ServiceStateTraitMapperFactory serviceStateTraitMapperFactory = ServiceStateTraitMapperFactory.getInstance();
+        serviceStateTraitMapperFactory.init();
+
+        for (final UnitTypeMapping unitTypeMapping : UnitTypeMapping.values()) {
+            for (final Trait trait : unitTypeMapping.getTraitSet()) {
+                final ServiceType serviceType = unitTypeMapping.getServiceType(trait);
+                assertSame(serviceStateTraitMapperFactory.getServiceStateMapper(serviceType, trait), serviceStateTraitMapperFactory.getServiceStateMapper(serviceType, trait));
+            }
+        }
+    }
+
 }
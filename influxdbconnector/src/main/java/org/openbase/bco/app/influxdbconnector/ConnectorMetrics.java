@@ -0,0 +1,250 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects operational metrics of the influx db connector.
+ * <p>
+ * All counters are lock-free and can be updated from any thread.
+ * The metrics are reported as points of the {@link #METRICS_MEASUREMENT} measurement via {@link #createPoints(long)},
+ * which also resets all interval based values.
+ */
+public class ConnectorMetrics {
+
+    public static final String METRICS_MEASUREMENT = "connector_metrics";
+    public static final String SERVICE_TYPE_TAG = "service_type";
+
+    /**
+     * Number of buckets of the encode time histogram. Bucket {@code i} counts durations below {@code 2^i} microseconds, while the last one counts all remaining.
+     */
+    private static final int ENCODE_TIME_BUCKETS = 16;
+
+    private final Map<ServiceType, LongAdder> writtenPointsMap = new ConcurrentHashMap<>();
+    private final LongAdder[] encodeTimeHistogram = new LongAdder[ENCODE_TIME_BUCKETS];
+    private final LongAdder encodeTimeSum = new LongAdder();
+    private final LongAdder filteredPoints = new LongAdder();
+    private final LongAdder spooledPoints = new LongAdder();
+    private final LongAdder droppedPoints = new LongAdder();
+    private final LongAdder writtenBatches = new LongAdder();
+    private final LongAdder writtenBatchLines = new LongAdder();
+    private final LongAdder flushLatencySum = new LongAdder();
+    private final AtomicLong maxFlushLatency = new AtomicLong();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final AtomicLong batchStartTime = new AtomicLong();
+
+    private volatile LongSupplier queueDepthSupplier = () -> 0;
+    private volatile LongSupplier queueDropSupplier = () -> 0;
+    private volatile LongSupplier queueCoalesceSupplier = () -> 0;
+    private long lastQueueDrops;
+    private long lastQueueCoalesces;
+    private long lastReportTime = System.currentTimeMillis();
+
+    public ConnectorMetrics() {
+        for (int i = 0; i < ENCODE_TIME_BUCKETS; i++) {
+            encodeTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the sources of the queue related metrics.
+     *
+     * @param queueDepthSupplier    supplies the current number of queued notifications.
+     * @param queueDropSupplier     supplies the total number of notifications dropped by the queue.
+     * @param queueCoalesceSupplier supplies the total number of notifications replaced by a newer one of the same series.
+     */
+    public void setQueue(final LongSupplier queueDepthSupplier, final LongSupplier queueDropSupplier, final LongSupplier queueCoalesceSupplier) {
+        this.queueDepthSupplier = queueDepthSupplier;
+        this.queueDropSupplier = queueDropSupplier;
+        this.queueCoalesceSupplier = queueCoalesceSupplier;
+    }
+
+    /**
+     * Records a point passed to the write api.
+     *
+     * @param serviceType the service type of the point or null if the point is not related to a service.
+     */
+    public void pointWritten(final ServiceType serviceType) {
+        batchStartTime.compareAndSet(0, System.nanoTime());
+        if (serviceType != null) {
+            writtenPointsMap.computeIfAbsent(serviceType, type -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Records the time needed to encode a service state.
+     *
+     * @param nanos the encoding time in nanoseconds.
+     */
+    public void encoded(final long nanos) {
+        encodeTimeSum.add(nanos);
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        final int bucket = Math.min(ENCODE_TIME_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        encodeTimeHistogram[bucket].increment();
+    }
+
+    public void pointFiltered() {
+        filteredPoints.increment();
+    }
+
+    public void pointSpooled() {
+        spooledPoints.increment();
+    }
+
+    public void pointDropped() {
+        droppedPoints.increment();
+    }
+
+    public void retried() {
+        retries.increment();
+    }
+
+    public void writeFailed() {
+        writeErrors.increment();
+    }
+
+    /**
+     * Records a batch acknowledged by the database.
+     *
+     * @param lineProtocol the line protocol of the batch.
+     */
+    public void batchWritten(final String lineProtocol) {
+        int lines = lineProtocol.isEmpty() ? 0 : 1;
+        for (int i = lineProtocol.indexOf('\n'); i >= 0; i = lineProtocol.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        writtenBatches.increment();
+        writtenBatchLines.add(lines);
+
+        // the latency is measured from the first point buffered after the last acknowledged batch
+        final long startTime = batchStartTime.getAndSet(0);
+        if (startTime != 0) {
+            final long latency = System.nanoTime() - startTime;
+            flushLatencySum.add(latency);
+            maxFlushLatency.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    /**
+     * Creates the metric points of the interval since the last call and resets all interval based values.
+     *
+     * @param timestamp the timestamp of the points in milliseconds.
+     *
+     * @return the metric points.
+     */
+    public synchronized List<Point> createPoints(final long timestamp) {
+        final List<Point> points = new ArrayList<>();
+        final double intervalSeconds = Math.max(1, timestamp - lastReportTime) / 1000d;
+        lastReportTime = timestamp;
+
+        long totalPoints = 0;
+        for (final Map.Entry<ServiceType, LongAdder> entry : writtenPointsMap.entrySet()) {
+            final long count = entry.getValue().sumThenReset();
+            totalPoints += count;
+            if (count == 0) {
+                continue;
+            }
+            points.add(Point.measurement(METRICS_MEASUREMENT)
+                    .addTag(SERVICE_TYPE_TAG, entry.getKey().name().toLowerCase())
+                    .addField("points_per_second", count / intervalSeconds)
+                    .time(timestamp, WritePrecision.MS));
+        }
+
+        // encode time
+        final long[] histogram = new long[ENCODE_TIME_BUCKETS];
+        long encodeCount = 0;
+        for (int i = 0; i < ENCODE_TIME_BUCKETS; i++) {
+            histogram[i] = encodeTimeHistogram[i].sumThenReset();
+            encodeCount += histogram[i];
+        }
+        final long encodeTime = encodeTimeSum.sumThenReset();
+
+        // batches
+        final long batches = writtenBatches.sumThenReset();
+        final long batchLines = writtenBatchLines.sumThenReset();
+        final long flushLatency = flushLatencySum.sumThenReset();
+
+        final long queueDrops = queueDropSupplier.getAsLong();
+        final long newQueueDrops = Math.max(0, queueDrops - lastQueueDrops);
+        lastQueueDrops = queueDrops;
+
+        // coalesced notifications are not lost, since a newer state of the same series is written instead
+        final long queueCoalesces = queueCoalesceSupplier.getAsLong();
+        final long newQueueCoalesces = Math.max(0, queueCoalesces - lastQueueCoalesces);
+        lastQueueCoalesces = queueCoalesces;
+
+        final Point point = Point.measurement(METRICS_MEASUREMENT)
+                .addField("points_per_second", totalPoints / intervalSeconds)
+                .addField("encoded_states", encodeCount)
+                .addField("encode_time_mean_us", encodeCount == 0 ? 0d : TimeUnit.NANOSECONDS.toMicros(encodeTime) / (double) encodeCount)
+                .addField("encode_time_p50_us", percentile(histogram, encodeCount, 0.5))
+                .addField("encode_time_p99_us", percentile(histogram, encodeCount, 0.99))
+                .addField("batches", batches)
+                .addField("batch_size_mean", batches == 0 ? 0d : batchLines / (double) batches)
+                .addField("flush_latency_mean_ms", batches == 0 ? 0d : TimeUnit.NANOSECONDS.toMillis(flushLatency) / (double) batches)
+                .addField("flush_latency_max_ms", TimeUnit.NANOSECONDS.toMillis(maxFlushLatency.getAndSet(0)))
+                .addField("retries", retries.sumThenReset())
+                .addField("write_errors", writeErrors.sumThenReset())
+                .addField("queue_depth", queueDepthSupplier.getAsLong())
+                .addField("filtered_points", filteredPoints.sumThenReset())
+                .addField("spooled_points", spooledPoints.sumThenReset())
+                .addField("dropped_points", droppedPoints.sumThenReset() + newQueueDrops)
+                .addField("coalesced_points", newQueueCoalesces)
+                .time(timestamp, WritePrecision.MS);
+        points.add(point);
+        return points;
+    }
+
+    /**
+     * Estimates a percentile out of the encode time histogram.
+     *
+     * @return the upper bound of the bucket containing the percentile in microseconds.
+     */
+    private static long percentile(final long[] histogram, final long count, final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile);
+        long cumulated = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            cumulated += histogram[i];
+            if (cumulated >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (histogram.length - 1);
+    }
+}
@@ -0,0 +1,309 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.WriteApi;
+import com.influxdb.client.WriteOptions;
+import com.influxdb.client.domain.HealthCheck;
+import com.influxdb.client.write.events.BackpressureEvent;
+import com.influxdb.client.write.events.WriteErrorEvent;
+import com.influxdb.client.write.events.WriteRetriableErrorEvent;
+import com.influxdb.client.write.events.WriteSuccessEvent;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.exception.VerificationFailedException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.exception.printer.LogLevel;
+import org.openbase.jul.schedule.GlobalScheduledExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.openbase.bco.dal.control.layer.unit.InfluxDbProcessor.*;
+
+/**
+ * Manages the connection to an influx db server.
+ * <p>
+ * The connection owns exactly one long-lived {@link WriteApi} per client which is only replaced if the client itself is recreated.
+ * The server health is probed on a fixed schedule and cached, so checking the connection state never causes any network traffic.
+ */
+public class InfluxDbConnection {
+
+    /**
+     * The period in milliseconds in which the server health is probed.
+     */
+    public static final long HEALTH_CHECK_PERIOD = 15000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String databaseUrl;
+    private final char[] token;
+    private final int batchLimit;
+    private final int batchTime;
+    private final ConnectorMetrics metrics;
+
+    private InfluxDBClient influxDBClient;
+    private WriteApi writeApi;
+    private ScheduledFuture<?> healthCheckTask;
+    private final List<Runnable> connectionEstablishedHandlerList = new CopyOnWriteArrayList<>();
+    private final List<Runnable> bufferDrainedHandlerList = new CopyOnWriteArrayList<>();
+
+    private volatile boolean healthy;
+    private volatile boolean saturated;
+
+    public InfluxDbConnection(final String databaseUrl, final char[] token, final int batchLimit, final int batchTime, final ConnectorMetrics metrics) {
+        this.databaseUrl = databaseUrl;
+        this.token = token;
+        this.batchLimit = batchLimit;
+        this.batchTime = batchTime;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates the database client and its write api.
+     * In case a previous client exists, its write buffer is flushed before the client gets closed.
+     */
+    public synchronized void connect() {
+        closeClient();
+        logger.debug("Try to connect to influxDB at " + databaseUrl);
+        influxDBClient = InfluxDBClientFactory.create(databaseUrl + "?readTimeout=" + READ_TIMEOUT + "&connectTimeout=" + CONNECT_TIMOUT + "&writeTimeout=" + WRITE_TIMEOUT + "&logLevel=BASIC", token);
+
+        // initiate WriteApi
+        writeApi = influxDBClient.getWriteApi(WriteOptions.builder().batchSize(batchLimit).flushInterval(batchTime).build());
+        writeApi.listenEvents(WriteSuccessEvent.class, event -> {
+            final boolean wasSaturated = saturated;
+            saturated = false;
+            metrics.batchWritten(event.getLineProtocol());
+            logger.debug("Successfully wrote data into db");
+            if (wasSaturated) {
+                for (final Runnable handler : bufferDrainedHandlerList) {
+                    handler.run();
+                }
+            }
+        });
+        writeApi.listenEvents(BackpressureEvent.class, event -> {
+            saturated = true;
+            logger.warn("Write buffer saturated, points will be spooled until the buffer is drained.");
+        });
+        writeApi.listenEvents(WriteRetriableErrorEvent.class, event -> {
+            // do not wait for the next health probe, so further points are spooled right away
+            healthy = false;
+            metrics.retried();
+        });
+        writeApi.listenEvents(WriteErrorEvent.class, event -> {
+            healthy = false;
+            metrics.writeFailed();
+            Throwable exception = event.getThrowable();
+            logger.warn(exception.getMessage());
+        });
+    }
+
+    /**
+     * Flushes the write buffer, stops the health check and closes the client.
+     */
+    public synchronized void disconnect() {
+        stopHealthCheck();
+        closeClient();
+    }
+
+    private void closeClient() {
+        healthy = false;
+        saturated = false;
+        try {
+            if (writeApi != null) {
+                writeApi.flush();
+                writeApi.close();
+            }
+        } catch (Exception ex) {
+            ExceptionPrinter.printHistory("Could not drain write buffer!", ex, logger);
+        } finally {
+            writeApi = null;
+        }
+
+        try {
+            if (influxDBClient != null) {
+                influxDBClient.close();
+            }
+        } catch (Exception ex) {
+            ExceptionPrinter.printHistory("Could not shutdown database connection!", ex, logger);
+        } finally {
+            influxDBClient = null;
+        }
+    }
+
+    /**
+     * Starts probing the server health on a fixed schedule.
+     * The result is cached and can be accessed via {@link #isConnected()}.
+     *
+     * @throws NotAvailableException is thrown if the scheduler is not available.
+     */
+    public synchronized void startHealthCheck() throws NotAvailableException {
+        stopHealthCheck();
+        healthCheckTask = GlobalScheduledExecutorService.scheduleAtFixedRate(() -> {
+            try {
+                checkHealth();
+            } catch (VerificationFailedException ex) {
+                ExceptionPrinter.printHistory(ex, logger, LogLevel.DEBUG);
+            }
+        }, HEALTH_CHECK_PERIOD, HEALTH_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopHealthCheck() {
+        if (healthCheckTask != null) {
+            healthCheckTask.cancel(false);
+            healthCheckTask = null;
+        }
+    }
+
+    /**
+     * Probes the health of the database server and updates the cached connection state.
+     * This method performs a blocking network call. The probe is synchronized with {@link #connect()} and {@link #disconnect()},
+     * so a client closed in the meantime is never probed and cannot mark the connection as healthy.
+     *
+     * @throws VerificationFailedException is thrown if the server is not healthy.
+     */
+    public void checkHealth() throws VerificationFailedException {
+        synchronized (this) {
+            if (influxDBClient == null || writeApi == null) {
+                healthy = false;
+                throw new VerificationFailedException("Influx db connection has never been initiated.");
+            }
+
+            final boolean wasHealthy = healthy;
+            boolean probeSucceeded;
+            try {
+                probeSucceeded = influxDBClient.health().getStatus() == HealthCheck.StatusEnum.PASS;
+            } catch (RuntimeException ex) {
+                probeSucceeded = false;
+            }
+            healthy = probeSucceeded;
+
+            if (!probeSucceeded) {
+                if (wasHealthy) {
+                    logger.warn("Lost connection to Influxdb at " + databaseUrl);
+                }
+                throw new VerificationFailedException("Could not connect to database server at " + databaseUrl + "!");
+            }
+
+            if (wasHealthy) {
+                return;
+            }
+            logger.debug("Connected to Influxdb at " + databaseUrl);
+        }
+
+        // handlers are called outside of the lock since they may write to the connection
+        for (final Runnable handler : connectionEstablishedHandlerList) {
+            handler.run();
+        }
+    }
+
+    /**
+     * Method checks if the connection is established.
+     * The check is based on the last health probe and does not cause any network traffic.
+     * A failed write marks the connection as not established until the next successful health probe.
+     *
+     * @return true if the connection to influx db is established, otherwise false.
+     */
+    public boolean isConnected() {
+        return healthy && writeApi != null;
+    }
+
+    /**
+     * Method checks if the write buffer of the write api overflowed and was not drained by a successful write afterwards.
+     *
+     * @return true if the write buffer is saturated.
+     */
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    /**
+     * Registers a handler which is called each time a health probe succeeds after the connection was not established before.
+     * The handler is called on the thread performing the probe.
+     *
+     * @param handler the handler to register.
+     */
+    public void addConnectionEstablishedHandler(final Runnable handler) {
+        connectionEstablishedHandlerList.add(handler);
+    }
+
+    /**
+     * Registers a handler which is called each time a successful write drains the write buffer after it was saturated.
+     * The handler is called on the event thread of the write api and should therefore return quickly.
+     *
+     * @param handler the handler to register.
+     */
+    public void addBufferDrainedHandler(final Runnable handler) {
+        bufferDrainedHandlerList.add(handler);
+    }
+
+    /**
+     * Method verifies the connection state based on the last health probe.
+     *
+     * @throws VerificationFailedException is thrown if the connection is not established.
+     */
+    public void verifyConnection() throws VerificationFailedException {
+        if (!isConnected()) {
+            throw new VerificationFailedException("Connection to database server at " + databaseUrl + " not established!");
+        }
+    }
+
+    /**
+     * Returns the client of this connection.
+     *
+     * @return the influx db client.
+     *
+     * @throws NotAvailableException is thrown if the connection has not been initiated.
+     */
+    public InfluxDBClient getClient() throws NotAvailableException {
+        final InfluxDBClient client = influxDBClient;
+        if (client == null) {
+            throw new NotAvailableException("InfluxDBClient");
+        }
+        return client;
+    }
+
+    /**
+     * Returns the long-lived write api of this connection.
+     *
+     * @return the write api.
+     *
+     * @throws NotAvailableException is thrown if the connection has not been initiated.
+     */
+    public WriteApi getWriteApi() throws NotAvailableException {
+        final WriteApi api = writeApi;
+        if (api == null) {
+            throw new NotAvailableException("WriteApi");
+        }
+        return api;
+    }
+
+    public String getDatabaseUrl() {
+        return databaseUrl;
+    }
+}
@@ -23,17 +23,16 @@ package org.openbase.bco.app.influxdbconnector;
  */
 
 
-import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
-import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.InfluxDBClientFactory;
-import com.influxdb.client.WriteApi;
-import com.influxdb.client.WriteOptions;
+import com.influxdb.client.WriteApiBlocking;
 import com.influxdb.client.domain.Bucket;
 import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
-import com.influxdb.client.write.events.WriteErrorEvent;
-import com.influxdb.client.write.events.WriteSuccessEvent;
+import com.influxdb.exceptions.InfluxException;
+import org.openbase.bco.app.influxdbconnector.LineProtocolSpool.HandleResult;
+import org.openbase.bco.app.influxdbconnector.ServiceStateDispatcher.OverflowPolicy;
+import org.openbase.bco.app.influxdbconnector.ServiceStateDispatcher.ServiceStateEvent;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.UnitTags;
 import org.openbase.bco.dal.control.layer.unit.app.AbstractAppController;
 import org.openbase.bco.dal.lib.layer.service.ServiceStateProvider;
 import org.openbase.bco.dal.lib.layer.service.Services;
@@ -55,48 +54,129 @@ import org.openbase.jul.schedule.GlobalScheduledExecutorService;
 import org.openbase.type.domotic.action.ActionDescriptionType.ActionDescription;
 import org.openbase.type.domotic.service.ServiceDescriptionType;
 import org.openbase.type.domotic.service.ServiceTemplateType;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
 import org.openbase.type.domotic.service.ServiceTempusTypeType;
 import org.openbase.type.domotic.service.ServiceTempusTypeType.ServiceTempusType.ServiceTempus;
 import org.openbase.type.domotic.state.ActivationStateType.ActivationState;
-import org.openbase.type.domotic.unit.UnitConfigType;
 import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
-import org.openbase.type.language.LabelType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.HttpURLConnection;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.openbase.bco.dal.control.layer.unit.InfluxDbProcessor.*;
-import static org.openbase.bco.dal.lib.layer.service.Services.resolveStateValue;
 
 public class InfluxDbconnectorApp extends AbstractAppController {
 
+    public static final String INFLUXDB_SPOOL_DIRECTORY = "INFLUXDB_SPOOL_DIRECTORY";
+    public static final String INFLUXDB_SPOOL_DIRECTORY_DEFAULT = System.getProperty("user.home") + "/.cache/bco/influxdb/spool";
+    public static final String INFLUXDB_SPOOL_SIZE = "INFLUXDB_SPOOL_SIZE";
+    public static final String INFLUXDB_SPOOL_SIZE_DEFAULT = "256";
+    public static final String INFLUXDB_SPOOL_REPLAY_RATE = "INFLUXDB_SPOOL_REPLAY_RATE";
+    public static final String INFLUXDB_SPOOL_REPLAY_RATE_DEFAULT = "1000";
+    public static final String INFLUXDB_INITIAL_SYNC_THREADS = "INFLUXDB_INITIAL_SYNC_THREADS";
+    public static final String INFLUXDB_INITIAL_SYNC_THREADS_DEFAULT = "8";
+    public static final String INFLUXDB_FILTER = "INFLUXDB_FILTER";
+    public static final String INFLUXDB_FILTER_DEFAULT = "true";
+    public static final String INFLUXDB_DEADBAND = "INFLUXDB_DEADBAND";
+    public static final String INFLUXDB_DEADBAND_DEFAULT = "0";
+    public static final String INFLUXDB_KEEP_ALIVE_INTERVAL = "INFLUXDB_KEEP_ALIVE_INTERVAL";
+    public static final String INFLUXDB_KEEP_ALIVE_INTERVAL_DEFAULT = "3600000";
+    public static final String INFLUXDB_ROLLUP = "INFLUXDB_ROLLUP";
+    public static final String INFLUXDB_ROLLUP_DEFAULT = "false";
+    public static final String INFLUXDB_ROLLUP_BUCKET = "INFLUXDB_ROLLUP_BUCKET";
+    public static final String INFLUXDB_ROLLUP_BUCKET_SUFFIX = "_rollup";
+    public static final String INFLUXDB_ROLLUP_INTERVALS = "INFLUXDB_ROLLUP_INTERVALS";
+    public static final String INFLUXDB_ROLLUP_INTERVALS_DEFAULT = "60000,900000";
+    public static final String INFLUXDB_ROLLUP_SERVICE_TYPES = "INFLUXDB_ROLLUP_SERVICE_TYPES";
+    public static final String INFLUXDB_ROLLUP_SERVICE_TYPES_DEFAULT = "POWER_CONSUMPTION_STATE_SERVICE,ILLUMINANCE_STATE_SERVICE,TEMPERATURE_STATE_SERVICE";
+    public static final String INFLUXDB_QUEUE_CAPACITY = "INFLUXDB_QUEUE_CAPACITY";
+    public static final String INFLUXDB_QUEUE_CAPACITY_DEFAULT = "8192";
+    public static final String INFLUXDB_QUEUE_OVERFLOW_POLICY = "INFLUXDB_QUEUE_OVERFLOW_POLICY";
+    public static final String INFLUXDB_QUEUE_OVERFLOW_POLICY_DEFAULT = OverflowPolicy.COALESCE.name();
+
+    /**
+     * The time in milliseconds to wait for the writer thread to write the remaining notifications on shutdown before they are spilled into the spool.
+     */
+    private static final long DISPATCHER_SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * The size of a single spool segment in bytes.
+     */
+    private static final int SPOOL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The period in milliseconds in which the spool is checked for records which were spooled while the connection was established,
+     * e.g. because the write buffer was saturated or the writer thread spilled them.
+     */
+    private static final long SPOOL_REPLAY_CHECK_PERIOD = 30000;
+
+    /**
+     * The interval in milliseconds in which the initial synchronisation checks for newly resolved units.
+     */
+    private static final long INITIAL_SYNC_POLL_INTERVAL = 50;
+
+    /**
+     * Http status of a write rejected because of too many requests, which is not defined by {@link HttpURLConnection}.
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
-    private WriteApi writeApi;
+    private InfluxDbConnection connection;
     private Integer databaseTimeout = DATABASE_TIMEOUT_DEFAULT;
     private Bucket bucket;
     private char[] token;
     private Future task;
     private Future heartbeat;
+    private Future replayTask;
+    private Future replayCheckTask;
+    private LineProtocolSpool spool;
+    private String spoolDirectory;
+    private Long spoolSize;
+    private Integer spoolReplayRate;
+    private Integer initialSyncThreads;
+    private volatile SeriesFilter seriesFilter;
+    private volatile RollupAggregator rollupAggregator;
+    private volatile ServiceStateWriter serviceStateWriter;
+    private String rollupBucketName;
+    private Future rollupFlushTask;
+    private Future keepAliveTask;
+    private Integer queueCapacity;
+    private OverflowPolicy queueOverflowPolicy;
+    private volatile ServiceStateDispatcher dispatcher;
     private String databaseUrl;
     private String bucketName;
-    private InfluxDBClient influxDBClient;
     private Integer batchTime;
     private Integer batchLimit;
     private final CustomUnitPool customUnitPool;
+    private final UnitTagCache unitTagCache;
+    private final ConnectorMetrics metrics;
     private final Observer<ServiceStateProvider<Message>, Message> unitStateObserver;
     private String org;
 
 
     public InfluxDbconnectorApp() throws InstantiationException {
         this.customUnitPool = new CustomUnitPool();
-        this.unitStateObserver = (source, data) -> storeServiceState((Unit) source.getServiceProvider(), source.getServiceType(), false);
+        this.unitTagCache = new UnitTagCache();
+        this.metrics = new ConnectorMetrics();
+        this.unitStateObserver = (source, data) -> {
+            final Unit<?> unit = (Unit<?>) source.getServiceProvider();
+            final ServiceStateDispatcher dispatcher = this.dispatcher;
+            if (dispatcher != null) {
+                dispatcher.dispatch(new ServiceStateEvent(unit, source.getServiceType(), unit.getData()));
+            }
+        };
     }
 
     @Override
@@ -110,6 +190,46 @@ public class InfluxDbconnectorApp extends AbstractAppController {
             databaseUrl = generateVariablePool().getValue(INFLUXDB_URL, INFLUXDB_URL_DEFAULT);
             token = generateVariablePool().getValue(INFLUXDB_TOKEN).toCharArray();
             org = generateVariablePool().getValue(INFLUXDB_ORG, INFLUXDB_ORG_DEFAULT);
+            spoolDirectory = generateVariablePool().getValue(INFLUXDB_SPOOL_DIRECTORY, INFLUXDB_SPOOL_DIRECTORY_DEFAULT);
+            spoolSize = Long.valueOf(generateVariablePool().getValue(INFLUXDB_SPOOL_SIZE, INFLUXDB_SPOOL_SIZE_DEFAULT)) * 1024 * 1024;
+            spoolReplayRate = Integer.valueOf(generateVariablePool().getValue(INFLUXDB_SPOOL_REPLAY_RATE, INFLUXDB_SPOOL_REPLAY_RATE_DEFAULT));
+            initialSyncThreads = Math.max(1, Integer.valueOf(generateVariablePool().getValue(INFLUXDB_INITIAL_SYNC_THREADS, INFLUXDB_INITIAL_SYNC_THREADS_DEFAULT)));
+
+            // setup filter, deadbands can be defined per service type, e.g. INFLUXDB_DEADBAND_POWER_CONSUMPTION_STATE_SERVICE
+            final Map<ServiceType, Double> deadbandMap = new EnumMap<>(ServiceType.class);
+            for (final ServiceType serviceType : ServiceType.values()) {
+                final String deadband = generateVariablePool().getValue(INFLUXDB_DEADBAND + "_" + serviceType.name(), "");
+                if (!deadband.isEmpty()) {
+                    deadbandMap.put(serviceType, Double.valueOf(deadband));
+                }
+            }
+            seriesFilter = new SeriesFilter(
+                    Boolean.parseBoolean(generateVariablePool().getValue(INFLUXDB_FILTER, INFLUXDB_FILTER_DEFAULT)),
+                    Double.valueOf(generateVariablePool().getValue(INFLUXDB_DEADBAND, INFLUXDB_DEADBAND_DEFAULT)),
+                    deadbandMap,
+                    Long.valueOf(generateVariablePool().getValue(INFLUXDB_KEEP_ALIVE_INTERVAL, INFLUXDB_KEEP_ALIVE_INTERVAL_DEFAULT)));
+
+            queueCapacity = Integer.valueOf(generateVariablePool().getValue(INFLUXDB_QUEUE_CAPACITY, INFLUXDB_QUEUE_CAPACITY_DEFAULT));
+            queueOverflowPolicy = OverflowPolicy.valueOf(generateVariablePool().getValue(INFLUXDB_QUEUE_OVERFLOW_POLICY, INFLUXDB_QUEUE_OVERFLOW_POLICY_DEFAULT));
+
+            // setup rollup aggregation
+            rollupBucketName = generateVariablePool().getValue(INFLUXDB_ROLLUP_BUCKET, bucketName + INFLUXDB_ROLLUP_BUCKET_SUFFIX);
+            if (Boolean.parseBoolean(generateVariablePool().getValue(INFLUXDB_ROLLUP, INFLUXDB_ROLLUP_DEFAULT))) {
+                final String[] intervalStrings = generateVariablePool().getValue(INFLUXDB_ROLLUP_INTERVALS, INFLUXDB_ROLLUP_INTERVALS_DEFAULT).split(",");
+                final long[] intervals = new long[intervalStrings.length];
+                for (int i = 0; i < intervalStrings.length; i++) {
+                    intervals[i] = Long.parseLong(intervalStrings[i].trim());
+                }
+                final List<ServiceType> rollupServiceTypes = new ArrayList<>();
+                for (final String serviceType : generateVariablePool().getValue(INFLUXDB_ROLLUP_SERVICE_TYPES, INFLUXDB_ROLLUP_SERVICE_TYPES_DEFAULT).split(",")) {
+                    rollupServiceTypes.add(ServiceType.valueOf(serviceType.trim()));
+                }
+                rollupAggregator = new RollupAggregator(intervals, rollupServiceTypes, point -> writePoint(rollupBucketName, point, false));
+            } else {
+                rollupAggregator = null;
+            }
+
+            serviceStateWriter = new ServiceStateWriter(bucketName, seriesFilter, rollupAggregator, metrics, this::writePoint);
 
             return config;
         }
@@ -123,11 +243,18 @@ public class InfluxDbconnectorApp extends AbstractAppController {
             try {
                 logger.debug("Execute influx db connector");
 
+                // prepare spool to buffer points during outages
+                try {
+                    spool = new LineProtocolSpool(Paths.get(spoolDirectory), spoolSize, SPOOL_SEGMENT_SIZE);
+                } catch (CouldNotPerformException ex) {
+                    ExceptionPrinter.printHistory("Could not prepare spool! Points will be lost during database outages.", ex, logger, LogLevel.WARN);
+                }
+
                 // connect to db
                 connectToDatabase();
                 while (!task.isCancelled()) {
                     try {
-                        verifyConnection();
+                        connection.checkHealth();
                         break;
 
                     } catch (CouldNotPerformException ex) {
@@ -154,8 +281,16 @@ public class InfluxDbconnectorApp extends AbstractAppController {
 
                 // start observation
                 try {
+                    connection.startHealthCheck();
+                    replayCheckTask = GlobalScheduledExecutorService.scheduleAtFixedRate(() -> {
+                        if (isConnected()) {
+                            replaySpool();
+                        }
+                    }, SPOOL_REPLAY_CHECK_PERIOD, SPOOL_REPLAY_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+                    startRollupAggregation();
+                    startKeepAlive();
                     startObservation();
-                } catch (InitializationException ex) {
+                } catch (CouldNotPerformException ex) {
                     ExceptionPrinter.printHistory(ex, logger);
                 }
             } catch (InterruptedException ex) {
@@ -166,19 +301,24 @@ public class InfluxDbconnectorApp extends AbstractAppController {
                 try {
                     // write initial heartbeat
                     logger.debug("initial heartbeat");
-                    writeApi.writePoint(bucketName, org, Point.measurement(HEARTBEAT_MEASUREMENT)
+                    writePoint(Point.measurement(HEARTBEAT_MEASUREMENT)
                             .addField(HEARTBEAT_FIELD, HEARTBEAT_OFFLINE_VALUE)
                             .time(System.currentTimeMillis() - 1, WritePrecision.MS));
-                    writeApi.writePoint(bucketName, org, Point.measurement(HEARTBEAT_MEASUREMENT)
+                    writePoint(Point.measurement(HEARTBEAT_MEASUREMENT)
                             .addField(HEARTBEAT_FIELD, HEARTBEAT_ONLINE_VALUE)
                             .time(System.currentTimeMillis(), WritePrecision.MS));
 
                     heartbeat = GlobalScheduledExecutorService.scheduleAtFixedRate(() -> {
                         logger.debug("write heartbeat");
-                        writeApi.writePoint(bucketName, org, Point.measurement(HEARTBEAT_MEASUREMENT)
+                        final long timestamp = System.currentTimeMillis();
+                        writePoint(Point.measurement(HEARTBEAT_MEASUREMENT)
                                 .addField(HEARTBEAT_FIELD, HEARTBEAT_ONLINE_VALUE)
-                                .time(System.currentTimeMillis(), WritePrecision.MS));
+                                .time(timestamp, WritePrecision.MS));
 
+                        // report connector metrics
+                        for (final Point point : metrics.createPoints(timestamp)) {
+                            writePoint(point);
+                        }
                     }, HEARTBEAT_INITIAL_DELAY, HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
                 } catch (NotAvailableException ex) {
                     ExceptionPrinter.printHistory("Could not write heartbeat!", ex, logger, LogLevel.WARN);
@@ -209,7 +349,7 @@ public class InfluxDbconnectorApp extends AbstractAppController {
         if (heartbeat != null && !heartbeat.isDone()) {
             heartbeat.cancel(true);
             try {
-                task.get(5, TimeUnit.SECONDS);
+                heartbeat.get(5, TimeUnit.SECONDS);
             } catch (CancellationException ex) {
                 // that's what we are waiting for.
             } catch (Exception ex) {
@@ -217,68 +357,233 @@ public class InfluxDbconnectorApp extends AbstractAppController {
             }
         }
 
-        if (isConnected()) {
-            // write final heartbeat if connection is established.
-            writeApi.writePoint(bucketName, org, Point.measurement(HEARTBEAT_MEASUREMENT)
-                    .addField(HEARTBEAT_FIELD, HEARTBEAT_ONLINE_VALUE)
-                    .time(System.currentTimeMillis() - 1, WritePrecision.MS));
-            writeApi.writePoint(bucketName, org, Point.measurement(HEARTBEAT_MEASUREMENT)
-                    .addField(HEARTBEAT_FIELD, HEARTBEAT_OFFLINE_VALUE)
-                    .time(System.currentTimeMillis(), WritePrecision.MS));
-            writeApi.flush();
+        logger.debug("finish rollup aggregation");
+        stopRollupAggregation();
+
+        logger.debug("finish keep alive");
+        if (keepAliveTask != null && !keepAliveTask.isDone()) {
+            keepAliveTask.cancel(true);
+        }
+
+        logger.debug("finish spool replay");
+        if (replayCheckTask != null && !replayCheckTask.isDone()) {
+            replayCheckTask.cancel(true);
+        }
+        if (replayTask != null && !replayTask.isDone()) {
+            replayTask.cancel(true);
         }
 
+        // write final heartbeat, it gets spooled if the connection is not established.
+        writePoint(Point.measurement(HEARTBEAT_MEASUREMENT)
+                .addField(HEARTBEAT_FIELD, HEARTBEAT_ONLINE_VALUE)
+                .time(System.currentTimeMillis() - 1, WritePrecision.MS));
+        writePoint(Point.measurement(HEARTBEAT_MEASUREMENT)
+                .addField(HEARTBEAT_FIELD, HEARTBEAT_OFFLINE_VALUE)
+                .time(System.currentTimeMillis(), WritePrecision.MS));
+
         // deregister
         customUnitPool.removeServiceStateObserver(unitStateObserver);
         customUnitPool.deactivate();
+        if (dispatcher != null) {
+            dispatcher.stop(DISPATCHER_SHUTDOWN_TIMEOUT);
+            dispatcher = null;
+        }
+        unitTagCache.deactivate();
         disconnectDatabase();
 
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+
         super.stop(activationState);
     }
 
     public void startObservation() throws InitializationException, InterruptedException {
         try {
+            // setup writer thread
+            dispatcher = new ServiceStateDispatcher(queueCapacity, queueOverflowPolicy, (event, spill) -> {
+                try {
+                    storeServiceState(event.getUnit(), event.getServiceType(), event.getUnitData(), false, spill);
+                } catch (CouldNotPerformException ex) {
+                    ExceptionPrinter.printHistory("Could not store service state of " + event.getUnit(), ex, logger);
+                }
+            });
+            dispatcher.start();
+            final ServiceStateDispatcher currentDispatcher = dispatcher;
+            metrics.setQueue(currentDispatcher::getQueueDepth, currentDispatcher::getDroppedCount, currentDispatcher::getCoalescedCount);
+
             // setup pool
+            unitTagCache.activate();
             customUnitPool.addServiceStateObserver(unitStateObserver);
             customUnitPool.activate();
 
-            for (UnitConfigType.UnitConfig unitConfig : Registries.getUnitRegistry(true).getUnitConfigs()) {
-                final UnitRemote<?> unit;
-                try {
-                    unit = Units.getFutureUnit(unitConfig, true).get(MAX_INITIAL_STORAGE_TIMEOUT, TimeUnit.MILLISECONDS);
-                } catch (ExecutionException | TimeoutException ex) {
-                    ExceptionPrinter.printHistory("Could not reach Unit " + LabelProcessor.getBestMatch(unitConfig.getLabel()) + "! Skip initial service state synchronisation because unit will be synchronized anyway when it connection is established.", ex, logger, LogLevel.DEBUG);
-                    continue;
-                }
-                try {
-                    for (ServiceDescriptionType.ServiceDescription serviceDescription : unit.getUnitTemplate().getServiceDescriptionList()) {
+            synchronizeInitialServiceStates(Registries.getUnitRegistry(true).getUnitConfigs());
+        } catch (CouldNotPerformException ex) {
+            throw new InitializationException(this, ex);
+        }
+    }
+
+    /**
+     * Stores the current service states of all given units.
+     * <p>
+     * All units are requested at once and share a single deadline, so the synchronisation takes about as long as the slowest unit.
+     * Units are handed to a bounded number of workers in the order they respond, so unreachable units never block a worker
+     * while responsive units are waiting.
+     *
+     * @param unitConfigs the configs of the units to synchronize.
+     *
+     * @throws InterruptedException is thrown if the thread was interrupted while waiting for the workers.
+     */
+    private void synchronizeInitialServiceStates(final List<UnitConfig> unitConfigs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + MAX_INITIAL_STORAGE_TIMEOUT;
+        final Semaphore workerSlots = new Semaphore(initialSyncThreads);
+        final AtomicInteger synchronizedUnits = new AtomicInteger();
+        final AtomicInteger unreachableUnits = new AtomicInteger();
+        final int progressStep = Math.max(1, unitConfigs.size() / 10);
+        final Runnable progressReporter = () -> {
+            final int progress = synchronizedUnits.incrementAndGet();
+            if (progress % progressStep == 0 || progress == unitConfigs.size()) {
+                logger.info("Initial synchronisation progress: {}/{} units processed, {} unreachable.", progress, unitConfigs.size(), unreachableUnits.get());
+            }
+        };
+
+        logger.info("Synchronize initial service states of {} units...", unitConfigs.size());
+
+        // request all units upfront so they are resolved concurrently
+        final Map<UnitConfig, Future<?>> pendingUnitMap = new LinkedHashMap<>();
+        for (final UnitConfig unitConfig : unitConfigs) {
+            pendingUnitMap.put(unitConfig, Units.getFutureUnit(unitConfig, true));
+        }
 
-                        if (serviceDescription.getPattern() != ServiceTemplateType.ServiceTemplate.ServicePattern.PROVIDER) {
-                            continue;
+        final List<Future<?>> syncTasks = new ArrayList<>(unitConfigs.size());
+        try {
+            while (!pendingUnitMap.isEmpty()) {
+
+                // dispatch all units resolved in the meantime, a worker slot is only taken by a resolved unit
+                boolean resolved = false;
+                for (final Iterator<Map.Entry<UnitConfig, Future<?>>> iterator = pendingUnitMap.entrySet().iterator(); iterator.hasNext(); ) {
+                    final Map.Entry<UnitConfig, Future<?>> entry = iterator.next();
+                    if (!entry.getValue().isDone()) {
+                        continue;
+                    }
+                    iterator.remove();
+                    resolved = true;
+
+                    workerSlots.acquire();
+                    syncTasks.add(GlobalCachedExecutorService.submit(() -> {
+                        try {
+                            synchronizeInitialServiceState(entry.getKey(), entry.getValue(), unreachableUnits);
+                            return null;
+                        } finally {
+                            workerSlots.release();
+                            progressReporter.run();
                         }
-                        storeServiceState(unit, serviceDescription.getServiceType(), true);
+                    }));
+                }
+
+                if (pendingUnitMap.isEmpty()) {
+                    break;
+                }
+
+                if (System.currentTimeMillis() >= deadline) {
+                    for (final Map.Entry<UnitConfig, Future<?>> entry : pendingUnitMap.entrySet()) {
+                        final UnitConfig unitConfig = entry.getKey();
+                        // stop waiting for the unit data, otherwise the pending requests keep running after the synchronisation
+                        entry.getValue().cancel(true);
+                        unreachableUnits.incrementAndGet();
+                        logger.debug("Could not reach Unit " + getLabel(unitConfig) + "! Skip initial service state synchronisation because unit will be synchronized anyway when it connection is established.");
+                        progressReporter.run();
                     }
-                } catch (CouldNotPerformException ex) {
-                    ExceptionPrinter.printHistory("Could not store service state " + unit, ex, logger);
+                    break;
+                }
+
+                if (!resolved) {
+                    Thread.sleep(Math.min(INITIAL_SYNC_POLL_INTERVAL, Math.max(1, deadline - System.currentTimeMillis())));
+                }
+            }
+
+            for (final Future<?> syncTask : syncTasks) {
+                try {
+                    syncTask.get();
+                } catch (ExecutionException ex) {
+                    ExceptionPrinter.printHistory("Initial synchronisation of unit failed!", ex, logger);
+                }
+            }
+        } catch (InterruptedException ex) {
+            for (final Future<?> pendingUnit : pendingUnitMap.values()) {
+                pendingUnit.cancel(true);
+            }
+            for (final Future<?> syncTask : syncTasks) {
+                syncTask.cancel(true);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Stores the current service states of a resolved unit.
+     *
+     * @param unitConfig       the config of the unit.
+     * @param futureUnit       the completed future of the unit.
+     * @param unreachableUnits counter of units which could not be resolved.
+     *
+     * @throws InterruptedException is thrown if the thread was interrupted.
+     */
+    private void synchronizeInitialServiceState(final UnitConfig unitConfig, final Future<?> futureUnit, final AtomicInteger unreachableUnits) throws InterruptedException {
+        final UnitRemote<?> unit;
+        try {
+            unit = (UnitRemote<?>) futureUnit.get();
+        } catch (ExecutionException | CancellationException ex) {
+            unreachableUnits.incrementAndGet();
+            ExceptionPrinter.printHistory("Could not reach Unit " + getLabel(unitConfig) + "! Skip initial service state synchronisation because unit will be synchronized anyway when it connection is established.", ex, logger, LogLevel.DEBUG);
+            return;
+        }
+
+        try {
+            for (ServiceDescriptionType.ServiceDescription serviceDescription : unit.getUnitTemplate().getServiceDescriptionList()) {
+
+                if (serviceDescription.getPattern() != ServiceTemplateType.ServiceTemplate.ServicePattern.PROVIDER) {
+                    continue;
                 }
+                storeServiceState(unit, serviceDescription.getServiceType(), unit.getData(), true, false);
             }
         } catch (CouldNotPerformException ex) {
-            throw new InitializationException(this, ex);
+            ExceptionPrinter.printHistory("Could not store service state " + unit, ex, logger);
         }
     }
 
-    private void storeServiceState(Unit<?> unit, ServiceTemplateType.ServiceTemplate.ServiceType serviceType, boolean initialSync) throws CouldNotPerformException {
+    private static String getLabel(final UnitConfig unitConfig) {
+        try {
+            return LabelProcessor.getBestMatch(unitConfig.getLabel());
+        } catch (NotAvailableException ex) {
+            return unitConfig.getId();
+        }
+    }
+
+    /**
+     * Stores the current and the previous state of the given service.
+     *
+     * @param unit        the unit providing the state.
+     * @param serviceType the service type of the state.
+     * @param unitData    the unit data to extract the states from.
+     * @param initialSync true if called during the initial synchronisation.
+     * @param spill       true if the points should be spilled into the spool instead of being written to the database.
+     *
+     * @throws CouldNotPerformException is thrown if the state could not be stored.
+     */
+    private void storeServiceState(final Unit<?> unit, final ServiceTemplateType.ServiceTemplate.ServiceType serviceType, final Message unitData, final boolean initialSync, final boolean spill) throws CouldNotPerformException {
 
         final Message currentServiceState;
         Message lastServiceState = null;
         try {
-            currentServiceState = Services.invokeProviderServiceMethod(serviceType, ServiceTempus.CURRENT, unit.getData());
+            currentServiceState = Services.invokeProviderServiceMethod(serviceType, ServiceTempus.CURRENT, unitData);
         } catch (NotAvailableException ex) {
             // if the current state is not available, we just try to at least store the last known service state if available.
 
             try {
-                lastServiceState = Services.invokeProviderServiceMethod(serviceType, ServiceTempusTypeType.ServiceTempusType.ServiceTempus.LAST, unit.getData());
-                storeServiceState(unit, serviceType, lastServiceState);
+                lastServiceState = Services.invokeProviderServiceMethod(serviceType, ServiceTempusTypeType.ServiceTempusType.ServiceTempus.LAST, unitData);
+                writeServiceState(unit, serviceType, lastServiceState, null, false, spill);
             } catch (CouldNotPerformException exx) {
                 // we don't care if the last service state is not available
                 // which can be the case for an initial sync
@@ -287,20 +592,20 @@ public class InfluxDbconnectorApp extends AbstractAppController {
             return;
         }
 
-        // store t - 1 entry
+        // prepare t - 1 entry
         try {
-            lastServiceState = Services.invokeProviderServiceMethod(serviceType, ServiceTempusTypeType.ServiceTempusType.ServiceTempus.LAST, unit.getData());
+            lastServiceState = Services.invokeProviderServiceMethod(serviceType, ServiceTempusTypeType.ServiceTempusType.ServiceTempus.LAST, unitData);
             final long serviceStateTimestamp = TimestampProcessor.getTimestamp(currentServiceState, TimeUnit.MILLISECONDS) - 1l;
             lastServiceState = TimestampProcessor.updateTimestamp(serviceStateTimestamp, lastServiceState, TimeUnit.MILLISECONDS);
-            storeServiceState(unit, serviceType, lastServiceState);
         } catch (CouldNotPerformException ex) {
             // we don't care if the last service state is not available
             // which can be the case for an initial sync
             // or any states which got only one state update since system startup.
+            lastServiceState = null;
         }
 
         try {
-            storeServiceState(unit, serviceType, currentServiceState);
+            writeServiceState(unit, serviceType, currentServiceState, lastServiceState, true, spill);
         } catch (CouldNotPerformException ex) {
 
             // filter log if initial timestamps are missing
@@ -317,195 +622,237 @@ public class InfluxDbconnectorApp extends AbstractAppController {
         }
     }
 
-    private void storeServiceState(final Unit<?> unit, final ServiceTemplateType.ServiceTemplate.ServiceType serviceType, final Message serviceState) throws InvalidStateException {
-
-        final long timestamp = TimestampProcessor.getTimestamp(serviceState, TimeUnit.MILLISECONDS);
+    /**
+     * Stores the given service state if it passes the series filter.
+     *
+     * @param unit                 the unit providing the state.
+     * @param serviceType          the service type of the state.
+     * @param serviceState         the state to store.
+     * @param previousServiceState the previous state with a timestamp right before the given state, or null if not available.
+     * @param current              true if the state is the current one and not a last known one. Only current states are aggregated.
+     * @param spill                true if the points should be spilled into the spool instead of being written to the database.
+     *
+     * @throws InvalidStateException is thrown if a state does not provide a timestamp.
+     * @see ServiceStateWriter#write(UnitTags, ServiceType, Message, Message, boolean, boolean)
+     */
+    private void writeServiceState(final Unit<?> unit, final ServiceTemplateType.ServiceTemplate.ServiceType serviceType, final Message serviceState, final Message previousServiceState, final boolean current, final boolean spill) throws InvalidStateException {
+        final UnitTags unitTags;
         try {
-            String initiator;
-            try {
-                initiator = Services.getResponsibleAction(serviceState).getActionInitiator().getInitiatorType().name().toLowerCase();
-            } catch (NotAvailableException ex) {
-                // in this case we use the system as initiator because responsible actions are not available for pure provider services and those are always system generated.
-                initiator = "system";
-            }
-            Map<String, String> stateValuesMap = resolveStateValueToMap(serviceState);
-            Point point = Point.measurement(serviceType.name().toLowerCase())
-                    .addTag("alias", unit.getConfig().getAlias(0))
-                    .addTag("initiator", initiator)
-                    .addTag("unit_id", unit.getId())
-                    .addTag("unit_type", unit.getUnitType().name().toLowerCase())
-                    .addTag("location_id", unit.getParentLocationConfig().getId())
-                    .addTag("location_alias", unit.getParentLocationConfig().getAlias(0))
-                    .time(timestamp, WritePrecision.MS);
-
-            Integer values = 0;
-            for (Map.Entry<String, String> entry : stateValuesMap.entrySet()) {
-                // detect numbers with regex
-                if (entry.getValue().matches("-?\\d+(\\.\\d+)?")) {
-                    values++;
-                    point.addField(entry.getKey(), Double.valueOf(entry.getValue()));
-
-                } else {
-                    point.addTag(entry.getKey(), entry.getValue());
-                }
-            }
-            List<LabelType.Label.MapFieldEntry> entryList = unit.getConfig().getLabel().getEntryList();
-            for (LabelType.Label.MapFieldEntry entry : entryList) {
-                point.addTag("label_" + entry.getKey(), entry.getValue(0));
-            }
-
-            if (values > 0) {
-                writeApi.writePoint(bucketName, org, point);
-            }
+            unitTags = unitTagCache.getTags(unit);
         } catch (CouldNotPerformException ex) {
             ExceptionPrinter.printHistory("Could not store service state " + serviceType.name() + " of " + unit, ex, logger);
+            return;
         }
+        serviceStateWriter.write(unitTags, serviceType, serviceState, previousServiceState, current, spill);
     }
 
 
-    public Map<String, String> resolveStateValueToMap(Message serviceState) throws CouldNotPerformException {
-        final Map<String, String> stateValues = new HashMap<>();
-        for (Descriptors.FieldDescriptor fieldDescriptor : serviceState.getDescriptorForType().getFields()) {
-            String stateName = fieldDescriptor.getName();
-            String stateType = fieldDescriptor.getType().toString().toLowerCase();
-
-            // filter invalid states
-            if (stateName == null || stateType == null) {
-                logger.warn("Could not detect datatype of " + stateName);
-            }
+    /**
+     * Method checks if the connection is established.
+     * The state is based on the last health probe of the connection, so no network call is performed.
+     *
+     * @return true if the connection to influx db is established, otherwise false.
+     */
+    private boolean isConnected() {
+        return connection != null && connection.isConnected();
+    }
 
-            // filter general service fields
-            switch (stateName) {
-                case "aggregated_value_coverage":
-                case "last_value_occurrence":
-                case "timestamp":
-                case "responsible_action":
-                case "type":
-                case "rgb_color":
-                case "frame_id":
-                    continue;
-            }
+    private void startRollupAggregation() throws CouldNotPerformException {
+        final RollupAggregator rollupAggregator = this.rollupAggregator;
+        if (rollupAggregator == null) {
+            return;
+        }
 
-            // filter data units
-            if (stateName.endsWith("data_unit")) {
-                continue;
-            }
+        // emit windows of series which stopped receiving updates
+        rollupFlushTask = GlobalScheduledExecutorService.scheduleAtFixedRate(() -> {
+            rollupAggregator.flushExpired(System.currentTimeMillis());
+        }, rollupAggregator.getMinInterval(), rollupAggregator.getMinInterval(), TimeUnit.MILLISECONDS);
+    }
 
-            String stateValue = serviceState.getField(fieldDescriptor).toString();
+    private void startKeepAlive() throws CouldNotPerformException {
+        final ServiceStateWriter serviceStateWriter = this.serviceStateWriter;
+        final long keepAliveCheckInterval = seriesFilter.getKeepAliveCheckInterval();
 
-            try {
-                if (fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
-                    if (fieldDescriptor.isRepeated()) {
-                        List<String> types = new ArrayList<>();
-
-                        for (int i = 0; i < serviceState.getRepeatedFieldCount(fieldDescriptor); i++) {
-                            final Object repeatedFieldEntry = serviceState.getRepeatedField(fieldDescriptor, i);
-                            if (repeatedFieldEntry instanceof Message) {
-                                types.add("[" + resolveStateValue((Message) repeatedFieldEntry).toString() + "]");
-                            }
-                            types.add(repeatedFieldEntry.toString());
-                        }
-                        stateType = types.toString().toLowerCase();
-                    } else {
-                        stateValue = resolveStateValue((Message) serviceState.getField(fieldDescriptor)).toString();
-                    }
-                }
-            } catch (InvalidStateException ex) {
-                logger.warn("Could not process value of " + fieldDescriptor.getName());
-                continue;
-            }
+        // refresh series which stopped receiving updates, so each series provides at least one point per keep alive interval
+        keepAliveTask = GlobalScheduledExecutorService.scheduleAtFixedRate(() -> {
+            serviceStateWriter.keepAlive(System.currentTimeMillis());
+        }, keepAliveCheckInterval, keepAliveCheckInterval, TimeUnit.MILLISECONDS);
+    }
 
-            // filter values
-            switch (stateValue) {
-                case "":
-                case "NaN":
-                    continue;
-                default:
-                    break;
-            }
-            if (fieldDescriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
-                String finalStateValue = stateValue;
-                stateValue = String.valueOf(fieldDescriptor.getEnumType().getValues().stream().filter(val -> val.getName().equals(finalStateValue)).findFirst().get().getNumber());
-            }
+    private void stopRollupAggregation() {
+        if (rollupFlushTask != null && !rollupFlushTask.isDone()) {
+            rollupFlushTask.cancel(true);
+        }
 
-            stateValues.put(fieldDescriptor.getName(), stateValue.toLowerCase());
+        final RollupAggregator rollupAggregator = this.rollupAggregator;
+        if (rollupAggregator != null) {
+            rollupAggregator.flushAll();
         }
-        return stateValues;
     }
 
     /**
-     * Method checks if the connection is established.
+     * Writes the given point into the default bucket.
      *
-     * @return true if the connection to influx db is established, otherwise false.
+     * @param point the point to write.
      */
-    private boolean isConnected() {
-        try {
-            verifyConnection();
-        } catch (VerificationFailedException ex) {
-            return false;
-        }
-        return true;
+    private void writePoint(final Point point) {
+        writePoint(bucketName, point, false);
     }
 
     /**
-     * Method verifies the connection state.
+     * Writes the given point into the database.
+     * If the connection is not established or the write buffer is saturated, the point is stored in the spool instead.
+     * Spooled records are prefixed by the bucket name separated by a line break.
+     *
+     * @param bucket the bucket to write to.
+     * @param point  the point to write.
+     * @param spill  if true the point is always stored in the spool.
      *
-     * @throws VerificationFailedException is thrown if the connection is not established.
+     * @return true if the point was passed to the write api, false if it was spooled or dropped.
      */
-    private void verifyConnection() throws VerificationFailedException {
+    private boolean writePoint(final String bucket, final Point point, final boolean spill) {
+        final InfluxDbConnection connection = this.connection;
+        if (!spill && connection != null && connection.isConnected() && !connection.isSaturated()) {
+            try {
+                connection.getWriteApi().writePoint(bucket, org, point);
+                return true;
+            } catch (NotAvailableException ex) {
+                // connection was closed in the meantime, so spool the point.
+            }
+        }
+
+        final LineProtocolSpool spool = this.spool;
+        if (spool == null) {
+            metrics.pointDropped();
+            logger.debug("Drop point because database is not reachable and spool is not available.");
+            return false;
+        }
 
-        if (influxDBClient == null) {
-            throw new VerificationFailedException("Influx db connection has never been initiated.");
+        try {
+            spool.append(bucket + '\n' + point.toLineProtocol());
+            metrics.pointSpooled();
+        } catch (CouldNotPerformException ex) {
+            metrics.pointDropped();
+            ExceptionPrinter.printHistory("Could not spool point!", ex, logger, LogLevel.WARN);
         }
+        return false;
+    }
 
-        if (influxDBClient.health().getStatus().getValue() != "pass") {
-            throw new VerificationFailedException("Could not connect to database server at " + databaseUrl + "!");
+    /**
+     * Replays all spooled points at a throttled rate. The replay is stopped as soon as the connection gets lost.
+     * Records spooled while the replay is running are replayed afterwards.
+     */
+    private synchronized void replaySpool() {
+        final LineProtocolSpool spool = this.spool;
+        if (spool == null || spool.isEmpty() || (replayTask != null && !replayTask.isDone())) {
+            return;
         }
 
-        // initiate WriteApi
-        WriteOptions writeoptions = WriteOptions.builder().batchSize(batchLimit).flushInterval(batchTime).build();
-        writeApi = influxDBClient.getWriteApi(writeoptions);
-        writeApi.listenEvents(WriteSuccessEvent.class, event -> {
-            logger.debug("Successfully wrote data into db");
-        });
-        writeApi.listenEvents(WriteErrorEvent.class, event -> {
-            Throwable exception = event.getThrowable();
-            logger.warn(exception.getMessage());
+        replayTask = GlobalCachedExecutorService.submit(() -> {
+            logger.info("Replay spooled points into database...");
+            long replayedRecords = 0;
+            long replayed;
+            do {
+                replayed = spool.replay(this::replayRecords, spoolReplayRate, batchLimit);
+                replayedRecords += replayed;
+            } while (replayed > 0 && !spool.isEmpty() && isConnected());
+            logger.info("Replayed {} spooled points.", replayedRecords);
+            return null;
         });
-        logger.debug("Connected to Influxdb at " + databaseUrl);
     }
 
-    private void connectToDatabase() {
+    /**
+     * Writes the given spooled records and waits until the database acknowledged them, so their spool segment is only deleted if the records are stored.
+     *
+     * @param records the spooled records, each prefixed by its bucket name separated by a line break.
+     *
+     * @return whether the records were stored, could not be stored for now or were rejected by the database.
+     */
+    private HandleResult replayRecords(final List<String> records) {
+        final InfluxDbConnection connection = this.connection;
+        if (connection == null || !connection.isConnected() || connection.isSaturated()) {
+            return HandleResult.FAILED;
+        }
+
         try {
-            if (influxDBClient != null) {
-                influxDBClient.close();
+            final WriteApiBlocking writeApi = connection.getClient().getWriteApiBlocking();
+            final List<String> lines = new ArrayList<>(records.size());
+            String bucket = null;
+            for (final String record : records) {
+                final int separator = record.indexOf('\n');
+                final String recordBucket = separator < 0 ? bucketName : record.substring(0, separator);
+                if (!recordBucket.equals(bucket)) {
+                    if (!lines.isEmpty()) {
+                        writeApi.writeRecords(bucket, org, WritePrecision.MS, lines);
+                        lines.clear();
+                    }
+                    bucket = recordBucket;
+                }
+                lines.add(separator < 0 ? record : record.substring(separator + 1));
             }
-        } catch (Exception ex) {
-            ExceptionPrinter.printHistory("Could not shutdown database connection!", ex, logger);
+            if (!lines.isEmpty()) {
+                writeApi.writeRecords(bucket, org, WritePrecision.MS, lines);
+            }
+            return HandleResult.STORED;
+        } catch (InfluxException ex) {
+            if (isRejection(ex)) {
+                ExceptionPrinter.printHistory("Spooled points were rejected by the database!", ex, logger, LogLevel.WARN);
+                return HandleResult.REJECTED;
+            }
+            ExceptionPrinter.printHistory("Could not replay spooled points!", ex, logger, LogLevel.DEBUG);
+            return HandleResult.FAILED;
+        } catch (NotAvailableException | RuntimeException ex) {
+            ExceptionPrinter.printHistory("Could not replay spooled points!", ex, logger, LogLevel.DEBUG);
+            return HandleResult.FAILED;
         }
-        logger.debug(" Try to connect to influxDB at " + databaseUrl);
-        influxDBClient = InfluxDBClientFactory.create(databaseUrl + "?readTimeout=" + READ_TIMEOUT + "&connectTimeout=" + CONNECT_TIMOUT + "&writeTimeout=" + WRITE_TIMEOUT + "&logLevel=BASIC", token);
+    }
+
+    /**
+     * Checks if the database permanently rejected a write, so that writing the same points again would fail as well.
+     * This is the case for client errors such as malformed points or a deleted bucket. Connection errors, server errors,
+     * throttling and missing permissions, which affect all writes until the database or the token is fixed, are not
+     * considered as rejection.
+     *
+     * @param ex the exception thrown by the write.
+     *
+     * @return true if the points were rejected.
+     */
+    private static boolean isRejection(final InfluxException ex) {
+        final int status = ex.status();
+        return status >= HttpURLConnection.HTTP_BAD_REQUEST && status < HttpURLConnection.HTTP_INTERNAL_ERROR
+                && status != HttpURLConnection.HTTP_UNAUTHORIZED
+                && status != HttpURLConnection.HTTP_FORBIDDEN
+                && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                && status != HTTP_TOO_MANY_REQUESTS;
+    }
+
+    private void connectToDatabase() {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        connection = new InfluxDbConnection(databaseUrl, token, batchLimit, batchTime, metrics);
+        connection.addConnectionEstablishedHandler(this::replaySpool);
+        connection.addBufferDrainedHandler(this::replaySpool);
+        connection.connect();
     }
 
     private void disconnectDatabase() {
-        try {
-            if (influxDBClient != null) {
-                if (writeApi != null) {
-                    writeApi.flush();
-                }
-                influxDBClient.close();
-                writeApi = null;
-            }
-        } catch (Exception ex) {
-            ExceptionPrinter.printHistory("Could not shutdown database connection!", ex, logger);
+        if (connection != null) {
+            connection.disconnect();
         }
     }
 
     private void getDatabaseBucket() throws NotAvailableException {
         logger.debug("Get bucket " + bucketName);
-        bucket = influxDBClient.getBucketsApi().findBucketByName(bucketName);
+        bucket = connection.getClient().getBucketsApi().findBucketByName(bucketName);
         if (bucket == null) {
             throw new NotAvailableException("bucket", bucketName);
         }
+
+        // make sure the rollup bucket exists
+        if (rollupAggregator != null && connection.getClient().getBucketsApi().findBucketByName(rollupBucketName) == null) {
+            logger.info("Create rollup bucket " + rollupBucketName);
+            connection.getClient().getBucketsApi().createBucket(rollupBucketName, bucket.getOrgID());
+        }
     }
 }
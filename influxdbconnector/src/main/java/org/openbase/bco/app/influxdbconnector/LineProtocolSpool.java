@@ -0,0 +1,363 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only on-disk spool of line protocol records.
+ * <p>
+ * The spool is organized in memory-mapped segment files of a fixed size.
+ * Each record is stored as its byte length followed by the utf-8 encoded line protocol, a length of zero marks the end of a segment.
+ * If the number of segments exceeds the configured limit, the oldest segment gets dropped.
+ * Batches permanently rejected during a replay are moved to rejected files and segments which could not be read are
+ * moved aside as damaged, both in the segment format so they can be replayed manually by renaming them to a segment.
+ * <p>
+ * All records are expected to be encoded with millisecond precision.
+ */
+public class LineProtocolSpool {
+
+    /**
+     * Result of handling a batch of spooled records.
+     */
+    public enum HandleResult {
+        /**
+         * The records were stored.
+         */
+        STORED,
+        /**
+         * The records could not be stored for now, e.g. because the database is not reachable.
+         * The replay is interrupted and the segment is kept to be replayed again.
+         */
+        FAILED,
+        /**
+         * The records were rejected and storing them again would fail as well, e.g. because a record is malformed.
+         * The records are moved to a rejected file and the replay continues.
+         */
+        REJECTED
+    }
+
+    /**
+     * Handler used to replay spooled records.
+     */
+    public interface RecordHandler {
+
+        /**
+         * Stores a batch of consecutive records of a segment.
+         * The handler has to return only after the records are acknowledged, because a segment gets deleted as soon as all of its batches were handled.
+         *
+         * @param records the line protocol records to replay.
+         *
+         * @return the result of storing the records.
+         */
+        HandleResult handle(final List<String> records);
+    }
+
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String REJECTED_PREFIX = "rejected-";
+    private static final String DAMAGED_PREFIX = "damaged-";
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Deque<Path> closedSegments;
+    private long nextSegmentNumber;
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeBuffer;
+    private Path activeSegment;
+
+    /**
+     * Creates a new spool.
+     *
+     * @param directory   the directory to store the segments in.
+     * @param maxSize     the maximal size of the spool in bytes.
+     * @param segmentSize the size of a single segment in bytes.
+     *
+     * @throws CouldNotPerformException is thrown if the spool directory could not be prepared.
+     */
+    public LineProtocolSpool(final Path directory, final long maxSize, final int segmentSize) throws CouldNotPerformException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+        this.closedSegments = new ArrayDeque<>();
+
+        try {
+            Files.createDirectories(directory);
+
+            // recover segments of a previous session
+            final List<Path> segments = new ArrayList<>();
+            try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                stream.forEach(segments::add);
+            }
+            segments.sort((a, b) -> Long.compare(getSegmentNumber(a), getSegmentNumber(b)));
+            closedSegments.addAll(segments);
+            nextSegmentNumber = segments.isEmpty() ? 0 : getSegmentNumber(segments.get(segments.size() - 1)) + 1;
+        } catch (IOException | NumberFormatException ex) {
+            throw new CouldNotPerformException("Could not prepare spool directory " + directory + "!", ex);
+        }
+
+        if (!closedSegments.isEmpty()) {
+            logger.info("Recovered {} spool segments from {}", closedSegments.size(), directory);
+        }
+    }
+
+    private static long getSegmentNumber(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Appends the given record to the spool.
+     *
+     * @param record the line protocol record.
+     *
+     * @throws CouldNotPerformException is thrown if the record could not be stored.
+     */
+    public synchronized void append(final String record) throws CouldNotPerformException {
+        final byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+
+        // reserve space for the length of the record as well as for the end marker
+        final int requiredSpace = LENGTH_BYTES + bytes.length + LENGTH_BYTES;
+        if (requiredSpace > segmentSize) {
+            throw new CouldNotPerformException("Record of " + bytes.length + " bytes exceeds spool segment size!");
+        }
+
+        try {
+            if (activeBuffer == null || activeBuffer.remaining() < requiredSpace) {
+                rotate();
+            }
+            activeBuffer.putInt(bytes.length);
+            activeBuffer.put(bytes);
+        } catch (IOException ex) {
+            throw new CouldNotPerformException("Could not spool record!", ex);
+        }
+    }
+
+    /**
+     * Closes the active segment so its records become available for replay.
+     */
+    private void closeActiveSegment() throws IOException {
+        if (activeBuffer == null) {
+            return;
+        }
+
+        final boolean empty = activeBuffer.position() == 0;
+        activeBuffer.force();
+        activeChannel.close();
+        activeBuffer = null;
+        activeChannel = null;
+
+        if (empty) {
+            Files.deleteIfExists(activeSegment);
+        } else {
+            closedSegments.addLast(activeSegment);
+        }
+        activeSegment = null;
+    }
+
+    private void rotate() throws IOException {
+        closeActiveSegment();
+
+        // drop the oldest segments if the spool is full
+        while (closedSegments.size() >= maxSegments) {
+            final Path droppedSegment = closedSegments.pollFirst();
+            logger.warn("Spool at {} is full, drop oldest segment {}", directory, droppedSegment.getFileName());
+            Files.deleteIfExists(droppedSegment);
+        }
+
+        activeSegment = directory.resolve(SEGMENT_PREFIX + nextSegmentNumber++ + SEGMENT_SUFFIX);
+        activeChannel = FileChannel.open(activeSegment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /**
+     * @return true if no records are spooled.
+     */
+    public synchronized boolean isEmpty() {
+        return closedSegments.isEmpty() && (activeBuffer == null || activeBuffer.position() == 0);
+    }
+
+    /**
+     * Replays all spooled records in the order they were appended, throttled to the given rate.
+     * Each segment is deleted after all of its records were acknowledged by the handler.
+     * Since the progress within a segment is not persisted, an interrupted segment is replayed again from the beginning.
+     * This is fine because influx db overwrites points with the same series and timestamp.
+     * Records appended during the replay are not part of it and are replayed by the next call.
+     * Batches rejected by the handler are moved to a rejected file, so a single bad batch does not block the spool.
+     * If a segment cannot be read, it is moved aside as damaged instead of being deleted, so its remaining records are
+     * not lost.
+     *
+     * @param handler          the handler to pass the records to.
+     * @param recordsPerSecond the maximal number of records replayed per second.
+     * @param batchSize        the maximal number of records passed to the handler at once.
+     *
+     * @return the number of acknowledged records.
+     *
+     * @throws InterruptedException is thrown if the thread was interrupted while throttling.
+     */
+    public long replay(final RecordHandler handler, final int recordsPerSecond, final int batchSize) throws InterruptedException {
+        final List<Path> segments;
+        synchronized (this) {
+            try {
+                closeActiveSegment();
+            } catch (IOException ex) {
+                ExceptionPrinter.printHistory("Could not close active spool segment!", ex, logger);
+            }
+            segments = new ArrayList<>(closedSegments);
+        }
+
+        final long nanosPerRecord = TimeUnit.SECONDS.toNanos(1) / Math.max(1, recordsPerSecond);
+        final List<String> batch = new ArrayList<>(Math.max(1, batchSize));
+        long replayedRecords = 0;
+        long nextBatchTime = System.nanoTime();
+
+        for (final Path segment : segments) {
+            try (final FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                boolean endOfSegment = false;
+                while (!endOfSegment) {
+                    batch.clear();
+                    while (batch.size() < Math.max(1, batchSize)) {
+                        final int length = buffer.remaining() >= LENGTH_BYTES ? buffer.getInt() : 0;
+                        if (length <= 0 || length > buffer.remaining()) {
+                            endOfSegment = true;
+                            break;
+                        }
+                        final byte[] bytes = new byte[length];
+                        buffer.get(bytes);
+                        batch.add(new String(bytes, StandardCharsets.UTF_8));
+                    }
+
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+
+                    // throttle
+                    final long waitTime = nextBatchTime - System.nanoTime();
+                    if (waitTime > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitTime);
+                    }
+                    nextBatchTime = Math.max(nextBatchTime, System.nanoTime() - TimeUnit.SECONDS.toNanos(1)) + nanosPerRecord * batch.size();
+
+                    switch (handler.handle(batch)) {
+                        case STORED:
+                            replayedRecords += batch.size();
+                            break;
+                        case REJECTED:
+                            reject(segment, batch);
+                            break;
+                        case FAILED:
+                        default:
+                            // keep the segment if its records could not be stored
+                            return replayedRecords;
+                    }
+                }
+            } catch (IOException ex) {
+                ExceptionPrinter.printHistory("Could not read spool segment " + segment + "! Segment will be moved aside.", ex, logger);
+                try {
+                    Files.move(segment, directory.resolve(DAMAGED_PREFIX + segment.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException moveException) {
+                    // keep the segment to try again with the next replay
+                    ExceptionPrinter.printHistory("Could not move damaged spool segment " + segment + "!", moveException, logger);
+                    continue;
+                }
+            }
+
+            synchronized (this) {
+                closedSegments.remove(segment);
+            }
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException ex) {
+                ExceptionPrinter.printHistory("Could not delete spool segment " + segment + "!", ex, logger);
+            }
+        }
+        return replayedRecords;
+    }
+
+    /**
+     * Appends a rejected batch of the given segment to the rejected file of the segment.
+     */
+    private void reject(final Path segment, final List<String> batch) {
+        final Path rejectedFile = directory.resolve(REJECTED_PREFIX + segment.getFileName());
+        logger.warn("{} spooled records were rejected and are moved to {}, first record: {}", batch.size(), rejectedFile.getFileName(), batch.get(0));
+
+        int size = 0;
+        final List<byte[]> encodedBatch = new ArrayList<>(batch.size());
+        for (final String record : batch) {
+            final byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            encodedBatch.add(bytes);
+            size += LENGTH_BYTES + bytes.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final byte[] bytes : encodedBatch) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.flip();
+
+        try (final FileChannel channel = FileChannel.open(rejectedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            ExceptionPrinter.printHistory("Could not store rejected records! Records will be skipped.", ex, logger);
+        }
+    }
+
+    /**
+     * Flushes and closes the active segment.
+     */
+    public synchronized void close() {
+        try {
+            closeActiveSegment();
+        } catch (IOException ex) {
+            ExceptionPrinter.printHistory("Could not close spool!", ex, logger);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer.
+ * <p>
+ * Each slot carries a sequence number which tells producers and consumers whether the slot is free or occupied,
+ * so neither side ever blocks. The buffer is designed to be filled by many producers and drained by a single consumer,
+ * but {@link #poll()} is safe to call concurrently as well, which allows producers to evict the oldest element on overflow.
+ *
+ * @param <E> the element type.
+ */
+public class RingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex;
+    private final AtomicLong consumerIndex;
+
+    /**
+     * Creates a new ring buffer.
+     *
+     * @param requestedCapacity the minimal capacity, which is rounded up to the next power of two.
+     */
+    public RingBuffer(final int requestedCapacity) {
+        int capacity = 1;
+        while (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.producerIndex = new AtomicLong();
+        this.consumerIndex = new AtomicLong();
+    }
+
+    /**
+     * Adds the given element if the buffer is not full.
+     *
+     * @param element the element to add.
+     *
+     * @return false if the buffer is full, otherwise true.
+     */
+    public boolean offer(final E element) {
+        while (true) {
+            final long index = producerIndex.get();
+            final int slot = (int) (index & mask);
+            final long sequence = sequences.get(slot);
+
+            if (sequence == index) {
+                if (producerIndex.compareAndSet(index, index + 1)) {
+                    elements.lazySet(slot, element);
+                    sequences.set(slot, index + 1);
+                    return true;
+                }
+            } else if (sequence < index) {
+                // slot not yet consumed, so the buffer is full.
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.
+     *
+     * @return the oldest element or null if the buffer is empty.
+     */
+    public E poll() {
+        while (true) {
+            final long index = consumerIndex.get();
+            final int slot = (int) (index & mask);
+            final long sequence = sequences.get(slot);
+
+            if (sequence == index + 1) {
+                if (consumerIndex.compareAndSet(index, index + 1)) {
+                    final E element = elements.get(slot);
+                    elements.lazySet(slot, null);
+                    sequences.set(slot, index + capacity);
+                    return element;
+                }
+            } else if (sequence < index + 1) {
+                // slot not yet produced, so the buffer is empty.
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the approximate number of elements in the buffer.
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(capacity, producerIndex.get() - consumerIndex.get()));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
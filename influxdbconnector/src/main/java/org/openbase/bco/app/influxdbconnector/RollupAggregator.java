@@ -0,0 +1,270 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder.StateValues;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.UnitTags;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Aggregates the numeric fields of high frequency service states into rollup points.
+ * <p>
+ * For each series, identified by unit and service type, a window is maintained per configured interval.
+ * The windows are aligned to multiples of their interval and track min, max, mean, count and last value of each field.
+ * As soon as a window is completed, a rollup point timestamped with the window start is passed to the point consumer.
+ * Each field is written as {@code <field>_min}, {@code <field>_max}, {@code <field>_mean}, {@code <field>_count} and {@code <field>_last},
+ * while the {@code window} tag contains the interval in seconds.
+ */
+public class RollupAggregator {
+
+    public static final String WINDOW_TAG = "window";
+
+    private final long[] intervals;
+    private final Set<ServiceType> serviceTypes;
+    private final Consumer<Point> pointConsumer;
+    private final Map<String, Map<ServiceType, Window[]>> unitWindowMap;
+
+    /**
+     * Creates a new aggregator.
+     *
+     * @param intervals     the window intervals in milliseconds.
+     * @param serviceTypes  the service types to aggregate.
+     * @param pointConsumer the consumer of the rollup points.
+     */
+    public RollupAggregator(final long[] intervals, final Collection<ServiceType> serviceTypes, final Consumer<Point> pointConsumer) {
+        this.intervals = Arrays.copyOf(intervals, intervals.length);
+        this.serviceTypes = serviceTypes.isEmpty() ? EnumSet.noneOf(ServiceType.class) : EnumSet.copyOf(serviceTypes);
+        this.pointConsumer = pointConsumer;
+        this.unitWindowMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param serviceType the service type to check.
+     *
+     * @return true if states of the given service type are aggregated.
+     */
+    public boolean isAggregated(final ServiceType serviceType) {
+        return serviceTypes.contains(serviceType);
+    }
+
+    /**
+     * Adds the given state to the windows of its series.
+     *
+     * @param unitTags    the tags of the unit providing the state.
+     * @param serviceType the service type of the state.
+     * @param stateValues the extracted values of the state.
+     * @param timestamp   the timestamp of the state in milliseconds.
+     */
+    public void add(final UnitTags unitTags, final ServiceType serviceType, final StateValues stateValues, final long timestamp) {
+        if (!isAggregated(serviceType)) {
+            return;
+        }
+
+        final Window[] windows = unitWindowMap
+                .computeIfAbsent(unitTags.getUnitId(), id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(serviceType, type -> {
+                    final Window[] newWindows = new Window[intervals.length];
+                    for (int i = 0; i < intervals.length; i++) {
+                        newWindows[i] = new Window(serviceType, intervals[i]);
+                    }
+                    return newWindows;
+                });
+
+        for (final Window window : windows) {
+            final Point point = window.add(unitTags, stateValues, timestamp);
+            if (point != null) {
+                pointConsumer.accept(point);
+            }
+        }
+    }
+
+    /**
+     * Emits all windows which ended before the given time. This is required for series which stopped receiving updates.
+     *
+     * @param currentTime the current time in milliseconds.
+     */
+    public void flushExpired(final long currentTime) {
+        flush(window -> window.isExpired(currentTime));
+    }
+
+    /**
+     * Emits all windows including the incomplete ones.
+     */
+    public void flushAll() {
+        flush(window -> true);
+    }
+
+    private void flush(final Predicate<Window> filter) {
+        final List<Point> points = new ArrayList<>();
+        for (final Map<ServiceType, Window[]> serviceWindowMap : unitWindowMap.values()) {
+            for (final Window[] windows : serviceWindowMap.values()) {
+                for (final Window window : windows) {
+                    synchronized (window) {
+                        if (filter.test(window)) {
+                            final Point point = window.emit();
+                            if (point != null) {
+                                points.add(point);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        points.forEach(pointConsumer);
+    }
+
+    /**
+     * @return the smallest configured interval in milliseconds.
+     */
+    public long getMinInterval() {
+        long minInterval = Long.MAX_VALUE;
+        for (final long interval : intervals) {
+            minInterval = Math.min(minInterval, interval);
+        }
+        return minInterval;
+    }
+
+    private static class Window {
+
+        private final String measurement;
+        private final long interval;
+        private final String windowTag;
+
+        private UnitTags unitTags;
+        private ServiceStateEncoder encoder;
+        private long start = -1;
+        private long emittedUntil = Long.MIN_VALUE;
+        private double[] min;
+        private double[] max;
+        private double[] sum;
+        private double[] last;
+        private long[] count;
+
+        private Window(final ServiceType serviceType, final long interval) {
+            this.measurement = serviceType.name().toLowerCase();
+            this.interval = interval;
+            this.windowTag = (interval / 1000) + "s";
+        }
+
+        private synchronized Point add(final UnitTags unitTags, final StateValues stateValues, final long timestamp) {
+            final long windowStart = timestamp - Math.floorMod(timestamp, interval);
+
+            // ignore states belonging to an already emitted window
+            if (windowStart < emittedUntil || (start != -1 && windowStart < start)) {
+                return null;
+            }
+
+            Point point = null;
+            if (windowStart != start || encoder != stateValues.getEncoder()) {
+                point = emit();
+                reset(stateValues.getEncoder(), windowStart);
+            }
+
+            this.unitTags = unitTags;
+            for (int i = 0; i < stateValues.size(); i++) {
+                final double value = stateValues.getNumber(i);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+                sum[i] += value;
+                last[i] = value;
+                count[i]++;
+            }
+            return point;
+        }
+
+        private void reset(final ServiceStateEncoder encoder, final long windowStart) {
+            final int size = encoder.getFieldCount();
+            if (this.encoder != encoder) {
+                this.encoder = encoder;
+                min = new double[size];
+                max = new double[size];
+                sum = new double[size];
+                last = new double[size];
+                count = new long[size];
+            }
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            Arrays.fill(sum, 0d);
+            Arrays.fill(last, Double.NaN);
+            Arrays.fill(count, 0);
+            start = windowStart;
+        }
+
+        private boolean isExpired(final long currentTime) {
+            return start != -1 && currentTime >= start + interval;
+        }
+
+        /**
+         * Creates the rollup point of this window and clears the window.
+         *
+         * @return the rollup point or null if the window does not contain any values.
+         */
+        private Point emit() {
+            if (encoder == null) {
+                return null;
+            }
+
+            Point point = null;
+            for (int i = 0; i < count.length; i++) {
+                if (count[i] == 0) {
+                    continue;
+                }
+                if (point == null) {
+                    point = unitTags.apply(Point.measurement(measurement))
+                            .addTag(WINDOW_TAG, windowTag)
+                            .time(start, WritePrecision.MS);
+                }
+                final String field = encoder.getFieldName(i);
+                point.addField(field + "_min", min[i]);
+                point.addField(field + "_max", max[i]);
+                point.addField(field + "_mean", sum[i] / count[i]);
+                point.addField(field + "_count", count[i]);
+                point.addField(field + "_last", last[i]);
+            }
+
+            // mark window as emitted
+            if (start != -1) {
+                emittedUntil = start + interval;
+            }
+            reset(encoder, start);
+            start = -1;
+            return point;
+        }
+    }
+}
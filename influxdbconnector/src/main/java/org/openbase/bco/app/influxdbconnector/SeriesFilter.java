@@ -0,0 +1,268 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder.StateValues;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.UnitTags;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Filter dropping service state fields which do not carry new information.
+ * <p>
+ * Each numeric field of a service state forms its own series, identified by unit, service type and field.
+ * The filter remembers the last written value of each series, and a field is only written if it changed by more than the deadband of its service type
+ * or if its last written value is older than the keep alive interval.
+ * The tags of a state, including the unit tags and the initiator, identify the influx series all fields are written to.
+ * Therefore, all fields are written if any tag changed.
+ * <p>
+ * Series which do not receive any updates are refreshed by {@link #keepAlive(long, KeepAliveHandler)}, which has to be called periodically.
+ */
+public class SeriesFilter {
+
+    /**
+     * Field mask selecting all fields of a state.
+     */
+    public static final long ALL_FIELDS = -1L;
+
+    /**
+     * Field mask selecting no field of a state, so the state should be dropped.
+     */
+    public static final long NO_FIELDS = 0L;
+
+    private final boolean enabled;
+    private final double defaultDeadband;
+    private final Map<ServiceType, Double> deadbandMap;
+    private final long keepAliveInterval;
+    private final Map<String, Map<ServiceType, Series>> unitSeriesMap;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param enabled           if false, all states are accepted.
+     * @param defaultDeadband   the absolute deadband used for service types without a specific one. A value of 0 only drops exact duplicates.
+     * @param deadbandMap       service type specific deadbands.
+     * @param keepAliveInterval the maximal time in milliseconds between two written values of a series.
+     */
+    public SeriesFilter(final boolean enabled, final double defaultDeadband, final Map<ServiceType, Double> deadbandMap, final long keepAliveInterval) {
+        this.enabled = enabled;
+        this.defaultDeadband = defaultDeadband;
+        this.deadbandMap = deadbandMap.isEmpty() ? new EnumMap<>(ServiceType.class) : new EnumMap<>(deadbandMap);
+        this.keepAliveInterval = keepAliveInterval;
+        this.unitSeriesMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks which fields of the given state should be written. The selected fields are remembered as last written values of their series.
+     * <p>
+     * Fields with an index of 64 or above can not be represented by the mask and are always selected.
+     *
+     * @param unitTags    the tags of the unit providing the state.
+     * @param initiator   the initiator tag of the state.
+     * @param serviceType the service type of the state.
+     * @param stateValues the extracted values of the state.
+     * @param timestamp   the timestamp of the state in milliseconds.
+     *
+     * @return a mask of the fields to write, where bit i selects the field with index i. {@link #NO_FIELDS} if the state should be dropped.
+     */
+    public long accept(final UnitTags unitTags, final String initiator, final ServiceType serviceType, final StateValues stateValues, final long timestamp) {
+        if (!enabled) {
+            return ALL_FIELDS;
+        }
+
+        final Series series = unitSeriesMap
+                .computeIfAbsent(unitTags.getUnitId(), id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(serviceType, type -> new Series());
+
+        synchronized (series) {
+            final boolean tagsChanged = series.update(unitTags, initiator, stateValues);
+            final double deadband = deadbandMap.getOrDefault(serviceType, defaultDeadband);
+
+            long fieldMask = NO_FIELDS;
+            for (int i = 0; i < stateValues.size(); i++) {
+                final double current = stateValues.getNumber(i);
+
+                // tags are written with every point and values which are not available can not be written
+                if (stateValues.getTag(i) != null || Double.isNaN(current)) {
+                    series.numbers[i] = current;
+                    continue;
+                }
+
+                if (tagsChanged
+                        || i >= Long.SIZE
+                        || Double.isNaN(series.numbers[i])
+                        || Math.abs(timestamp - series.timestamps[i]) >= keepAliveInterval
+                        || hasChanged(series.numbers[i], current, deadband)) {
+                    series.numbers[i] = current;
+                    series.timestamps[i] = timestamp;
+                    fieldMask |= fieldBit(i);
+                }
+            }
+
+            // a new influx series needs all fields, even the ones without a numeric value
+            return tagsChanged ? ALL_FIELDS : fieldMask;
+        }
+    }
+
+    /**
+     * Selects all fields of all series whose last written value is older than the keep alive interval and passes them to the given handler.
+     * The latest known values are handed over, even if they were dropped because they did not exceed the deadband.
+     * The selected fields are remembered as written at the given time.
+     *
+     * @param now     the current time in milliseconds, used as timestamp of the refreshed values.
+     * @param handler the handler writing the refreshed values.
+     */
+    public void keepAlive(final long now, final KeepAliveHandler handler) {
+        if (!enabled) {
+            return;
+        }
+
+        for (final Map<ServiceType, Series> serviceTypeSeriesMap : unitSeriesMap.values()) {
+            for (final Entry<ServiceType, Series> entry : serviceTypeSeriesMap.entrySet()) {
+                final Series series = entry.getValue();
+                final StateValues latest;
+                long fieldMask = NO_FIELDS;
+                synchronized (series) {
+                    latest = series.latest;
+                    if (latest == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < latest.size() && i < Long.SIZE; i++) {
+                        final double current = latest.getNumber(i);
+                        if (latest.getTag(i) != null || Double.isNaN(current) || now - series.timestamps[i] < keepAliveInterval) {
+                            continue;
+                        }
+                        series.numbers[i] = current;
+                        series.timestamps[i] = now;
+                        fieldMask |= fieldBit(i);
+                    }
+                }
+
+                if (fieldMask != NO_FIELDS) {
+                    handler.handle(series.unitTags, series.initiator, entry.getKey(), latest, fieldMask, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the interval in milliseconds in which {@link #keepAlive(long, KeepAliveHandler)} should be called.
+     */
+    public long getKeepAliveCheckInterval() {
+        return Math.max(1000, keepAliveInterval / 4);
+    }
+
+    /**
+     * @param fieldMask a mask returned by this filter.
+     * @param index     the index of the field.
+     *
+     * @return true if the field with the given index is selected by the given mask.
+     */
+    public static boolean isSelected(final long fieldMask, final int index) {
+        return index >= Long.SIZE || (fieldMask & fieldBit(index)) != 0;
+    }
+
+    private static long fieldBit(final int index) {
+        return index < Long.SIZE ? 1L << index : NO_FIELDS;
+    }
+
+    private static boolean hasChanged(final double last, final double current, final double deadband) {
+        return deadband <= 0 ? last != current : Math.abs(current - last) > deadband;
+    }
+
+    /**
+     * Forgets all series of the given unit.
+     *
+     * @param unitId the id of the unit.
+     */
+    public void reset(final String unitId) {
+        unitSeriesMap.remove(unitId);
+    }
+
+    /**
+     * Forgets all series.
+     */
+    public void reset() {
+        unitSeriesMap.clear();
+    }
+
+    /**
+     * Handler writing the values selected by a keep alive check.
+     */
+    public interface KeepAliveHandler {
+
+        /**
+         * @param unitTags    the tags of the unit providing the state.
+         * @param initiator   the initiator tag of the state.
+         * @param serviceType the service type of the state.
+         * @param stateValues the latest values of the state.
+         * @param fieldMask   the mask of the fields to write.
+         * @param timestamp   the timestamp to write the values with.
+         */
+        void handle(final UnitTags unitTags, final String initiator, final ServiceType serviceType, final StateValues stateValues, final long fieldMask, final long timestamp);
+    }
+
+    /**
+     * Last written values of all fields of a state. Tag entries are stored as well, since they identify the series of the numeric fields.
+     */
+    private static class Series {
+        private UnitTags unitTags;
+        private String initiator;
+        private StateValues latest;
+        private double[] numbers;
+        private long[] timestamps;
+
+        /**
+         * Stores the given state as latest one and prepares the field arrays.
+         *
+         * @return true if any tag of the state differs from the previous one, so the state belongs to a new influx series.
+         */
+        private boolean update(final UnitTags unitTags, final String initiator, final StateValues stateValues) {
+            boolean tagsChanged = latest == null
+                    || latest.size() != stateValues.size()
+                    || !Objects.equals(this.unitTags, unitTags)
+                    || !Objects.equals(this.initiator, initiator);
+
+            for (int i = 0; !tagsChanged && i < stateValues.size(); i++) {
+                tagsChanged = !Objects.equals(latest.getTag(i), stateValues.getTag(i));
+            }
+
+            if (numbers == null || numbers.length != stateValues.size()) {
+                numbers = new double[stateValues.size()];
+                timestamps = new long[stateValues.size()];
+                Arrays.fill(numbers, Double.NaN);
+            }
+
+            this.unitTags = unitTags;
+            this.initiator = initiator;
+            this.latest = stateValues;
+            return tagsChanged;
+        }
+    }
+}
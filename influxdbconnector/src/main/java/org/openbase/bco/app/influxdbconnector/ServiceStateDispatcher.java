@@ -0,0 +1,291 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.protobuf.Message;
+import org.openbase.bco.dal.lib.layer.unit.Unit;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands service state notifications over to a dedicated writer thread.
+ * <p>
+ * Notifications are queued in a bounded lock-free {@link RingBuffer}, so the threads delivering them are never blocked by encoding or writing.
+ * If the buffer is full, the configured {@link OverflowPolicy} decides what happens to the notification.
+ */
+public class ServiceStateDispatcher {
+
+    /**
+     * Strategy applied if a notification does not fit into the queue anymore.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The oldest queued notification is dropped to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * The notification is parked outside of the queue, replacing any parked notification of the same series.
+         * While a notification of a series is parked, all further notifications of the series replace it instead of being queued,
+         * so they can never overtake the parked one.
+         */
+        COALESCE,
+        /**
+         * The notification is processed on the delivering thread and spilled into the spool.
+         */
+        SPILL
+    }
+
+    /**
+     * Handler processing the dispatched events.
+     */
+    public interface EventHandler {
+
+        /**
+         * @param event the event to process.
+         * @param spill true if the event should be spilled into the spool instead of being written to the database.
+         */
+        void handle(final ServiceStateEvent event, final boolean spill);
+    }
+
+    private static final long IDLE_PARK_TIME = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final RingBuffer<ServiceStateEvent> queue;
+    private final Map<String, ServiceStateEvent> coalescedEventMap;
+    private final OverflowPolicy overflowPolicy;
+    private final EventHandler eventHandler;
+
+    private final AtomicLong enqueuedCounter = new AtomicLong();
+    private final AtomicLong droppedCounter = new AtomicLong();
+    private final AtomicLong coalescedCounter = new AtomicLong();
+    private final AtomicLong spilledCounter = new AtomicLong();
+
+    private volatile boolean active;
+    private volatile boolean spillRemaining;
+    private volatile Thread writerThread;
+
+    /**
+     * Creates a new dispatcher.
+     *
+     * @param capacity       the capacity of the queue.
+     * @param overflowPolicy the policy applied if the queue is full.
+     * @param eventHandler   the handler processing the events.
+     */
+    public ServiceStateDispatcher(final int capacity, final OverflowPolicy overflowPolicy, final EventHandler eventHandler) {
+        this.queue = new RingBuffer<>(capacity);
+        this.coalescedEventMap = new ConcurrentHashMap<>();
+        this.overflowPolicy = overflowPolicy;
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        active = true;
+        writerThread = new Thread(this::drain, "InfluxDbWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread after all queued events were processed.
+     * <p>
+     * If the writer thread does not finish within the given timeout, the remaining events are spilled into the spool instead of being written.
+     * In any case, this method only returns after the writer thread has exited, so the resources used by the event handler can be released afterwards.
+     *
+     * @param timeout the time in milliseconds to wait before the remaining events are spilled.
+     *
+     * @throws InterruptedException is thrown if the thread was interrupted while waiting.
+     */
+    public synchronized void stop(final long timeout) throws InterruptedException {
+        final Thread thread = writerThread;
+        if (thread == null) {
+            return;
+        }
+        active = false;
+        LockSupport.unpark(thread);
+        thread.join(timeout);
+
+        if (thread.isAlive()) {
+            logger.warn("Writer thread did not finish within {} ms, spill {} remaining events.", timeout, getQueueDepth());
+            spillRemaining = true;
+            LockSupport.unpark(thread);
+            while (thread.isAlive()) {
+                thread.join(timeout);
+                if (thread.isAlive()) {
+                    logger.warn("Still waiting for writer thread to finish, {} events remaining.", getQueueDepth());
+                }
+            }
+        }
+        writerThread = null;
+        spillRemaining = false;
+    }
+
+    /**
+     * Queues the given event for the writer thread.
+     *
+     * @param event the event to dispatch.
+     */
+    public void dispatch(final ServiceStateEvent event) {
+        if (overflowPolicy == OverflowPolicy.COALESCE && coalescedEventMap.computeIfPresent(event.getSeriesKey(), (seriesKey, parkedEvent) -> event) != null) {
+            // a parked event of the series would be overtaken by queuing the new one, so replace it instead
+            coalescedCounter.incrementAndGet();
+        } else if (!queue.offer(event)) {
+            handleOverflow(event);
+        } else {
+            enqueuedCounter.incrementAndGet();
+        }
+
+        final Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void handleOverflow(final ServiceStateEvent event) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(event)) {
+                    if (queue.poll() != null) {
+                        droppedCounter.incrementAndGet();
+                    }
+                }
+                enqueuedCounter.incrementAndGet();
+                break;
+            case COALESCE:
+                if (coalescedEventMap.put(event.getSeriesKey(), event) != null) {
+                    coalescedCounter.incrementAndGet();
+                }
+                break;
+            case SPILL:
+                spilledCounter.incrementAndGet();
+                process(event, true);
+                break;
+        }
+    }
+
+    private void drain() {
+        while (active || queue.size() > 0 || !coalescedEventMap.isEmpty()) {
+            ServiceStateEvent event;
+            boolean idle = true;
+
+            while ((event = queue.poll()) != null) {
+                idle = false;
+                process(event, spillRemaining);
+            }
+
+            for (final String seriesKey : coalescedEventMap.keySet()) {
+                // remove by key to always get the latest parked event of the series
+                event = coalescedEventMap.remove(seriesKey);
+                if (event != null) {
+                    idle = false;
+                    process(event, spillRemaining);
+                }
+            }
+
+            if (idle && active) {
+                LockSupport.parkNanos(this, IDLE_PARK_TIME);
+            }
+        }
+    }
+
+    private void process(final ServiceStateEvent event, final boolean spill) {
+        try {
+            eventHandler.handle(event, spill);
+        } catch (RuntimeException ex) {
+            ExceptionPrinter.printHistory("Could not process state event of " + event.getUnit(), ex, logger);
+        }
+    }
+
+    /**
+     * @return the number of events currently waiting to be processed.
+     */
+    public int getQueueDepth() {
+        return queue.size() + coalescedEventMap.size();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCounter.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCounter.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCounter.get();
+    }
+
+    public long getSpilledCount() {
+        return spilledCounter.get();
+    }
+
+    /**
+     * Service state notification of a unit.
+     * The unit data is captured at notification time, so the event is not affected by later updates of the unit.
+     */
+    public static class ServiceStateEvent {
+
+        private final Unit<?> unit;
+        private final String unitId;
+        private final ServiceType serviceType;
+        private final Message unitData;
+
+        public ServiceStateEvent(final Unit<?> unit, final ServiceType serviceType, final Message unitData) throws NotAvailableException {
+            this.unit = unit;
+            this.unitId = unit.getId();
+            this.serviceType = serviceType;
+            this.unitData = unitData;
+        }
+
+        public Unit<?> getUnit() {
+            return unit;
+        }
+
+        public ServiceType getServiceType() {
+            return serviceType;
+        }
+
+        public Message getUnitData() {
+            return unitData;
+        }
+
+        private String getSeriesKey() {
+            return unitId + "/" + serviceType.name();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.influxdb.client.write.Point;
+import org.openbase.jul.exception.InvalidStateException;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.openbase.bco.dal.lib.layer.service.Services.resolveStateValue;
+
+/**
+ * Encodes service states of a specific service type into influx db points.
+ * <p>
+ * The encoder is compiled once out of the message descriptor of the service state,
+ * so it is known in advance which fields are written as numeric fields, which ones are written as tags and which ones are skipped.
+ * Use {@link #getEncoder(ServiceType, Descriptor)} to access the shared encoder instance of a service type.
+ * <p>
+ * Encoding is split into {@link #read(Message)}, which extracts the field values as primitives, and {@link #write(StateValues, Point)},
+ * so the extracted values can be inspected before the point is written.
+ */
+public class ServiceStateEncoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceStateEncoder.class);
+
+    private static final Map<ServiceType, ServiceStateEncoder> ENCODER_MAP = new ConcurrentHashMap<>();
+
+    private final Descriptor descriptor;
+    private final FieldEncoder[] fieldEncoders;
+
+    private ServiceStateEncoder(final Descriptor descriptor) {
+        this.descriptor = descriptor;
+
+        final List<FieldEncoder> fieldEncoderList = new ArrayList<>();
+        for (final FieldDescriptor fieldDescriptor : descriptor.getFields()) {
+            final FieldEncoder fieldEncoder = compile(fieldDescriptor);
+            if (fieldEncoder != null) {
+                fieldEncoderList.add(fieldEncoder);
+            }
+        }
+        this.fieldEncoders = fieldEncoderList.toArray(new FieldEncoder[0]);
+    }
+
+    /**
+     * Returns the encoder of the given service type. The encoder is compiled on first access.
+     *
+     * @param serviceType the service type to encode.
+     * @param descriptor  the descriptor of the service state message of the service type.
+     *
+     * @return the shared encoder instance.
+     */
+    public static ServiceStateEncoder getEncoder(final ServiceType serviceType, final Descriptor descriptor) {
+        final ServiceStateEncoder encoder = ENCODER_MAP.get(serviceType);
+        if (encoder != null && encoder.descriptor == descriptor) {
+            return encoder;
+        }
+        return ENCODER_MAP.compute(serviceType, (type, current) -> (current != null && current.descriptor == descriptor) ? current : new ServiceStateEncoder(descriptor));
+    }
+
+    /**
+     * Writes all state values of the given service state into the given point.
+     *
+     * @param serviceState the service state to encode.
+     * @param point        the point to write the values to.
+     *
+     * @return the number of numeric fields added to the point.
+     */
+    public int encode(final Message serviceState, final Point point) {
+        return write(read(serviceState), point);
+    }
+
+    /**
+     * Extracts the values of all encoded fields of the given service state.
+     *
+     * @param serviceState the service state to read.
+     *
+     * @return the extracted values.
+     */
+    public StateValues read(final Message serviceState) {
+        final StateValues stateValues = new StateValues(this);
+        for (int i = 0; i < fieldEncoders.length; i++) {
+            fieldEncoders[i].read(serviceState, stateValues, i);
+        }
+        return stateValues;
+    }
+
+    /**
+     * Writes the given values into the given point.
+     *
+     * @param stateValues the values to write, previously extracted by this encoder.
+     * @param point       the point to write the values to.
+     *
+     * @return the number of numeric fields added to the point.
+     */
+    public int write(final StateValues stateValues, final Point point) {
+        return write(stateValues, point, SeriesFilter.ALL_FIELDS);
+    }
+
+    /**
+     * Writes all tags and the selected numeric fields of the given values into the given point.
+     *
+     * @param stateValues the values to write, previously extracted by this encoder.
+     * @param point       the point to write the values to.
+     * @param fieldMask   the mask of the numeric fields to write, as computed by the {@link SeriesFilter}.
+     *
+     * @return the number of numeric fields added to the point.
+     */
+    public int write(final StateValues stateValues, final Point point, final long fieldMask) {
+        int values = 0;
+        for (int i = 0; i < fieldEncoders.length; i++) {
+            if (stateValues.tags[i] != null) {
+                point.addTag(fieldEncoders[i].name, stateValues.tags[i]);
+            } else if (!Double.isNaN(stateValues.numbers[i]) && SeriesFilter.isSelected(fieldMask, i)) {
+                point.addField(fieldEncoders[i].name, stateValues.numbers[i]);
+                values++;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the names of the fields which are encoded.
+     *
+     * @return a list of field names.
+     */
+    public List<String> getEncodedFieldNames() {
+        final List<String> fieldNames = new ArrayList<>(fieldEncoders.length);
+        for (final FieldEncoder fieldEncoder : fieldEncoders) {
+            fieldNames.add(fieldEncoder.name);
+        }
+        return fieldNames;
+    }
+
+    /**
+     * @return the number of encoded fields.
+     */
+    public int getFieldCount() {
+        return fieldEncoders.length;
+    }
+
+    /**
+     * @param index the index of the field.
+     *
+     * @return the name of the field at the given index.
+     */
+    public String getFieldName(final int index) {
+        return fieldEncoders[index].name;
+    }
+
+    private static FieldEncoder compile(final FieldDescriptor fieldDescriptor) {
+        final String name = fieldDescriptor.getName();
+
+        // filter general service fields
+        switch (name) {
+            case "aggregated_value_coverage":
+            case "last_value_occurrence":
+            case "timestamp":
+            case "responsible_action":
+            case "type":
+            case "rgb_color":
+            case "frame_id":
+                return null;
+        }
+
+        // filter data units
+        if (name.endsWith("data_unit")) {
+            return null;
+        }
+
+        // repeated fields can not be represented by a single value
+        if (fieldDescriptor.isRepeated()) {
+            return null;
+        }
+
+        switch (fieldDescriptor.getJavaType()) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return new NumberFieldEncoder(fieldDescriptor);
+            case ENUM:
+                return new EnumFieldEncoder(fieldDescriptor);
+            case BOOLEAN:
+                return new BooleanFieldEncoder(fieldDescriptor);
+            case STRING:
+                return new StringFieldEncoder(fieldDescriptor);
+            case MESSAGE:
+                return new MessageFieldEncoder(fieldDescriptor);
+            case BYTE_STRING:
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks if the given value is a plain decimal number.
+     */
+    static boolean isNumeric(final String value) {
+        final int length = value.length();
+        int i = (length > 0 && value.charAt(0) == '-') ? 1 : 0;
+        if (i >= length) {
+            return false;
+        }
+
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && digits && !dot) {
+                dot = true;
+                digits = false;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    private static void readValue(final Object value, final StateValues stateValues, final int index) {
+        if (value instanceof Number) {
+            final double doubleValue = ((Number) value).doubleValue();
+            if (Double.isFinite(doubleValue)) {
+                stateValues.numbers[index] = doubleValue;
+            }
+            return;
+        } else if (value instanceof EnumValueDescriptor) {
+            stateValues.numbers[index] = ((EnumValueDescriptor) value).getNumber();
+            return;
+        } else if (value instanceof Boolean) {
+            stateValues.tags[index] = ((Boolean) value) ? "true" : "false";
+            return;
+        }
+
+        final String stringValue = value.toString();
+        if (stringValue.isEmpty() || stringValue.equals("NaN")) {
+            return;
+        }
+
+        if (isNumeric(stringValue)) {
+            stateValues.numbers[index] = Double.parseDouble(stringValue);
+            return;
+        }
+        stateValues.tags[index] = stringValue.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Values of a single service state extracted by an encoder.
+     * <p>
+     * For each encoded field either a tag or a number is set. Numbers which are not available are set to {@code NaN}.
+     */
+    public static class StateValues {
+
+        private final ServiceStateEncoder encoder;
+        private final double[] numbers;
+        private final String[] tags;
+
+        private StateValues(final ServiceStateEncoder encoder) {
+            this.encoder = encoder;
+            this.numbers = new double[encoder.fieldEncoders.length];
+            this.tags = new String[encoder.fieldEncoders.length];
+            Arrays.fill(numbers, Double.NaN);
+        }
+
+        public ServiceStateEncoder getEncoder() {
+            return encoder;
+        }
+
+        public int size() {
+            return numbers.length;
+        }
+
+        /**
+         * @param index the index of the field.
+         *
+         * @return the numeric value of the field or {@code NaN} if the field is not numeric or not available.
+         */
+        public double getNumber(final int index) {
+            return numbers[index];
+        }
+
+        /**
+         * @param index the index of the field.
+         *
+         * @return the tag value of the field or null if the field is numeric or not available.
+         */
+        public String getTag(final int index) {
+            return tags[index];
+        }
+    }
+
+    private static abstract class FieldEncoder {
+
+        protected final FieldDescriptor fieldDescriptor;
+        protected final String name;
+
+        FieldEncoder(final FieldDescriptor fieldDescriptor) {
+            this.fieldDescriptor = fieldDescriptor;
+            this.name = fieldDescriptor.getName();
+        }
+
+        abstract void read(final Message serviceState, final StateValues stateValues, final int index);
+    }
+
+    private static class NumberFieldEncoder extends FieldEncoder {
+
+        NumberFieldEncoder(final FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        void read(final Message serviceState, final StateValues stateValues, final int index) {
+            final double value = ((Number) serviceState.getField(fieldDescriptor)).doubleValue();
+            if (Double.isFinite(value)) {
+                stateValues.numbers[index] = value;
+            }
+        }
+    }
+
+    private static class EnumFieldEncoder extends FieldEncoder {
+
+        EnumFieldEncoder(final FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        void read(final Message serviceState, final StateValues stateValues, final int index) {
+            stateValues.numbers[index] = ((EnumValueDescriptor) serviceState.getField(fieldDescriptor)).getNumber();
+        }
+    }
+
+    private static class BooleanFieldEncoder extends FieldEncoder {
+
+        BooleanFieldEncoder(final FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        void read(final Message serviceState, final StateValues stateValues, final int index) {
+            stateValues.tags[index] = ((Boolean) serviceState.getField(fieldDescriptor)) ? "true" : "false";
+        }
+    }
+
+    private static class StringFieldEncoder extends FieldEncoder {
+
+        StringFieldEncoder(final FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        void read(final Message serviceState, final StateValues stateValues, final int index) {
+            readValue(serviceState.getField(fieldDescriptor), stateValues, index);
+        }
+    }
+
+    private static class MessageFieldEncoder extends FieldEncoder {
+
+        MessageFieldEncoder(final FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        void read(final Message serviceState, final StateValues stateValues, final int index) {
+            final Object value;
+            try {
+                value = resolveStateValue((Message) serviceState.getField(fieldDescriptor));
+            } catch (InvalidStateException ex) {
+                LOGGER.warn("Could not process value of " + name);
+                return;
+            }
+            readValue(value, stateValues, index);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.protobuf.Message;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder.StateValues;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.UnitTags;
+import org.openbase.bco.dal.lib.layer.service.Services;
+import org.openbase.jul.exception.InvalidStateException;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.extension.type.processing.TimestampProcessor;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns service states into points and hands them over to a {@link PointWriter}.
+ * <p>
+ * This covers the complete path of a service state inside the connector: encoding, rollup aggregation, series filtering and tagging.
+ * Transmitting the points is up to the point writer, which allows to exercise the path without a database.
+ */
+public class ServiceStateWriter {
+
+    /**
+     * Destination of the points created by a {@link ServiceStateWriter}.
+     */
+    public interface PointWriter {
+
+        /**
+         * @param bucket the bucket to write to.
+         * @param point  the point to write.
+         * @param spill  if true the point should be stored in the spool instead of being written to the database.
+         *
+         * @return true if the point was passed to the write api, false if it was spooled or dropped.
+         */
+        boolean writePoint(final String bucket, final Point point, final boolean spill);
+    }
+
+    private final String bucketName;
+    private final SeriesFilter seriesFilter;
+    private final RollupAggregator rollupAggregator;
+    private final ConnectorMetrics metrics;
+    private final PointWriter pointWriter;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param bucketName       the bucket to write the service states to.
+     * @param seriesFilter     the filter dropping fields without new information.
+     * @param rollupAggregator the aggregator of current states, or null if no rollups are computed.
+     * @param metrics          the metrics to report encoding and filtering to.
+     * @param pointWriter      the destination of the points.
+     */
+    public ServiceStateWriter(final String bucketName, final SeriesFilter seriesFilter, final RollupAggregator rollupAggregator, final ConnectorMetrics metrics, final PointWriter pointWriter) {
+        this.bucketName = bucketName;
+        this.seriesFilter = seriesFilter;
+        this.rollupAggregator = rollupAggregator;
+        this.metrics = metrics;
+        this.pointWriter = pointWriter;
+    }
+
+    /**
+     * Writes the given service state if it passes the series filter.
+     * <p>
+     * The previous state completes the step to the new value, so it is written with the same fields whenever the given state passes the filter.
+     * It is not checked by the filter itself, since it always carries the values which were written before.
+     *
+     * @param unitTags             the tags of the unit providing the state.
+     * @param serviceType          the service type of the state.
+     * @param serviceState         the state to write.
+     * @param previousServiceState the previous state with a timestamp right before the given state, or null if not available.
+     * @param current              true if the state is the current one and not a last known one. Only current states are aggregated.
+     * @param spill                true if the points should be spilled into the spool instead of being written to the database.
+     *
+     * @throws InvalidStateException is thrown if a state does not provide a timestamp.
+     */
+    public void write(final UnitTags unitTags, final ServiceType serviceType, final Message serviceState, final Message previousServiceState, final boolean current, final boolean spill) throws InvalidStateException {
+        final long timestamp = TimestampProcessor.getTimestamp(serviceState, TimeUnit.MILLISECONDS);
+        final long previousTimestamp = previousServiceState != null ? TimestampProcessor.getTimestamp(previousServiceState, TimeUnit.MILLISECONDS) : 0;
+
+        final long readStartTime = System.nanoTime();
+        final ServiceStateEncoder encoder = ServiceStateEncoder.getEncoder(serviceType, serviceState.getDescriptorForType());
+        final String initiator = getInitiator(serviceState);
+        final StateValues stateValues = encoder.read(serviceState);
+        final long readTime = System.nanoTime() - readStartTime;
+
+        // aggregate all current states, even the ones without new information to keep the rollup statistics correct
+        if (current && rollupAggregator != null) {
+            rollupAggregator.add(unitTags, serviceType, stateValues, timestamp);
+        }
+
+        // skip states without new information
+        final long fieldMask = seriesFilter.accept(unitTags, initiator, serviceType, stateValues, timestamp);
+        if (fieldMask == SeriesFilter.NO_FIELDS) {
+            metrics.pointFiltered();
+            return;
+        }
+
+        if (previousServiceState != null) {
+            final long previousReadStartTime = System.nanoTime();
+            final String previousInitiator = getInitiator(previousServiceState);
+            final StateValues previousStateValues = encoder.read(previousServiceState);
+            write(unitTags, previousInitiator, serviceType, previousStateValues, fieldMask, previousTimestamp, spill, System.nanoTime() - previousReadStartTime);
+        }
+        write(unitTags, initiator, serviceType, stateValues, fieldMask, timestamp, spill, readTime);
+    }
+
+    /**
+     * Refreshes all series whose last written value is older than the keep alive interval of the series filter.
+     *
+     * @param now the current time in milliseconds.
+     */
+    public void keepAlive(final long now) {
+        seriesFilter.keepAlive(now, (unitTags, initiator, serviceType, stateValues, fieldMask, timestamp) -> {
+            // the values were read when the series was last written, so only building the point is measured
+            write(unitTags, initiator, serviceType, stateValues, fieldMask, timestamp, false, 0);
+        });
+    }
+
+    /**
+     * Builds and writes the point of a state.
+     *
+     * @param readTime the time in nanoseconds needed to read the state values, which is part of the recorded encode time.
+     */
+    private void write(final UnitTags unitTags, final String initiator, final ServiceType serviceType, final StateValues stateValues, final long fieldMask, final long timestamp, final boolean spill, final long readTime) {
+        final long encodeStartTime = System.nanoTime() - readTime;
+        final Point point = unitTags.apply(Point.measurement(serviceType.name().toLowerCase()))
+                .addTag("initiator", initiator)
+                .time(timestamp, WritePrecision.MS);
+
+        final int values = stateValues.getEncoder().write(stateValues, point, fieldMask);
+        metrics.encoded(System.nanoTime() - encodeStartTime);
+
+        if (values > 0 && pointWriter.writePoint(bucketName, point, spill)) {
+            metrics.pointWritten(serviceType);
+        }
+    }
+
+    private static String getInitiator(final Message serviceState) {
+        try {
+            return Services.getResponsibleAction(serviceState).getActionInitiator().getInitiatorType().name().toLowerCase();
+        } catch (NotAvailableException ex) {
+            // in this case we use the system as initiator because responsible actions are not available for pure provider services and those are always system generated.
+            return "system";
+        }
+    }
+}
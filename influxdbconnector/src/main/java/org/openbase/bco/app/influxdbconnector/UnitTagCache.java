@@ -0,0 +1,228 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.write.Point;
+import org.openbase.bco.dal.lib.layer.unit.Unit;
+import org.openbase.bco.registry.remote.Registries;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.pattern.Observer;
+import org.openbase.jul.pattern.provider.DataProvider;
+import org.openbase.type.domotic.registry.UnitRegistryDataType.UnitRegistryData;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.language.LabelType.Label.MapFieldEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the unit specific tags attached to each point written into influx db.
+ * <p>
+ * The tags are computed once per unit and reused until the config of the unit changes.
+ * On updates of the unit registry only the tags of units whose location was removed or renamed are evicted.
+ */
+public class UnitTagCache {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, UnitTags> unitTagMap;
+    private final Observer<DataProvider<UnitRegistryData>, UnitRegistryData> unitRegistryObserver;
+
+    public UnitTagCache() {
+        this.unitTagMap = new ConcurrentHashMap<>();
+        this.unitRegistryObserver = (source, data) -> evictChangedLocations(data);
+    }
+
+    /**
+     * Registers the registry observer used to invalidate the cache.
+     *
+     * @throws CouldNotPerformException is thrown if the unit registry is not available.
+     */
+    public void activate() throws CouldNotPerformException {
+        unitTagMap.clear();
+        Registries.getUnitRegistry().addDataObserver(unitRegistryObserver);
+    }
+
+    /**
+     * Deregisters the registry observer and clears the cache.
+     */
+    public void deactivate() {
+        try {
+            Registries.getUnitRegistry().removeDataObserver(unitRegistryObserver);
+        } catch (CouldNotPerformException ex) {
+            ExceptionPrinter.printHistory("Could not deregister unit registry observer!", ex, logger);
+        }
+        unitTagMap.clear();
+    }
+
+    /**
+     * Evicts the tags of all units whose location was removed or has a different alias in the given registry data.
+     * Changes of the unit config itself are detected when the tags are requested.
+     *
+     * @param data the current data of the unit registry.
+     */
+    private void evictChangedLocations(final UnitRegistryData data) {
+        final Map<String, String> locationAliasMap = new HashMap<>();
+        for (final UnitConfig locationConfig : data.getLocationUnitConfigList()) {
+            locationAliasMap.put(locationConfig.getId(), locationConfig.getAlias(0));
+        }
+        unitTagMap.values().removeIf(unitTags -> !unitTags.locationAlias.equals(locationAliasMap.get(unitTags.locationId)));
+    }
+
+    /**
+     * Returns the cached tags of the given unit. If not cached yet, the tags are computed and stored.
+     *
+     * @param unit the unit to resolve the tags for.
+     *
+     * @return the tags of the unit.
+     *
+     * @throws CouldNotPerformException is thrown if the unit or location config is not available.
+     */
+    public UnitTags getTags(final Unit<?> unit) throws CouldNotPerformException {
+        return getTags(unit.getConfig(), unit::getParentLocationConfig);
+    }
+
+    /**
+     * Returns the cached tags of the unit with the given config. If not cached yet, the tags are computed and stored.
+     *
+     * @param unitConfig             the current config of the unit.
+     * @param locationConfigProvider provides the config of the location the unit is placed in, only called if the tags are computed.
+     *
+     * @return the tags of the unit.
+     *
+     * @throws CouldNotPerformException is thrown if the location config is not available.
+     */
+    public UnitTags getTags(final UnitConfig unitConfig, final LocationConfigProvider locationConfigProvider) throws CouldNotPerformException {
+        final UnitTags unitTags = unitTagMap.get(unitConfig.getId());
+
+        // the config instance is replaced by the unit on each update, so a different instance means the entry is outdated.
+        if (unitTags != null && unitTags.unitConfig == unitConfig) {
+            return unitTags;
+        }
+
+        final UnitTags newUnitTags = new UnitTags(unitConfig, locationConfigProvider.getLocationConfig());
+        unitTagMap.put(unitConfig.getId(), newUnitTags);
+        return newUnitTags;
+    }
+
+    /**
+     * Resolves the location config of a unit.
+     */
+    public interface LocationConfigProvider {
+
+        /**
+         * @return the config of the location the unit is placed in.
+         *
+         * @throws CouldNotPerformException is thrown if the location config is not available.
+         */
+        UnitConfig getLocationConfig() throws CouldNotPerformException;
+    }
+
+    /**
+     * Immutable set of tags describing a unit.
+     * Tags are equal if they consist of the same keys and values, independent of the config instance they were computed from.
+     */
+    public static class UnitTags {
+
+        private final UnitConfig unitConfig;
+        private final String locationId;
+        private final String locationAlias;
+        private final String[] keys;
+        private final String[] values;
+        private final int hashCode;
+
+        /**
+         * Creates the tags of a unit based on its configuration.
+         *
+         * @param unitConfig     the configuration of the unit.
+         * @param locationConfig the configuration of the location the unit is placed in.
+         */
+        public UnitTags(final UnitConfig unitConfig, final UnitConfig locationConfig) {
+            this.unitConfig = unitConfig;
+            this.locationId = locationConfig.getId();
+            this.locationAlias = locationConfig.getAlias(0);
+
+            final int labelCount = unitConfig.getLabel().getEntryCount();
+
+            this.keys = new String[5 + labelCount];
+            this.values = new String[5 + labelCount];
+
+            int i = 0;
+            keys[i] = "alias";
+            values[i++] = unitConfig.getAlias(0);
+            keys[i] = "unit_id";
+            values[i++] = unitConfig.getId();
+            keys[i] = "unit_type";
+            values[i++] = unitConfig.getUnitType().name().toLowerCase();
+            keys[i] = "location_id";
+            values[i++] = locationId;
+            keys[i] = "location_alias";
+            values[i++] = locationAlias;
+            for (final MapFieldEntry entry : unitConfig.getLabel().getEntryList()) {
+                keys[i] = "label_" + entry.getKey();
+                values[i++] = entry.getValue(0);
+            }
+            this.hashCode = 31 * Arrays.hashCode(keys) + Arrays.hashCode(values);
+        }
+
+        /**
+         * Adds all tags to the given point.
+         *
+         * @param point the point to tag.
+         *
+         * @return the given point.
+         */
+        public Point apply(final Point point) {
+            for (int i = 0; i < keys.length; i++) {
+                point.addTag(keys[i], values[i]);
+            }
+            return point;
+        }
+
+        public String getUnitId() {
+            return unitConfig.getId();
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof UnitTags)) {
+                return false;
+            }
+            final UnitTags other = (UnitTags) object;
+            return hashCode == other.hashCode && Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.write.Point;
+import org.junit.Test;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectorMetricsTest {
+
+    private static final double DELTA = 0.0001;
+
+    /**
+     * Reads a numeric field out of the line protocol of a point.
+     */
+    private static double field(final Point point, final String fieldName) {
+        final String[] parts = point.toLineProtocol().split(" ");
+        for (final String field : parts[1].split(",")) {
+            final String[] keyValue = field.split("=", 2);
+            if (keyValue[0].equals(fieldName)) {
+                final String value = keyValue[1].endsWith("i") ? keyValue[1].substring(0, keyValue[1].length() - 1) : keyValue[1];
+                return Double.parseDouble(value);
+            }
+        }
+        throw new AssertionError("Field[" + fieldName + "] missing in " + point.toLineProtocol());
+    }
+
+    /**
+     * @return the point containing the connector wide metrics, which is always the last one.
+     */
+    private static Point summary(final List<Point> points) {
+        return points.get(points.size() - 1);
+    }
+
+    @Test
+    public void testCountersAreReset() {
+        final ConnectorMetrics metrics = new ConnectorMetrics();
+        metrics.pointFiltered();
+        metrics.pointFiltered();
+        metrics.pointSpooled();
+        metrics.pointDropped();
+        metrics.retried();
+        metrics.writeFailed();
+
+        final Point point = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(2, field(point, "filtered_points"), DELTA);
+        assertEquals(1, field(point, "spooled_points"), DELTA);
+        assertEquals(1, field(point, "dropped_points"), DELTA);
+        assertEquals(1, field(point, "retries"), DELTA);
+        assertEquals(1, field(point, "write_errors"), DELTA);
+
+        final Point nextPoint = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(0, field(nextPoint, "filtered_points"), DELTA);
+        assertEquals(0, field(nextPoint, "spooled_points"), DELTA);
+        assertEquals(0, field(nextPoint, "dropped_points"), DELTA);
+        assertEquals(0, field(nextPoint, "retries"), DELTA);
+        assertEquals(0, field(nextPoint, "write_errors"), DELTA);
+    }
+
+    @Test
+    public void testQueueDropsAndCoalescesAreSeparate() {
+        final ConnectorMetrics metrics = new ConnectorMetrics();
+        final AtomicLong drops = new AtomicLong(5);
+        final AtomicLong coalesces = new AtomicLong(7);
+        metrics.setQueue(() -> 3, drops::get, coalesces::get);
+        metrics.pointDropped();
+
+        final Point point = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(3, field(point, "queue_depth"), DELTA);
+        assertEquals(6, field(point, "dropped_points"), DELTA);
+        assertEquals(7, field(point, "coalesced_points"), DELTA);
+
+        // the queue reports totals, so only the increase is published
+        drops.set(6);
+        coalesces.set(10);
+        final Point nextPoint = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(1, field(nextPoint, "dropped_points"), DELTA);
+        assertEquals(3, field(nextPoint, "coalesced_points"), DELTA);
+    }
+
+    @Test
+    public void testPointsPerSecond() {
+        final ConnectorMetrics metrics = new ConnectorMetrics();
+        final long timestamp = System.currentTimeMillis();
+        metrics.createPoints(timestamp);
+
+        for (int i = 0; i < 4; i++) {
+            metrics.pointWritten(ServiceType.POWER_STATE_SERVICE);
+        }
+        metrics.pointWritten(ServiceType.BRIGHTNESS_STATE_SERVICE);
+        metrics.pointWritten(ServiceType.BRIGHTNESS_STATE_SERVICE);
+        // points not related to a service are not counted
+        metrics.pointWritten(null);
+
+        final List<Point> points = metrics.createPoints(timestamp + TimeUnit.SECONDS.toMillis(2));
+        assertEquals(3, points.size());
+        boolean powerReported = false;
+        for (final Point point : points.subList(0, 2)) {
+            if (point.toLineProtocol().contains("service_type=power_state_service")) {
+                assertEquals(2, field(point, "points_per_second"), DELTA);
+                powerReported = true;
+            } else {
+                assertTrue(point.toLineProtocol().contains("service_type=brightness_state_service"));
+                assertEquals(1, field(point, "points_per_second"), DELTA);
+            }
+        }
+        assertTrue(powerReported);
+        assertEquals(3, field(summary(points), "points_per_second"), DELTA);
+
+        // services without points in the interval are not reported
+        assertEquals(1, metrics.createPoints(timestamp + TimeUnit.SECONDS.toMillis(3)).size());
+    }
+
+    @Test
+    public void testEncodeTime() {
+        final ConnectorMetrics metrics = new ConnectorMetrics();
+        for (int i = 0; i < 90; i++) {
+            metrics.encoded(500);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.encoded(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        final Point point = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(100, field(point, "encoded_states"), DELTA);
+        assertEquals(100.45, field(point, "encode_time_mean_us"), DELTA);
+        // durations below one microsecond fall into the first bucket
+        assertEquals(1, field(point, "encode_time_p50_us"), DELTA);
+        // one millisecond falls into the bucket of durations below 1024 microseconds
+        assertEquals(1024, field(point, "encode_time_p99_us"), DELTA);
+
+        final Point nextPoint = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(0, field(nextPoint, "encoded_states"), DELTA);
+        assertEquals(0, field(nextPoint, "encode_time_p99_us"), DELTA);
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        final ConnectorMetrics metrics = new ConnectorMetrics();
+        metrics.pointWritten(ServiceType.POWER_STATE_SERVICE);
+        Thread.sleep(20);
+        metrics.batchWritten("a\nb\nc");
+        metrics.batchWritten("d");
+
+        final Point point = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(2, field(point, "batches"), DELTA);
+        assertEquals(2, field(point, "batch_size_mean"), DELTA);
+        // only the first batch has a latency, measured from the first buffered point
+        assertTrue(field(point, "flush_latency_max_ms") >= 20);
+
+        final Point nextPoint = summary(metrics.createPoints(System.currentTimeMillis()));
+        assertEquals(0, field(nextPoint, "batches"), DELTA);
+        assertEquals(0, field(nextPoint, "flush_latency_max_ms"), DELTA);
+    }
+}
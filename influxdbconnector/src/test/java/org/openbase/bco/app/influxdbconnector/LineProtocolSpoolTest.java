@@ -0,0 +1,187 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openbase.bco.app.influxdbconnector.LineProtocolSpool.HandleResult;
+import org.openbase.jul.exception.CouldNotPerformException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineProtocolSpoolTest {
+
+    /**
+     * Each record requires 33 bytes including its length and the end marker, so two records fit into one segment.
+     */
+    private static final int SEGMENT_SIZE = 64;
+    private static final int RECORDS_PER_SECOND = 1000000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static String record(final int index) {
+        return String.format("measurement v=%011d", index);
+    }
+
+    private static List<String> records(final int from, final int to) {
+        final List<String> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+
+    private static int countSegments(final Path directory) throws IOException {
+        int segments = 0;
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path ignored : stream) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    private static List<String> replayAll(final LineProtocolSpool spool) throws InterruptedException {
+        final List<String> replayed = new ArrayList<>();
+        spool.replay(records -> {
+            replayed.addAll(records);
+            return HandleResult.STORED;
+        }, RECORDS_PER_SECOND, 10);
+        return replayed;
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final LineProtocolSpool spool = new LineProtocolSpool(directory, 1024, SEGMENT_SIZE);
+        assertTrue(spool.isEmpty());
+
+        for (final String record : records(0, 6)) {
+            spool.append(record);
+        }
+        assertFalse(spool.isEmpty());
+        assertEquals("Records are not distributed over the expected number of segments!", 3, countSegments(directory));
+
+        assertEquals(records(0, 6), replayAll(spool));
+        assertTrue(spool.isEmpty());
+        assertEquals("Replayed segments are not deleted!", 0, countSegments(directory));
+    }
+
+    @Test
+    public void testDropOldestSegment() throws Exception {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final LineProtocolSpool spool = new LineProtocolSpool(directory, 2 * SEGMENT_SIZE, SEGMENT_SIZE);
+
+        for (final String record : records(0, 10)) {
+            spool.append(record);
+        }
+
+        // two closed segments are kept beside the active one, so only the last two segments survive the replay snapshot
+        assertEquals(records(6, 10), replayAll(spool));
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testPartialReplay() throws Exception {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final LineProtocolSpool spool = new LineProtocolSpool(directory, 1024, SEGMENT_SIZE);
+        for (final String record : records(0, 6)) {
+            spool.append(record);
+        }
+
+        // acknowledge the first segment and the first record of the second one
+        final List<String> acknowledged = new ArrayList<>();
+        final long replayedRecords = spool.replay(records -> acknowledged.size() < 3 && acknowledged.addAll(records) ? HandleResult.STORED : HandleResult.FAILED, RECORDS_PER_SECOND, 1);
+        assertEquals(3, replayedRecords);
+        assertEquals(records(0, 3), acknowledged);
+        assertFalse(spool.isEmpty());
+
+        // the interrupted segment is replayed again from its beginning
+        assertEquals(records(2, 6), replayAll(spool));
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testRejectedBatch() throws Exception {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final LineProtocolSpool spool = new LineProtocolSpool(directory, 1024, SEGMENT_SIZE);
+        for (final String record : records(0, 6)) {
+            spool.append(record);
+        }
+
+        // a rejected batch does not interrupt the replay of the following ones
+        final List<String> stored = new ArrayList<>();
+        final long replayedRecords = spool.replay(records -> {
+            if (records.contains(record(2))) {
+                return HandleResult.REJECTED;
+            }
+            stored.addAll(records);
+            return HandleResult.STORED;
+        }, RECORDS_PER_SECOND, 1);
+        assertEquals(5, replayedRecords);
+        assertEquals(Arrays.asList(record(0), record(1), record(3), record(4), record(5)), stored);
+        assertTrue(spool.isEmpty());
+        assertEquals("Rejected records are not kept!", 1, countSegments(directory));
+
+        // rejected records are stored in the segment format, so they can be replayed after renaming them to a segment
+        final Path rejectedFile;
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            rejectedFile = stream.iterator().next();
+        }
+        Files.move(rejectedFile, directory.resolve("spool-100.seg"));
+        assertEquals(Collections.singletonList(record(2)), replayAll(new LineProtocolSpool(directory, 1024, SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final LineProtocolSpool spool = new LineProtocolSpool(directory, 1024, SEGMENT_SIZE);
+        for (final String record : records(0, 3)) {
+            spool.append(record);
+        }
+        spool.close();
+
+        final LineProtocolSpool recoveredSpool = new LineProtocolSpool(directory, 1024, SEGMENT_SIZE);
+        recoveredSpool.append(record(3));
+        assertEquals(records(0, 4), replayAll(recoveredSpool));
+    }
+
+    @Test(expected = CouldNotPerformException.class)
+    public void testRecordExceedsSegment() throws Exception {
+        final LineProtocolSpool spool = new LineProtocolSpool(temporaryFolder.newFolder().toPath(), 1024, SEGMENT_SIZE);
+        spool.append(String.join(",", Arrays.asList(record(0), record(1), record(2))));
+    }
+}
@@ -0,0 +1,163 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int ELEMENTS_PER_PRODUCER = 100000;
+
+    @Test
+    public void testCapacity() {
+        final RingBuffer<Integer> ringBuffer = new RingBuffer<>(3);
+        assertEquals(4, ringBuffer.getCapacity());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        assertFalse(ringBuffer.offer(4));
+        assertEquals(4, ringBuffer.size());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+        }
+        assertNull(ringBuffer.poll());
+        assertEquals(0, ringBuffer.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentProducers() throws Exception {
+        final RingBuffer<int[]> ringBuffer = new RingBuffer<>(64);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+
+        for (int producer = 0; producer < PRODUCERS; producer++) {
+            final int producerId = producer;
+            final Thread thread = new Thread(() -> {
+                awaitStart(startLatch);
+                for (int i = 0; i < ELEMENTS_PER_PRODUCER; i++) {
+                    final int[] element = {producerId, i};
+                    while (!ringBuffer.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        // a single consumer has to receive every element exactly once and in the order of each producer
+        final int[] nextElement = new int[PRODUCERS];
+        startLatch.countDown();
+        int received = 0;
+        while (received < PRODUCERS * ELEMENTS_PER_PRODUCER) {
+            final int[] element = ringBuffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(nextElement[element[0]]++, element[1]);
+            received++;
+        }
+
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(ringBuffer.poll());
+        for (int producer = 0; producer < PRODUCERS; producer++) {
+            assertEquals(ELEMENTS_PER_PRODUCER, nextElement[producer]);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentEviction() throws Exception {
+        final RingBuffer<Integer> ringBuffer = new RingBuffer<>(16);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicIntegerArray receivedElements = new AtomicIntegerArray(PRODUCERS * ELEMENTS_PER_PRODUCER);
+        final AtomicInteger received = new AtomicInteger();
+        final List<Thread> producers = new ArrayList<>();
+
+        // producers evict the oldest element on overflow like the drop oldest policy, so consumers and producers poll concurrently
+        for (int producer = 0; producer < PRODUCERS; producer++) {
+            final int offset = producer * ELEMENTS_PER_PRODUCER;
+            final Thread thread = new Thread(() -> {
+                awaitStart(startLatch);
+                for (int i = 0; i < ELEMENTS_PER_PRODUCER; i++) {
+                    while (!ringBuffer.offer(offset + i)) {
+                        final Integer evicted = ringBuffer.poll();
+                        if (evicted != null) {
+                            receivedElements.incrementAndGet(evicted);
+                            received.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        final Thread consumer = new Thread(() -> {
+            awaitStart(startLatch);
+            while (received.get() < PRODUCERS * ELEMENTS_PER_PRODUCER) {
+                final Integer element = ringBuffer.poll();
+                if (element != null) {
+                    receivedElements.incrementAndGet(element);
+                    received.incrementAndGet();
+                }
+            }
+        });
+        consumer.start();
+
+        startLatch.countDown();
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        consumer.join();
+
+        // each element is either consumed or evicted, but never lost or duplicated
+        for (int i = 0; i < receivedElements.length(); i++) {
+            assertEquals("element " + i, 1, receivedElements.get(i));
+        }
+    }
+
+    private static void awaitStart(final CountDownLatch startLatch) {
+        try {
+            startLatch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.write.Point;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder.StateValues;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.UnitTags;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.PowerConsumptionStateType.PowerConsumptionState;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupAggregatorTest {
+
+    private static final ServiceType SERVICE_TYPE = ServiceType.POWER_CONSUMPTION_STATE_SERVICE;
+    private static final long INTERVAL = 1000;
+    private static final double DELTA = 0.0001;
+
+    private ServiceStateEncoder encoder;
+    private UnitTags unitTags;
+    private List<Point> points;
+
+    @Before
+    public void setUp() {
+        encoder = ServiceStateEncoder.getEncoder(SERVICE_TYPE, PowerConsumptionState.getDescriptor());
+        unitTags = new UnitTags(
+                UnitConfig.newBuilder().setId("unit").addAlias("PowerConsumptionSensor-1").build(),
+                UnitConfig.newBuilder().setId("location").addAlias("Location-1").build());
+        points = new ArrayList<>();
+    }
+
+    private RollupAggregator aggregator(final long... intervals) {
+        return new RollupAggregator(intervals, Collections.singleton(SERVICE_TYPE), points::add);
+    }
+
+    private StateValues state(final double consumption) {
+        return encoder.read(PowerConsumptionState.newBuilder().setConsumption(consumption).setVoltage(230).setCurrent(0.5).build());
+    }
+
+    /**
+     * Reads a numeric field out of the line protocol of a point.
+     */
+    private static double field(final Point point, final String fieldName) {
+        final String[] parts = point.toLineProtocol().split(" ");
+        for (final String field : parts[1].split(",")) {
+            final String[] keyValue = field.split("=", 2);
+            if (keyValue[0].equals(fieldName)) {
+                final String value = keyValue[1].endsWith("i") ? keyValue[1].substring(0, keyValue[1].length() - 1) : keyValue[1];
+                return Double.parseDouble(value);
+            }
+        }
+        throw new AssertionError("Field[" + fieldName + "] missing in " + point.toLineProtocol());
+    }
+
+    @Test
+    public void testWindowBoundaries() {
+        final RollupAggregator aggregator = aggregator(INTERVAL);
+
+        aggregator.add(unitTags, SERVICE_TYPE, state(10), 1000);
+        aggregator.add(unitTags, SERVICE_TYPE, state(20), 1999);
+        assertTrue(points.isEmpty());
+
+        // the first state of the next window completes the previous one
+        aggregator.add(unitTags, SERVICE_TYPE, state(30), 2000);
+        assertEquals(1, points.size());
+        assertEquals(1000L, points.get(0).getTime().longValue());
+        assertEquals(2, field(points.get(0), "consumption_count"), DELTA);
+        assertTrue(points.get(0).toLineProtocol().contains(RollupAggregator.WINDOW_TAG + "=1s"));
+    }
+
+    @Test
+    public void testNegativeWindowStart() {
+        final RollupAggregator aggregator = aggregator(INTERVAL);
+
+        // windows are aligned to multiples of the interval for timestamps before the epoch as well
+        aggregator.add(unitTags, SERVICE_TYPE, state(10), -500);
+        aggregator.add(unitTags, SERVICE_TYPE, state(20), 0);
+        assertEquals(1, points.size());
+        assertEquals(-1000L, points.get(0).getTime().longValue());
+    }
+
+    @Test
+    public void testMinMaxMean() {
+        final RollupAggregator aggregator = aggregator(INTERVAL);
+
+        aggregator.add(unitTags, SERVICE_TYPE, state(20), 1100);
+        aggregator.add(unitTags, SERVICE_TYPE, state(10), 1200);
+        aggregator.add(unitTags, SERVICE_TYPE, state(30), 1300);
+        aggregator.add(unitTags, SERVICE_TYPE, state(40), 2100);
+        aggregator.flushAll();
+
+        assertEquals(2, points.size());
+        final Point first = points.get(0);
+        assertEquals(10, field(first, "consumption_min"), DELTA);
+        assertEquals(30, field(first, "consumption_max"), DELTA);
+        assertEquals(20, field(first, "consumption_mean"), DELTA);
+        assertEquals(3, field(first, "consumption_count"), DELTA);
+        assertEquals(30, field(first, "consumption_last"), DELTA);
+        assertEquals(230, field(first, "voltage_mean"), DELTA);
+
+        // the second window starts from scratch
+        final Point second = points.get(1);
+        assertEquals(2000L, second.getTime().longValue());
+        assertEquals(40, field(second, "consumption_min"), DELTA);
+        assertEquals(40, field(second, "consumption_max"), DELTA);
+        assertEquals(1, field(second, "consumption_count"), DELTA);
+    }
+
+    @Test
+    public void testLateStateOfEmittedWindowIsDropped() {
+        final RollupAggregator aggregator = aggregator(INTERVAL);
+
+        aggregator.add(unitTags, SERVICE_TYPE, state(10), 1500);
+        aggregator.add(unitTags, SERVICE_TYPE, state(20), 2500);
+        assertEquals(1, points.size());
+
+        // the window starting at 1000 was already emitted
+        aggregator.add(unitTags, SERVICE_TYPE, state(100), 1800);
+        assertEquals(1, points.size());
+
+        aggregator.flushAll();
+        assertEquals(2, points.size());
+        assertEquals(2000L, points.get(1).getTime().longValue());
+        assertEquals(1, field(points.get(1), "consumption_count"), DELTA);
+        assertEquals(20, field(points.get(1), "consumption_max"), DELTA);
+    }
+
+    @Test
+    public void testFlushExpired() {
+        final RollupAggregator aggregator = aggregator(INTERVAL);
+
+        aggregator.add(unitTags, SERVICE_TYPE, state(10), 1500);
+        aggregator.flushExpired(1999);
+        assertTrue(points.isEmpty());
+
+        // the window ends at 2000 even if the series does not receive another state
+        aggregator.flushExpired(2000);
+        assertEquals(1, points.size());
+        assertEquals(1000L, points.get(0).getTime().longValue());
+
+        // the emitted window is neither emitted again nor reopened by a late state
+        aggregator.add(unitTags, SERVICE_TYPE, state(20), 1700);
+        aggregator.flushExpired(5000);
+        aggregator.flushAll();
+        assertEquals(1, points.size());
+    }
+
+    @Test
+    public void testMultipleIntervals() {
+        final RollupAggregator aggregator = aggregator(INTERVAL, 5 * INTERVAL);
+        assertEquals(INTERVAL, aggregator.getMinInterval());
+
+        aggregator.add(unitTags, SERVICE_TYPE, state(10), 1500);
+        aggregator.add(unitTags, SERVICE_TYPE, state(20), 2500);
+        assertEquals(1, points.size());
+        assertTrue(points.get(0).toLineProtocol().contains(RollupAggregator.WINDOW_TAG + "=1s"));
+
+        aggregator.flushAll();
+        assertEquals(3, points.size());
+        boolean longWindowEmitted = false;
+        for (final Point point : points.subList(1, points.size())) {
+            if (point.toLineProtocol().contains(RollupAggregator.WINDOW_TAG + "=5s")) {
+                assertEquals(0L, point.getTime().longValue());
+                assertEquals(2, field(point, "consumption_count"), DELTA);
+                assertEquals(15, field(point, "consumption_mean"), DELTA);
+                longWindowEmitted = true;
+            }
+        }
+        assertTrue(longWindowEmitted);
+    }
+
+    @Test
+    public void testOtherServiceTypesAreIgnored() {
+        final RollupAggregator aggregator = aggregator(INTERVAL);
+
+        aggregator.add(unitTags, ServiceType.POWER_STATE_SERVICE, state(10), 1500);
+        aggregator.flushAll();
+        assertTrue(points.isEmpty());
+    }
+}
@@ -0,0 +1,196 @@
+package org.openbase.bco.app.influxdbconnector;
+
+/*-
+ * #%L
+ * BCO InfluxDB Connector
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbase.bco.app.influxdbconnector.ServiceStateEncoder.StateValues;
+import org.openbase.bco.app.influxdbconnector.UnitTagCache.UnitTags;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.PowerConsumptionStateType.PowerConsumptionState;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesFilterTest {
+
+    private static final ServiceType SERVICE_TYPE = ServiceType.POWER_CONSUMPTION_STATE_SERVICE;
+    private static final long KEEP_ALIVE_INTERVAL = 60000;
+
+    private ServiceStateEncoder encoder;
+    private UnitTags unitTags;
+    private int consumption;
+    private int voltage;
+    private int current;
+
+    @Before
+    public void setUp() {
+        encoder = ServiceStateEncoder.getEncoder(SERVICE_TYPE, PowerConsumptionState.getDescriptor());
+        consumption = encoder.getEncodedFieldNames().indexOf("consumption");
+        voltage = encoder.getEncodedFieldNames().indexOf("voltage");
+        current = encoder.getEncodedFieldNames().indexOf("current");
+        unitTags = new UnitTags(
+                UnitConfig.newBuilder().setId("unit").addAlias("PowerConsumptionSensor-1").build(),
+                UnitConfig.newBuilder().setId("location").addAlias("Location-1").build());
+    }
+
+    private StateValues state(final double consumption, final double voltage, final double current) {
+        return encoder.read(PowerConsumptionState.newBuilder().setConsumption(consumption).setVoltage(voltage).setCurrent(current).build());
+    }
+
+    private static SeriesFilter filter(final double deadband) {
+        return new SeriesFilter(true, deadband, Collections.emptyMap(), KEEP_ALIVE_INTERVAL);
+    }
+
+    @Test
+    public void testDuplicateIsDropped() {
+        final SeriesFilter filter = filter(0);
+
+        assertEquals(SeriesFilter.ALL_FIELDS, filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000));
+        assertEquals(SeriesFilter.NO_FIELDS, filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 2000));
+    }
+
+    @Test
+    public void testDeadband() {
+        final SeriesFilter filter = filter(1);
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        assertEquals(SeriesFilter.NO_FIELDS, filter.accept(unitTags, "system", SERVICE_TYPE, state(10.5, 230, 0.5), 2000));
+
+        // the deadband is measured against the last written value, so small changes can not creep through
+        final long fieldMask = filter.accept(unitTags, "system", SERVICE_TYPE, state(11.5, 230, 0.5), 3000);
+        assertTrue(SeriesFilter.isSelected(fieldMask, consumption));
+        assertFalse(SeriesFilter.isSelected(fieldMask, voltage));
+    }
+
+    @Test
+    public void testFieldsAreFilteredIndividually() {
+        final SeriesFilter filter = filter(0);
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        final long fieldMask = filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 231, 0.5), 2000);
+        assertTrue(SeriesFilter.isSelected(fieldMask, voltage));
+        assertFalse(SeriesFilter.isSelected(fieldMask, consumption));
+        assertFalse(SeriesFilter.isSelected(fieldMask, current));
+
+        final Point point = Point.measurement("power_consumption_state_service").time(2000L, WritePrecision.MS);
+        assertEquals(1, encoder.write(state(10, 231, 0.5), point, fieldMask));
+    }
+
+    @Test
+    public void testTagChangeSelectsAllFields() {
+        final SeriesFilter filter = filter(0);
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        assertEquals(SeriesFilter.ALL_FIELDS, filter.accept(unitTags, "human", SERVICE_TYPE, state(10, 230, 0.5), 2000));
+    }
+
+    @Test
+    public void testRecomputedTagsAreEqual() {
+        final SeriesFilter filter = filter(0);
+        final UnitTags recomputedTags = new UnitTags(
+                UnitConfig.newBuilder().setId("unit").addAlias("PowerConsumptionSensor-1").build(),
+                UnitConfig.newBuilder().setId("location").addAlias("Location-1").build());
+        final UnitTags movedTags = new UnitTags(
+                UnitConfig.newBuilder().setId("unit").addAlias("PowerConsumptionSensor-1").build(),
+                UnitConfig.newBuilder().setId("other-location").addAlias("Location-2").build());
+
+        // tags recomputed after a registry update without any change do not start a new series
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        assertEquals(SeriesFilter.NO_FIELDS, filter.accept(recomputedTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 2000));
+        assertEquals(SeriesFilter.ALL_FIELDS, filter.accept(movedTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 3000));
+    }
+
+    @Test
+    public void testPreviousStateUsesMaskOfAcceptedState() {
+        final SeriesFilter filter = filter(0);
+        final StateValues previous = state(10, 230, 0.5);
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, previous, 1000);
+
+        // the previous state carries the last written values, so it would always be dropped by the filter itself
+        final long fieldMask = filter.accept(unitTags, "system", SERVICE_TYPE, state(20, 230, 0.5), 5000);
+        assertTrue(SeriesFilter.isSelected(fieldMask, consumption));
+
+        // written with the mask of the accepted state, it completes the step of the changed field
+        final Point point = Point.measurement("power_consumption_state_service").time(4999L, WritePrecision.MS);
+        assertEquals(1, encoder.write(previous, point, fieldMask));
+        assertTrue(point.toLineProtocol().contains("consumption=10"));
+    }
+
+    @Test
+    public void testKeepAliveOnUpdate() {
+        final SeriesFilter filter = filter(0);
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        assertEquals(SeriesFilter.NO_FIELDS, filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000 + KEEP_ALIVE_INTERVAL - 1));
+        assertTrue(SeriesFilter.isSelected(filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000 + KEEP_ALIVE_INTERVAL), consumption));
+    }
+
+    @Test
+    public void testKeepAliveOfQuietSeries() {
+        final SeriesFilter filter = filter(1);
+        final List<Long> timestamps = new ArrayList<>();
+        final List<StateValues> refreshed = new ArrayList<>();
+        final SeriesFilter.KeepAliveHandler handler = (tags, initiator, serviceType, stateValues, fieldMask, timestamp) -> {
+            assertEquals(unitTags, tags);
+            assertEquals("system", initiator);
+            assertEquals(SERVICE_TYPE, serviceType);
+            assertTrue(SeriesFilter.isSelected(fieldMask, consumption));
+            timestamps.add(timestamp);
+            refreshed.add(stateValues);
+        };
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10.5, 230, 0.5), 2000);
+
+        filter.keepAlive(1000 + KEEP_ALIVE_INTERVAL - 1, handler);
+        assertTrue(timestamps.isEmpty());
+
+        // the latest value is refreshed, even if it was dropped by the deadband
+        filter.keepAlive(1000 + KEEP_ALIVE_INTERVAL, handler);
+        assertEquals(Collections.singletonList(1000 + KEEP_ALIVE_INTERVAL), timestamps);
+        assertEquals(10.5, refreshed.get(0).getNumber(consumption), 0);
+
+        // refreshed series are not written again until the next interval expired
+        filter.keepAlive(1000 + KEEP_ALIVE_INTERVAL + 1, handler);
+        assertEquals(1, timestamps.size());
+        assertEquals(SeriesFilter.NO_FIELDS, filter.accept(unitTags, "system", SERVICE_TYPE, state(10.5, 230, 0.5), 1000 + KEEP_ALIVE_INTERVAL + 1));
+    }
+
+    @Test
+    public void testDisabledFilterAcceptsAll() {
+        final SeriesFilter filter = new SeriesFilter(false, 0, Collections.emptyMap(), KEEP_ALIVE_INTERVAL);
+
+        filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000);
+        assertEquals(SeriesFilter.ALL_FIELDS, filter.accept(unitTags, "system", SERVICE_TYPE, state(10, 230, 0.5), 1000));
+    }
+}
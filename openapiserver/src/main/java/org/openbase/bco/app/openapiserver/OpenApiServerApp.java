@@ -30,6 +30,7 @@ import org.openbase.bco.app.openapiserver.spring.converter.StringToServiceTypeCo
 import org.openbase.bco.dal.control.layer.unit.app.AbstractAppController;
 import org.openbase.jul.exception.CouldNotPerformException;
 import org.openbase.jul.exception.InstantiationException;
+import org.openbase.jul.exception.InvalidStateException;
 import org.openbase.jul.extension.type.processing.MetaConfigPool;
 import org.openbase.jul.extension.type.processing.MetaConfigVariableProvider;
 import org.openbase.jul.schedule.CloseableWriteLockWrapper;
@@ -42,7 +43,8 @@ import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 @Configuration
 @EnableAutoConfiguration
@@ -52,6 +54,17 @@ public class OpenApiServerApp extends AbstractAppController {
     public static final String KEY_PORT = "PORT";
     private static final String DEFAULT_PORT = "8080";
 
+    /**
+     * Maximal number of events queued per server sent event subscriber before it is evicted.
+     */
+    public static final String KEY_SSE_QUEUE_CAPACITY = "SSE_QUEUE_CAPACITY";
+    private static final String DEFAULT_SSE_QUEUE_CAPACITY = "128";
+
+    /**
+     * Spring property by which the sse queue capacity is passed to the {@link UnitApiController}.
+     */
+    public static final String PROPERTY_SSE_QUEUE_CAPACITY = "bco.openapi.sse-queue-capacity";
+
     private final SpringApplication springApplication;
     private ConfigurableApplicationContext applicationContext;
 
@@ -68,13 +81,30 @@ public class OpenApiServerApp extends AbstractAppController {
             final MetaConfigPool metaConfigPool = new MetaConfigPool();
             metaConfigPool.register(new MetaConfigVariableProvider("OpenApiAppConfig", config.getMetaConfig()));
             final String port = metaConfigPool.getValue(KEY_PORT, DEFAULT_PORT);
-            springApplication.setDefaultProperties(Collections.singletonMap("server.port", port));
+
+            // setup sse queue capacity from meta config
+            final String sseQueueCapacityValue = metaConfigPool.getValue(KEY_SSE_QUEUE_CAPACITY, DEFAULT_SSE_QUEUE_CAPACITY);
+            final int sseQueueCapacity;
+            try {
+                sseQueueCapacity = Integer.parseInt(sseQueueCapacityValue);
+            } catch (NumberFormatException ex) {
+                throw new CouldNotPerformException("Could not parse " + KEY_SSE_QUEUE_CAPACITY + "[" + sseQueueCapacityValue + "]", ex);
+            }
+            if (sseQueueCapacity < 1) {
+                throw new InvalidStateException(KEY_SSE_QUEUE_CAPACITY + "[" + sseQueueCapacity + "] has to be positive!");
+            }
+
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put("server.port", port);
+            properties.put(PROPERTY_SSE_QUEUE_CAPACITY, sseQueueCapacity);
+            springApplication.setDefaultProperties(properties);
             return config;
         }
     }
 
     @Override
     protected ActionDescription execute(ActivationState activationState) {
+        RegistryRPCProcessor.init();
         applicationContext = springApplication.run();
         return activationState.getResponsibleAction();
     }
@@ -0,0 +1,373 @@
+package org.openbase.bco.app.openapiserver;
+
+/*-
+ * #%L
+ * BCO OpenAPI Server
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.Deserializers;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.ProtocolMessageEnum;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Jackson module reading and writing protobuf messages directly from and to the token stream.
+ * <p>
+ * The json layout matches the one of the {@link com.googlecode.protobuf.format.JsonFormat}: fields are named by their
+ * proto field name, only set fields are written and enums are represented by the name of their value.
+ * Bytes fields are written as base64 strings, which is how jackson represents binary data of the openapi models.
+ * Registering this module allows to convert between protobuf messages and openapi models via
+ * {@link com.fasterxml.jackson.databind.ObjectMapper#convertValue(Object, Class)} without an intermediate json string.
+ */
+public class ProtobufModule extends SimpleModule {
+
+    public ProtobufModule() {
+        super(ProtobufModule.class.getSimpleName());
+        addSerializer(Message.class, new MessageSerializer());
+        addSerializer(ProtocolMessageEnum.class, new ProtocolMessageEnumSerializer());
+    }
+
+    @Override
+    public void setupModule(final SetupContext context) {
+        super.setupModule(context);
+        context.addDeserializers(new Deserializers.Base() {
+            @Override
+            public JsonDeserializer<?> findBeanDeserializer(final JavaType type, final DeserializationConfig config, final BeanDescription beanDesc) throws JsonMappingException {
+                if (!Message.class.isAssignableFrom(type.getRawClass())) {
+                    return null;
+                }
+
+                try {
+                    return new MessageDeserializer((Message) type.getRawClass().getMethod("getDefaultInstance").invoke(null));
+                } catch (ReflectiveOperationException | ClassCastException ex) {
+                    throw new IllegalArgumentException("Could not resolve default instance of message[" + type.getRawClass().getSimpleName() + "]", ex);
+                }
+            }
+        });
+    }
+
+    private static class MessageSerializer extends StdSerializer<Message> {
+
+        private MessageSerializer() {
+            super(Message.class);
+        }
+
+        @Override
+        public void serialize(final Message message, final JsonGenerator generator, final SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            for (final FieldDescriptor field : message.getDescriptorForType().getFields()) {
+                if (field.isRepeated()) {
+                    final int count = message.getRepeatedFieldCount(field);
+                    if (count == 0) {
+                        continue;
+                    }
+                    generator.writeFieldName(field.getName());
+                    generator.writeStartArray();
+                    for (int i = 0; i < count; i++) {
+                        writeValue(field, message.getRepeatedField(field, i), generator, provider);
+                    }
+                    generator.writeEndArray();
+                } else if (message.hasField(field)) {
+                    generator.writeFieldName(field.getName());
+                    writeValue(field, message.getField(field), generator, provider);
+                }
+            }
+            generator.writeEndObject();
+        }
+
+        private void writeValue(final FieldDescriptor field, final Object value, final JsonGenerator generator, final SerializerProvider provider) throws IOException {
+            switch (field.getType()) {
+                case INT32:
+                case SINT32:
+                case SFIXED32:
+                    generator.writeNumber((Integer) value);
+                    break;
+                case UINT32:
+                case FIXED32:
+                    generator.writeNumber(Integer.toUnsignedLong((Integer) value));
+                    break;
+                case INT64:
+                case SINT64:
+                case SFIXED64:
+                    generator.writeNumber((Long) value);
+                    break;
+                case UINT64:
+                case FIXED64:
+                    final long unsigned = (Long) value;
+                    if (unsigned >= 0) {
+                        generator.writeNumber(unsigned);
+                    } else {
+                        generator.writeNumber(new BigInteger(Long.toUnsignedString(unsigned)));
+                    }
+                    break;
+                case FLOAT:
+                    generator.writeNumber((Float) value);
+                    break;
+                case DOUBLE:
+                    generator.writeNumber((Double) value);
+                    break;
+                case BOOL:
+                    generator.writeBoolean((Boolean) value);
+                    break;
+                case STRING:
+                    generator.writeString((String) value);
+                    break;
+                case BYTES:
+                    generator.writeBinary(((ByteString) value).toByteArray());
+                    break;
+                case ENUM:
+                    generator.writeString(((EnumValueDescriptor) value).getName());
+                    break;
+                case MESSAGE:
+                case GROUP:
+                    serialize((Message) value, generator, provider);
+                    break;
+            }
+        }
+    }
+
+    private static class ProtocolMessageEnumSerializer extends StdSerializer<ProtocolMessageEnum> {
+
+        private ProtocolMessageEnumSerializer() {
+            super(ProtocolMessageEnum.class);
+        }
+
+        @Override
+        public void serialize(final ProtocolMessageEnum value, final JsonGenerator generator, final SerializerProvider provider) throws IOException {
+            generator.writeString(value.getValueDescriptor().getName());
+        }
+    }
+
+    private static class MessageDeserializer extends StdDeserializer<Message> {
+
+        private static final BigInteger INT32_MIN = BigInteger.valueOf(Integer.MIN_VALUE);
+        private static final BigInteger INT32_MAX = BigInteger.valueOf(Integer.MAX_VALUE);
+        private static final BigInteger UINT32_MAX = BigInteger.ONE.shiftLeft(32).subtract(BigInteger.ONE);
+        private static final BigInteger INT64_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+        private static final BigInteger INT64_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+        private static final BigInteger UINT64_MAX = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+        private final Message defaultInstance;
+
+        private MessageDeserializer(final Message defaultInstance) {
+            super(defaultInstance.getClass());
+            this.defaultInstance = defaultInstance;
+        }
+
+        @Override
+        public Message deserialize(final JsonParser parser, final DeserializationContext context) throws IOException {
+            final Message.Builder builder = defaultInstance.newBuilderForType();
+            merge(parser, context, builder);
+            return builder.build();
+        }
+
+        private void merge(final JsonParser parser, final DeserializationContext context, final Message.Builder builder) throws IOException {
+            JsonToken token = parser.currentToken();
+            if (token == JsonToken.START_OBJECT) {
+                token = parser.nextToken();
+            }
+
+            final Descriptor descriptor = builder.getDescriptorForType();
+            for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+                final String fieldName = parser.getCurrentName();
+                FieldDescriptor field = descriptor.findFieldByName(fieldName);
+                if (field == null) {
+                    field = descriptor.findFieldByName(fieldName.toLowerCase());
+                }
+
+                final JsonToken valueToken = parser.nextToken();
+                if (field == null || valueToken == JsonToken.VALUE_NULL) {
+                    // unknown fields are ignored as done by the json format
+                    parser.skipChildren();
+                    continue;
+                }
+
+                if (field.isRepeated()) {
+                    if (valueToken != JsonToken.START_ARRAY) {
+                        builder.addRepeatedField(field, readValue(parser, context, builder, field));
+                        continue;
+                    }
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        builder.addRepeatedField(field, readValue(parser, context, builder, field));
+                    }
+                } else {
+                    builder.setField(field, readValue(parser, context, builder, field));
+                }
+            }
+
+            if (token != JsonToken.END_OBJECT) {
+                context.reportWrongTokenException(this, JsonToken.END_OBJECT, "Could not parse message[%s]", descriptor.getFullName());
+            }
+        }
+
+        private Object readValue(final JsonParser parser, final DeserializationContext context, final Message.Builder builder, final FieldDescriptor field) throws IOException {
+            final Object value = readFieldValue(parser, context, builder, field);
+            if (value == null) {
+                // a problem handler of the context may resolve a malformed value to null, which is not a valid field value
+                return context.reportInputMismatch(this, "Missing value of field[%s]", field.getFullName());
+            }
+            return value;
+        }
+
+        private Object readFieldValue(final JsonParser parser, final DeserializationContext context, final Message.Builder builder, final FieldDescriptor field) throws IOException {
+            final JsonToken token = parser.currentToken();
+            switch (field.getType()) {
+                case INT32:
+                case SINT32:
+                case SFIXED32:
+                    return readInteger(parser, context, field, Integer.class, INT32_MIN, INT32_MAX);
+                case UINT32:
+                case FIXED32:
+                    return readInteger(parser, context, field, Integer.class, BigInteger.ZERO, UINT32_MAX);
+                case INT64:
+                case SINT64:
+                case SFIXED64:
+                    return readInteger(parser, context, field, Long.class, INT64_MIN, INT64_MAX);
+                case UINT64:
+                case FIXED64:
+                    return readInteger(parser, context, field, Long.class, BigInteger.ZERO, UINT64_MAX);
+                case FLOAT:
+                    final Object floatValue = readDecimal(parser, context, field, Float.class);
+                    return floatValue instanceof Double ? (Object) ((Double) floatValue).floatValue() : floatValue;
+                case DOUBLE:
+                    return readDecimal(parser, context, field, Double.class);
+                case BOOL:
+                    if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+                        return token == JsonToken.VALUE_TRUE;
+                    }
+                    if (token != JsonToken.VALUE_STRING) {
+                        return handleUnexpectedToken(parser, context, field, Boolean.class);
+                    }
+                    if ("true".equals(parser.getText()) || "false".equals(parser.getText())) {
+                        return Boolean.valueOf(parser.getText());
+                    }
+                    return context.handleWeirdStringValue(Boolean.class, parser.getText(), "Not a boolean value of field[%s]", field.getFullName());
+                case STRING:
+                    if (token != JsonToken.VALUE_STRING) {
+                        return handleUnexpectedToken(parser, context, field, String.class);
+                    }
+                    return parser.getText();
+                case BYTES:
+                    // binary data is embedded as byte array when converting from an openapi model
+                    if (token != JsonToken.VALUE_STRING && token != JsonToken.VALUE_EMBEDDED_OBJECT) {
+                        return handleUnexpectedToken(parser, context, field, ByteString.class);
+                    }
+                    return ByteString.copyFrom(parser.getBinaryValue());
+                case ENUM:
+                    if (token == JsonToken.VALUE_NUMBER_INT) {
+                        final EnumValueDescriptor numberedValue = field.getEnumType().findValueByNumber(parser.getIntValue());
+                        if (numberedValue == null) {
+                            return context.handleWeirdNumberValue(EnumValueDescriptor.class, parser.getIntValue(), "Not a value of enum[%s]", field.getEnumType().getFullName());
+                        }
+                        return numberedValue;
+                    }
+                    if (token != JsonToken.VALUE_STRING) {
+                        return handleUnexpectedToken(parser, context, field, EnumValueDescriptor.class);
+                    }
+                    final EnumValueDescriptor enumValue = field.getEnumType().findValueByName(parser.getText());
+                    if (enumValue == null) {
+                        return context.handleWeirdStringValue(EnumValueDescriptor.class, parser.getText(), "Not a value of enum[%s]", field.getEnumType().getFullName());
+                    }
+                    return enumValue;
+                case MESSAGE:
+                case GROUP:
+                    if (token != JsonToken.START_OBJECT) {
+                        return handleUnexpectedToken(parser, context, field, Message.class);
+                    }
+                    final Message.Builder fieldBuilder = builder.newBuilderForField(field);
+                    merge(parser, context, fieldBuilder);
+                    return fieldBuilder.build();
+                default:
+                    throw JsonMappingException.from(parser, "Unsupported type[" + field.getType() + "] of field[" + field.getFullName() + "]");
+            }
+        }
+
+        /**
+         * Read an integer within the given range. Integers are accepted as numbers and as strings, since 64 bit
+         * integers are often written as strings to not lose precision in javascript.
+         */
+        private Object readInteger(final JsonParser parser, final DeserializationContext context, final FieldDescriptor field, final Class<?> valueType, final BigInteger min, final BigInteger max) throws IOException {
+            final BigInteger value;
+            switch (parser.currentToken()) {
+                case VALUE_NUMBER_INT:
+                    value = parser.getBigIntegerValue();
+                    break;
+                case VALUE_STRING:
+                    try {
+                        value = new BigInteger(parser.getText());
+                    } catch (NumberFormatException ex) {
+                        return context.handleWeirdStringValue(valueType, parser.getText(), "Not an integer value of field[%s]", field.getFullName());
+                    }
+                    break;
+                default:
+                    return handleUnexpectedToken(parser, context, field, valueType);
+            }
+
+            if (value.compareTo(min) < 0 || value.compareTo(max) > 0) {
+                return context.handleWeirdNumberValue(valueType, value, "Value out of range of field[%s]", field.getFullName());
+            }
+
+            // unsigned values exceeding the signed range are stored in their two's complement as done by protobuf
+            return valueType == Integer.class ? (Object) value.intValue() : (Object) value.longValue();
+        }
+
+        /**
+         * Read a floating point number. Special values such as NaN and Infinity are accepted as strings.
+         */
+        private Object readDecimal(final JsonParser parser, final DeserializationContext context, final FieldDescriptor field, final Class<?> valueType) throws IOException {
+            switch (parser.currentToken()) {
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    return parser.getDoubleValue();
+                case VALUE_STRING:
+                    try {
+                        return Double.parseDouble(parser.getText());
+                    } catch (NumberFormatException ex) {
+                        return context.handleWeirdStringValue(valueType, parser.getText(), "Not a decimal value of field[%s]", field.getFullName());
+                    }
+                default:
+                    return handleUnexpectedToken(parser, context, field, valueType);
+            }
+        }
+
+        private Object handleUnexpectedToken(final JsonParser parser, final DeserializationContext context, final FieldDescriptor field, final Class<?> valueType) throws IOException {
+            return context.handleUnexpectedToken(valueType, parser.currentToken(), parser, "Unexpected token[%s] for field[%s] of type[%s]", parser.currentToken(), field.getFullName(), field.getType());
+        }
+    }
+}
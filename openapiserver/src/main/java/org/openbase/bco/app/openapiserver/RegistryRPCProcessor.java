@@ -25,52 +25,168 @@ package org.openbase.bco.app.openapiserver;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.ProtocolMessageEnum;
-import com.googlecode.protobuf.format.JsonFormat;
+import org.openbase.bco.app.openapiserver.RegistryResponseCache.CachedResponse;
+import org.openbase.bco.openapi.server.api.RegistryApi;
 import org.openbase.bco.registry.remote.Registries;
 import org.openbase.jul.exception.CouldNotPerformException;
-import org.openbase.jul.exception.ExceptionProcessor;
-import org.openbase.jul.exception.InvalidStateException;
+import org.openbase.jul.exception.NotAvailableException;
 import org.openbase.jul.exception.printer.ExceptionPrinter;
 import org.openbase.jul.exception.printer.LogLevel;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 
-import javax.validation.constraints.Null;
-import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Maps the operations of the generated {@link RegistryApi} onto the methods of the registry remotes.
+ * <p>
+ * The mapping is derived from the operation ids, e.g. {@code registryTemplateGetUnitTemplatesGet} is mapped to
+ * {@code Registries.getTemplateRegistry(true).getUnitTemplates()}. All operations are resolved once into a dispatch table
+ * holding the method handles of the registry getter, the registry method and the request body arguments together with
+ * the matching parameter converters, so an invocation only requires a single lookup.
+ */
 public class RegistryRPCProcessor {
 
-    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
-    static final JsonFormat JSON_FORMAT = new JsonFormat();
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .registerModule(new ProtobufModule());
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistryRPCProcessor.class);
+
+    private static final String OPERATION_PREFIX = "registry";
+    private static final String ARGUMENT_GETTER_PREFIX = "getArg";
+    private static final MethodType REGISTRY_GETTER_TYPE = MethodType.methodType(Object.class);
+    private static final MethodType ARGUMENT_GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType REGISTRY_METHOD_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final ClassValue<Class<?>> LIST_ELEMENT_CLASS = new ClassValue<Class<?>>() {
+        @Override
+        protected Class<?> computeValue(final Class<?> listClass) {
+            return (Class<?>) ((ParameterizedType) listClass.getGenericSuperclass()).getActualTypeArguments()[0];
+        }
+    };
+
+    private static final RegistryResponseCache RESPONSE_CACHE = new RegistryResponseCache();
+
+    private static volatile Map<String, Operation> dispatchTable;
 
-    public static <T> ResponseEntity<T> invokeMethodOrFailWithBadRequest(final Object parameter, final Class<T> returnClass, final Logger logger) {
+    /**
+     * Resolves all operations of the {@link RegistryApi} into the dispatch table.
+     * The table is built only once, so further calls do not have any effect.
+     */
+    public static void init() {
+        if (dispatchTable != null) {
+            return;
+        }
+
+        synchronized (RegistryRPCProcessor.class) {
+            if (dispatchTable != null) {
+                return;
+            }
+
+            final Map<String, Operation> table = new HashMap<>();
+            for (final Method apiMethod : RegistryApi.class.getMethods()) {
+                if (!apiMethod.getName().startsWith(OPERATION_PREFIX) || table.containsKey(apiMethod.getName())) {
+                    continue;
+                }
+
+                try {
+                    table.put(apiMethod.getName(), resolveOperation(apiMethod));
+                } catch (CouldNotPerformException ex) {
+                    ExceptionPrinter.printHistory("Registry operation " + apiMethod.getName() + " is not available via rpc!", ex, LOGGER, LogLevel.WARN);
+                }
+            }
+            LOGGER.debug("Resolved {} registry operations.", table.size());
+            dispatchTable = Collections.unmodifiableMap(table);
+        }
+    }
+
+    public static <T> ResponseEntity<T> invokeMethodOrFailWithBadRequest(final String operationId, final Object parameter, final Class<T> returnClass, final Logger logger) {
         try {
-            return ResponseEntity.ok(invokeMethod(parameter, returnClass, 3));
+            return ResponseEntity.ok(invokeMethod(operationId, parameter, returnClass));
         } catch (CouldNotPerformException ex) {
             ExceptionPrinter.printHistory(ex, logger, LogLevel.WARN);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
     }
 
-    public static <T> T invokeMethod(final Object parameter, final Class<T> returnClass) throws CouldNotPerformException {
-        return invokeMethod(parameter, returnClass, 3);
+    /**
+     * Invokes the registry method mapped to the given operation.
+     *
+     * @param operationId the id of the operation as defined by the {@link RegistryApi}.
+     * @param parameter   the request body of the operation or null if the operation does not have any arguments.
+     * @param returnClass the class to which the result of the registry method is converted.
+     * @param <T>         the type of the result.
+     *
+     * @return the converted result of the registry method.
+     *
+     * @throws CouldNotPerformException if the operation is not available or its invocation failed.
+     */
+    public static <T> T invokeMethod(final String operationId, final Object parameter, final Class<T> returnClass) throws CouldNotPerformException {
+        final Operation operation = getOperation(operationId);
+        return convertReturnValue(operation.invoke(operation.getRegistry(), parameter), returnClass);
     }
 
-    private static <T> T invokeMethod(final Object parameter, final Class<T> returnClass, final int stackTraceMethodIndex) throws CouldNotPerformException {
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        String methodName = stackTrace[stackTraceMethodIndex].getMethodName();
+    /**
+     * Same as {@link #invokeMethodOrFailWithBadRequest(String, Object, Class, Logger)} but the encoded response is served from the
+     * {@link RegistryResponseCache}. The response carries an entity tag, so spring answers requests whose {@code If-None-Match}
+     * header matches by {@code 304 Not Modified}. Therefore, this should only be used by read-only operations.
+     *
+     * @param operationId the id of the operation as defined by the {@link RegistryApi}.
+     * @param parameter   the request body of the operation or null if the operation does not have any arguments.
+     * @param returnClass the class to which the result of the registry method is converted before being encoded.
+     * @param logger      the logger used to report failures.
+     *
+     * @return the response containing the encoded result.
+     */
+    public static ResponseEntity<byte[]> invokeCachedMethodOrFailWithBadRequest(final String operationId, final Object parameter, final Class<?> returnClass, final Logger logger) {
+        try {
+            final Operation operation = getOperation(operationId);
+            final CachedResponse response = RESPONSE_CACHE.get(operation.registryType, operation.getRegistry(), Arrays.asList(operationId, parameter), registry -> {
+                try {
+                    return OBJECT_MAPPER.writeValueAsBytes(convertReturnValue(operation.invoke(registry, parameter), returnClass));
+                } catch (JsonProcessingException ex) {
+                    throw new CouldNotPerformException("Could not encode result of operation[" + operationId + "]", ex);
+                }
+            });
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .eTag(response.getETag())
+                    .body(response.getBody());
+        } catch (CouldNotPerformException ex) {
+            ExceptionPrinter.printHistory(ex, logger, LogLevel.WARN);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+    private static Operation getOperation(final String operationId) throws NotAvailableException {
+        init();
+        final Operation operation = dispatchTable.get(operationId);
+        if (operation == null) {
+            throw new NotAvailableException("Operation[" + operationId + "]");
+        }
+        return operation;
+    }
+
+    private static Operation resolveOperation(final Method apiMethod) throws CouldNotPerformException {
+        String methodName = apiMethod.getName();
 
         // remove the post and get at the end of the method name as generated by the openAPI spec
         // do not remove it in general because the methods themselves can contain these terms
@@ -80,7 +196,7 @@ public class RegistryRPCProcessor {
             methodName = methodName.substring(0, methodName.length() - 3);
         }
 
-        methodName = methodName.substring("registry".length());
+        methodName = methodName.substring(OPERATION_PREFIX.length());
 
         int end = 0;
         for (int i = 1; i < methodName.length(); i++) {
@@ -92,101 +208,161 @@ public class RegistryRPCProcessor {
         final String registryType = methodName.substring(0, end);
         methodName = methodName.substring(end, end + 1).toLowerCase() + methodName.substring(end + 1);
 
-        Object registry;
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        final Method registryGetter;
+        final MethodHandle registryGetterHandle;
         try {
-            registry = Registries.class.getMethod("get" + registryType + "Registry", boolean.class).invoke(null, true);
-        } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-            throw new CouldNotPerformException("Could not resolve registry[" + registryType + "]", e);
+            registryGetter = Registries.class.getMethod("get" + registryType + "Registry", boolean.class);
+            registryGetterHandle = MethodHandles.insertArguments(lookup.unreflect(registryGetter), 0, true).asType(REGISTRY_GETTER_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new CouldNotPerformException("Could not resolve registry[" + registryType + "]", ex);
         }
 
-        Method method = null;
-        for (final Method registryMethod : registry.getClass().getMethods()) {
-            if (registryMethod.getName().equals(methodName)
-                    && !(parameter == null && registryMethod.getParameters().length > 0)) {
-                method = registryMethod;
+        // the arguments are provided by the request body via getArg0, getArg1, ...
+        final List<Method> argumentGetterList = new ArrayList<>();
+        if (apiMethod.getParameterCount() > 0) {
+            final Class<?> bodyClass = apiMethod.getParameterTypes()[0];
+            while (true) {
+                try {
+                    argumentGetterList.add(bodyClass.getMethod(ARGUMENT_GETTER_PREFIX + argumentGetterList.size()));
+                } catch (NoSuchMethodException ex) {
+                    break;
+                }
             }
         }
 
-        if (method == null) {
-            throw new CouldNotPerformException("Could not resolve method[" + methodName + "] for registry[" + registry.getClass().getSimpleName() + "]");
-        }
+        final Class<?> registryClass = registryGetter.getReturnType();
+        final Method method = resolveRegistryMethod(registryClass, methodName, argumentGetterList);
 
-        if (method.getParameters().length == 0) {
-            try {
-                return convertReturnValue(method.invoke(registry), returnClass);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                throw new CouldNotPerformException("Could not invoke registry method", e);
+        try {
+            final MethodHandle[] argumentGetters = new MethodHandle[argumentGetterList.size()];
+            final ParameterConverter[] parameterConverters = new ParameterConverter[argumentGetterList.size()];
+            for (int i = 0; i < argumentGetters.length; i++) {
+                argumentGetters[i] = lookup.unreflect(argumentGetterList.get(i)).asType(ARGUMENT_GETTER_TYPE);
+                parameterConverters[i] = resolveParameterConverter(method.getParameterTypes()[i], method.getGenericParameterTypes()[i]);
             }
+            final MethodHandle methodHandle = lookup.unreflect(method)
+                    .asSpreader(Object[].class, argumentGetters.length)
+                    .asType(REGISTRY_METHOD_TYPE);
+            return new Operation(apiMethod.getName(), registryType, registryGetterHandle, methodHandle, argumentGetters, parameterConverters);
+        } catch (IllegalAccessException ex) {
+            throw new CouldNotPerformException("Could not access method[" + methodName + "] of registry[" + registryClass.getSimpleName() + "]", ex);
         }
+    }
 
-        final Object[] parameters = new Object[method.getParameters().length];
-        for (int i = 0; i < parameters.length; i++) {
-            try {
-                Method parameterMethod = parameter.getClass().getMethod("getArg" + i);
-                parameters[i] = convertParameter(parameterMethod.invoke(parameter), method.getParameterTypes()[i], method.getGenericParameterTypes()[i]);
-            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                throw new CouldNotPerformException("Could not resolve parameter[" + i + "]");
+    private static Method resolveRegistryMethod(final Class<?> registryClass, final String methodName, final List<Method> argumentGetterList) throws CouldNotPerformException {
+        Method candidate = null;
+        for (final Method registryMethod : registryClass.getMethods()) {
+            if (!registryMethod.getName().equals(methodName) || registryMethod.getParameterCount() != argumentGetterList.size()) {
+                continue;
+            }
+
+            // prefer overloads whose parameters match the argument types of the request body
+            boolean compatible = true;
+            for (int i = 0; i < argumentGetterList.size(); i++) {
+                if (!isCompatible(argumentGetterList.get(i).getReturnType(), registryMethod.getParameterTypes()[i])) {
+                    compatible = false;
+                    break;
+                }
+            }
+
+            if (compatible) {
+                return registryMethod;
+            } else if (candidate == null) {
+                candidate = registryMethod;
             }
         }
 
-        try {
-            return convertReturnValue(method.invoke(registry, parameters), returnClass);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new CouldNotPerformException("Could not invoke registry method", e);
+        if (candidate == null) {
+            throw new CouldNotPerformException("Could not resolve method[" + methodName + "] for registry[" + registryClass.getSimpleName() + "]");
         }
+        return candidate;
     }
 
-    public static Object convertParameter(final Object parameter, final Class<?> parameterClass, final Type genericType) throws CouldNotPerformException {
+    private static boolean isCompatible(final Class<?> argumentClass, final Class<?> parameterClass) {
         if (Message.class.isAssignableFrom(parameterClass)) {
-            try {
-                Message.Builder newBuilder = (Message.Builder) parameterClass.getMethod("newBuilder").invoke(null);
-                JSON_FORMAT.merge(OBJECT_MAPPER.writeValueAsString(parameter), ExtensionRegistry.getEmptyRegistry(), newBuilder);
-                return newBuilder.build();
-            } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | JsonProcessingException | JsonFormat.ParseException e) {
-                throw new CouldNotPerformException("Could not map parameterType[" + parameter.getClass().getSimpleName() + "] to message[" + parameterClass.getSimpleName() + "]");
-            }
+            return !ProtocolMessageEnum.class.isAssignableFrom(argumentClass) && !argumentClass.isEnum() && !List.class.isAssignableFrom(argumentClass);
+        } else if (ProtocolMessageEnum.class.isAssignableFrom(parameterClass)) {
+            return argumentClass.isEnum() || argumentClass == String.class;
+        } else if (List.class.isAssignableFrom(parameterClass)) {
+            return List.class.isAssignableFrom(argumentClass);
+        } else if (parameterClass.isPrimitive()) {
+            return MethodType.methodType(parameterClass).wrap().returnType().isAssignableFrom(argumentClass);
+        } else {
+            return parameterClass.isAssignableFrom(argumentClass);
+        }
+    }
+
+    private static ParameterConverter resolveParameterConverter(final Class<?> parameterClass, final Type genericType) throws CouldNotPerformException {
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        if (Message.class.isAssignableFrom(parameterClass)) {
+            return parameter -> {
+                try {
+                    return OBJECT_MAPPER.convertValue(parameter, parameterClass);
+                } catch (IllegalArgumentException ex) {
+                    throw new CouldNotPerformException("Could not map parameterType[" + parameter.getClass().getSimpleName() + "] to message[" + parameterClass.getSimpleName() + "]", ex);
+                }
+            };
         } else if (ProtocolMessageEnum.class.isAssignableFrom(parameterClass)) {
+            final MethodHandle valueOf;
             try {
-                return parameterClass.getMethod("valueOf", String.class).invoke(null, parameter.toString());
-            } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-                throw new CouldNotPerformException("Could not parse enum[" + parameterClass.getSimpleName() + "] from value[" + parameter + "]");
+                valueOf = lookup.findStatic(parameterClass, "valueOf", MethodType.methodType(parameterClass, String.class))
+                        .asType(MethodType.methodType(Object.class, String.class));
+            } catch (NoSuchMethodException | IllegalAccessException ex) {
+                throw new CouldNotPerformException("Could not resolve values of enum[" + parameterClass.getSimpleName() + "]", ex);
             }
+            return parameter -> {
+                try {
+                    return (Object) valueOf.invokeExact(parameter.toString());
+                } catch (Throwable ex) {
+                    throw new CouldNotPerformException("Could not parse enum[" + parameterClass.getSimpleName() + "] from value[" + parameter + "]", ex);
+                }
+            };
         } else if (List.class.isAssignableFrom(parameterClass)) {
-            if (!List.class.isAssignableFrom(parameter.getClass())) {
-                throw new CouldNotPerformException("If parameter class is a list the parameter value also needs to be a list!");
-            }
+            final Class<?> elementClass = (Class<?>) ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            final ParameterConverter elementConverter = resolveParameterConverter(elementClass, null);
+            return parameter -> {
+                if (!(parameter instanceof List)) {
+                    throw new CouldNotPerformException("If parameter class is a list the parameter value also needs to be a list!");
+                }
 
-            final List<Object> list = new ArrayList<>();
-            for (final Object listObject : ((List) parameter)) {
-                list.add(convertParameter(listObject, (Class) ((ParameterizedType) genericType).getActualTypeArguments()[0], null));
-            }
-            return list;
+                final List<Object> list = new ArrayList<>();
+                for (final Object listObject : ((List<?>) parameter)) {
+                    list.add(elementConverter.convert(listObject));
+                }
+                return list;
+            };
         } else {
-            return parameter;
+            return parameter -> parameter;
         }
     }
 
+    public static Object convertParameter(final Object parameter, final Class<?> parameterClass, final Type genericType) throws CouldNotPerformException {
+        return resolveParameterConverter(parameterClass, genericType).convert(parameter);
+    }
+
     public static <T> T convertReturnValue(final Object returnValue, final Class<T> returnClass) throws CouldNotPerformException {
         if (Message.class.isAssignableFrom(returnValue.getClass())) {
             try {
-
-                return OBJECT_MAPPER.readValue(JSON_FORMAT.printToString((Message) returnValue), returnClass);
-            } catch (IOException e) {
+                return OBJECT_MAPPER.convertValue(returnValue, returnClass);
+            } catch (IllegalArgumentException e) {
                 throw new CouldNotPerformException("Could not convert value of type[" + returnValue.getClass().getSimpleName() + "] to type[" + returnClass.getSimpleName() + "]", e);
             }
         } else if (ProtocolMessageEnum.class.isAssignableFrom(returnValue.getClass())) {
             try {
-                return OBJECT_MAPPER.readValue(((ProtocolMessageEnum) returnValue).getValueDescriptor().getName(), returnClass);
-            } catch (IOException e) {
+                return OBJECT_MAPPER.convertValue(returnValue, returnClass);
+            } catch (IllegalArgumentException e) {
                 throw new CouldNotPerformException("Could not convert enum[" + returnValue.getClass().getSimpleName() + "] to type[" + returnClass.getSimpleName() + "]", e);
             }
         } else if (List.class.isAssignableFrom(returnClass)) {
             if (!List.class.isAssignableFrom(returnValue.getClass())) {
                 throw new CouldNotPerformException("If return class is a list the return value also needs to be a list!");
             }
+            final Class<?> elementClass = LIST_ELEMENT_CLASS.get(returnClass);
             final List<Object> list = new ArrayList<>();
             for (Object listObject : ((List) returnValue)) {
-                list.add(convertReturnValue(listObject, (Class) ((ParameterizedType) returnClass.getGenericSuperclass()).getActualTypeArguments()[0]));
+                list.add(convertReturnValue(listObject, elementClass));
             }
             return (T) list;
         } else if (Set.class.isAssignableFrom(returnValue.getClass())) {
@@ -194,13 +370,80 @@ public class RegistryRPCProcessor {
                 throw new CouldNotPerformException("If returned class is a set the return class needs to be a list!");
             }
 
+            final Class<?> elementClass = LIST_ELEMENT_CLASS.get(returnClass);
             final List<Object> list = new ArrayList<>();
             for (final Object object : ((Set) returnValue)) {
-                list.add(convertReturnValue(object, (Class) ((ParameterizedType) returnClass.getGenericSuperclass()).getActualTypeArguments()[0]));
+                list.add(convertReturnValue(object, elementClass));
             }
             return (T) list;
         } else {
             return (T) returnValue;
         }
     }
+
+    @FunctionalInterface
+    private interface ParameterConverter {
+        Object convert(final Object parameter) throws CouldNotPerformException;
+    }
+
+    /**
+     * Pre-resolved registry operation.
+     */
+    private static class Operation {
+
+        private final String operationId;
+        private final String registryType;
+        private final MethodHandle registryGetter;
+        private final MethodHandle method;
+        private final MethodHandle[] argumentGetters;
+        private final ParameterConverter[] parameterConverters;
+
+        private Operation(final String operationId, final String registryType, final MethodHandle registryGetter, final MethodHandle method, final MethodHandle[] argumentGetters, final ParameterConverter[] parameterConverters) {
+            this.operationId = operationId;
+            this.registryType = registryType;
+            this.registryGetter = registryGetter;
+            this.method = method;
+            this.argumentGetters = argumentGetters;
+            this.parameterConverters = parameterConverters;
+        }
+
+        private Object getRegistry() throws CouldNotPerformException {
+            try {
+                return (Object) registryGetter.invokeExact();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CouldNotPerformException("Interrupted while waiting for registry of operation[" + operationId + "]", ex);
+            } catch (Throwable ex) {
+                throw new CouldNotPerformException("Could not resolve registry of operation[" + operationId + "]", ex);
+            }
+        }
+
+        private Object invoke(final Object registry, final Object parameter) throws CouldNotPerformException {
+            if (argumentGetters.length > 0 && parameter == null) {
+                throw new NotAvailableException("Arguments of operation[" + operationId + "]");
+            }
+
+            final Object[] parameters = new Object[argumentGetters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                final Object argument;
+                try {
+                    argument = (Object) argumentGetters[i].invokeExact(parameter);
+                } catch (Throwable ex) {
+                    throw new CouldNotPerformException("Could not resolve parameter[" + i + "]", ex);
+                }
+                parameters[i] = parameterConverters[i].convert(argument);
+            }
+
+            try {
+                return (Object) method.invokeExact(registry, parameters);
+            } catch (CouldNotPerformException ex) {
+                throw new CouldNotPerformException("Could not invoke registry method of operation[" + operationId + "]", ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CouldNotPerformException("Interrupted while invoking registry method of operation[" + operationId + "]", ex);
+            } catch (Throwable ex) {
+                throw new CouldNotPerformException("Could not invoke registry method of operation[" + operationId + "]", ex);
+            }
+        }
+    }
 }
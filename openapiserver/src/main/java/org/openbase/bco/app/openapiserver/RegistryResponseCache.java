@@ -0,0 +1,191 @@
+package org.openbase.bco.app.openapiserver;
+
+/*-
+ * #%L
+ * BCO OpenAPI Server
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.protobuf.Message;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.InvalidStateException;
+import org.openbase.jul.pattern.Observer;
+import org.openbase.jul.pattern.provider.DataProvider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of encoded registry responses.
+ * <p>
+ * Responses are cached per registry and invalidated as soon as the data of their registry changes.
+ * Each response is stored as the encoded json body together with an entity tag derived from its content,
+ * so clients polling unchanged data can be answered by a {@code 304 Not Modified}. The entity tag is the SHA-256
+ * digest of the body, so that a tag never matches changed data, not even after a restart of the server.
+ */
+public class RegistryResponseCache {
+
+    /**
+     * Maximal number of cached responses per registry. Further responses are not cached until the registry changes.
+     */
+    private static final int MAX_ENTRIES_PER_REGISTRY = 256;
+
+    /**
+     * Algorithm of the digest used as entity tag. Every java platform has to support it.
+     */
+    private static final String ETAG_DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Loads and encodes a response.
+     */
+    @FunctionalInterface
+    public interface ResponseLoader {
+
+        /**
+         * @param registry the registry providing the data of the response.
+         *
+         * @return the encoded response body.
+         *
+         * @throws CouldNotPerformException if the response could not be loaded.
+         */
+        byte[] load(final Object registry) throws CouldNotPerformException;
+    }
+
+    private final Map<String, RegistryEntries> registryEntriesMap = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cached response for the given key or loads it if not available.
+     *
+     * @param registryType the type of the registry providing the response.
+     * @param registry     the registry providing the response.
+     * @param key          the key of the response, which has to identify the operation and its arguments.
+     * @param loader       the loader used if the response is not cached.
+     *
+     * @return the cached or newly loaded response.
+     *
+     * @throws CouldNotPerformException if the response could not be loaded.
+     */
+    public CachedResponse get(final String registryType, final Object registry, final Object key, final ResponseLoader loader) throws CouldNotPerformException {
+        final RegistryEntries entries = registryEntriesMap.computeIfAbsent(registryType, RegistryEntries::new);
+
+        CachedResponse response = entries.responseMap.get(key);
+        if (response != null) {
+            return response;
+        }
+
+        // the observer has to be registered before the data is loaded, so no change can be missed
+        entries.observe(registry);
+        final long generation = entries.generation.get();
+        response = new CachedResponse(loader.load(registry));
+
+        if (entries.responseMap.size() < MAX_ENTRIES_PER_REGISTRY && entries.generation.get() == generation) {
+            entries.responseMap.put(key, response);
+
+            // drop the response again if the registry has changed in the meantime
+            if (entries.generation.get() != generation) {
+                entries.responseMap.remove(key, response);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        registryEntriesMap.values().forEach(RegistryEntries::invalidate);
+    }
+
+    /**
+     * Encoded response together with its entity tag.
+     */
+    public static class CachedResponse {
+
+        private final byte[] body;
+        private final String eTag;
+
+        private CachedResponse(final byte[] body) {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(ETAG_DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("Digest algorithm[" + ETAG_DIGEST_ALGORITHM + "] is not supported", ex);
+            }
+            this.body = body;
+            this.eTag = "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest(body)) + "\"";
+        }
+
+        /**
+         * @return the encoded response. The returned array must not be modified.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+
+    private static class RegistryEntries {
+
+        private final String registryType;
+        private final Map<Object, CachedResponse> responseMap = new ConcurrentHashMap<>();
+        private final AtomicLong generation = new AtomicLong();
+        private final Observer<DataProvider<Message>, Message> dataObserver = (source, data) -> invalidate();
+
+        private volatile Object observedRegistry;
+
+        private RegistryEntries(final String registryType) {
+            this.registryType = registryType;
+        }
+
+        private void observe(final Object registry) throws CouldNotPerformException {
+            if (observedRegistry == registry) {
+                return;
+            }
+
+            synchronized (this) {
+                if (observedRegistry == registry) {
+                    return;
+                }
+
+                if (!(registry instanceof DataProvider)) {
+                    throw new InvalidStateException("Registry[" + registryType + "] does not provide data updates");
+                }
+
+                if (observedRegistry != null) {
+                    ((DataProvider<Message>) observedRegistry).removeDataObserver(dataObserver);
+                }
+                ((DataProvider<Message>) registry).addDataObserver(dataObserver);
+                observedRegistry = registry;
+                invalidate();
+            }
+        }
+
+        private void invalidate() {
+            generation.incrementAndGet();
+            responseMap.clear();
+        }
+    }
+}
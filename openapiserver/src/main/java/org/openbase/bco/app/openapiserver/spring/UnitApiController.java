@@ -24,13 +24,8 @@ package org.openbase.bco.app.openapiserver.spring;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.stream.JsonReader;
-import com.google.protobuf.ExtensionRegistry;
-import com.google.protobuf.Message;
-import com.googlecode.protobuf.format.JsonFormat;
-import org.openbase.bco.dal.lib.layer.service.ServiceStateProvider;
+import org.openbase.bco.app.openapiserver.OpenApiServerApp;
+import org.openbase.bco.app.openapiserver.ProtobufModule;
 import org.openbase.bco.dal.lib.layer.unit.UnitRemote;
 import org.openbase.bco.dal.remote.action.RemoteAction;
 import org.openbase.bco.dal.remote.layer.unit.Units;
@@ -38,13 +33,10 @@ import org.openbase.bco.openapi.server.api.UnitApi;
 import org.openbase.bco.openapi.server.model.OpenbaseActionDescription;
 import org.openbase.bco.openapi.server.model.OpenbaseActionParameter;
 import org.openbase.bco.registry.remote.Registries;
-import org.openbase.jul.exception.CouldNotPerformException;
 import org.openbase.jul.exception.FatalImplementationErrorException;
 import org.openbase.jul.exception.InstantiationException;
 import org.openbase.jul.exception.NotAvailableException;
 import org.openbase.jul.exception.printer.ExceptionPrinter;
-import org.openbase.jul.pattern.Observer;
-import org.openbase.jul.schedule.SyncObject;
 import org.openbase.type.domotic.action.ActionDescriptionType.ActionDescription;
 import org.openbase.type.domotic.action.ActionParameterType.ActionParameter;
 import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
@@ -53,6 +45,7 @@ import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
 import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -60,12 +53,8 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.validation.Valid;
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -80,28 +69,30 @@ public class UnitApiController implements UnitApi {
     //TODO: this should be configurable via the app meta config
     private static final long DEFAULT_SSE_TIMEOUT = TimeUnit.HOURS.toMillis(12);
 
-    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
-    static final JsonFormat JSON_FORMAT = new JsonFormat();
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .registerModule(new ProtobufModule());
 
     private final Logger logger = LoggerFactory.getLogger(UnitApiController.class);
 
-    private final SyncObject observerMapLock;
-    private final Map<String, UnitSSEObserver> observerMap;
+    private final UnitEventHub eventHub;
 
-    public UnitApiController() {
-        this.observerMapLock = new SyncObject("ObserverMapLock");
-        this.observerMap = new HashMap<>();
+    /**
+     * @param sseQueueCapacity the maximal number of events queued per server sent event subscriber,
+     *                         configured by the {@link OpenApiServerApp#KEY_SSE_QUEUE_CAPACITY} of the app meta config.
+     */
+    public UnitApiController(@Value("${" + OpenApiServerApp.PROPERTY_SSE_QUEUE_CAPACITY + "}") final int sseQueueCapacity) {
+        this.eventHub = new UnitEventHub(sseQueueCapacity);
     }
 
     @Override
     @CrossOrigin(origins = "*")
     public ResponseEntity<OpenbaseActionDescription> unitApplyActionPost(@Valid @RequestBody OpenbaseActionParameter openbaseActionParameter) {
-        final ActionParameter.Builder actionParameterBuilder = ActionParameter.newBuilder();
         try {
-            JSON_FORMAT.merge(OBJECT_MAPPER.writeValueAsString(openbaseActionParameter), ExtensionRegistry.getEmptyRegistry(), actionParameterBuilder);
-            ActionDescription actionDescription = new RemoteAction(actionParameterBuilder.build()).execute().get(5, TimeUnit.SECONDS);
-            return ResponseEntity.ok(OBJECT_MAPPER.readValue(JSON_FORMAT.printToString(actionDescription), OpenbaseActionDescription.class));
-        } catch (IOException | InstantiationException | ExecutionException | TimeoutException | InterruptedException ex) {
+            final ActionParameter actionParameter = OBJECT_MAPPER.convertValue(openbaseActionParameter, ActionParameter.class);
+            final ActionDescription actionDescription = new RemoteAction(actionParameter).execute().get(5, TimeUnit.SECONDS);
+            return ResponseEntity.ok(OBJECT_MAPPER.convertValue(actionDescription, OpenbaseActionDescription.class));
+        } catch (IllegalArgumentException | InstantiationException | ExecutionException | TimeoutException | InterruptedException ex) {
             ExceptionPrinter.printHistory(ex, logger);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
@@ -131,52 +122,9 @@ public class UnitApiController implements UnitApi {
                 unitRemoteList.add(Units.getUnit(unitId, false));
             }
 
-            // create an emitter an add/create according observers
+            // create an emitter and subscribe it to the events of all units
             final SseEmitter sseEmitter = new SseEmitter(DEFAULT_SSE_TIMEOUT);
-            synchronized (observerMapLock) {
-                for (final UnitRemote<?> unitRemote : unitRemoteList) {
-                    if (observerMap.containsKey(unitRemote.getId())) {
-                        // add emitter to existing observer
-                        observerMap.get(unitRemote.getId()).addEmitter(sseEmitter);
-                    } else {
-                        // create new observer
-                        final UnitSSEObserver unitSSEObserver = new UnitSSEObserver(unitRemote);
-                        unitSSEObserver.addEmitter(sseEmitter);
-                        observerMap.put(unitRemote.getId(), unitSSEObserver);
-                        try {
-                            unitRemote.addServiceStateObserver(serviceTempus, serviceType, unitSSEObserver);
-                        } catch (CouldNotPerformException ex) {
-                            ExceptionPrinter.printHistory("Could not register service state observer!", ex, logger);
-                        }
-                    }
-                }
-            }
-
-            sseEmitter.onError(throwable -> {
-                logger.debug("Remove emitter from sse observers because of an error:", throwable);
-                synchronized (observerMapLock) {
-                    for (final UnitRemote<?> unitRemote : unitRemoteList) {
-                        try {
-                            observerMap.get(unitRemote.getId()).removeEmitter(sseEmitter);
-                        } catch (NotAvailableException e) {
-                            ExceptionPrinter.printHistory(new CouldNotPerformException("Could not remove SSEEmitter from observer", e), logger);
-                        }
-                    }
-                }
-            });
-            // remove emitters from observers on completion
-            sseEmitter.onCompletion(() -> {
-                logger.debug("Remove emitter from sse observers");
-                synchronized (observerMapLock) {
-                    for (final UnitRemote<?> unitRemote : unitRemoteList) {
-                        try {
-                            observerMap.get(unitRemote.getId()).removeEmitter(sseEmitter);
-                        } catch (NotAvailableException e) {
-                            ExceptionPrinter.printHistory(new CouldNotPerformException("Could not remove SSEEmitter from observer", e), logger);
-                        }
-                    }
-                }
-            });
+            eventHub.subscribe(sseEmitter, unitRemoteList, serviceType, serviceTempus);
 
             // return emitter
             return sseEmitter;
@@ -201,58 +149,4 @@ public class UnitApiController implements UnitApi {
             super(cause);
         }
     }
-
-    private class UnitSSEObserver implements Observer<ServiceStateProvider<Message>, Message> {
-
-        private final SyncObject emitterLock;
-        private final List<SseEmitter> emitters;
-
-        private final String unitId;
-        private final UnitRemote<?> unitRemote;
-
-        UnitSSEObserver(final UnitRemote<?> unitRemote) throws NotAvailableException {
-            this.unitRemote = unitRemote;
-            this.unitId = unitRemote.getId();
-
-            this.emitterLock = new SyncObject("SSEEmitterLock");
-            this.emitters = new ArrayList<>();
-        }
-
-        @Override
-        public void update(final ServiceStateProvider<Message> source, final Message data) throws Exception {
-            final JsonReader jsonReader = new JsonReader(new StringReader(JSON_FORMAT.printToString(data)));
-            jsonReader.setLenient(true);
-            final JsonObject serviceStateAsJsonObject = new JsonParser().parse(jsonReader).getAsJsonObject();
-            final JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("unitId", unitId);
-            jsonObject.addProperty("serviceTempus", source.getServiceTempus().name());
-            jsonObject.addProperty("serviceType", source.getServiceType().name());
-            jsonObject.add("serviceState", serviceStateAsJsonObject);
-
-            synchronized (emitterLock) {
-                for (final SseEmitter emitter : emitters) {
-                    emitter.send(jsonObject.toString());
-                }
-            }
-        }
-
-        void addEmitter(final SseEmitter emitter) {
-            synchronized (emitterLock) {
-                this.emitters.add(emitter);
-            }
-        }
-
-        void removeEmitter(final SseEmitter emitter) {
-            synchronized (observerMapLock) {
-                synchronized (emitterLock) {
-                    this.emitters.remove(emitter);
-
-                    if (this.emitters.isEmpty()) {
-                        unitRemote.removeServiceStateObserver(ServiceTempus.UNKNOWN, ServiceType.UNKNOWN, this);
-                        observerMap.remove(unitId);
-                    }
-                }
-            }
-        }
-    }
 }
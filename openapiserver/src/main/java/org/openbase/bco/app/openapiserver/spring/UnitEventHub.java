@@ -0,0 +1,253 @@
+package org.openbase.bco.app.openapiserver.spring;
+
+/*-
+ * #%L
+ * BCO OpenAPI Server
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.Message;
+import org.openbase.bco.app.openapiserver.ProtobufModule;
+import org.openbase.bco.dal.lib.layer.service.ServiceStateProvider;
+import org.openbase.bco.dal.lib.layer.unit.UnitRemote;
+import org.openbase.jul.exception.CouldNotPerformException;
+import org.openbase.jul.exception.NotAvailableException;
+import org.openbase.jul.exception.printer.ExceptionPrinter;
+import org.openbase.jul.exception.printer.LogLevel;
+import org.openbase.jul.pattern.Observer;
+import org.openbase.jul.schedule.GlobalCachedExecutorService;
+import org.openbase.jul.schedule.SyncObject;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.service.ServiceTempusTypeType.ServiceTempusType.ServiceTempus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Distributes service state events of units to server sent event subscribers.
+ * <p>
+ * For each combination of unit, service type and service tempus only one observer is registered, which is shared by all
+ * subscribers requesting the same filter. Every subscriber owns a bounded queue drained by its own task, so a slow client
+ * does not delay the others. Events are encoded once per update into a UTF-8 buffer shared by all subscribers of a route.
+ * If the queue of a subscriber overflows, the subscriber is evicted by completing its emitter,
+ * which lets the client reconnect and start with a fresh stream.
+ */
+public class UnitEventHub {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().registerModule(new ProtobufModule());
+    private static final int INITIAL_EVENT_BUFFER_SIZE = 512;
+
+    private final Logger logger = LoggerFactory.getLogger(UnitEventHub.class);
+
+    private final int queueCapacity;
+    private final SyncObject routeMapLock;
+    private final Map<String, Route> routeMap;
+
+    /**
+     * Creates a new hub.
+     *
+     * @param queueCapacity the maximal number of events queued per subscriber before it is evicted.
+     */
+    public UnitEventHub(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        this.routeMapLock = new SyncObject("RouteMapLock");
+        this.routeMap = new HashMap<>();
+    }
+
+    /**
+     * Subscribes the given emitter to the service state events of the given units.
+     * The subscription is removed as soon as the emitter is completed, times out or fails.
+     *
+     * @param emitter        the emitter to which the events are sent.
+     * @param unitRemoteList the units to observe.
+     * @param serviceType    the service type to observe.
+     * @param serviceTempus  the service tempus to observe.
+     *
+     * @throws NotAvailableException if the id of a unit is not available.
+     */
+    public void subscribe(final SseEmitter emitter, final List<UnitRemote<?>> unitRemoteList, final ServiceType serviceType, final ServiceTempus serviceTempus) throws NotAvailableException {
+        final Subscriber subscriber = new Subscriber(emitter);
+
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(throwable -> {
+            logger.debug("Remove subscriber because of an error:", throwable);
+            unsubscribe(subscriber);
+        });
+
+        synchronized (routeMapLock) {
+            for (final UnitRemote<?> unitRemote : unitRemoteList) {
+                final String routeKey = unitRemote.getId() + "/" + serviceType.name() + "/" + serviceTempus.name();
+                Route route = routeMap.get(routeKey);
+                if (route == null) {
+                    route = new Route(unitRemote, serviceType, serviceTempus);
+                    try {
+                        unitRemote.addServiceStateObserver(serviceTempus, serviceType, route);
+                    } catch (CouldNotPerformException ex) {
+                        ExceptionPrinter.printHistory("Could not register service state observer!", ex, logger);
+                        continue;
+                    }
+                    routeMap.put(routeKey, route);
+                }
+                route.subscriberList.add(subscriber);
+                subscriber.routeKeyList.add(routeKey);
+            }
+        }
+    }
+
+    private void unsubscribe(final Subscriber subscriber) {
+        if (!subscriber.closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        synchronized (routeMapLock) {
+            for (final String routeKey : subscriber.routeKeyList) {
+                final Route route = routeMap.get(routeKey);
+                if (route == null) {
+                    continue;
+                }
+
+                route.subscriberList.remove(subscriber);
+                if (route.subscriberList.isEmpty()) {
+                    route.unitRemote.removeServiceStateObserver(route.serviceTempus, route.serviceType, route);
+                    routeMap.remove(routeKey);
+                }
+            }
+        }
+        subscriber.queue.clear();
+    }
+
+    /**
+     * Observer of a single unit, service type and service tempus routing its events to all subscribers.
+     */
+    private class Route implements Observer<ServiceStateProvider<Message>, Message> {
+
+        private final UnitRemote<?> unitRemote;
+        private final String unitId;
+        private final ServiceType serviceType;
+        private final ServiceTempus serviceTempus;
+        private final List<Subscriber> subscriberList;
+
+        private Route(final UnitRemote<?> unitRemote, final ServiceType serviceType, final ServiceTempus serviceTempus) throws NotAvailableException {
+            this.unitRemote = unitRemote;
+            this.unitId = unitRemote.getId();
+            this.serviceType = serviceType;
+            this.serviceTempus = serviceTempus;
+            this.subscriberList = new CopyOnWriteArrayList<>();
+        }
+
+        @Override
+        public void update(final ServiceStateProvider<Message> source, final Message data) throws Exception {
+            if (subscriberList.isEmpty()) {
+                return;
+            }
+
+            // encode the event once, the buffer is shared by all subscribers
+            final byte[] event;
+            try (final ByteArrayBuilder buffer = new ByteArrayBuilder(INITIAL_EVENT_BUFFER_SIZE)) {
+                try (final JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(buffer, JsonEncoding.UTF8)) {
+                    generator.writeStartObject();
+                    generator.writeStringField("unitId", unitId);
+                    generator.writeStringField("serviceTempus", serviceTempus.name());
+                    generator.writeStringField("serviceType", serviceType.name());
+                    generator.writeFieldName("serviceState");
+                    OBJECT_MAPPER.writeValue(generator, data);
+                    generator.writeEndObject();
+                }
+                event = buffer.toByteArray();
+            }
+
+            for (final Subscriber subscriber : subscriberList) {
+                subscriber.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Client connection receiving the events of one or more routes.
+     */
+    private class Subscriber {
+
+        private final SseEmitter emitter;
+        private final BlockingQueue<byte[]> queue;
+        private final List<String> routeKeyList;
+        private final AtomicBoolean draining;
+        private final AtomicBoolean closed;
+
+        private Subscriber(final SseEmitter emitter) {
+            this.emitter = emitter;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.routeKeyList = new ArrayList<>();
+            this.draining = new AtomicBoolean();
+            this.closed = new AtomicBoolean();
+        }
+
+        private void offer(final byte[] event) {
+            if (closed.get()) {
+                return;
+            }
+
+            if (!queue.offer(event)) {
+                logger.warn("Evict event subscriber because it could not keep up with {} queued events.", queueCapacity);
+                unsubscribe(this);
+                emitter.complete();
+                return;
+            }
+
+            if (draining.compareAndSet(false, true)) {
+                GlobalCachedExecutorService.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                byte[] event;
+                while ((event = queue.poll()) != null) {
+                    try {
+                        emitter.send(SseEmitter.event().data(event, MediaType.APPLICATION_JSON));
+                    } catch (IOException | IllegalStateException ex) {
+                        ExceptionPrinter.printHistory("Could not send event to subscriber!", ex, logger, LogLevel.DEBUG);
+                        unsubscribe(this);
+                        emitter.completeWithError(ex);
+                        draining.set(false);
+                        return;
+                    }
+                }
+                draining.set(false);
+
+                // continue if events were queued after the queue was seen empty but before the draining flag was reset
+            } while (!queue.isEmpty() && !closed.get() && draining.compareAndSet(false, true));
+        }
+    }
+}
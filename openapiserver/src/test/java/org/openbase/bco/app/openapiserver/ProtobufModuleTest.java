@@ -0,0 +1,151 @@
+package org.openbase.bco.app.openapiserver;
+
+/*-
+ * #%L
+ * BCO OpenAPI Server
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+import org.junit.Test;
+import org.openbase.type.domotic.action.ActionDescriptionType.ActionDescription;
+import org.openbase.type.domotic.action.ActionInitiatorType.ActionInitiator;
+import org.openbase.type.domotic.action.ActionInitiatorType.ActionInitiator.InitiatorType;
+import org.openbase.type.domotic.action.ActionPriorityType.ActionPriority.Priority;
+import org.openbase.type.domotic.authentication.AuthenticatedValueType.AuthenticatedValue;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.state.EnablingStateType.EnablingState.State;
+import org.openbase.type.domotic.unit.UnitConfigType.UnitConfig;
+import org.openbase.type.domotic.unit.UnitTemplateType.UnitTemplate.UnitType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ProtobufModuleTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProtobufModuleTest.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().registerModule(new ProtobufModule());
+    private static final JsonFormat JSON_FORMAT = new JsonFormat();
+
+    /**
+     * Verify that the module writes the same json as the json format and reads it back into an equal message.
+     */
+    private static <M extends Message> void assertRoundTrip(final M message, final Class<M> messageClass) throws IOException {
+        final String expectedJson = JSON_FORMAT.printToString(message);
+        final JsonNode expected = OBJECT_MAPPER.readTree(expectedJson);
+        final JsonNode actual = OBJECT_MAPPER.readTree(OBJECT_MAPPER.writeValueAsString(message));
+        assertEquals(expected, actual);
+        assertEquals(message, OBJECT_MAPPER.readValue(expectedJson, messageClass));
+        assertEquals(message, OBJECT_MAPPER.convertValue(message, messageClass));
+    }
+
+    private static void assertMalformed(final String json, final Class<? extends Message> messageClass) throws IOException {
+        try {
+            OBJECT_MAPPER.readValue(json, messageClass);
+            fail("Malformed json[" + json + "] has been parsed");
+        } catch (JsonMappingException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnitConfigRoundTrip() throws Exception {
+        LOGGER.info("testUnitConfigRoundTrip");
+        final UnitConfig.Builder unitConfig = UnitConfig.newBuilder()
+                .setId("lamp")
+                .setUnitType(UnitType.COLORABLE_LIGHT)
+                .setBoundToUnitHost(true)
+                .setUnitHostId("device")
+                .addAlias("ColorableLight-1")
+                .addAlias("ColorableLight-2");
+        unitConfig.getLabelBuilder().addEntryBuilder().setKey("de").addValue("Stehlampe").addValue("Leselampe");
+        unitConfig.getLabelBuilder().addEntryBuilder().setKey("en").addValue("Floor Lamp");
+        unitConfig.getMetaConfigBuilder().addEntryBuilder().setKey("key").setValue("value");
+        unitConfig.getPlacementConfigBuilder().setLocationId("living");
+        unitConfig.getEnablingStateBuilder().setValue(State.ENABLED);
+
+        assertRoundTrip(unitConfig.build(), UnitConfig.class);
+    }
+
+    @Test
+    public void testActionDescriptionRoundTrip() throws Exception {
+        LOGGER.info("testActionDescriptionRoundTrip");
+        final ActionDescription.Builder actionDescription = ActionDescription.newBuilder()
+                .setId("action")
+                .setPriority(Priority.HIGH)
+                .setExecutionTimePeriod(Long.MAX_VALUE)
+                .setInterruptible(true)
+                .setActionInitiator(ActionInitiator.newBuilder().setInitiatorType(InitiatorType.HUMAN).setInitiatorId("user"));
+        actionDescription.getServiceStateDescriptionBuilder()
+                .setUnitId("lamp")
+                .setServiceType(ServiceType.POWER_STATE_SERVICE)
+                .setServiceState("{\"value\": \"ON\"}");
+        // exceeds the range of a signed long if the timestamp is unsigned
+        actionDescription.getTimestampBuilder().setTime(-2L);
+
+        assertRoundTrip(actionDescription.build(), ActionDescription.class);
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        LOGGER.info("testBytes");
+        final byte[] value = {0, 1, 127, -128, -1};
+        final AuthenticatedValue authenticatedValue = AuthenticatedValue.newBuilder().setValue(ByteString.copyFrom(value)).build();
+
+        // bytes are written as base64 instead of the escaped string of the json format
+        final JsonNode json = OBJECT_MAPPER.readTree(OBJECT_MAPPER.writeValueAsString(authenticatedValue));
+        assertEquals(Base64.getEncoder().encodeToString(value), json.get("value").asText());
+        assertEquals(authenticatedValue, OBJECT_MAPPER.readValue(json.toString(), AuthenticatedValue.class));
+        assertEquals(authenticatedValue, OBJECT_MAPPER.convertValue(authenticatedValue, AuthenticatedValue.class));
+    }
+
+    @Test
+    public void testMalformedValues() throws Exception {
+        LOGGER.info("testMalformedValues");
+        assertMalformed("{\"id\": {\"value\": \"lamp\"}}", UnitConfig.class);
+        assertMalformed("{\"bound_to_unit_host\": \"yes\"}", UnitConfig.class);
+        assertMalformed("{\"bound_to_unit_host\": 1}", UnitConfig.class);
+        assertMalformed("{\"unit_type\": \"NO_SUCH_TYPE\"}", UnitConfig.class);
+        assertMalformed("{\"unit_type\": [\"COLORABLE_LIGHT\"]}", UnitConfig.class);
+        assertMalformed("{\"placement_config\": \"living\"}", UnitConfig.class);
+        assertMalformed("{\"execution_time_period\": \"soon\"}", ActionDescription.class);
+        assertMalformed("{\"execution_time_period\": 18446744073709551616}", ActionDescription.class);
+        assertMalformed("{\"execution_time_period\": 1.5}", ActionDescription.class);
+
+        // conversions of openapi models report malformed values as illegal argument instead of a null pointer
+        try {
+            OBJECT_MAPPER.convertValue(Collections.singletonMap("id", Collections.emptyMap()), UnitConfig.class);
+            fail("Malformed id has been converted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.openbase.bco.app.openapiserver.spring;
+
+/*-
+ * #%L
+ * BCO OpenAPI Server
+ * %%
+ * Copyright (C) 2018 - 2021 openbase.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.Message;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbase.bco.dal.lib.layer.service.ServiceStateProvider;
+import org.openbase.bco.dal.lib.layer.unit.UnitRemote;
+import org.openbase.jul.pattern.Observer;
+import org.openbase.type.domotic.service.ServiceTemplateType.ServiceTemplate.ServiceType;
+import org.openbase.type.domotic.service.ServiceTempusTypeType.ServiceTempusType.ServiceTempus;
+import org.openbase.type.domotic.state.PowerStateType.PowerState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UnitEventHubTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UnitEventHubTest.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String UNIT_ID = "lamp";
+    private static final long EVENT_TIMEOUT = 5000;
+
+    private List<Observer<ServiceStateProvider<Message>, Message>> observerList;
+    private int removedObserverCount;
+    private UnitRemote<?> unitRemote;
+
+    /**
+     * Creates a unit remote which only records the registration of service state observers.
+     */
+    @Before
+    public void setUp() {
+        observerList = new CopyOnWriteArrayList<>();
+        removedObserverCount = 0;
+        unitRemote = (UnitRemote<?>) Proxy.newProxyInstance(UnitRemote.class.getClassLoader(), new Class<?>[]{UnitRemote.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getId":
+                    return UNIT_ID;
+                case "addServiceStateObserver":
+                    observerList.add((Observer<ServiceStateProvider<Message>, Message>) args[args.length - 1]);
+                    return null;
+                case "removeServiceStateObserver":
+                    if (observerList.remove(args[args.length - 1])) {
+                        removedObserverCount++;
+                    }
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "UnitRemote[" + UNIT_ID + "]";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private void subscribe(final UnitEventHub eventHub, final TestEmitter emitter) throws Exception {
+        eventHub.subscribe(emitter, Collections.singletonList(unitRemote), ServiceType.POWER_STATE_SERVICE, ServiceTempus.CURRENT);
+    }
+
+    private void publish(final PowerState.State state) throws Exception {
+        for (final Observer<ServiceStateProvider<Message>, Message> observer : observerList) {
+            observer.update(null, PowerState.newBuilder().setValue(state).build());
+        }
+    }
+
+    private static void assertEvent(final PowerState.State expectedState, final TestEmitter emitter) throws Exception {
+        final String event = emitter.eventQueue.poll(EVENT_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(OBJECT_MAPPER.readTree("{\"unitId\": \"" + UNIT_ID + "\", \"serviceTempus\": \"CURRENT\", \"serviceType\": \"POWER_STATE_SERVICE\", \"serviceState\": {\"value\": \"" + expectedState.name() + "\"}}"), OBJECT_MAPPER.readTree(event));
+    }
+
+    @Test(timeout = 10000)
+    public void testSubscribe() throws Exception {
+        LOGGER.info("testSubscribe");
+        final UnitEventHub eventHub = new UnitEventHub(16);
+        final TestEmitter firstEmitter = new TestEmitter();
+        final TestEmitter secondEmitter = new TestEmitter();
+        subscribe(eventHub, firstEmitter);
+        subscribe(eventHub, secondEmitter);
+
+        // subscribers of the same unit, service type and tempus share one observer
+        assertEquals(1, observerList.size());
+
+        publish(PowerState.State.ON);
+        publish(PowerState.State.OFF);
+        for (final TestEmitter emitter : new TestEmitter[]{firstEmitter, secondEmitter}) {
+            assertEvent(PowerState.State.ON, emitter);
+            assertEvent(PowerState.State.OFF, emitter);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testUnsubscribe() throws Exception {
+        LOGGER.info("testUnsubscribe");
+        final UnitEventHub eventHub = new UnitEventHub(16);
+        final TestEmitter firstEmitter = new TestEmitter();
+        final TestEmitter secondEmitter = new TestEmitter();
+        subscribe(eventHub, firstEmitter);
+        subscribe(eventHub, secondEmitter);
+
+        // the observer is kept as long as a subscriber is left
+        firstEmitter.runCompletionCallbacks();
+        assertEquals(1, observerList.size());
+        assertEquals(0, removedObserverCount);
+
+        publish(PowerState.State.ON);
+        assertEvent(PowerState.State.ON, secondEmitter);
+        assertNull(firstEmitter.eventQueue.poll(100, TimeUnit.MILLISECONDS));
+
+        // the observer is removed with the last subscriber
+        secondEmitter.runCompletionCallbacks();
+        assertTrue(observerList.isEmpty());
+        assertEquals(1, removedObserverCount);
+
+        // completing a subscriber again has no effect
+        secondEmitter.runCompletionCallbacks();
+        assertEquals(1, removedObserverCount);
+    }
+
+    @Test(timeout = 10000)
+    public void testEviction() throws Exception {
+        LOGGER.info("testEviction");
+        final UnitEventHub eventHub = new UnitEventHub(1);
+        final TestEmitter slowEmitter = new TestEmitter();
+        final TestEmitter emitter = new TestEmitter();
+        subscribe(eventHub, slowEmitter);
+        subscribe(eventHub, emitter);
+
+        slowEmitter.blockSending();
+        publish(PowerState.State.ON);
+        // wait until the first event is taken from the queue, so the next one fills it and the third one overflows it
+        slowEmitter.sendingLatch.await();
+        assertEvent(PowerState.State.ON, emitter);
+        publish(PowerState.State.OFF);
+        assertEvent(PowerState.State.OFF, emitter);
+        publish(PowerState.State.ON);
+        assertEvent(PowerState.State.ON, emitter);
+
+        // only the slow subscriber is evicted
+        slowEmitter.completionLatch.await();
+        assertEquals(1, emitter.completionLatch.getCount());
+        assertEquals(1, observerList.size());
+        slowEmitter.releaseSending();
+
+        publish(PowerState.State.OFF);
+        assertEvent(PowerState.State.OFF, emitter);
+
+        // the observer is removed if the evicted subscriber was the last one
+        emitter.runCompletionCallbacks();
+        assertTrue(observerList.isEmpty());
+    }
+
+    /**
+     * Emitter recording the sent events instead of writing them to a response.
+     */
+    private static class TestEmitter extends SseEmitter {
+
+        private final BlockingQueue<String> eventQueue = new LinkedBlockingQueue<>();
+        private final List<Runnable> completionCallbackList = new CopyOnWriteArrayList<>();
+        private final CountDownLatch completionLatch = new CountDownLatch(1);
+        private final CountDownLatch sendingLatch = new CountDownLatch(1);
+        private volatile CountDownLatch releaseLatch;
+
+        private void blockSending() {
+            releaseLatch = new CountDownLatch(1);
+        }
+
+        private void releaseSending() {
+            releaseLatch.countDown();
+        }
+
+        private void runCompletionCallbacks() {
+            completionCallbackList.forEach(Runnable::run);
+        }
+
+        @Override
+        public void send(final SseEventBuilder builder) throws IOException {
+            sendingLatch.countDown();
+            final CountDownLatch latch = releaseLatch;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while sending", ex);
+                }
+            }
+
+            for (final DataWithMediaType data : builder.build()) {
+                if (data.getData() instanceof byte[]) {
+                    eventQueue.add(new String((byte[]) data.getData(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onCompletion(final Runnable callback) {
+            super.onCompletion(callback);
+            completionCallbackList.add(callback);
+        }
+
+        @Override
+        public synchronized void complete() {
+            super.complete();
+            completionLatch.countDown();
+        }
+    }
+}